@@ -0,0 +1,175 @@
+package languageCommon;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Reads one frame of the binary protocol written by {@link FrameEncoder}. The
+ * length prefix has already been consumed, so the data starts at the operation byte.
+ */
+public class FrameDecoder {
+
+	private static final LanguageOperations[] OPERATIONS = LanguageOperations.values();
+
+	private byte[] buf;
+	private int pos;
+	private int end;
+
+	private LanguageOperations operation;
+	private int callId;
+
+	public FrameDecoder(byte[] data, int offset, int length) {
+		this.buf = data;
+		this.pos = offset;
+		this.end = offset + length;
+		int op = readByte();
+		operation = op < OPERATIONS.length ? OPERATIONS[op] : LanguageOperations.None;
+		callId = (int) readVarint();
+	}
+
+	public LanguageOperations getOperation() {
+		return operation;
+	}
+
+	public int getCallId() {
+		return callId;
+	}
+
+	public boolean hasRemaining() {
+		return pos < end;
+	}
+
+	public int readByte() {
+		if (pos >= end) {
+			throw new IllegalStateException("Read past the end of the frame");
+		}
+		return buf[pos++] & 0xFF;
+	}
+
+	public long readVarint() {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	public String readString() {
+		int length = readLength();
+		String s = new String(buf, pos, length, StandardCharsets.UTF_8);
+		pos += length;
+		return s;
+	}
+
+	public byte[] readBytes() {
+		int length = readLength();
+		byte[] bytes = Arrays.copyOfRange(buf, pos, pos + length);
+		pos += length;
+		return bytes;
+	}
+
+	private int readLength() {
+		int length = (int) readVarint();
+		if (length < 0 || length > end - pos) {
+			throw new IllegalStateException("Field of length " + length + " does not fit in the frame");
+		}
+		return length;
+	}
+
+	/**
+	 * Reads an argument back into the text protocol's {"value":"type"} form. Packed
+	 * arrays keep their bytes, as a {@link Packed} value.
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject readArgument() {
+		JSONObject arg = new JSONObject();
+		int type = readByte();
+		switch (type) {
+		case FrameEncoder.TYPE_INT:
+			long l = readVarint();
+			arg.put(Long.toString((l >>> 1) ^ -(l & 1)), "int");
+			break;
+		case FrameEncoder.TYPE_STRING:
+			arg.put(readString(), "string");
+			break;
+		case FrameEncoder.TYPE_INT_ARRAY:
+			arg.put(new Packed(readBytes()), Packed.INT_ARRAY);
+			break;
+		case FrameEncoder.TYPE_LONG_ARRAY:
+			arg.put(new Packed(readBytes()), Packed.LONG_ARRAY);
+			break;
+		case FrameEncoder.TYPE_DOUBLE_ARRAY:
+			arg.put(new Packed(readBytes()), Packed.DOUBLE_ARRAY);
+			break;
+		case FrameEncoder.TYPE_BYTES:
+			arg.put(new Packed(readBytes()), Packed.BYTES);
+			break;
+		case FrameEncoder.TYPE_OTHER:
+			String typeName = readString();
+			arg.put(readString(), typeName);
+			break;
+		default:
+			throw new IllegalStateException("Unknown argument type " + type);
+		}
+		return arg;
+	}
+
+	@SuppressWarnings("unchecked")
+	public JSONArray readArguments() {
+		int size = (int) readVarint();
+		JSONArray args = new JSONArray();
+		for (int i = 0; i < size; i++) {
+			args.add(readArgument());
+		}
+		return args;
+	}
+
+	@SuppressWarnings("unchecked")
+	public JSONArray readBatchEntries() {
+		int size = (int) readVarint();
+		JSONArray entries = new JSONArray();
+		for (int i = 0; i < size; i++) {
+			JSONObject entry = new JSONObject();
+			if (readByte() == LanguageOperations.CreateObject.ordinal()) {
+				entry.put("op", "create");
+				entry.put("name", readString());
+				entry.put("varName", readString());
+			} else {
+				entry.put("op", "call");
+				entry.put("varName", readString());
+				entry.put("name", readString());
+			}
+			entry.put("arguments", readArguments());
+			entries.add(entry);
+		}
+		return entries;
+	}
+
+	@SuppressWarnings("unchecked")
+	public JSONArray readBatchResults() {
+		int size = (int) readVarint();
+		JSONArray results = new JSONArray();
+		for (int i = 0; i < size; i++) {
+			JSONObject result = new JSONObject();
+			if (readByte() == 1) {
+				result.put("error", readString());
+			} else {
+				JSONObject arg = readArgument();
+				Object value = arg.keySet().iterator().next();
+				result.put("returnVal", value);
+				result.put("returnType", arg.get(value));
+			}
+			results.add(result);
+		}
+		return results;
+	}
+
+}
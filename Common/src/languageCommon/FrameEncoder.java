@@ -0,0 +1,175 @@
+package languageCommon;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Builds one frame of the binary protocol:
+ * a 4 byte big endian length, the operation byte, a varint call id, then the body.
+ * Arguments are written as a type tag followed by the value, see {@link FrameDecoder}.
+ */
+public class FrameEncoder {
+
+	public static final int TYPE_OTHER = 0; // type name and value as strings
+	public static final int TYPE_STRING = 1;
+	public static final int TYPE_INT = 2; // zigzag varint
+	public static final int TYPE_INT_ARRAY = 3; // varint byte length, then packed little endian values
+	public static final int TYPE_LONG_ARRAY = 4;
+	public static final int TYPE_DOUBLE_ARRAY = 5;
+	public static final int TYPE_BYTES = 6;
+
+	private byte[] buf;
+	private int count;
+
+	public FrameEncoder(LanguageOperations op, int callId) {
+		buf = new byte[64];
+		count = 4;
+		writeByte(op.ordinal());
+		writeVarint(callId);
+	}
+
+	public FrameEncoder writeByte(int b) {
+		ensureCapacity(1);
+		buf[count++] = (byte) b;
+		return this;
+	}
+
+	public FrameEncoder writeVarint(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			buf[count++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[count++] = (byte) value;
+		return this;
+	}
+
+	public FrameEncoder writeString(String s) {
+		return writeBytes(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public FrameEncoder writeBytes(byte[] bytes) {
+		writeVarint(bytes.length);
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buf, count, bytes.length);
+		count += bytes.length;
+		return this;
+	}
+
+	/**
+	 * @param value the value as text, or a {@link Packed} for the packed array types
+	 */
+	public FrameEncoder writeArgument(Object value, String type) {
+		int packedType = packedType(type);
+		if (packedType != -1) {
+			writeByte(packedType);
+			return writeBytes(Packed.of(value).getBytes());
+		}
+		return writeArgument(String.valueOf(value), type);
+	}
+
+	public FrameEncoder writeArgument(String value, String type) {
+		if (type.equals("int")) {
+			try {
+				long l = Long.parseLong(value);
+				writeByte(TYPE_INT);
+				return writeVarint((l << 1) ^ (l >> 63));
+			} catch (NumberFormatException e) {
+				// Not a plain integer, fall through and send it as is
+			}
+		} else if (type.equals("string")) {
+			writeByte(TYPE_STRING);
+			return writeString(value);
+		}
+		writeByte(TYPE_OTHER);
+		writeString(type);
+		return writeString(value);
+	}
+
+	/**
+	 * Writes arguments in the text protocol's form, an array of {"value":"type"} objects
+	 */
+	public FrameEncoder writeArguments(JSONArray args) {
+		writeVarint(args.size());
+		for (Object arg : args) {
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) ((JSONObject) arg).entrySet().iterator().next();
+			writeArgument(entry.getKey(), String.valueOf(entry.getValue()));
+		}
+		return this;
+	}
+
+	/**
+	 * Writes the entries of a CallBatch, each a create or call in the text protocol's form
+	 */
+	public FrameEncoder writeBatchEntries(JSONArray entries) {
+		writeVarint(entries.size());
+		for (Object e : entries) {
+			JSONObject entry = (JSONObject) e;
+			if ("create".equals(entry.get("op"))) {
+				writeByte(LanguageOperations.CreateObject.ordinal());
+				writeString((String) entry.get("name"));
+				writeString((String) entry.get("varName"));
+			} else {
+				writeByte(LanguageOperations.CallMethod.ordinal());
+				writeString((String) entry.get("varName"));
+				writeString((String) entry.get("name"));
+			}
+			writeArguments((JSONArray) entry.get("arguments"));
+		}
+		return this;
+	}
+
+	/**
+	 * Writes the results of a BatchReturn, each either a value or an error message
+	 */
+	public FrameEncoder writeBatchResults(JSONArray results) {
+		writeVarint(results.size());
+		for (Object r : results) {
+			JSONObject result = (JSONObject) r;
+			if (result.containsKey("error")) {
+				writeByte(1);
+				writeString(String.valueOf(result.get("error")));
+			} else {
+				writeByte(0);
+				writeArgument(result.get("returnVal"), String.valueOf(result.get("returnType")));
+			}
+		}
+		return this;
+	}
+
+	private static int packedType(String type) {
+		switch (type) {
+		case Packed.INT_ARRAY:
+			return TYPE_INT_ARRAY;
+		case Packed.LONG_ARRAY:
+			return TYPE_LONG_ARRAY;
+		case Packed.DOUBLE_ARRAY:
+			return TYPE_DOUBLE_ARRAY;
+		case Packed.BYTES:
+			return TYPE_BYTES;
+		default:
+			return -1;
+		}
+	}
+
+	public byte[] toByteArray() {
+		int length = count - 4;
+		buf[0] = (byte) (length >>> 24);
+		buf[1] = (byte) (length >>> 16);
+		buf[2] = (byte) (length >>> 8);
+		buf[3] = (byte) length;
+		return Arrays.copyOf(buf, count);
+	}
+
+	private void ensureCapacity(int extra) {
+		if (count + extra > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+		}
+	}
+
+}
@@ -0,0 +1,93 @@
+package languageCommon;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with preallocated power of two buckets in microseconds, so
+ * recording from many threads allocates nothing. Bucket i counts latencies below
+ * 2^i microseconds, which makes percentiles accurate to within a factor of two.
+ */
+public class Histogram {
+
+	private static final int BUCKETS = 32; // The last bucket takes everything over about 18 minutes
+
+	private LongAdder[] buckets;
+	private LongAdder count;
+	private LongAdder totalMicros;
+	private LongAccumulator maxMicros;
+
+	public Histogram() {
+		buckets = new LongAdder[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+		count = new LongAdder();
+		totalMicros = new LongAdder();
+		maxMicros = new LongAccumulator(Long::max, 0);
+	}
+
+	/**
+	 * @param startNanos the System.nanoTime() the timed operation started at
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+		buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+		count.increment();
+		totalMicros.add(micros);
+		maxMicros.accumulate(micros);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the upper bound of the bucket holding the given fraction of the recorded latencies
+	 */
+	public long getPercentileMicros(double fraction) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets[i].sum();
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= target) {
+				return Math.min(1L << i, maxMicros.get());
+			}
+		}
+		return maxMicros.get();
+	}
+
+	/**
+	 * @return count, mean, p50, p90, p99 and max, in microseconds
+	 */
+	public Map<String, Long> snapshot() {
+		Map<String, Long> snapshot = new LinkedHashMap<>();
+		long n = count.sum();
+		snapshot.put("count", n);
+		snapshot.put("meanMicros", n == 0 ? 0 : totalMicros.sum() / n);
+		snapshot.put("p50Micros", getPercentileMicros(0.5));
+		snapshot.put("p90Micros", getPercentileMicros(0.9));
+		snapshot.put("p99Micros", getPercentileMicros(0.99));
+		snapshot.put("maxMicros", maxMicros.get());
+		return snapshot;
+	}
+
+}
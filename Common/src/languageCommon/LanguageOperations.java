@@ -0,0 +1,23 @@
+package languageCommon;
+
+
+public enum LanguageOperations {
+	None,
+	Error,
+	Init,
+	Return,
+	RegisterClass,
+	CreateObject,
+	CallMethod,
+	CallBatch,
+	BatchReturn,
+	ReleaseObject,
+	StreamChunk,
+	StreamEnd,
+	StreamCredit,
+	AnnounceObject,
+	WithdrawClass,
+	PrepareCall,
+	CallPrepared;
+	
+}
@@ -0,0 +1,159 @@
+package languageCommon;
+
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Leveled logging written by a background thread. Callers only put a record on a
+ * bounded queue, and drop it if the queue is full, so logging never blocks I/O.
+ * Messages are built from their arguments only when the level is enabled, so debug
+ * payload logging costs a level check when it is off.
+ *
+ * The level defaults to INFO, which logs connects, disconnects and errors, and can be
+ * set with -DmultiLanguage.logLevel=DEBUG or {@link #setLevel(Level)}.
+ */
+public class Log {
+
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	private static final int QUEUE_SIZE = 8192;
+
+	private static volatile Level level = Level.valueOf(System.getProperty("multiLanguage.logLevel", "INFO").toUpperCase());
+	private static volatile PrintStream out = System.err;
+
+	private static final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private static final AtomicLong dropped = new AtomicLong();
+
+	static {
+		Thread writer = new Thread(Log::write, "Log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private Log() {
+	}
+
+	public static Level getLevel() {
+		return level;
+	}
+
+	public static void setLevel(Level newLevel) {
+		level = newLevel;
+	}
+
+	public static void setOutput(PrintStream stream) {
+		out = stream;
+	}
+
+	public static boolean isEnabled(Level l) {
+		return l.ordinal() >= level.ordinal();
+	}
+
+	public static boolean isDebug() {
+		return Level.DEBUG.ordinal() >= level.ordinal();
+	}
+
+	public static void debug(String message) {
+		if (isDebug()) {
+			enqueue(Level.DEBUG, message, null);
+		}
+	}
+
+	public static void debug(String message, Object arg) {
+		if (isDebug()) {
+			enqueue(Level.DEBUG, message + arg, null);
+		}
+	}
+
+	public static void debug(String message, Object arg1, String message2, Object arg2) {
+		if (isDebug()) {
+			enqueue(Level.DEBUG, message + arg1 + message2 + arg2, null);
+		}
+	}
+
+	public static void info(String message) {
+		if (isEnabled(Level.INFO)) {
+			enqueue(Level.INFO, message, null);
+		}
+	}
+
+	public static void info(String message, Object arg) {
+		if (isEnabled(Level.INFO)) {
+			enqueue(Level.INFO, message + arg, null);
+		}
+	}
+
+	public static void warn(String message, Object arg) {
+		if (isEnabled(Level.WARN)) {
+			enqueue(Level.WARN, message + arg, null);
+		}
+	}
+
+	public static void error(String message) {
+		if (isEnabled(Level.ERROR)) {
+			enqueue(Level.ERROR, message, null);
+		}
+	}
+
+	public static void error(String message, Throwable t) {
+		if (isEnabled(Level.ERROR)) {
+			enqueue(Level.ERROR, message, t);
+		}
+	}
+
+	private static void enqueue(Level l, String message, Throwable t) {
+		if (!queue.offer(new Record(l, message, t))) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	private static void write() {
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+		while (true) {
+			try {
+				Record record = queue.take();
+				long lost = dropped.getAndSet(0);
+				if (lost > 0) {
+					out.println(format.format(new Date()) + " WARN  Dropped " + lost + " log messages");
+				}
+				StringBuilder line = new StringBuilder(format.format(new Date(record.time))).append(' ')
+						.append(String.format("%-5s", record.level)).append(' ').append(record.thread).append(": ")
+						.append(record.message);
+				if (record.throwable != null) {
+					StringWriter trace = new StringWriter();
+					record.throwable.printStackTrace(new PrintWriter(trace));
+					line.append(System.lineSeparator()).append(trace);
+				}
+				out.println(line);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	private static class Record {
+
+		private Level level;
+		private String message;
+		private Throwable throwable;
+		private String thread;
+		private long time;
+
+		public Record(Level level, String message, Throwable throwable) {
+			this.level = level;
+			this.message = message;
+			this.throwable = throwable;
+			this.thread = Thread.currentThread().getName();
+			this.time = System.currentTimeMillis();
+		}
+	}
+
+}
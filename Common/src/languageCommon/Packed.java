@@ -0,0 +1,121 @@
+package languageCommon;
+
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Base64;
+
+import org.json.simple.JSONAware;
+
+/**
+ * An int, long, double or byte array argument carried as its packed little endian
+ * bytes, so large arrays cross the wire without boxing or formatting each element.
+ * Binary frames carry the bytes as they are; in the text protocol, and in
+ * {@link #toString()}, they are a base64 string.
+ */
+public class Packed implements JSONAware {
+
+	public static final String INT_ARRAY = "int[]";
+	public static final String LONG_ARRAY = "long[]";
+	public static final String DOUBLE_ARRAY = "double[]";
+	public static final String BYTES = "bytes";
+
+	private byte[] data;
+
+	public Packed(byte[] data) {
+		this.data = data;
+	}
+
+	public static boolean isPackedType(String type) {
+		switch (type) {
+		case INT_ARRAY:
+		case LONG_ARRAY:
+		case DOUBLE_ARRAY:
+		case BYTES:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param value a Packed as read from a binary frame, or the base64 text protocol form
+	 */
+	public static Packed of(Object value) {
+		if (value instanceof Packed) {
+			return (Packed) value;
+		}
+		return new Packed(Base64.getDecoder().decode(String.valueOf(value)));
+	}
+
+	/**
+	 * @return the array packed, or null if it is not an int, long, double or byte array
+	 */
+	public static Packed pack(Object array) {
+		if (array instanceof byte[]) {
+			return new Packed((byte[]) array);
+		} else if (array instanceof int[]) {
+			int[] ints = (int[]) array;
+			ByteBuffer buffer = allocate(ints.length * 4);
+			buffer.asIntBuffer().put(ints);
+			return new Packed(buffer.array());
+		} else if (array instanceof long[]) {
+			long[] longs = (long[]) array;
+			ByteBuffer buffer = allocate(longs.length * 8);
+			buffer.asLongBuffer().put(longs);
+			return new Packed(buffer.array());
+		} else if (array instanceof double[]) {
+			double[] doubles = (double[]) array;
+			ByteBuffer buffer = allocate(doubles.length * 8);
+			buffer.asDoubleBuffer().put(doubles);
+			return new Packed(buffer.array());
+		}
+		return null;
+	}
+
+	/**
+	 * @param type one of the packed type names
+	 * @return the primitive array the bytes hold
+	 */
+	public Object unpack(String type) {
+		ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		switch (type) {
+		case INT_ARRAY: {
+			int[] ints = new int[data.length / 4];
+			buffer.asIntBuffer().get(ints);
+			return ints;
+		}
+		case LONG_ARRAY: {
+			long[] longs = new long[data.length / 8];
+			buffer.asLongBuffer().get(longs);
+			return longs;
+		}
+		case DOUBLE_ARRAY: {
+			double[] doubles = new double[data.length / 8];
+			buffer.asDoubleBuffer().get(doubles);
+			return doubles;
+		}
+		default:
+			return data;
+		}
+	}
+
+	public byte[] getBytes() {
+		return data;
+	}
+
+	@Override
+	public String toString() {
+		return Base64.getEncoder().encodeToString(data);
+	}
+
+	@Override
+	public String toJSONString() {
+		return '"' + toString() + '"';
+	}
+
+	private static ByteBuffer allocate(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+}
@@ -0,0 +1,528 @@
+package languageCommon;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Binary frames exchanged through a memory mapped file instead of the socket, for
+ * languages on the same host as the core. The file holds two single producer, single
+ * consumer rings, one per direction. A sender copies its frame into the ring and
+ * publishes it by moving the write position, so sending costs a copy and no system
+ * call. Frames that do not fit yet wait in a backlog that a writer thread feeds in as
+ * the reader frees room. Once the backlog holds as many frames as allowed, the
+ * transport reports itself saturated, and the core refuses further calls and creates
+ * for the language; a client's senders instead wait for room. A reader thread polls the other
+ * ring, spinning and then yielding for a while. After that it marks itself asleep in
+ * the ring and parks until woken, so an idle connection costs nothing. A writer that
+ * finds the reader asleep rings the doorbell: it sends an empty None frame on the
+ * socket, and the reader's side unparks the reader when that arrives.
+ *
+ * The core creates the file and sends its path in the Init reply. The socket stays
+ * open for the doorbell, and so either side still notices when the other goes away.
+ *
+ * File layout: the magic number and ring capacity, then for each ring (language to
+ * core first) its write position, its read position a cache line later followed
+ * by the reader's asleep flag, and its data. Positions are little endian longs that only grow; frames keep their big
+ * endian length prefix and start on 4 byte boundaries.
+ */
+public class SharedMemoryTransport {
+
+	public static final int MAGIC = 0x4D4C5232; // Bumped with the doorbell, so older peers stay on the socket
+	public static final int DEFAULT_CAPACITY = 1 << 20;
+	public static final byte[] DOORBELL = new FrameEncoder(LanguageOperations.None, 0).toByteArray(); // Sent on the socket
+
+	private static final int MAX_FRAME = 64 * 1024 * 1024;
+	private static final int FILE_HEADER = 64;
+	private static final int RING_HEADER = 128;
+	private static final int READ_POSITION = 64; // Own cache line, so the two sides do not share one
+	private static final int ASLEEP = READ_POSITION + 8; // Set by the reader before it parks
+	private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 20000 : 0; // Empty polls before yielding, pointless on one CPU
+	private static final int YIELDS = 100; // Then yields before it sleeps
+	private static final long MAX_PARK_NANOS = 1000000; // Longest the writer waits for room before looking again
+	private static final int MAX_IDLE = SPINS + YIELDS + 20;
+
+	private static final MethodHandle LOAD_FENCE = fence("loadFence");
+	private static final MethodHandle STORE_FENCE = fence("storeFence");
+	private static final MethodHandle FULL_FENCE = fence("fullFence");
+
+	private File file;
+	private Ring in;
+	private Ring out;
+	private ArrayDeque<byte[]> backlog; // Frames waiting for room in the outgoing ring
+	private int backlogOffset; // How much of the first backlog frame is already in the ring
+	private int maxBacklog; // Frames in the backlog before the transport is saturated, 0 for no limit
+	private boolean blocking; // Whether senders wait while the backlog is full
+	private Thread reader;
+	private Thread writer;
+	private Runnable doorbell; // Wakes the other side's reader
+	private volatile boolean running;
+
+	private SharedMemoryTransport(File file, MappedByteBuffer buffer, int capacity, boolean core, Runnable doorbell) {
+		this.file = file;
+		this.doorbell = doorbell;
+		Ring toCore = new Ring(buffer, FILE_HEADER, capacity);
+		Ring fromCore = new Ring(buffer, FILE_HEADER + RING_HEADER + capacity, capacity);
+		in = core ? toCore : fromCore;
+		out = core ? fromCore : toCore;
+		backlog = new ArrayDeque<>();
+	}
+
+	/**
+	 * @return whether memory fences are available, without which the rings are not safe
+	 */
+	public static boolean isSupported() {
+		return LOAD_FENCE != null && STORE_FENCE != null && FULL_FENCE != null;
+	}
+
+	/**
+	 * Creates the file for a new connection, on the core's side
+	 *
+	 * @param capacity bytes per direction, rounded up to a power of two
+	 * @param doorbell wakes the language's reader, by sending {@link #DOORBELL} on the socket
+	 */
+	public static SharedMemoryTransport create(int langId, int capacity, Runnable doorbell) throws IOException {
+		capacity = Integer.highestOneBit(Math.max(4096, capacity) - 1) << 1;
+		File file = File.createTempFile("multiLanguage-" + langId + "-", ".ring");
+		file.deleteOnExit();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+					FILE_HEADER + 2L * (RING_HEADER + capacity));
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, capacity);
+			return new SharedMemoryTransport(file, buffer, capacity, true, doorbell);
+		} catch (IOException | RuntimeException e) {
+			file.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Maps a file the core created, on the language's side. Both sides have it mapped
+	 * once this returns, so the file is removed right away and nothing is left behind
+	 * if either process dies.
+	 *
+	 * @param doorbell wakes the core's reader, by sending {@link #DOORBELL} on the socket
+	 */
+	public static SharedMemoryTransport open(String path, Runnable doorbell) throws IOException {
+		File file = new File(path);
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			int capacity = buffer.getInt(4);
+			if (buffer.getInt(0) != MAGIC || raf.length() != FILE_HEADER + 2L * (RING_HEADER + capacity)) {
+				throw new IOException(path + " is not a shared memory transport file");
+			}
+			file.delete();
+			return new SharedMemoryTransport(file, buffer, capacity, false, doorbell);
+		}
+	}
+
+	public String getPath() {
+		return file.getAbsolutePath();
+	}
+
+	/**
+	 * Starts the reader and writer threads
+	 *
+	 * @param handler takes each frame read, without its length prefix, on the reader thread
+	 */
+	public void start(String name, Consumer<byte[]> handler) {
+		running = true;
+		reader = new Thread(() -> read(handler), name + "-RingReader");
+		reader.setDaemon(true);
+		writer = new Thread(this::write, name + "-RingWriter");
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+	/**
+	 * Writes the frame straight into the ring if it fits and nothing is waiting ahead
+	 * of it, and otherwise leaves it to the writer thread. Waits while the backlog is
+	 * full if the transport blocks; otherwise callers check {@link #isSaturated()}.
+	 *
+	 * @param frame a frame with its length prefix, as {@link FrameEncoder} builds it
+	 */
+	public void send(byte[] frame) {
+		synchronized (backlog) {
+			while (blocking && running && maxBacklog > 0 && backlog.size() >= maxBacklog) {
+				LockSupport.unpark(writer);
+				try {
+					backlog.wait(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					Log.warn("Interrupted while waiting to send, dropped a frame of ", frame.length);
+					return;
+				}
+			}
+			if (backlog.isEmpty() && out.offer(frame)) {
+				published();
+				return;
+			}
+			backlog.add(frame);
+		}
+		LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Wakes this side's reader, when the other side rang the doorbell. The reader only
+	 * sleeps once started, so the transport must be reachable from the socket by then.
+	 */
+	public void wake() {
+		LockSupport.unpark(reader);
+	}
+
+	/**
+	 * Rings the doorbell if the other side's reader went to sleep. Called with the
+	 * backlog locked, like every write to the ring.
+	 */
+	private void published() {
+		if (out.wakeReader()) {
+			doorbell.run();
+		}
+	}
+
+	public int getBacklog() {
+		synchronized (backlog) {
+			return backlog.size();
+		}
+	}
+
+	/**
+	 * @return whether the backlog is full, so no more calls or creates should be sent
+	 */
+	public boolean isSaturated() {
+		return maxBacklog > 0 && getBacklog() >= maxBacklog;
+	}
+
+	/**
+	 * @param maxBacklog frames that may wait for room in the ring before the transport
+	 *                   is saturated, or 0 for no limit. Frames past it are still kept.
+	 */
+	public void setMaxBacklog(int maxBacklog) {
+		this.maxBacklog = Math.max(0, maxBacklog);
+	}
+
+	/**
+	 * @param blocking whether senders wait for room once the backlog is full, for a
+	 *                 client whose callers may block, rather than only saturating
+	 */
+	public void setBlocking(boolean blocking) {
+		this.blocking = blocking;
+	}
+
+	/**
+	 * Stops both threads, and removes the file if the language never mapped it
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(reader);
+		LockSupport.unpark(writer);
+		file.delete();
+	}
+
+	private void read(Consumer<byte[]> handler) {
+		int idle = 0;
+		while (running) {
+			byte[] frame;
+			try {
+				frame = in.poll();
+			} catch (IllegalStateException e) {
+				Log.error("Shared memory ring is corrupt", e);
+				return;
+			}
+			if (frame != null) {
+				idle = 0;
+				try {
+					handler.accept(frame);
+				} catch (RuntimeException e) {
+					Log.error("Could not handle frame from shared memory", e);
+				}
+			} else if (idle < SPINS + YIELDS) {
+				backOff(idle++);
+			} else if (in.sleep()) {
+				LockSupport.park(this);
+				in.awake();
+			}
+		}
+	}
+
+	private void write() {
+		int idle = 0;
+		while (running) {
+			boolean waiting;
+			boolean progress = false;
+			synchronized (backlog) {
+				byte[] frame = backlog.peek();
+				if (frame != null) {
+					int written = out.write(frame, backlogOffset);
+					progress = written != backlogOffset;
+					if (progress) {
+						published();
+					}
+					if (written == Ring.recordLength(frame)) {
+						backlog.poll();
+						backlogOffset = 0;
+						backlog.notifyAll();
+					} else {
+						backlogOffset = written;
+					}
+				}
+				waiting = !backlog.isEmpty();
+			}
+			if (!waiting) {
+				idle = 0;
+				LockSupport.park(this);
+			} else if (progress) {
+				idle = 0;
+			} else {
+				backOff(idle = Math.min(idle + 1, MAX_IDLE));
+			}
+		}
+	}
+
+	private static void backOff(int idle) {
+		if (idle < SPINS) {
+			return;
+		} else if (idle < SPINS + YIELDS) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(20, idle - SPINS - YIELDS)));
+		}
+	}
+
+	private static MethodHandle fence(String name) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			return MethodHandles.lookup().unreflect(unsafeClass.getMethod(name)).bindTo(field.get(null));
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			Log.warn("Shared memory is unavailable, no memory fences: ", e);
+			return null;
+		}
+	}
+
+	private static void loadFence() {
+		try {
+			LOAD_FENCE.invokeExact();
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	private static void fullFence() {
+		try {
+			FULL_FENCE.invokeExact();
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	private static void storeFence() {
+		try {
+			STORE_FENCE.invokeExact();
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	/**
+	 * One direction. Only one thread writes and one thread reads, so each side keeps
+	 * its own position locally and only reads the other side's from the file when it
+	 * runs out of data or room.
+	 */
+	private static class Ring {
+
+		private ByteBuffer positions; // Little endian view for the two positions
+		private ByteBuffer data; // Big endian view of the data, for the frame length prefix
+		private int writeAt; // Offset of the write position in the file
+		private int readAt;
+		private int asleepAt;
+		private int capacity;
+		private int mask;
+
+		private long writePosition; // Writer side
+		private long readLimit; // Read position the writer last saw
+		private long readPosition; // Reader side
+		private long writeLimit; // Write position the reader last saw
+		private byte[] frame; // Frame being read, while it arrives in pieces
+		private int filled;
+		private int remaining; // Bytes of the record, including padding, still to read
+
+		public Ring(MappedByteBuffer buffer, int offset, int capacity) {
+			this.capacity = capacity;
+			mask = capacity - 1;
+			writeAt = offset;
+			readAt = offset + READ_POSITION;
+			asleepAt = offset + ASLEEP;
+			positions = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			buffer.position(offset + RING_HEADER);
+			buffer.limit(offset + RING_HEADER + capacity);
+			data = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+			buffer.clear();
+		}
+
+		public static int recordLength(byte[] frame) {
+			return (frame.length + 3) & ~3;
+		}
+
+		/**
+		 * Writes the whole frame if there is room for it, otherwise nothing
+		 */
+		public boolean offer(byte[] frame) {
+			int length = recordLength(frame);
+			if (length > free(length)) {
+				return false;
+			}
+			write(frame, 0);
+			return true;
+		}
+
+		/**
+		 * Writes as much of the frame as fits
+		 *
+		 * @param offset how much of the frame's record was written before
+		 * @return how much of the record is written now
+		 */
+		public int write(byte[] frame, int offset) {
+			int wanted = recordLength(frame) - offset;
+			int count = Math.min(free(wanted), wanted);
+			if (count <= 0 || (offset == 0 && count < 4)) {
+				return offset; // A record is only started once its length prefix fits
+			}
+			copy(frame, offset, Math.min(count, frame.length - offset));
+			writePosition += count;
+			storeFence(); // The data must be visible before the position that covers it
+			positions.putLong(writeAt, writePosition);
+			return offset + count;
+		}
+
+		/**
+		 * Called by the writer after publishing. Either the reader sees the new write
+		 * position before it sleeps, or this sees it asleep, since both sides fence
+		 * between their store and their load.
+		 *
+		 * @return whether the reader was asleep, and so must be woken. The flag is
+		 *         cleared, so the frames that follow do not ring again.
+		 */
+		public boolean wakeReader() {
+			fullFence();
+			if (positions.getInt(asleepAt) == 0) {
+				return false;
+			}
+			positions.putInt(asleepAt, 0);
+			return true;
+		}
+
+		/**
+		 * Marks the reader asleep, unless something arrived meanwhile
+		 *
+		 * @return whether the reader may park until woken
+		 */
+		public boolean sleep() {
+			positions.putInt(asleepAt, 1);
+			fullFence();
+			if (positions.getLong(writeAt) != readPosition) {
+				positions.putInt(asleepAt, 0);
+				return false;
+			}
+			return true;
+		}
+
+		public void awake() {
+			positions.putInt(asleepAt, 0);
+		}
+
+		private int free(int wanted) {
+			int free = capacity - (int) (writePosition - readLimit);
+			if (free < wanted) {
+				readLimit = positions.getLong(readAt);
+				loadFence(); // Nothing the reader freed may be overwritten before it is seen as freed
+				free = capacity - (int) (writePosition - readLimit);
+			}
+			return free;
+		}
+
+		private void copy(byte[] src, int offset, int length) {
+			ByteBuffer target = data.duplicate();
+			int index = (int) (writePosition & mask);
+			int first = Math.min(length, capacity - index);
+			target.position(index);
+			target.put(src, offset, first);
+			if (first < length) {
+				target.position(0);
+				target.put(src, offset + first, length - first);
+			}
+		}
+
+		/**
+		 * @return the next whole frame without its length prefix, or null if none has
+		 *         fully arrived. Large frames are copied out as they arrive, freeing room
+		 *         for the rest.
+		 */
+		public byte[] poll() {
+			long available = writeLimit - readPosition;
+			if (available == 0) {
+				writeLimit = positions.getLong(writeAt);
+				loadFence(); // The data must not be read before the position that covers it
+				available = writeLimit - readPosition;
+				if (available == 0) {
+					return null;
+				}
+			}
+			if (frame == null) {
+				if (available < 4) {
+					return null;
+				}
+				int length = data.getInt((int) (readPosition & mask));
+				if (length <= 0 || length > MAX_FRAME) {
+					throw new IllegalStateException("Invalid frame length " + length);
+				}
+				frame = new byte[length];
+				filled = 0;
+				remaining = recordLength(frame);
+				readPosition += 4;
+				available -= 4;
+			}
+			int count = (int) Math.min(available, remaining);
+			int payload = Math.min(count, frame.length - filled);
+			if (payload > 0) {
+				ByteBuffer source = data.duplicate();
+				int index = (int) (readPosition & mask);
+				int first = Math.min(payload, capacity - index);
+				source.position(index);
+				source.get(frame, filled, first);
+				if (first < payload) {
+					source.position(0);
+					source.get(frame, filled + first, payload - first);
+				}
+				filled += payload;
+			}
+			readPosition += count;
+			remaining -= count;
+			storeFence(); // The data must be copied out before the writer may reuse its room
+			positions.putLong(readAt, readPosition);
+			if (remaining > 0) {
+				return null;
+			}
+			byte[] complete = frame;
+			frame = null;
+			return complete;
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package languageCommon;
+
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Unix domain socket channels, which need Java 16. They are looked up reflectively
+ * so the modules still build for and run on Java 8, where {@link #isSupported()} is
+ * false.
+ */
+public class UnixSockets {
+
+	private static final ProtocolFamily UNIX = family();
+	private static final Method ADDRESS = method("java.net.UnixDomainSocketAddress", "of", String.class);
+	private static final Method OPEN_SERVER = method("java.nio.channels.ServerSocketChannel", "open", ProtocolFamily.class);
+	private static final Method OPEN = method("java.nio.channels.SocketChannel", "open", ProtocolFamily.class);
+
+	public static boolean isSupported() {
+		return UNIX != null && ADDRESS != null && OPEN_SERVER != null && OPEN != null;
+	}
+
+	/**
+	 * Listens on the path, replacing a socket file left there by an earlier run
+	 */
+	public static ServerSocketChannel bind(String path) throws IOException {
+		Files.deleteIfExists(Paths.get(path));
+		ServerSocketChannel channel = (ServerSocketChannel) invoke(OPEN_SERVER, UNIX);
+		try {
+			channel.bind(address(path));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		Paths.get(path).toFile().deleteOnExit();
+		return channel;
+	}
+
+	public static SocketChannel connect(String path) throws IOException {
+		SocketChannel channel = (SocketChannel) invoke(OPEN, UNIX);
+		try {
+			channel.connect(address(path));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	private static SocketAddress address(String path) throws IOException {
+		return (SocketAddress) invoke(ADDRESS, path);
+	}
+
+	private static Object invoke(Method method, Object arg) throws IOException {
+		if (!isSupported()) {
+			throw new IOException("Unix domain sockets need Java 16 or later");
+		}
+		try {
+			return method.invoke(null, arg);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static ProtocolFamily family() {
+		try {
+			return StandardProtocolFamily.valueOf("UNIX");
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static Method method(String className, String name, Class<?> parameter) {
+		try {
+			return Class.forName(className).getMethod(name, parameter);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,45 @@
+package languageCommon;
+
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class FrameDecoderTest {
+
+	private static FrameDecoder decode(byte[] frame) {
+		return new FrameDecoder(frame, 4, frame.length - 4);
+	}
+
+	@Test
+	public void readsWhatTheEncoderWrote() {
+		FrameDecoder frame = decode(new FrameEncoder(LanguageOperations.CallMethod, 300).writeString("héllo")
+				.writeBytes(new byte[] { 1, 2 }).toByteArray());
+		assertEquals(LanguageOperations.CallMethod, frame.getOperation());
+		assertEquals(300, frame.getCallId());
+		assertEquals("héllo", frame.readString());
+		assertEquals(2, frame.readBytes().length);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void anEmptyFrameHasNoHeader() {
+		new FrameDecoder(new byte[] { 6 }, 0, 0);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void aCallIdMayNotRunPastTheEnd() {
+		new FrameDecoder(new byte[] { 6, (byte) 0x85, 0 }, 0, 2);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void aStringMayNotRunPastTheEnd() {
+		decode(new FrameEncoder(LanguageOperations.RegisterClass, 0).writeVarint(3).writeByte('x').toByteArray()).readString();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void aLengthNearTheLargestIntDoesNotOverflow() {
+		decode(new FrameEncoder(LanguageOperations.RegisterClass, 0).writeVarint(Integer.MAX_VALUE - 1).writeByte('x')
+				.toByteArray()).readBytes();
+	}
+
+}
@@ -0,0 +1,265 @@
+package languageCommon;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SharedMemoryTransportTest {
+
+	private static final int CAPACITY = 4096; // The smallest ring, so frames wrap around often
+
+	private SharedMemoryTransport core;
+	private SharedMemoryTransport language;
+	private BlockingQueue<byte[]> toCore = new LinkedBlockingQueue<>();
+	private BlockingQueue<byte[]> toLanguage = new LinkedBlockingQueue<>();
+	private AtomicInteger coreDoorbells = new AtomicInteger();
+	private AtomicInteger languageDoorbells = new AtomicInteger();
+	private volatile boolean answered = true; // Whether doorbells wake the reader
+
+	@Before
+	public void connect() throws IOException {
+		Assume.assumeTrue(SharedMemoryTransport.isSupported());
+		// Both ends in one process, so each doorbell unparks the other side's reader directly
+		core = SharedMemoryTransport.create(1, CAPACITY, () -> {
+			coreDoorbells.incrementAndGet();
+			if (answered) {
+				language.wake();
+			}
+		});
+		language = SharedMemoryTransport.open(core.getPath(), () -> {
+			languageDoorbells.incrementAndGet();
+			if (answered) {
+				core.wake();
+			}
+		});
+	}
+
+	@After
+	public void close() {
+		if (core != null) {
+			core.close();
+			language.close();
+		}
+	}
+
+	private void start(String name) {
+		core.start(name + "-core", toCore::add);
+		language.start(name + "-language", toLanguage::add);
+	}
+
+	/**
+	 * @return a frame with its length prefix, as FrameEncoder builds them, holding length bytes
+	 */
+	private static byte[] frame(int length, int seed) {
+		ByteBuffer frame = ByteBuffer.allocate(4 + length);
+		frame.putInt(length);
+		Random random = new Random(seed);
+		while (frame.hasRemaining()) {
+			frame.put((byte) random.nextInt());
+		}
+		return frame.array();
+	}
+
+	private static byte[] payload(byte[] frame) {
+		byte[] payload = new byte[frame.length - 4];
+		System.arraycopy(frame, 4, payload, 0, payload.length);
+		return payload;
+	}
+
+	private static Thread thread(String name) {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(name)) {
+				return thread;
+			}
+		}
+		throw new AssertionError("No thread " + name);
+	}
+
+	/**
+	 * Waits until the reader has spun, yielded and parked for good
+	 */
+	private static void awaitAsleep(String name) throws InterruptedException {
+		Thread reader = thread(name + "-RingReader");
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (reader.getState() != Thread.State.WAITING) {
+			if (System.nanoTime() > deadline) {
+				fail(name + " reader never slept, it is " + reader.getState());
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void framesWrapAroundTheRing() throws InterruptedException {
+		start("wrap");
+		List<byte[]> sent = new ArrayList<>();
+		Random random = new Random(7);
+		for (int i = 0; i < 2000; i++) {
+			// Lengths that are not multiples of 4 leave padding, so records straddle the end of the ring
+			sent.add(frame(1 + random.nextInt(CAPACITY / 3), i));
+		}
+		for (byte[] frame : sent) {
+			language.send(frame);
+		}
+		for (byte[] frame : sent) {
+			byte[] received = toCore.poll(10, TimeUnit.SECONDS);
+			assertNotNull("Lost a frame", received);
+			assertArrayEquals(payload(frame), received);
+		}
+		assertNull(toCore.poll(10, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void framesLargerThanTheRingArriveInPieces() throws InterruptedException {
+		start("large");
+		byte[] large = frame(5 * CAPACITY + 3, 1);
+		byte[] small = frame(5, 2);
+		core.send(small);
+		core.send(large);
+		core.send(small);
+		assertArrayEquals(payload(small), toLanguage.poll(10, TimeUnit.SECONDS));
+		assertArrayEquals(payload(large), toLanguage.poll(10, TimeUnit.SECONDS));
+		assertArrayEquals(payload(small), toLanguage.poll(10, TimeUnit.SECONDS));
+		assertEquals(0, core.getBacklog());
+	}
+
+	@Test
+	public void bothDirectionsAtOnce() throws Exception {
+		start("both");
+		Thread other = new Thread(() -> {
+			for (int i = 0; i < 5000; i++) {
+				core.send(frame(1 + i % 700, -i));
+			}
+		});
+		other.start();
+		for (int i = 0; i < 5000; i++) {
+			language.send(frame(1 + i % 900, i));
+		}
+		for (int i = 0; i < 5000; i++) {
+			assertArrayEquals(payload(frame(1 + i % 900, i)), toCore.poll(10, TimeUnit.SECONDS));
+			assertArrayEquals(payload(frame(1 + i % 700, -i)), toLanguage.poll(10, TimeUnit.SECONDS));
+		}
+		other.join();
+	}
+
+	@Test
+	public void anIdleReaderSleepsUntilTheDoorbell() throws InterruptedException {
+		start("idle");
+		awaitAsleep("idle-core");
+		awaitAsleep("idle-language");
+		assertEquals(0, coreDoorbells.get());
+		assertEquals(0, languageDoorbells.get());
+
+		language.send(frame(10, 1));
+		assertArrayEquals(payload(frame(10, 1)), toCore.poll(10, TimeUnit.SECONDS));
+		assertEquals(1, languageDoorbells.get());
+		core.send(frame(20, 2));
+		assertArrayEquals(payload(frame(20, 2)), toLanguage.poll(10, TimeUnit.SECONDS));
+		assertEquals(1, coreDoorbells.get());
+
+		awaitAsleep("idle-core");
+		language.send(frame(30, 3));
+		assertArrayEquals(payload(frame(30, 3)), toCore.poll(10, TimeUnit.SECONDS));
+		assertEquals(2, languageDoorbells.get());
+	}
+
+	@Test
+	public void aSleepingReaderIsRungOnce() throws InterruptedException {
+		start("once");
+		awaitAsleep("once-core");
+		answered = false;
+		for (int i = 0; i < 5; i++) {
+			language.send(frame(8, i));
+		}
+		// The doorbell went unanswered, so nothing has been read yet
+		assertEquals(1, languageDoorbells.get());
+		assertNull(toCore.poll(50, TimeUnit.MILLISECONDS));
+		core.wake();
+		for (int i = 0; i < 5; i++) {
+			assertArrayEquals(payload(frame(8, i)), toCore.poll(10, TimeUnit.SECONDS));
+		}
+	}
+
+	@Test
+	public void aFullBacklogSaturatesWithoutBlocking() throws InterruptedException {
+		core.setMaxBacklog(3);
+		// Nothing reads yet, so after the first frame the rest wait in the backlog
+		for (int i = 0; i < 5; i++) {
+			core.send(frame(3000, i));
+			assertEquals(i >= 3, core.isSaturated());
+		}
+		assertEquals(4, core.getBacklog());
+		start("saturated");
+		for (int i = 0; i < 5; i++) {
+			assertArrayEquals(payload(frame(3000, i)), toLanguage.poll(10, TimeUnit.SECONDS));
+		}
+		assertEquals(0, core.getBacklog());
+		assertFalse(core.isSaturated());
+	}
+
+	@Test
+	public void aBlockingSenderWaitsForRoom() throws InterruptedException {
+		language.setMaxBacklog(2);
+		language.setBlocking(true);
+		language.start("blocking-language", toLanguage::add);
+		Thread sender = new Thread(() -> {
+			for (int i = 0; i < 10; i++) {
+				language.send(frame(3000, i));
+			}
+		});
+		sender.start();
+		// The core does not read yet, so the sender fills the ring and the backlog and then waits
+		sender.join(200);
+		assertTrue(sender.isAlive());
+		assertEquals(2, language.getBacklog());
+		core.start("blocking-core", toCore::add);
+		for (int i = 0; i < 10; i++) {
+			assertArrayEquals(payload(frame(3000, i)), toCore.poll(10, TimeUnit.SECONDS));
+		}
+		sender.join(10000);
+		assertFalse(sender.isAlive());
+	}
+
+	@Test
+	public void refusesFilesOfAnotherVersion() throws IOException {
+		File file = File.createTempFile("multiLanguage-test-", ".ring");
+		file.deleteOnExit();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(64 + 2 * (128 + CAPACITY));
+			raf.writeInt(Integer.reverseBytes(0x4D4C5231)); // The magic number before the doorbell
+			raf.writeInt(Integer.reverseBytes(CAPACITY));
+		}
+		try {
+			SharedMemoryTransport.open(file.getPath(), () -> {
+			});
+			fail("Opened a file without the asleep flag");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage().contains("not a shared memory transport file"));
+		} finally {
+			file.delete();
+		}
+	}
+
+}
@@ -0,0 +1,91 @@
+package languageServer;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * A CallBatch from one language while its entries are out at the languages that own
+ * them. Each destination answers its share with one BatchReturn; once every
+ * destination has answered, the collected results go back to the caller in order.
+ */
+public class BatchCall {
+
+	private int callerId;
+	private int callId;
+	private JSONArray results; // One result per entry, in the caller's order
+	private AtomicInteger remaining; // Destinations that have not answered yet
+	private long startNanos;
+
+	@SuppressWarnings("unchecked")
+	public BatchCall(int callerId, int callId, int size) {
+		this.callerId = callerId;
+		this.callId = callId;
+		results = new JSONArray();
+		for (int i = 0; i < size; i++) {
+			results.add(null);
+		}
+		remaining = new AtomicInteger();
+		startNanos = System.nanoTime();
+	}
+
+	public void expect(int destinations) {
+		remaining.set(destinations);
+	}
+
+	@SuppressWarnings("unchecked")
+	public void setError(int slot, String message) {
+		JSONObject error = new JSONObject();
+		error.put("error", message);
+		results.set(slot, error);
+	}
+
+	/**
+	 * Stores one destination's results
+	 * 
+	 * @param slots the caller's entry index for each of the destination's results
+	 * @return true if this was the last destination to answer
+	 */
+	@SuppressWarnings("unchecked")
+	public boolean complete(int[] slots, JSONArray destinationResults) {
+		for (int i = 0; i < slots.length; i++) {
+			if (i < destinationResults.size()) {
+				results.set(slots[i], destinationResults.get(i));
+			} else {
+				setError(slots[i], "No result returned");
+			}
+		}
+		return remaining.decrementAndGet() == 0;
+	}
+
+	public int getCallerId() {
+		return callerId;
+	}
+
+	public int getCallId() {
+		return callId;
+	}
+
+	/**
+	 * Fails one destination's entries, when it cannot be reached or does not answer in time
+	 * 
+	 * @return true if this was the last destination to answer
+	 */
+	public boolean fail(int[] slots, String message) {
+		for (int slot : slots) {
+			setError(slot, message);
+		}
+		return remaining.decrementAndGet() == 0;
+	}
+
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	public JSONArray getResults() {
+		return results;
+	}
+
+}
@@ -0,0 +1,278 @@
+package languageServer;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * A registered class compiled from its registration JSON. Overloads are indexed by
+ * name and arity, and every resolved argument type signature is cached so a repeated
+ * call costs one lookup. Registering the class again builds a new descriptor, which
+ * throws the old cache away with it.
+ */
+public class ClassDescriptor {
+
+	private static final String CONSTRUCTOR = "<init>"; // Name constructors are cached under
+	private static final int MAX_CACHED_SIGNATURES = 4096;
+
+	private String name;
+	private JSONObject classData;
+	private HashMap<String, HashMap<Integer, List<Overload>>> methods; // name -> arity -> overloads in registration order
+	private HashMap<Integer, List<Overload>> constructors;
+
+	private ConcurrentHashMap<String, Overload> strictCache;
+	private ConcurrentHashMap<String, Overload> looseCache;
+	private LongAdder resolutionFailures; // Calls and creates no overload accepted
+
+	public ClassDescriptor(JSONObject classData) {
+		this.classData = classData;
+		name = (String) classData.get("name");
+		methods = new HashMap<>();
+		constructors = new HashMap<>();
+		strictCache = new ConcurrentHashMap<>();
+		looseCache = new ConcurrentHashMap<>();
+		resolutionFailures = new LongAdder();
+
+		JSONArray allMethods = (JSONArray) classData.get("methods");
+		for (int i = 0; i < allMethods.size(); i++) {
+			JSONObject method = (JSONObject) allMethods.get(i);
+			Overload overload = new Overload(i, (String) method.get("name"), (JSONArray) method.get("parameters"),
+					(String) method.get("return"));
+			overload.cache = ResultCache.from((JSONObject) method.get("cache"));
+			methods.computeIfAbsent(overload.name, k -> new HashMap<>())
+					.computeIfAbsent(overload.parameters.length, k -> new ArrayList<>()).add(overload);
+		}
+		JSONArray allConstructors = (JSONArray) classData.get("constructors");
+		for (int i = 0; i < allConstructors.size(); i++) {
+			Overload overload = new Overload(i, CONSTRUCTOR, (JSONArray) allConstructors.get(i), "void");
+			constructors.computeIfAbsent(overload.parameters.length, k -> new ArrayList<>()).add(overload);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public JSONObject getClassData() {
+		return classData;
+	}
+
+	/**
+	 * @return the matching constructor, or null if none accepts the arguments
+	 */
+	public Overload resolveConstructor(JSONArray args, boolean isStrict) {
+		return resolve(CONSTRUCTOR, constructors, args, isStrict);
+	}
+
+	/**
+	 * @return the matching method, or null if none accepts the arguments
+	 */
+	public Overload resolveMethod(String methodName, JSONArray args, boolean isStrict) {
+		return resolve(methodName, methods.get(methodName), args, isStrict);
+	}
+
+	/**
+	 * @param types the type of each argument the method will be called with
+	 * @return the matching method, or null if none accepts arguments of those types
+	 */
+	public Overload resolveMethod(String methodName, String[] types, boolean isStrict) {
+		return resolve(methodName, methods.get(methodName), types, isStrict);
+	}
+
+	public String describeConstructors() {
+		return ((JSONArray) classData.get("constructors")).toJSONString();
+	}
+
+	public String describeMethod(String methodName) {
+		StringBuilder sb = new StringBuilder("[");
+		Map<Integer, List<Overload>> byArity = methods.get(methodName);
+		if (byArity != null) {
+			for (List<Overload> overloads : byArity.values()) {
+				for (Overload overload : overloads) {
+					if (sb.length() > 1) {
+						sb.append(',');
+					}
+					sb.append(Arrays.toString(overload.parameters));
+				}
+			}
+		}
+		return sb.append(']').toString();
+	}
+
+	public long getResolutionFailures() {
+		return resolutionFailures.sum();
+	}
+
+	/**
+	 * @return the number of calls routed to each overload, keyed by name and parameter types
+	 */
+	public Map<String, Long> getCallCounts() {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (List<Overload> overloads : constructors.values()) {
+			for (Overload overload : overloads) {
+				counts.put(overload.toString(), overload.getCallCount());
+			}
+		}
+		for (Map<Integer, List<Overload>> byArity : methods.values()) {
+			for (List<Overload> overloads : byArity.values()) {
+				for (Overload overload : overloads) {
+					counts.put(overload.toString(), overload.getCallCount());
+				}
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * @return cache hits, or misses, per cacheable method, keyed by name and parameter types
+	 */
+	public Map<String, Long> getCacheCounts(boolean hits) {
+		Map<String, Long> counts = new LinkedHashMap<>();
+		for (Map<Integer, List<Overload>> byArity : methods.values()) {
+			for (List<Overload> overloads : byArity.values()) {
+				for (Overload overload : overloads) {
+					if (overload.cache != null) {
+						counts.put(overload.toString(), hits ? overload.cache.getHits() : overload.cache.getMisses());
+					}
+				}
+			}
+		}
+		return counts;
+	}
+
+	private Overload resolve(String methodName, Map<Integer, List<Overload>> byArity, JSONArray args, boolean isStrict) {
+		if (byArity == null) {
+			resolutionFailures.increment();
+			return null;
+		}
+		String[] types;
+		if (args instanceof RawArguments) {
+			types = ((RawArguments) args).getTypes();
+		} else {
+			types = new String[args.size()];
+			for (int i = 0; i < types.length; i++) {
+				types[i] = String.valueOf(((JSONObject) args.get(i)).values().iterator().next());
+			}
+		}
+		return resolve(methodName, byArity, types, isStrict);
+	}
+
+	private Overload resolve(String methodName, Map<Integer, List<Overload>> byArity, String[] types, boolean isStrict) {
+		if (byArity == null) {
+			resolutionFailures.increment();
+			return null;
+		}
+		StringBuilder key = new StringBuilder(methodName).append('(');
+		for (String type : types) {
+			key.append(type).append(',');
+		}
+		ConcurrentHashMap<String, Overload> cache = isStrict ? strictCache : looseCache;
+		String signature = key.toString();
+		Overload overload = cache.get(signature);
+		if (overload == null) {
+			overload = match(byArity.get(types.length), types, isStrict);
+			if (overload != null) {
+				if (cache.size() >= MAX_CACHED_SIGNATURES) {
+					cache.clear();
+				}
+				cache.put(signature, overload);
+			} else {
+				resolutionFailures.increment();
+			}
+		}
+		return overload;
+	}
+
+	/**
+	 * Same rules as the original linear scan: strict languages need every parameter to
+	 * be "any" or the exact argument type, others take the first overload of that arity.
+	 */
+	private static Overload match(List<Overload> candidates, String[] types, boolean isStrict) {
+		if (candidates == null) {
+			return null;
+		}
+		if (!isStrict) {
+			return candidates.get(0);
+		}
+		for (Overload candidate : candidates) {
+			boolean matches = true;
+			for (int j = 0; j < types.length; j++) {
+				String param = candidate.parameters[j];
+				if (!param.equals("any") && !param.equals(types[j])) {
+					matches = false;
+					break;
+				}
+			}
+			if (matches) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	public static class Overload {
+
+		private int index; // Position in the registered methods or constructors array
+		private String name;
+		private String[] parameters;
+		private String returnType;
+		private ResultCache cache; // Set if the method was registered as cacheable
+		private LongAdder calls = new LongAdder();
+
+		public Overload(int index, String name, JSONArray parameters, String returnType) {
+			this.index = index;
+			this.name = name;
+			this.parameters = new String[parameters.size()];
+			for (int i = 0; i < this.parameters.length; i++) {
+				this.parameters[i] = String.valueOf(parameters.get(i));
+			}
+			this.returnType = returnType;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String[] getParameters() {
+			return parameters;
+		}
+
+		public String getReturnType() {
+			return returnType;
+		}
+
+		/**
+		 * @return the method's results, or null if it is not cacheable
+		 */
+		public ResultCache getCache() {
+			return cache;
+		}
+
+		public void recordCall() {
+			calls.increment();
+		}
+
+		public long getCallCount() {
+			return calls.sum();
+		}
+
+		@Override
+		public String toString() {
+			return name + Arrays.toString(parameters);
+		}
+	}
+
+}
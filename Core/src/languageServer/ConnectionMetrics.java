@@ -0,0 +1,96 @@
+package languageServer;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Traffic counters for one {@link LanguageHandler}. Frames are counted when handled
+ * or queued, bytes as they are read from or queued for the transport.
+ */
+public class ConnectionMetrics implements ConnectionMetricsMXBean {
+
+	private volatile int langId; // Changes once if the language resumes a session
+	private IntSupplier outgoingQueueSize;
+
+	private LongAdder framesIn = new LongAdder();
+	private LongAdder bytesIn = new LongAdder();
+	private LongAdder framesOut = new LongAdder();
+	private LongAdder bytesOut = new LongAdder();
+	private LongAdder rejected = new LongAdder(); // Calls and creates refused while the queue was full
+
+	public ConnectionMetrics(int langId, IntSupplier outgoingQueueSize) {
+		this.langId = langId;
+		this.outgoingQueueSize = outgoingQueueSize;
+	}
+
+	public void frameIn() {
+		framesIn.increment();
+	}
+
+	public void bytesIn(int bytes) {
+		bytesIn.add(bytes);
+	}
+
+	public void frameOut(int bytes) {
+		framesOut.increment();
+		bytesOut.add(bytes);
+	}
+
+	public void rejected() {
+		rejected.increment();
+	}
+
+	@Override
+	public int getLangId() {
+		return langId;
+	}
+
+	public void setLangId(int langId) {
+		this.langId = langId;
+	}
+
+	@Override
+	public long getFramesIn() {
+		return framesIn.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getFramesOut() {
+		return framesOut.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public int getOutgoingQueueSize() {
+		return outgoingQueueSize.getAsInt();
+	}
+
+	@Override
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	public Map<String, Long> snapshot() {
+		Map<String, Long> snapshot = new LinkedHashMap<>();
+		snapshot.put("framesIn", getFramesIn());
+		snapshot.put("bytesIn", getBytesIn());
+		snapshot.put("framesOut", getFramesOut());
+		snapshot.put("bytesOut", getBytesOut());
+		snapshot.put("outgoingQueueSize", (long) getOutgoingQueueSize());
+		snapshot.put("rejected", getRejected());
+		return snapshot;
+	}
+
+}
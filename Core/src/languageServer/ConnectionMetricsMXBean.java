@@ -0,0 +1,23 @@
+package languageServer;
+
+
+/**
+ * JMX view of one language's connection, see {@link ConnectionMetrics}
+ */
+public interface ConnectionMetricsMXBean {
+
+	int getLangId();
+
+	long getFramesIn();
+
+	long getBytesIn();
+
+	long getFramesOut();
+
+	long getBytesOut();
+
+	int getOutgoingQueueSize();
+
+	long getRejected();
+
+}
@@ -0,0 +1,273 @@
+package languageServer;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import languageCommon.Log;
+
+/**
+ * Drives many {@link LanguageHandler}s from a single thread. The thread only wakes
+ * when a connection is readable, writable, or has new outgoing messages, so idle
+ * connections cost nothing. Frames are newline terminated lines, or length
+ * prefixed binary frames once a handler has negotiated the binary protocol. Any
+ * selectable socket channel works, TCP or Unix domain.
+ */
+public class EventLoop implements Runnable {
+
+	private static final int MAX_FRAME = 64 * 1024 * 1024;
+
+	private Selector selector;
+	private volatile boolean shouldRun = true;
+
+	private ConcurrentLinkedQueue<Runnable> tasks; // Work handed to the loop thread by other threads
+	private Set<Connection> connections;
+
+	public EventLoop() throws IOException {
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<>();
+		connections = ConcurrentHashMap.newKeySet();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (shouldRun) {
+				selector.select();
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						Log.error("Event loop task failed", e);
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					} catch (IOException e) {
+						connection.lost(e);
+					} catch (RuntimeException e) {
+						// Only the connection that sent it is dropped, not the whole loop
+						connection.failed(e);
+					}
+				}
+			}
+		} catch (IOException e) {
+			Log.error("Event loop stopped", e);
+		} finally {
+			for (Connection connection : connections) {
+				connection.disconnect();
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				Log.error("Could not close selector", e);
+			}
+		}
+	}
+
+	/**
+	 * Serves the channel from this loop, as the handler's transport
+	 */
+	public void register(SocketChannel channel, LanguageHandler handler) {
+		Connection connection = new Connection(channel, handler);
+		connections.add(connection);
+		handler.setTransport(connection);
+		submit(() -> {
+			try {
+				channel.configureBlocking(false);
+				connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+				connection.flush();
+			} catch (IOException e) {
+				Log.error("Could not register connection", e);
+				connection.disconnect();
+			}
+		});
+	}
+
+	public void stop() {
+		shouldRun = false;
+		selector.wakeup();
+	}
+
+	private void submit(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	private class Connection implements Transport {
+
+		private SocketChannel channel;
+		private LanguageHandler handler;
+		private SelectionKey key;
+
+		private LinkedBlockingQueue<byte[]> outgoing = new LinkedBlockingQueue<>(); // Already encoded
+		private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+		private ByteBuffer pending; // Message that did not fit into the socket buffer yet
+		private AtomicBoolean writeScheduled = new AtomicBoolean(false);
+
+		public Connection(SocketChannel channel, LanguageHandler handler) {
+			this.channel = channel;
+			this.handler = handler;
+		}
+
+		public void read() throws IOException {
+			int read = channel.read(readBuffer);
+			if (read == -1) {
+				Log.info("Disconnected from ", channel.getRemoteAddress());
+				disconnect();
+				return;
+			}
+			handler.getMetrics().bytesIn(read);
+			readBuffer.flip();
+			// The handler can switch to binary after any frame, so check the mode per frame
+			while (handler.isBinary() ? readFrame() : readLine()) {
+			}
+			readBuffer.compact();
+			if (!readBuffer.hasRemaining()) {
+				// A single frame larger than the buffer
+				ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+				readBuffer.flip();
+				larger.put(readBuffer);
+				readBuffer = larger;
+			}
+		}
+
+		private boolean readLine() {
+			byte[] data = readBuffer.array();
+			int start = readBuffer.position();
+			for (int i = start; i < readBuffer.limit(); i++) {
+				if (data[i] == '\n') {
+					int end = i > start && data[i - 1] == '\r' ? i - 1 : i;
+					readBuffer.position(i + 1);
+					handler.handleInput(new String(data, start, end - start, StandardCharsets.UTF_8));
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean readFrame() throws IOException {
+			if (readBuffer.remaining() < 4) {
+				return false;
+			}
+			int start = readBuffer.position();
+			int length = readBuffer.getInt(start);
+			if (length <= 0 || length > MAX_FRAME) {
+				// Unlike a dropped connection, this is a peer speaking the protocol wrong
+				Log.warn("Invalid frame length " + length + " from ", channel.socket().getRemoteSocketAddress());
+				throw new IOException("Invalid frame length " + length);
+			}
+			if (readBuffer.remaining() < 4 + length) {
+				return false;
+			}
+			readBuffer.position(start + 4 + length);
+			handler.handleFrame(readBuffer.array(), start + 4, length);
+			return true;
+		}
+
+		public void flush() throws IOException {
+			if (key == null || !key.isValid()) {
+				return;
+			}
+			// Cleared before draining so a message queued during the drain schedules another flush
+			writeScheduled.set(false);
+			while (true) {
+				if (pending == null || !pending.hasRemaining()) {
+					byte[] message = outgoing.poll();
+					if (message == null) {
+						break;
+					}
+					pending = ByteBuffer.wrap(message);
+				}
+				channel.write(pending);
+				if (pending.hasRemaining()) {
+					writeScheduled.set(true);
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			key.interestOps(SelectionKey.OP_READ);
+		}
+
+		@Override
+		public void send(byte[] frame) {
+			outgoing.add(frame);
+			// Only the first message since the last flush wakes the selector
+			if (writeScheduled.compareAndSet(false, true)) {
+				submit(() -> {
+					try {
+						flush();
+					} catch (IOException e) {
+						lost(e);
+					}
+				});
+			}
+		}
+
+		@Override
+		public int getQueueSize() {
+			return outgoing.size();
+		}
+
+		@Override
+		public void close() {
+			submit(this::disconnect);
+		}
+
+		/**
+		 * A peer resetting or dropping the connection is an ordinary disconnect, so it is
+		 * logged without a stack trace
+		 */
+		private void lost(IOException e) {
+			Log.info("Lost connection to " + channel.socket().getRemoteSocketAddress() + ": ", e.getMessage());
+			disconnect();
+		}
+
+		/**
+		 * Drops a connection whose input the handler could not cope with
+		 */
+		private void failed(RuntimeException e) {
+			Log.error("Dropping connection to " + channel.socket().getRemoteSocketAddress() + " after an error", e);
+			disconnect();
+		}
+
+		/**
+		 * Closes the channel from the loop thread
+		 */
+		public void disconnect() {
+			if (connections.remove(this)) {
+				handler.closed();
+			}
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Log.error("Could not close connection", e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,363 @@
+package languageServer;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.simple.JSONObject;
+
+import languageCommon.LanguageOperations;
+import languageCommon.Log;
+import languageServer.Registry.RegisteredClass;
+import languageServer.Registry.RemoteObject;
+
+/**
+ * Joins this core to other cores so their languages can use each other's classes
+ * and objects. Each pair of cores talks over a link, a connection like a language's
+ * that speaks the text protocol in the core's own direction both ways. A core tells
+ * its peers about every class its own languages register and every object placed on
+ * them, and its peers record those as owned by the link they came over. Calls and
+ * creates for them are then routed down the link like to any other language, and
+ * the core at the other end answers them as if one of its languages had asked.
+ *
+ * Only what a core's own languages hold is passed on, so every core must link to
+ * every other core it wants to reach. When two cores have dialed each other, both
+ * keep the link dialed by the core with the smaller node id.
+ *
+ * A link that drops is suspended for the session timeout, like a language with a
+ * session: what the peer holds stays registered here, and the objects its languages
+ * created here are kept. If the peer links again in time, the new link takes over the
+ * old one's id, and is first sent the releases and withdrawals it missed meanwhile.
+ */
+public class Federation {
+
+	private static final long RETRY_MILLIS = 1000;
+
+	private LanguageServer server;
+	private Registry registry;
+	private ConcurrentHashMap<Integer, LanguageHandler> langs;
+	private String nodeId = UUID.randomUUID().toString();
+	private volatile boolean shouldRun = true;
+
+	private ConcurrentHashMap<String, LanguageHandler> links; // Maps each peer's node id to the link to it
+	private Set<Integer> linkIds; // Connections that are links, until their disconnect has been handled
+	private ConcurrentHashMap<String, Absence> suspended; // Maps the node id of each peer whose link dropped to what it missed
+
+	public Federation(LanguageServer server, Registry registry, ConcurrentHashMap<Integer, LanguageHandler> langs) {
+		this.server = server;
+		this.registry = registry;
+		this.langs = langs;
+		links = new ConcurrentHashMap<>();
+		linkIds = ConcurrentHashMap.newKeySet();
+		suspended = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Dials every peer from a thread of its own, and dials again whenever a link drops
+	 *
+	 * @param peers comma separated host:port addresses of other cores
+	 */
+	public void start(String peers) {
+		for (String address : peers.split(",")) {
+			address = address.trim();
+			if (address.isEmpty()) {
+				continue;
+			}
+			int colon = address.lastIndexOf(':');
+			InetSocketAddress target = new InetSocketAddress(address.substring(0, colon),
+					Integer.parseInt(address.substring(colon + 1)));
+			Thread t = new Thread(() -> dial(target), "Peer-" + address);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	public void stop() {
+		shouldRun = false;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void dial(InetSocketAddress target) {
+		String node = null; // Learned from the first handshake
+		while (shouldRun) {
+			try {
+				if (node == null || !links.containsKey(node)) {
+					LanguageHandler link = server.connectPeer(SocketChannel.open(target));
+					linkIds.add(link.getId());
+					JSONObject init = new JSONObject();
+					init.put("peer", true);
+					init.put("node", nodeId);
+					link.dialPeer(init);
+					Log.info("Dialed peer ", target);
+					while (langs.containsKey(link.getId())) {
+						Thread.sleep(RETRY_MILLIS);
+					}
+					if (nodeId.equals(link.getPeerNode())) {
+						return;
+					}
+					if (link.getPeerNode() != null) {
+						node = link.getPeerNode();
+					}
+				}
+			} catch (IOException e) {
+				Log.debug("Could not reach peer ", target, ": ", e.getMessage());
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Handles a peer's Init. A core that was dialed answers with its own node id, and
+	 * both ends then send each other what their own languages hold.
+	 */
+	@SuppressWarnings("unchecked")
+	public void handshake(LanguageHandler link, JSONObject init) {
+		String node = (String) init.get("node");
+		if (!link.isPeer()) {
+			linkIds.add(link.getId());
+			link.setPeer(true);
+			JSONObject reply = new JSONObject();
+			reply.put("peer", true);
+			reply.put("node", nodeId);
+			link.writeCommand(LanguageOperations.Init, 0, reply.toJSONString());
+		}
+		link.setPeerNode(node);
+		if (nodeId.equals(node)) {
+			Log.warn("Closing a link to this core itself: ", link.getId());
+			link.stop();
+			return;
+		}
+		Absence absence;
+		synchronized (this) {
+			LanguageHandler existing = links.get(node);
+			if (existing != null && existing != link) {
+				boolean keepNew = link.isDialed() == (nodeId.compareTo(node) < 0);
+				if (!keepNew) {
+					link.stop();
+					return;
+				}
+				existing.stop();
+			}
+			links.put(node, link);
+			absence = suspended.remove(node);
+		}
+		int id = link.getId();
+		if (absence != null && server.resumeLink(link, absence.id)) {
+			linkIds.remove(id);
+			for (String className : absence.withdrawn) {
+				link.withdrawClass(className);
+			}
+			for (String varName : absence.released) {
+				link.releaseObject(varName);
+			}
+		}
+		Log.info("Linked to peer ", node);
+		share(link);
+	}
+
+	/**
+	 * Keeps a link that dropped as the peer's until it links again or the session
+	 * timeout passes. A link that never finished its handshake, or that another link
+	 * to the same peer replaced, is not kept.
+	 *
+	 * @return whether the link was suspended
+	 */
+	public synchronized boolean suspend(LanguageHandler link) {
+		String node = link.getPeerNode();
+		if (node == null || links.get(node) != link) {
+			return false;
+		}
+		// Suspended before it leaves the links, so a release seen with no link up is still kept for it
+		suspended.put(node, new Absence(link.getId()));
+		links.remove(node);
+		Log.info("Link " + link.getId() + " to peer " + node + " dropped, keeping what it holds until it links again");
+		return true;
+	}
+
+	/**
+	 * Sends a new link every class and object this core's own languages hold
+	 */
+	private void share(LanguageHandler link) {
+		for (RegisteredClass registered : registry.getClasses().values()) {
+			for (int i = 0; i < registered.getReplicaCount(); i++) {
+				if (isLocal(registered.getLangId(i))) {
+					link.registerClass(registered.getDescriptor(i).getClassData());
+					break;
+				}
+			}
+		}
+		for (RemoteObject object : registry.getObjects()) {
+			if (isLocal(object.getLangId())) {
+				link.announceObject(object.getVarName(), object.getClassName());
+			}
+		}
+	}
+
+	/**
+	 * @return whether the connection is a link to another core
+	 */
+	public boolean isLink(int id) {
+		return linkIds.contains(id);
+	}
+
+	private boolean isLocal(int id) {
+		return !linkIds.contains(id) && langs.containsKey(id);
+	}
+
+	private Absence absenceOf(int id) {
+		for (Absence absence : suspended.values()) {
+			if (absence.id == id) {
+				return absence;
+			}
+		}
+		return null;
+	}
+
+	public void classRegistered(int id, JSONObject classObj) {
+		if (!isLink(id)) {
+			for (LanguageHandler link : links.values()) {
+				link.registerClass(classObj);
+			}
+		}
+	}
+
+	public void objectPlaced(String varName, int langId, String className) {
+		if (!isLink(langId)) {
+			for (LanguageHandler link : links.values()) {
+				link.announceObject(varName, className);
+			}
+		}
+	}
+
+	/**
+	 * Tells the peers an object of this core's languages is gone. A suspended link
+	 * hears of it, and of objects it holds that were released here, once it is back.
+	 */
+	public void objectReleased(RemoteObject object) {
+		if (!isLink(object.getLangId())) {
+			for (LanguageHandler link : links.values()) {
+				link.releaseObject(object.getVarName());
+			}
+			for (Absence absence : suspended.values()) {
+				absence.released.add(object.getVarName());
+			}
+			return;
+		}
+		Absence absence = absenceOf(object.getLangId());
+		if (absence != null) {
+			absence.released.add(object.getVarName());
+		}
+	}
+
+	/**
+	 * Records an object a peer's language holds as owned by the link to that peer
+	 */
+	public void objectAnnounced(int id, JSONObject objData) {
+		String varName = (String) objData.get("varName");
+		RemoteObject existing = registry.getObject(varName);
+		if (existing != null && existing.getLangId() == id) {
+			return;
+		}
+		registry.registerObject(varName, id, (String) objData.get("name"), id, 0);
+	}
+
+	/**
+	 * A peer's languages no longer serve the class, so new objects stop going there
+	 */
+	public void classWithdrawn(int id, JSONObject classData) {
+		registry.removeReplica((String) classData.get("name"), id);
+	}
+
+	/**
+	 * Sends the peers what a language that resumed its session holds again, since a
+	 * link made while it was away did not hear of it
+	 */
+	public void resumed(int id) {
+		for (LanguageHandler link : links.values()) {
+			for (RegisteredClass registered : registry.getClasses().values()) {
+				ClassDescriptor descriptor = registered.getDescriptorFor(id);
+				if (descriptor != null) {
+					link.registerClass(descriptor.getClassData());
+				}
+			}
+			for (RemoteObject object : registry.getObjects()) {
+				if (object.getLangId() == id) {
+					link.announceObject(object.getVarName(), object.getClassName());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets a link that closed, or withdraws from the peers the classes a language
+	 * of this core was the last to serve
+	 */
+	public void disconnected(int id) {
+		if (linkIds.remove(id)) {
+			links.values().removeIf(link -> link.getId() == id);
+			suspended.values().removeIf(absence -> absence.id == id);
+			return;
+		}
+		Set<String> withdrawn = new HashSet<>();
+		for (Map.Entry<String, RegisteredClass> entry : registry.getClasses().entrySet()) {
+			RegisteredClass registered = entry.getValue();
+			if (registered.getDescriptorFor(id) == null) {
+				continue;
+			}
+			boolean served = false;
+			for (int i = 0; i < registered.getReplicaCount(); i++) {
+				served |= registered.getLangId(i) != id && isLocal(registered.getLangId(i));
+			}
+			if (!served) {
+				withdrawn.add(entry.getKey());
+			}
+		}
+		for (String className : withdrawn) {
+			for (LanguageHandler link : links.values()) {
+				link.withdrawClass(className);
+			}
+			for (Absence absence : suspended.values()) {
+				absence.withdrawn.add(className);
+			}
+		}
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	public void setNodeId(String nodeId) {
+		this.nodeId = nodeId;
+	}
+
+	public int getLinkCount() {
+		return links.size();
+	}
+
+	/**
+	 * What a suspended link missed, to send it once it is back
+	 */
+	private static class Absence {
+
+		private final int id; // The link's id, which the new link takes over
+		private final Set<String> released = ConcurrentHashMap.newKeySet();
+		private final Set<String> withdrawn = ConcurrentHashMap.newKeySet();
+
+		private Absence(int id) {
+			this.id = id;
+		}
+	}
+
+}
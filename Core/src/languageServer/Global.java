@@ -6,4 +6,16 @@ import java.lang.annotation.RetentionPolicy;
 @Retention(RetentionPolicy.RUNTIME)
 public @interface Global {
 
+	/**
+	 * Milliseconds the core may answer a repeated call with the same object and
+	 * arguments from its cache instead of calling the method, or 0 to always call it.
+	 * Only for methods whose result depends on nothing else.
+	 */
+	long cacheTtl() default 0;
+
+	/**
+	 * Results the core keeps for the method before evicting the least recently used
+	 */
+	int cacheSize() default 1024;
+
 }
@@ -0,0 +1,49 @@
+package languageServer;
+
+
+import java.util.function.Consumer;
+
+/**
+ * Connects a language running in the core's own JVM, made by
+ * {@link LanguageServer#connectInProcess(Consumer)}. Messages cross as objects in both
+ * directions, so nothing is encoded or parsed. The language queues what it receives
+ * for its own thread; what it sends is routed on the thread that sent it.
+ */
+public class InProcessTransport implements Transport {
+
+	private Consumer<Object[]> language;
+	private volatile boolean closed;
+
+	/**
+	 * @param language takes each message for the language, and null once the core closes the connection
+	 */
+	public InProcessTransport(Consumer<Object[]> language) {
+		this.language = language;
+	}
+
+	@Override
+	public boolean isDirect() {
+		return true;
+	}
+
+	@Override
+	public void send(Object[] message) {
+		if (!closed) {
+			language.accept(message);
+		}
+	}
+
+	@Override
+	public void send(byte[] frame) {
+		throw new UnsupportedOperationException("In process languages take messages, not frames");
+	}
+
+	@Override
+	public void close() {
+		if (!closed) {
+			closed = true;
+			language.accept(null);
+		}
+	}
+
+}
@@ -0,0 +1,395 @@
+package languageServer;
+
+
+import java.util.ArrayList;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Reads the body of a text frame in one pass instead of building a tree for all of it.
+ * Top level fields become the same flat JSONObject a binary frame is read into, with
+ * the field names the core knows taken from constants instead of copied out of the
+ * frame. Argument and value arrays are kept as {@link RawArguments}, so they reach the
+ * destination as the caller wrote them. Any other nested value is left to json-simple.
+ *
+ * Each connection has a reader of its own, and reads its frames one at a time.
+ */
+public class JsonReader {
+
+	private static final String[] KEYS = { "name", "varName", "arguments", "callID", "timeout", "lease", "returnID",
+			"returnVal", "returnType", "streamID", "values", "credit", "error", "handle", "types" };
+	private static final int MAX_TYPES = 64;
+
+	private String text;
+	private int pos;
+	private int end;
+
+	private StringBuilder unescaped = new StringBuilder(); // Only used for strings with escapes in them
+	private String[] types = new String[MAX_TYPES]; // Argument types seen so far, so each is only copied once
+	private int typeCount = 0;
+	private ArrayList<String> argumentTypes = new ArrayList<>();
+	private JSONParser parser = new JSONParser();
+
+	/**
+	 * @return the 5 digit number in the text at offset, or -1 if it is not one
+	 */
+	public static int readPadded(String text, int offset) {
+		if (text.length() < offset + 5) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = offset; i < offset + 5; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + c - '0';
+		}
+		return value;
+	}
+
+	/**
+	 * Reads the JSON object that starts at offset, ignoring anything after it
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject readObject(String text, int offset) throws ParseException {
+		this.text = text;
+		pos = offset;
+		end = text.length();
+		try {
+			JSONObject result = new JSONObject();
+			skipWhitespace();
+			expect('{');
+			skipWhitespace();
+			if (peek() == '}') {
+				return result;
+			}
+			while (true) {
+				skipWhitespace();
+				String key = readString(KEYS, KEYS.length);
+				skipWhitespace();
+				expect(':');
+				skipWhitespace();
+				result.put(key, readValue(key));
+				skipWhitespace();
+				char c = next();
+				if (c == '}') {
+					return result;
+				}
+				if (c != ',') {
+					throw unexpected(c);
+				}
+			}
+		} finally {
+			this.text = null;
+		}
+	}
+
+	private Object readValue(String key) throws ParseException {
+		char c = peek();
+		if (c == '[' && ("arguments".equals(key) || "values".equals(key))) {
+			RawArguments args = readArguments();
+			if (args != null) {
+				return args;
+			}
+		}
+		int start = pos;
+		switch (c) {
+		case '"':
+			return readString();
+		case '{':
+		case '[':
+			skipValue();
+			return parser.parse(text.substring(start, pos));
+		case 't':
+			return readLiteral("true", Boolean.TRUE);
+		case 'f':
+			return readLiteral("false", Boolean.FALSE);
+		case 'n':
+			return readLiteral("null", null);
+		default:
+			return readNumber();
+		}
+	}
+
+	/**
+	 * @return the array as it stands in the frame along with each argument's type, or
+	 *         null, having read nothing, if an element is not a {value:type} pair
+	 */
+	private RawArguments readArguments() throws ParseException {
+		int start = pos;
+		argumentTypes.clear();
+		pos++;
+		skipWhitespace();
+		if (peek() == ']') {
+			pos++;
+			return new RawArguments(text, start, pos, new String[0]);
+		}
+		while (true) {
+			skipWhitespace();
+			if (peek() != '{') {
+				pos = start;
+				return null;
+			}
+			pos++;
+			skipWhitespace();
+			if (peek() != '"') {
+				pos = start;
+				return null;
+			}
+			skipString();
+			skipWhitespace();
+			expect(':');
+			skipWhitespace();
+			if (peek() != '"') {
+				pos = start;
+				return null;
+			}
+			argumentTypes.add(readType());
+			skipWhitespace();
+			if (next() != '}') {
+				pos = start;
+				return null;
+			}
+			skipWhitespace();
+			char c = next();
+			if (c == ']') {
+				return new RawArguments(text, start, pos, argumentTypes.toArray(new String[argumentTypes.size()]));
+			}
+			if (c != ',') {
+				throw unexpected(c);
+			}
+		}
+	}
+
+	private String readType() throws ParseException {
+		String type = readString(types, typeCount);
+		for (int i = 0; i < typeCount; i++) {
+			if (types[i] == type) {
+				return type;
+			}
+		}
+		if (typeCount < MAX_TYPES) {
+			types[typeCount++] = type;
+		}
+		return type;
+	}
+
+	/**
+	 * Reads a string, returning the matching one of the known strings instead of a copy
+	 * if there is one
+	 */
+	private String readString(String[] known, int count) throws ParseException {
+		if (peek() != '"') {
+			throw unexpected(peek());
+		}
+		int start = pos + 1;
+		int close = start;
+		while (close < end && text.charAt(close) != '"' && text.charAt(close) != '\\') {
+			close++;
+		}
+		if (close < end && text.charAt(close) == '"') {
+			int length = close - start;
+			for (int i = 0; i < count; i++) {
+				if (known[i].length() == length && text.regionMatches(start, known[i], 0, length)) {
+					pos = close + 1;
+					return known[i];
+				}
+			}
+		}
+		return readString();
+	}
+
+	private String readString() throws ParseException {
+		expect('"');
+		int start = pos;
+		while (pos < end) {
+			char c = text.charAt(pos);
+			if (c == '"') {
+				return text.substring(start, pos++);
+			}
+			if (c == '\\') {
+				break;
+			}
+			pos++;
+		}
+		unescaped.setLength(0);
+		unescaped.append(text, start, pos);
+		while (pos < end) {
+			char c = text.charAt(pos++);
+			if (c == '"') {
+				return unescaped.toString();
+			}
+			if (c != '\\') {
+				unescaped.append(c);
+				continue;
+			}
+			c = next();
+			switch (c) {
+			case 'b':
+				unescaped.append('\b');
+				break;
+			case 'f':
+				unescaped.append('\f');
+				break;
+			case 'n':
+				unescaped.append('\n');
+				break;
+			case 'r':
+				unescaped.append('\r');
+				break;
+			case 't':
+				unescaped.append('\t');
+				break;
+			case 'u': {
+				int code = 0;
+				for (int i = 0; i < 4; i++) {
+					char digit = next();
+					if (Character.digit(digit, 16) < 0) {
+						throw unexpected(digit);
+					}
+					code = code * 16 + Character.digit(digit, 16);
+				}
+				unescaped.append((char) code);
+				break;
+			}
+			default:
+				unescaped.append(c);
+			}
+		}
+		throw endOfFrame();
+	}
+
+	private Object readNumber() throws ParseException {
+		int start = pos;
+		boolean integral = true;
+		while (pos < end && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+			char c = text.charAt(pos++);
+			integral &= c != '.' && c != 'e' && c != 'E';
+		}
+		if (pos == start) {
+			throw pos < end ? unexpected(text.charAt(pos)) : endOfFrame();
+		}
+		try {
+			if (integral) {
+				return readLong(start, pos);
+			}
+			return Double.valueOf(text.substring(start, pos));
+		} catch (NumberFormatException e) {
+			throw new ParseException(start, ParseException.ERROR_UNEXPECTED_TOKEN, text.substring(start, pos));
+		}
+	}
+
+	/**
+	 * Reads an integer in place, since ids and counts are by far the most common numbers
+	 */
+	private long readLong(int start, int stop) {
+		boolean negative = text.charAt(start) == '-';
+		int i = negative ? start + 1 : start;
+		if (i == stop || stop - i > 18) {
+			return Long.parseLong(text.substring(start, stop));
+		}
+		long value = 0;
+		for (; i < stop; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				throw new NumberFormatException(text.substring(start, stop));
+			}
+			value = value * 10 + c - '0';
+		}
+		return negative ? -value : value;
+	}
+
+	private Object readLiteral(String literal, Object value) throws ParseException {
+		if (!text.startsWith(literal, pos)) {
+			throw unexpected(peek());
+		}
+		pos += literal.length();
+		return value;
+	}
+
+	/**
+	 * Moves past one value of any kind
+	 */
+	private void skipValue() throws ParseException {
+		char c = peek();
+		if (c == '"') {
+			skipString();
+			return;
+		}
+		if (c == '{' || c == '[') {
+			int depth = 0;
+			do {
+				c = next();
+				if (c == '"') {
+					pos--;
+					skipString();
+				} else if (c == '{' || c == '[') {
+					depth++;
+				} else if (c == '}' || c == ']') {
+					depth--;
+				}
+			} while (depth > 0);
+			return;
+		}
+		while (pos < end && ",}] \t\r\n".indexOf(text.charAt(pos)) < 0) {
+			pos++;
+		}
+	}
+
+	private void skipString() throws ParseException {
+		expect('"');
+		while (pos < end) {
+			char c = text.charAt(pos++);
+			if (c == '"') {
+				return;
+			}
+			if (c == '\\') {
+				pos++;
+			}
+		}
+		throw endOfFrame();
+	}
+
+	private void skipWhitespace() {
+		while (pos < end) {
+			char c = text.charAt(pos);
+			if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+				return;
+			}
+			pos++;
+		}
+	}
+
+	private char peek() throws ParseException {
+		if (pos >= end) {
+			throw endOfFrame();
+		}
+		return text.charAt(pos);
+	}
+
+	private char next() throws ParseException {
+		char c = peek();
+		pos++;
+		return c;
+	}
+
+	private void expect(char expected) throws ParseException {
+		char c = next();
+		if (c != expected) {
+			pos--;
+			throw unexpected(c);
+		}
+	}
+
+	private ParseException unexpected(char c) {
+		return new ParseException(pos, ParseException.ERROR_UNEXPECTED_CHAR, c);
+	}
+
+	private ParseException endOfFrame() {
+		return new ParseException(pos, ParseException.ERROR_UNEXPECTED_TOKEN, "end of frame");
+	}
+
+}
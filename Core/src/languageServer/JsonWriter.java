@@ -0,0 +1,170 @@
+package languageServer;
+
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import org.json.simple.JSONValue;
+
+import languageCommon.LanguageOperations;
+
+/**
+ * Writes a text frame's header and JSON body straight into a buffer, instead of
+ * building a JSONObject for the body and copying the line several times over.
+ * Calls are routed from whichever thread read them, so every thread has a writer
+ * of its own, reused for each frame it sends.
+ */
+public class JsonWriter {
+
+	private static final ThreadLocal<JsonWriter> WRITERS = ThreadLocal.withInitial(JsonWriter::new);
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final int INITIAL_SIZE = 256;
+	private static final int MAX_RETAINED = 64 * 1024; // Buffers grown past this for a large frame are not kept
+
+	private StringBuilder line = new StringBuilder(INITIAL_SIZE);
+	private char[] chars = new char[INITIAL_SIZE];
+	private ByteBuffer bytes = ByteBuffer.allocate(INITIAL_SIZE);
+	private CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private boolean first;
+
+	/**
+	 * @return this thread's writer, started on a frame with the given header
+	 */
+	public static JsonWriter begin(LanguageOperations op, int returnId) {
+		JsonWriter writer = WRITERS.get();
+		writer.line.setLength(0);
+		writer.appendPadded(op.ordinal());
+		writer.appendPadded(returnId);
+		writer.line.append('{');
+		writer.first = true;
+		return writer;
+	}
+
+	public JsonWriter field(String key, long value) {
+		appendKey(key);
+		line.append(value);
+		return this;
+	}
+
+	/**
+	 * Writes argument arrays read from a text frame as they were, and anything else
+	 * the way json-simple would
+	 */
+	public JsonWriter field(String key, Object value) {
+		appendKey(key);
+		if (value instanceof String) {
+			appendString((String) value);
+		} else if (value instanceof RawArguments) {
+			((RawArguments) value).appendTo(line);
+		} else {
+			line.append(JSONValue.toJSONString(value));
+		}
+		return this;
+	}
+
+	/**
+	 * Closes the body and encodes the frame
+	 *
+	 * @param lineEnd appended after the body
+	 */
+	public byte[] toLine(byte[] lineEnd) {
+		line.append('}');
+		int length = line.length();
+		if (chars.length < length) {
+			chars = new char[Math.max(length, chars.length * 2)];
+		}
+		line.getChars(0, length, chars, 0);
+		CharBuffer in = CharBuffer.wrap(chars, 0, length);
+		bytes.clear();
+		encoder.reset();
+		while (encoder.encode(in, bytes, true).isOverflow()) {
+			ByteBuffer larger = ByteBuffer.allocate(bytes.capacity() * 2);
+			bytes.flip();
+			bytes = larger.put(bytes);
+		}
+		encoder.flush(bytes);
+		byte[] frame = new byte[bytes.position() + lineEnd.length];
+		System.arraycopy(bytes.array(), 0, frame, 0, bytes.position());
+		System.arraycopy(lineEnd, 0, frame, bytes.position(), lineEnd.length);
+		if (bytes.capacity() > MAX_RETAINED) {
+			line = new StringBuilder(INITIAL_SIZE);
+			chars = new char[INITIAL_SIZE];
+			bytes = ByteBuffer.allocate(INITIAL_SIZE);
+		}
+		return frame;
+	}
+
+	/**
+	 * @return the frame written so far, for logging
+	 */
+	@Override
+	public String toString() {
+		return line.toString();
+	}
+
+	private void appendPadded(int value) {
+		if (value >= 100000) {
+			line.append(value);
+			return;
+		}
+		for (int divisor = 10000; divisor > 0; divisor /= 10) {
+			line.append((char) ('0' + value / divisor % 10));
+		}
+	}
+
+	private void appendKey(String key) {
+		if (!first) {
+			line.append(',');
+		}
+		first = false;
+		line.append('"').append(key).append("\":");
+	}
+
+	private void appendString(String s) {
+		line.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				line.append("\\\"");
+				break;
+			case '\\':
+				line.append("\\\\");
+				break;
+			case '\n':
+				line.append("\\n");
+				break;
+			case '\r':
+				line.append("\\r");
+				break;
+			case '\t':
+				line.append("\\t");
+				break;
+			case '\b':
+				line.append("\\b");
+				break;
+			case '\f':
+				line.append("\\f");
+				break;
+			default:
+				if (c < 0x20) {
+					line.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+				} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+					line.append(c).append(s.charAt(++i));
+				} else if (Character.isSurrogate(c)) {
+					// UTF-8 cannot carry half a pair, so it is escaped instead of replaced with '?'
+					line.append("\\u").append(HEX[c >> 12]).append(HEX[c >> 8 & 0xF]).append(HEX[c >> 4 & 0xF])
+							.append(HEX[c & 0xF]);
+				} else {
+					line.append(c);
+				}
+			}
+		}
+		line.append('"');
+	}
+
+}
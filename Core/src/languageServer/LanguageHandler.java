@@ -1,115 +1,747 @@
 package languageServer;
 
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import languageCommon.FrameDecoder;
+import languageCommon.FrameEncoder;
+import languageCommon.LanguageOperations;
+import languageCommon.Log;
+import languageCommon.SharedMemoryTransport;
 import languageServer.LanguageServer.InvalidObjectException;
 
-public class LanguageHandler implements Runnable {
+/**
+ * One language's side of the core. It reads what the language sends from whichever
+ * {@link Transport} connects it, and encodes what the core sends it for that transport.
+ */
+public class LanguageHandler {
+
+	private static final byte[] LINE_END = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+	private static final LanguageOperations[] OPERATIONS = LanguageOperations.values();
+	private static final int MAX_PREPARED = 65535; // Prepared calls per connection
 
 	private LanguageServer server;
-	private Socket socket;
-	private boolean shouldRun = true;
-	private int id;
+	private volatile int id; // Taken over from the earlier connection if the language resumes its session
+	private volatile String session; // Given in the Init reply, so the language can resume after a disconnect
+
+	private volatile boolean strictTypes = true;
+	private volatile boolean binary = false; // Set once the language negotiates the binary protocol in Init
+	private volatile SharedMemoryTransport sharedMemory; // Carries frames instead of the transport once the language attaches
+	private SharedMemoryTransport offeredSharedMemory; // Offered in the Init reply, until the language answers
+	private volatile boolean peer = false; // Set once the connection turns out to be a link to another core
+	private boolean dialed = false; // Set if this core dialed the link
+	private volatile String peerNode; // The node id of the core at the other end of a link
+	private volatile int window = 0; // Calls the language may have in flight at once, as agreed in Init, or 0 for no limit
 
-	private boolean strictTypes = true;
+	private Transport transport;
+	private ConnectionMetrics metrics;
+	private JsonReader reader = new JsonReader(); // Text frames are read one at a time, whichever thread reads them
 
-	private LinkedBlockingQueue<String> outgoing; // Synchronizes outgoing messages
+	private volatile PreparedCall[] prepared = new PreparedCall[16]; // Indexed by handle less one, doubled when full
+	private volatile int preparedCount = 0; // Written after the call it counts, so a reader that sees it sees the call
+	private HashMap<String, Integer> preparedHandles = new HashMap<>(); // Handles by signature, guarded by this
 
-	public LanguageHandler(int id, LanguageServer server, Socket s) {
+	public LanguageHandler(int id, LanguageServer server) {
 		this.server = server;
-		this.socket = s;
 		this.id = id;
-		outgoing = new LinkedBlockingQueue<>();
-	}
-
-	@Override
-	public void run() {
-		try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-			while (shouldRun) {
-				if (in.ready()) {
-					String input = in.readLine();
-					System.out.println("Read " + input);
-					String action = input.substring(0, 5);
-					String data = input.substring(5);
-					if (action.equals(String.format("%05d", LanguageOperations.RegisterClass.ordinal()))) {
-						server.registerClass(id, data);
-					} else if (action.equals(String.format("%05d", LanguageOperations.CreateObject.ordinal()))) {
-						server.createObject(id, data);
-					} else if (action.equals(String.format("%05d", LanguageOperations.Init.ordinal()))) {
-						init(data);
-					} else if (action.equals(String.format("%05d", LanguageOperations.CallMethod.ordinal()))) {
-						server.callMethod(id, data);
-					} else if (action.equals(String.format("%05d", LanguageOperations.Return.ordinal()))) {
-						server.returnValue(id, data);
-					} else  {
-						System.out.println("Unknown action: " + action);
-					}
+		metrics = new ConnectionMetrics(id, this::getQueueSize);
+	}
+
+	/**
+	 * Set once, before the transport starts reading
+	 */
+	public void setTransport(Transport transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Handles one text frame read from the language, regardless of whether it came from
+	 * the handler's own thread or from an {@link EventLoop}
+	 */
+	public void handleInput(String input) {
+		Log.debug("Read ", input);
+		metrics.frameIn();
+		try {
+			if (peer) {
+				handlePeerInput(input);
+				return;
+			}
+			int action = JsonReader.readPadded(input, 0);
+			if (action < 0 || action >= OPERATIONS.length) {
+				Log.warn("Unknown action: ", input.length() < 5 ? input : input.substring(0, 5));
+				return;
+			}
+			// Frames that are routed are read in one pass, the rest are parsed whole
+			switch (OPERATIONS[action]) {
+			case RegisterClass:
+				server.registerClass(id, input.substring(5));
+				break;
+			case CreateObject:
+				server.createObject(id, reader.readObject(input, 5));
+				break;
+			case Init:
+				init(input.substring(5));
+				break;
+			case CallMethod:
+				server.callMethod(id, reader.readObject(input, 5));
+				break;
+			case CallPrepared:
+				server.callPrepared(id, reader.readObject(input, 5));
+				break;
+			case Return:
+				server.returnValue(id, reader.readObject(input, 5));
+				break;
+			case Error:
+				server.returnError(id, reader.readObject(input, 5));
+				break;
+			case PrepareCall:
+				server.prepareCall(id, reader.readObject(input, 5));
+				break;
+			case CallBatch:
+				server.callBatch(id, input.substring(5));
+				break;
+			case BatchReturn:
+				server.batchReturn(id, input.substring(5));
+				break;
+			case ReleaseObject:
+				server.releaseObject(id, reader.readObject(input, 5));
+				break;
+			case StreamChunk:
+				server.streamChunk(id, reader.readObject(input, 5));
+				break;
+			case StreamEnd:
+				server.streamEnd(id, reader.readObject(input, 5));
+				break;
+			case StreamCredit:
+				server.streamCredit(id, reader.readObject(input, 5));
+				break;
+			default:
+				Log.warn("Unknown action: ", OPERATIONS[action]);
+			}
+		} catch (ParseException e) {
+			Log.error("Error parsing JSON", e);
+		} catch (InvalidObjectException e) {
+			Log.warn("Rejected call: ", e.getMessage());
+			writeCommand(LanguageOperations.Error, e.getCallId(), e.getMessage());
+		} catch (RuntimeException e) {
+			Log.error("Could not handle frame from language " + id, e);
+			writeCommand(LanguageOperations.Error, "Could not handle frame: " + e);
+		}
+	}
+
+	/**
+	 * Handles one frame from another core. Cores send each other what they send their
+	 * languages, so the call id is in the header, and a call from a peer is routed as
+	 * if one of this core's languages had made it.
+	 */
+	@SuppressWarnings("unchecked")
+	private void handlePeerInput(String input) throws ParseException, InvalidObjectException {
+		LanguageOperations op = OPERATIONS[Integer.parseInt(input.substring(0, 5))];
+		int callId = JsonReader.readPadded(input, 5);
+		switch (op) {
+		case Error:
+			server.peerError(id, callId, input.substring(10));
+			return;
+		case RegisterClass:
+			server.registerClass(id, input.substring(10));
+			return;
+		case CreateObject:
+			server.createObject(id, reader.readObject(input, 10));
+			return;
+		case ReleaseObject:
+			server.releaseObject(id, reader.readObject(input, 10));
+			return;
+		case Return:
+			server.returnValue(id, reader.readObject(input, 10));
+			return;
+		case BatchReturn:
+			server.batchReturn(id, input.substring(10));
+			return;
+		case StreamChunk:
+			server.streamChunk(id, reader.readObject(input, 10));
+			return;
+		case StreamEnd:
+			server.streamEnd(id, reader.readObject(input, 10));
+			return;
+		case StreamCredit:
+			server.streamCredit(id, reader.readObject(input, 10));
+			return;
+		case Init:
+			init(input.substring(10));
+			return;
+		case CallBatch: {
+			JSONObject body = (JSONObject) new JSONParser().parse(input.substring(10));
+			body.put("callID", callId);
+			server.callBatch(id, body);
+			return;
+		}
+		default:
+		}
+		JSONObject body = reader.readObject(input, 10);
+		switch (op) {
+		case CallMethod:
+			body.put("callID", callId);
+			server.callMethod(id, body);
+			break;
+		case AnnounceObject:
+			server.getFederation().objectAnnounced(id, body);
+			break;
+		case WithdrawClass:
+			server.getFederation().classWithdrawn(id, body);
+			break;
+		default:
+			Log.warn("Unknown action from peer: ", op);
+		}
+	}
+
+	/**
+	 * Handles one binary frame. The bodies are read back into the same JSON objects
+	 * the text protocol carries so the server routes both the same way. A frame too
+	 * short for what it claims to hold is answered with an Error.
+	 */
+	@SuppressWarnings("unchecked")
+	public void handleFrame(byte[] data, int offset, int length) {
+		metrics.frameIn();
+		try {
+			// Even the header may be cut short, so it is read where a malformed frame is answered
+			FrameDecoder frame = new FrameDecoder(data, offset, length);
+			Log.debug("Read binary ", frame.getOperation());
+			switch (frame.getOperation()) {
+			case RegisterClass:
+				server.registerClass(id, frame.readString());
+				break;
+			case CreateObject: {
+				JSONObject objData = new JSONObject();
+				objData.put("name", frame.readString());
+				objData.put("varName", frame.readString());
+				objData.put("arguments", frame.readArguments());
+				if (frame.hasRemaining()) {
+					objData.put("lease", frame.readVarint());
 				}
-				if (!outgoing.isEmpty()) {
-					String message = outgoing.take();
-					System.out.println("Writing out: " + message);
-					out.println(message);
+				server.createObject(id, objData);
+				break;
+			}
+			case CallMethod: {
+				JSONObject methodData = new JSONObject();
+				methodData.put("varName", frame.readString());
+				methodData.put("name", frame.readString());
+				methodData.put("arguments", frame.readArguments());
+				methodData.put("callID", frame.getCallId());
+				if (frame.hasRemaining()) {
+					methodData.put("timeout", frame.readVarint());
 				}
-
+				server.callMethod(id, methodData);
+				break;
+			}
+			case CallPrepared: {
+				JSONObject callData = new JSONObject();
+				callData.put("handle", frame.readVarint());
+				callData.put("arguments", frame.readArguments());
+				callData.put("callID", frame.getCallId());
+				if (frame.hasRemaining()) {
+					callData.put("timeout", frame.readVarint());
+				}
+				server.callPrepared(id, callData);
+				break;
+			}
+			case PrepareCall: {
+				JSONObject prepareData = new JSONObject();
+				prepareData.put("varName", frame.readString());
+				prepareData.put("name", frame.readString());
+				JSONArray types = new JSONArray();
+				for (long i = frame.readVarint(); i > 0; i--) {
+					types.add(frame.readString());
+				}
+				prepareData.put("types", types);
+				prepareData.put("callID", frame.getCallId());
+				server.prepareCall(id, prepareData);
+				break;
+			}
+			case Return: {
+				JSONObject arg = frame.readArgument();
+				Object value = arg.keySet().iterator().next();
+				JSONObject returnObj = new JSONObject();
+				returnObj.put("returnID", frame.getCallId());
+				returnObj.put("returnVal", value);
+				returnObj.put("returnType", arg.get(value));
+				server.returnValue(id, returnObj);
+				break;
+			}
+			case Error: {
+				JSONObject errorObj = new JSONObject();
+				errorObj.put("returnID", frame.getCallId());
+				errorObj.put("error", frame.readString());
+				server.returnError(id, errorObj);
+				break;
+			}
+			case CallBatch: {
+				JSONObject batchData = new JSONObject();
+				batchData.put("callID", frame.getCallId());
+				batchData.put("entries", frame.readBatchEntries());
+				if (frame.hasRemaining()) {
+					batchData.put("timeout", frame.readVarint());
+				}
+				server.callBatch(id, batchData);
+				break;
+			}
+			case BatchReturn: {
+				JSONObject returnObj = new JSONObject();
+				returnObj.put("returnID", frame.getCallId());
+				returnObj.put("results", frame.readBatchResults());
+				server.batchReturn(id, returnObj);
+				break;
+			}
+			case ReleaseObject: {
+				JSONObject objData = new JSONObject();
+				objData.put("varName", frame.readString());
+				server.releaseObject(id, objData);
+				break;
+			}
+			case StreamChunk: {
+				JSONObject chunk = new JSONObject();
+				chunk.put("streamID", frame.readVarint());
+				chunk.put("values", frame.readArguments());
+				server.streamChunk(id, chunk);
+				break;
+			}
+			case StreamEnd: {
+				JSONObject end = new JSONObject();
+				end.put("streamID", frame.readVarint());
+				if (frame.hasRemaining()) {
+					end.put("error", frame.readString());
+				}
+				server.streamEnd(id, end);
+				break;
+			}
+			case StreamCredit: {
+				JSONObject creditData = new JSONObject();
+				creditData.put("streamID", frame.readVarint());
+				creditData.put("credit", frame.readVarint());
+				server.streamCredit(id, creditData);
+				break;
+			}
+			case Init:
+				init(frame.readString());
+				break;
+			case None: {
+				// The language wrote to a ring the reader was asleep on
+				SharedMemoryTransport shared = sharedMemory;
+				if (shared != null) {
+					shared.wake();
+				}
+				break;
+			}
+			default:
+				Log.warn("Unknown action: ", frame.getOperation());
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
 		} catch (ParseException e) {
-			System.err.println("Error parsing JSON");
-			e.printStackTrace();
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			Log.error("Error parsing JSON", e);
 		} catch (InvalidObjectException e) {
-			e.printStackTrace();
-			writeCommand(LanguageOperations.Error, e.getMessage());
+			Log.warn("Rejected call: ", e.getMessage());
+			writeCommand(LanguageOperations.Error, e.getCallId(), e.getMessage());
+		} catch (IllegalStateException e) {
+			Log.error("Malformed frame", e);
+			writeCommand(LanguageOperations.Error, "Malformed frame: " + e.getMessage());
+		} catch (RuntimeException e) {
+			Log.error("Could not handle frame from language " + id, e);
+			writeCommand(LanguageOperations.Error, "Could not handle frame: " + e);
 		}
+	}
 
+	/**
+	 * Handles one message from a direct transport. The bodies are the JSON objects the
+	 * text protocol carries, so they go to the server as they are.
+	 *
+	 * @param message the operation's ordinal, the call id and the body, or null once
+	 *                the language has disconnected
+	 */
+	public void handleMessage(Object[] message) {
+		if (message == null) {
+			closed();
+			return;
+		}
+		LanguageOperations op = OPERATIONS[(Integer) message[0]];
+		Log.debug("Read message ", op);
+		metrics.frameIn();
+		try {
+			JSONObject body = (JSONObject) message[2];
+			switch (op) {
+			case RegisterClass:
+				server.registerClass(id, body);
+				break;
+			case CreateObject:
+				server.createObject(id, body);
+				break;
+			case CallMethod:
+				server.callMethod(id, body);
+				break;
+			case CallPrepared:
+				server.callPrepared(id, body);
+				break;
+			case Return:
+				server.returnValue(id, body);
+				break;
+			case Error:
+				server.returnError(id, body);
+				break;
+			case PrepareCall:
+				server.prepareCall(id, body);
+				break;
+			case CallBatch:
+				server.callBatch(id, body);
+				break;
+			case BatchReturn:
+				server.batchReturn(id, body);
+				break;
+			case ReleaseObject:
+				server.releaseObject(id, body);
+				break;
+			case StreamChunk:
+				server.streamChunk(id, body);
+				break;
+			case StreamEnd:
+				server.streamEnd(id, body);
+				break;
+			case StreamCredit:
+				server.streamCredit(id, body);
+				break;
+			case Init:
+				init(body);
+				break;
+			default:
+				Log.warn("Unknown action: ", op);
+			}
+		} catch (InvalidObjectException e) {
+			Log.warn("Rejected call: ", e.getMessage());
+			writeCommand(LanguageOperations.Error, e.getCallId(), e.getMessage());
+		}
 	}
 
 	public void init(String jsonData) throws ParseException {
-		JSONObject langData = (JSONObject) (new JSONParser()).parse(jsonData);
-		strictTypes = (boolean) langData.get("strictTypes");
+		init((JSONObject) (new JSONParser()).parse(jsonData));
+	}
+
+	@SuppressWarnings("unchecked")
+	public void init(JSONObject langData) {
+		if (langData.containsKey("peer")) {
+			server.getFederation().handshake(this, langData);
+			return;
+		}
+		if (langData.containsKey("attached")) {
+			attached(Boolean.TRUE.equals(langData.get("attached")));
+			return;
+		}
+		strictTypes = !Boolean.FALSE.equals(langData.get("strictTypes"));
+		Object requested = langData.get("window");
+		Object resume = langData.get("session");
+		int maxWindow = server.getMaxWindow();
+		window = requested == null || Integer.parseInt(requested.toString()) <= 0 ? maxWindow
+				: Math.min(Integer.parseInt(requested.toString()), maxWindow);
+		JSONArray protocols = (JSONArray) langData.get("protocols");
+		if (protocols != null || requested != null) {
+			// The language holds its other frames until it reads this reply, and nothing
+			// can be routed to it before it registers or calls, so the switch is safe here
+			boolean useBinary = server.isBinaryProtocol() && !transport.isDirect() && protocols != null
+					&& protocols.contains("binary");
+			// Resumed before shared memory is offered, since its file is named after the id.
+			// A language in this JVM cannot connect again, so it gets no session.
+			boolean resumed = resume != null && server.resume(this, resume.toString());
+			if (!transport.isDirect()) {
+				session = resumed ? resume.toString() : server.startSession(id);
+			}
+			JSONObject reply = new JSONObject();
+			reply.put("protocol", useBinary ? "binary" : "text");
+			reply.put("window", window);
+			if (session != null) {
+				reply.put("session", session);
+				reply.put("resumed", resumed);
+			}
+			if (useBinary && Boolean.TRUE.equals(langData.get("sharedMemory"))) {
+				offerSharedMemory(reply);
+			}
+			writeCommand(LanguageOperations.Init, 0, reply);
+			binary = useBinary;
+		}
+	}
+
+	/**
+	 * Creates the shared memory file for a language that asked for it. The transport
+	 * carries everything until the language has mapped the file and said so.
+	 */
+	@SuppressWarnings("unchecked")
+	private void offerSharedMemory(JSONObject reply) {
+		if (!server.isSharedMemory() || !SharedMemoryTransport.isSupported()) {
+			return;
+		}
+		try {
+			offeredSharedMemory = SharedMemoryTransport.create(id, server.getSharedMemorySize(),
+					() -> transport.send(SharedMemoryTransport.DOORBELL));
+			offeredSharedMemory.setMaxBacklog(server.getMaxQueue());
+			reply.put("sharedMemory", offeredSharedMemory.getPath());
+		} catch (IOException e) {
+			Log.warn("Could not create shared memory, staying on the transport: ", e);
+		}
+	}
+
+	/**
+	 * The language's answer to the offer. Nothing is sent to a language before it
+	 * registers or calls, which it only does after answering, so switching here
+	 * cannot reorder frames.
+	 */
+	private void attached(boolean attached) {
+		SharedMemoryTransport transport = offeredSharedMemory;
+		offeredSharedMemory = null;
+		if (transport == null) {
+			return;
+		}
+		if (!attached) {
+			Log.info("Language " + id + " could not map shared memory, staying on its transport");
+			transport.close();
+			return;
+		}
+		sharedMemory = transport;
+		transport.start("Language-" + id, frame -> {
+			metrics.bytesIn(4 + frame.length);
+			handleFrame(frame, 0, frame.length);
+		});
+		Log.info("Language " + id + " attached shared memory ", transport.getPath());
 	}
 
 	@SuppressWarnings("unchecked")
 	public void createObject(String className, String objName, JSONArray params) {
+		if (binary) {
+			send(new FrameEncoder(LanguageOperations.CreateObject, 0).writeString(className).writeString(objName)
+					.writeArguments(params).toByteArray());
+			return;
+		}
+		if (!transport.isDirect()) {
+			writeLine(JsonWriter.begin(LanguageOperations.CreateObject, 0).field("name", className)
+					.field("arguments", params).field("varName", objName));
+			return;
+		}
 		JSONObject objData = new JSONObject();
 		objData.put("name", className);
 		objData.put("arguments", params);
 		objData.put("varName", objName);
-		writeCommand(LanguageOperations.CreateObject, objData.toJSONString());
+		writeCommand(LanguageOperations.CreateObject, 0, objData);
 	}
-	
+
 	public void callMethod(String varName, String methodName, int returnId, JSONArray args) {
+		if (binary) {
+			send(new FrameEncoder(LanguageOperations.CallMethod, returnId).writeString(varName).writeString(methodName)
+					.writeArguments(args).toByteArray());
+			return;
+		}
+		if (!transport.isDirect()) {
+			writeLine(JsonWriter.begin(LanguageOperations.CallMethod, returnId).field("name", methodName)
+					.field("arguments", args).field("varName", varName));
+			return;
+		}
 		JSONObject objData = new JSONObject();
 		objData.put("name", methodName);
 		objData.put("arguments", args);
 		objData.put("varName", varName);
-		writeCommand(LanguageOperations.CallMethod, returnId, objData.toJSONString());
+		writeCommand(LanguageOperations.CallMethod, returnId, objData);
 	}
-	
-	public void returnValue(String returnValue, String returnType) {
+
+	/**
+	 * @param callId the id the language gave the call, so it can match the return to its caller
+	 */
+	public void returnValue(int callId, Object returnValue, String returnType) {
+		if (binary) {
+			send(new FrameEncoder(LanguageOperations.Return, callId).writeArgument(returnValue, returnType).toByteArray());
+			return;
+		}
+		if (!transport.isDirect()) {
+			writeLine(JsonWriter.begin(LanguageOperations.Return, callId).field("returnVal", returnValue)
+					.field("returnType", returnType).field("returnID", callId));
+			return;
+		}
 		JSONObject retData = new JSONObject();
 		retData.put("returnVal", returnValue);
 		retData.put("returnType", returnType);
-		writeCommand(LanguageOperations.Return, retData.toJSONString());
+		retData.put("returnID", callId);
+		writeCommand(LanguageOperations.Return, callId, retData);
+	}
+
+	public void releaseObject(String varName) {
+		if (binary) {
+			send(new FrameEncoder(LanguageOperations.ReleaseObject, 0).writeString(varName).toByteArray());
+			return;
+		}
+		JSONObject objData = new JSONObject();
+		objData.put("varName", varName);
+		writeCommand(LanguageOperations.ReleaseObject, 0, objData);
+	}
+
+	public void callBatch(int returnId, JSONArray entries) {
+		if (binary) {
+			send(new FrameEncoder(LanguageOperations.CallBatch, returnId).writeBatchEntries(entries).toByteArray());
+			return;
+		}
+		JSONObject batchData = new JSONObject();
+		batchData.put("entries", entries);
+		writeCommand(LanguageOperations.CallBatch, returnId, batchData);
+	}
+
+	public void batchReturn(int callId, JSONArray results) {
+		if (binary) {
+			send(new FrameEncoder(LanguageOperations.BatchReturn, callId).writeBatchResults(results).toByteArray());
+			return;
+		}
+		JSONObject retData = new JSONObject();
+		retData.put("returnID", callId);
+		retData.put("results", results);
+		writeCommand(LanguageOperations.BatchReturn, callId, retData);
+	}
+
+	/**
+	 * One chunk of a result the language is waiting on, passed on as the callee sent it
+	 *
+	 * @param callId   the id the language gave the call
+	 * @param streamId the id the language grants the callee credit with
+	 */
+	public void streamChunk(int callId, int streamId, JSONArray values) {
+		if (binary) {
+			send(new FrameEncoder(LanguageOperations.StreamChunk, callId).writeVarint(streamId).writeArguments(values)
+					.toByteArray());
+			return;
+		}
+		JSONObject chunk = new JSONObject();
+		chunk.put("returnID", callId);
+		chunk.put("streamID", streamId);
+		chunk.put("values", values);
+		writeCommand(LanguageOperations.StreamChunk, callId, chunk);
+	}
+
+	/**
+	 * @param error why the stream stopped early, or null if it ran to its end
+	 */
+	public void streamEnd(int callId, int streamId, String error) {
+		if (binary) {
+			FrameEncoder frame = new FrameEncoder(LanguageOperations.StreamEnd, callId).writeVarint(streamId);
+			if (error != null) {
+				frame.writeString(error);
+			}
+			send(frame.toByteArray());
+			return;
+		}
+		JSONObject end = new JSONObject();
+		end.put("returnID", callId);
+		end.put("streamID", streamId);
+		if (error != null) {
+			end.put("error", error);
+		}
+		writeCommand(LanguageOperations.StreamEnd, callId, end);
+	}
+
+	/**
+	 * Lets the language send that many more chunks of the stream, or stops it if 0
+	 */
+	public void streamCredit(int streamId, int credit) {
+		if (binary) {
+			send(new FrameEncoder(LanguageOperations.StreamCredit, streamId).writeVarint(streamId).writeVarint(credit)
+					.toByteArray());
+			return;
+		}
+		JSONObject creditData = new JSONObject();
+		creditData.put("streamID", streamId);
+		creditData.put("credit", credit);
+		writeCommand(LanguageOperations.StreamCredit, streamId, creditData);
+	}
+
+	/**
+	 * Makes this connection a link this core dialed to another core, and greets the
+	 * other core the way a language would
+	 */
+	public void dialPeer(JSONObject init) {
+		peer = true;
+		dialed = true;
+		byte[] bytes = (String.format("%05d", LanguageOperations.Init.ordinal()) + init.toJSONString())
+				.getBytes(StandardCharsets.UTF_8);
+		byte[] line = new byte[bytes.length + LINE_END.length];
+		System.arraycopy(bytes, 0, line, 0, bytes.length);
+		System.arraycopy(LINE_END, 0, line, bytes.length, LINE_END.length);
+		send(line);
+	}
+
+	/**
+	 * Passes a class one of this core's languages registered on to a peer core
+	 */
+	public void registerClass(JSONObject classData) {
+		writeCommand(LanguageOperations.RegisterClass, 0, classData);
+	}
+
+	/**
+	 * Tells a peer core that one of this core's languages holds the object
+	 */
+	@SuppressWarnings("unchecked")
+	public void announceObject(String varName, String className) {
+		JSONObject objData = new JSONObject();
+		objData.put("varName", varName);
+		objData.put("name", className);
+		writeCommand(LanguageOperations.AnnounceObject, 0, objData);
+	}
+
+	/**
+	 * Tells a peer core that no language of this core serves the class any more
+	 */
+	@SuppressWarnings("unchecked")
+	public void withdrawClass(String className) {
+		JSONObject classData = new JSONObject();
+		classData.put("name", className);
+		writeCommand(LanguageOperations.WithdrawClass, 0, classData);
+	}
+
+	/**
+	 * Called once the connection is gone, so calls waiting on this language fail
+	 */
+	public void closed() {
+		closeSharedMemory();
+		server.disconnected(id);
+	}
+
+	private void closeSharedMemory() {
+		SharedMemoryTransport transport = sharedMemory;
+		if (transport != null) {
+			sharedMemory = null;
+			transport.close();
+		}
+		if (offeredSharedMemory != null) {
+			offeredSharedMemory.close();
+		}
 	}
 
 	public void stop() {
-		shouldRun = false;
+		transport.close();
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Takes over the id of the connection whose session the language resumed. Called
+	 * from Init, before anything is routed to this connection under either id.
+	 */
+	void rebind(int id) {
+		this.id = id;
+		metrics.setLangId(id);
+	}
+
+	/**
+	 * @return the token the language can resume with, or null if it was never given one
+	 */
+	public String getSession() {
+		return session;
 	}
 
 	public boolean isStrictTypes() {
@@ -120,12 +752,146 @@ public class LanguageHandler implements Runnable {
 		this.strictTypes = strictTypes;
 	}
 
+	public ConnectionMetrics getMetrics() {
+		return metrics;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public boolean isSharedMemory() {
+		return sharedMemory != null;
+	}
+
+	public boolean isPeer() {
+		return peer;
+	}
+
+	public void setPeer(boolean peer) {
+		this.peer = peer;
+	}
+
+	public boolean isDialed() {
+		return dialed;
+	}
+
+	public String getPeerNode() {
+		return peerNode;
+	}
+
+	public void setPeerNode(String peerNode) {
+		this.peerNode = peerNode;
+	}
+
+	public int getQueueSize() {
+		Transport t = transport;
+		SharedMemoryTransport shared = sharedMemory;
+		return (t == null ? 0 : t.getQueueSize()) + (shared == null ? 0 : shared.getBacklog());
+	}
+
+	/**
+	 * @return whether the connection has as many frames queued as the server allows,
+	 *         so no more calls or creates should be sent to it for now
+	 */
+	public boolean isSaturated() {
+		SharedMemoryTransport shared = sharedMemory;
+		if (shared != null) {
+			// The transport only carries doorbells once the rings are attached
+			return shared.isSaturated();
+		}
+		int maxQueue = server.getMaxQueue();
+		return maxQueue > 0 && getQueueSize() >= maxQueue;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * @return the handle the language calls the prepared call by, the one it already
+	 *         has if it prepared the same call before, or 0 if it has prepared too many
+	 */
+	public synchronized int addPrepared(PreparedCall call) {
+		Integer existing = preparedHandles.get(call.getSignature());
+		if (existing != null) {
+			return existing;
+		}
+		int count = preparedCount;
+		if (count >= MAX_PREPARED) {
+			return 0;
+		}
+		PreparedCall[] calls = prepared;
+		if (count == calls.length) {
+			calls = Arrays.copyOf(calls, calls.length * 2);
+		}
+		calls[count] = call;
+		prepared = calls;
+		preparedCount = count + 1;
+		preparedHandles.put(call.getSignature(), count + 1);
+		return count + 1;
+	}
+
+	/**
+	 * @return the call the language prepared under the handle, or null if there is none
+	 */
+	public PreparedCall getPrepared(int handle) {
+		int count = preparedCount;
+		PreparedCall[] calls = prepared;
+		return handle < 1 || handle > count ? null : calls[handle - 1];
+	}
+
 	public void writeCommand(LanguageOperations op, String str) {
 		writeCommand(op, 0, str);
 	}
-	
+
 	public void writeCommand(LanguageOperations op, int returnId,  String str) {
-		outgoing.add(String.format(String.format("%05d", op.ordinal()) + String.format("%05d", returnId) + str));
+		if (transport.isDirect()) {
+			send(new Object[] { op.ordinal(), returnId, str });
+			return;
+		}
+		if (binary) {
+			send(new FrameEncoder(op, returnId).writeString(str).toByteArray());
+			return;
+		}
+		String message = String.format("%05d", op.ordinal()) + String.format("%05d", returnId) + str;
+		Log.debug("Writing out: ", message);
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		byte[] line = new byte[bytes.length + LINE_END.length];
+		System.arraycopy(bytes, 0, line, 0, bytes.length);
+		System.arraycopy(LINE_END, 0, line, bytes.length, LINE_END.length);
+		send(line);
+	}
+
+	private void writeLine(JsonWriter writer) {
+		Log.debug("Writing out: ", writer);
+		send(writer.toLine(LINE_END));
+	}
+
+	/**
+	 * Sends the body as it is on a direct transport, and as JSON text otherwise
+	 */
+	private void writeCommand(LanguageOperations op, int returnId, JSONObject body) {
+		if (transport.isDirect()) {
+			send(new Object[] { op.ordinal(), returnId, body });
+			return;
+		}
+		writeCommand(op, returnId, body.toJSONString());
+	}
+
+	private void send(byte[] message) {
+		metrics.frameOut(message.length);
+		SharedMemoryTransport shared = sharedMemory;
+		if (shared != null) {
+			shared.send(message);
+			return;
+		}
+		transport.send(message);
+	}
+
+	private void send(Object[] message) {
+		metrics.frameOut(0);
+		transport.send(message);
 	}
 
 
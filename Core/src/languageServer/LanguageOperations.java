@@ -1,13 +0,0 @@
-package languageServer;
-
-
-public enum LanguageOperations {
-	None,
-	Error,
-	Init,
-	Return,
-	RegisterClass,
-	CreateObject,
-	CallMethod;
-	
-}
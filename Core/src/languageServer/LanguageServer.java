@@ -6,12 +6,22 @@ package languageServer;
 
 import java.awt.Point;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 
 import org.json.simple.JSONArray;
@@ -19,6 +29,15 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import languageCommon.LanguageOperations;
+import languageCommon.Log;
+import languageCommon.SharedMemoryTransport;
+import languageCommon.UnixSockets;
+import languageServer.ClassDescriptor.Overload;
+import languageServer.Registry.PendingReturn;
+import languageServer.Registry.RegisteredClass;
+import languageServer.Registry.RemoteObject;
+
 /**
  * 
  */
@@ -30,23 +49,46 @@ public class LanguageServer {
 	private boolean shouldRun = true;
 	private int langId = 0;
 
-	private JSONParser parser;
+	private boolean useSelector = false; // Serve connections from event loops instead of a thread each
+	private int eventLoopCount = 1;
+	private boolean binaryProtocol = true; // Whether languages may negotiate the binary protocol in Init
+	private boolean sharedMemory = true; // Whether binary languages on this host may move to shared memory rings
+	private int sharedMemorySize = SharedMemoryTransport.DEFAULT_CAPACITY; // Bytes per direction
+	private String unixSocket = null; // Path of a Unix domain socket to accept languages on as well, if any
+	private EventLoop[] loops; // Started with the first connection that needs them
+
+	private ThreadLocal<JSONParser> parser; // JSONParser keeps state while parsing, so one per thread
 
-	private ArrayList<LanguageHandler> langs; // List of all language connections
-	private HashMap<String, Integer> langMap; // Maps each element(class, method, etc) to the language implements it
-	private HashMap<String, Object> dataMap; // Maps each class to its data
-	private HashMap<Integer, Integer> returnMap; //Maps each return ID to the language thats expecting a return value
-	private int returnId = 1;
+	private ConcurrentHashMap<Integer, LanguageHandler> langs; // Maps each language id to its connection
+	private Registry registry; // Classes, objects and pending returns, shared by every connection
+	private Metrics metrics;
+	private String metricsFile = null; // Where to write periodic metrics snapshots, if anywhere
+	private long metricsInterval = 10000;
+	private long callTimeout = 60000; // Milliseconds a call may wait on its return unless it asks otherwise, 0 for no limit
+	private long objectLease = 0; // Milliseconds an unused object lives unless it asks otherwise, 0 until released
+	private boolean roundRobin = false; // Place new objects on replicas in turn instead of on the least busy
+	private String peers = null; // Comma separated host:port addresses of other cores to link to, if any
+	private int maxQueue = 4096; // Frames queued for a connection before calls and creates to it are refused, 0 for no limit
+	private int maxWindow = 1024; // Calls a language may have in flight at once, at most
+	private Federation federation; // Links to other cores
+	private ScheduledExecutorService timeouts;
+	private ConcurrentHashMap<String, Integer> sessions; // Maps each session token to the language it resumes
+	private ConcurrentHashMap<Integer, Long> absent; // Languages that may still resume, to the nanoTime they are forgotten at
+	private long sessionTimeout = 0; // Milliseconds a disconnected language keeps its classes and objects, 0 to drop them at once
+	private String stateFile = null; // Where the classes, objects and sessions are kept across restarts, if anywhere
+	private RegistryJournal journal;
 	
 	public LanguageServer() {
-		langs = new ArrayList<>();
-		langMap = new HashMap<>();
-		dataMap = new HashMap<>();
-		returnMap = new HashMap<>();
-		parser = new JSONParser();
+		langs = new ConcurrentHashMap<>();
+		registry = new Registry();
+		parser = ThreadLocal.withInitial(JSONParser::new);
+		metrics = new Metrics(registry, langs, this::getPort);
+		federation = new Federation(this, registry, langs);
+		sessions = new ConcurrentHashMap<>();
+		absent = new ConcurrentHashMap<>();
 	}
 
-	public static LanguageServer getInstance() {
+	public static synchronized LanguageServer getInstance() {
 		if (server == null) {
 			server = new LanguageServer();
 			return server;
@@ -56,151 +98,963 @@ public class LanguageServer {
 	}
 
 	public void run() {
+		if (stateFile != null) {
+			restore();
+		}
+		startTimeouts();
+		metrics.registerMBean();
+		if (metricsFile != null) {
+			metrics.startSnapshots(metricsFile, metricsInterval);
+		}
+		if (unixSocket != null) {
+			startUnixSocket();
+		}
+		if (peers != null) {
+			federation.start(peers);
+		}
+		if (useSelector) {
+			runSelector();
+			return;
+		}
 		try (ServerSocket socket = new ServerSocket(port)) {
 			while (shouldRun) {
 				Socket s = socket.accept();
-				System.out.println("Connected to " + s.getInetAddress().toString());
-				LanguageHandler handler = new LanguageHandler(langId++, this, s);
-				langs.add(handler);
-				Thread t = new Thread(handler);
+				Log.info("Connected to ", s.getInetAddress());
+				LanguageHandler handler = addLanguage();
+				SocketTransport transport = new SocketTransport(s, handler);
+				handler.setTransport(transport);
+				Thread t = new Thread(transport);
 				t.start();
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("Server stopped", e);
 		} finally {
-			for (LanguageHandler handler : langs) {
+			federation.stop();
+			for (LanguageHandler handler : langs.values()) {
 				handler.stop();
 			}
+			stopTimeouts();
+			closeJournal();
+		}
+	}
+
+	private void runSelector() {
+		try (ServerSocketChannel socket = ServerSocketChannel.open()) {
+			socket.bind(new InetSocketAddress(port));
+			accept(socket, startEventLoops());
+		} catch (IOException e) {
+			Log.error("Server stopped", e);
+		} finally {
+			federation.stop();
+			if (loops != null) {
+				for (EventLoop loop : loops) {
+					loop.stop();
+				}
+			}
+			stopTimeouts();
+			closeJournal();
+		}
+	}
+
+	/**
+	 * Reads back what the state file kept. The languages it names get the session
+	 * timeout to resume in, and new connections are numbered after them.
+	 */
+	private synchronized void restore() {
+		RegistryJournal restoring = new RegistryJournal(stateFile, registry, sessions, id -> !federation.isLink(id));
+		int[] restored;
+		try {
+			restored = restoring.restore();
+		} catch (IOException e) {
+			Log.error("Could not restore " + stateFile + ", starting without it", e);
+			return;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sessionTimeout);
+		for (int id : restored) {
+			absent.put(id, deadline);
+			langId = Math.max(langId, id + 1);
+		}
+		journal = restoring;
+		registry.setJournal(journal);
+	}
+
+	private synchronized void closeJournal() {
+		if (journal != null) {
+			registry.setJournal(null);
+			journal.flush();
+			journal.close();
+			journal = null;
+		}
+	}
+
+	/**
+	 * Accepts languages on the Unix domain socket from a thread of its own. Its
+	 * connections are always served by event loops, since a Unix domain channel has
+	 * no socket streams for a thread of its own to read.
+	 */
+	private void startUnixSocket() {
+		ServerSocketChannel socket;
+		try {
+			socket = UnixSockets.bind(unixSocket);
+		} catch (IOException e) {
+			Log.error("Could not listen on " + unixSocket, e);
+			return;
+		}
+		EventLoop[] loops = startEventLoops();
+		Thread t = new Thread(() -> {
+			try (ServerSocketChannel s = socket) {
+				accept(s, loops);
+			} catch (IOException e) {
+				Log.error("Unix socket stopped", e);
+			}
+		}, "UnixSocket");
+		t.start();
+	}
+
+	private void accept(ServerSocketChannel socket, EventLoop[] loops) throws IOException {
+		while (shouldRun) {
+			SocketChannel s = socket.accept();
+			Log.info("Connected to ", s.getRemoteAddress());
+			LanguageHandler handler = addLanguage();
+			loops[handler.getId() % loops.length].register(s, handler);
+		}
+	}
+
+	private synchronized EventLoop[] startEventLoops() {
+		if (loops == null) {
+			loops = new EventLoop[eventLoopCount];
+			for (int i = 0; i < loops.length; i++) {
+				try {
+					loops[i] = new EventLoop();
+				} catch (IOException e) {
+					throw new IllegalStateException("Could not open a selector", e);
+				}
+				Thread t = new Thread(loops[i], "EventLoop-" + i);
+				t.start();
+			}
+		}
+		return loops;
+	}
+
+	/**
+	 * Gives a new connection its id and makes it reachable. Nothing is routed to a
+	 * language before it registers or calls, so its transport can be set after this.
+	 */
+	private synchronized LanguageHandler addLanguage() {
+		LanguageHandler handler = new LanguageHandler(langId, this);
+		metrics.registerConnection(handler.getMetrics());
+		langs.put(langId++, handler);
+		return handler;
+	}
+
+	/**
+	 * Serves a link this core dialed to another core from an event loop
+	 */
+	public LanguageHandler connectPeer(SocketChannel channel) {
+		LanguageHandler handler = addLanguage();
+		EventLoop[] loops = startEventLoops();
+		loops[handler.getId() % loops.length].register(channel, handler);
+		return handler;
+	}
+
+	/**
+	 * Connects a language running in this JVM, with no socket in between. Messages
+	 * cross as objects in both directions: each is the operation's ordinal, the call
+	 * id, and the body the text protocol carries, as a JSON object, array or string.
+	 * The server does not have to be running to accept languages this way.
+	 *
+	 * @param toLanguage takes each message for the language, and null once the core
+	 *                   closes the connection. It must not block.
+	 * @return takes each message from the language, and null when it disconnects
+	 */
+	public Consumer<Object[]> connectInProcess(Consumer<Object[]> toLanguage) {
+		startTimeouts();
+		LanguageHandler handler = addLanguage();
+		handler.setTransport(new InProcessTransport(toLanguage));
+		return handler::handleMessage;
+	}
+
+	private synchronized void startTimeouts() {
+		if (timeouts == null) {
+			timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "Expiry");
+				t.setDaemon(true);
+				return t;
+			});
+			timeouts.scheduleWithFixedDelay(this::expireCalls, 100, 100, TimeUnit.MILLISECONDS);
+			timeouts.scheduleWithFixedDelay(this::expireObjects, 1, 1, TimeUnit.SECONDS);
+			timeouts.scheduleWithFixedDelay(this::flushJournal, 100, 100, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized void stopTimeouts() {
+		if (timeouts != null) {
+			timeouts.shutdown();
+			timeouts = null;
+		}
+	}
+
+	/**
+	 * Answers every call whose deadline has passed with a timeout error
+	 */
+	public void expireCalls() {
+		for (PendingReturn pending : registry.removeExpired(System.nanoTime())) {
+			failCall(pending, "Call timed out waiting on language " + pending.getCalleeId());
+			cancelStream(pending);
+		}
+	}
+
+	/**
+	 * Releases every leased object that has gone unused for its lease
+	 */
+	public void expireObjects() {
+		for (RemoteObject object : registry.removeExpiredObjects(System.nanoTime())) {
+			Log.debug("Lease expired for ", object.getVarName());
+			release(object);
+		}
+		long now = System.nanoTime();
+		for (Map.Entry<Integer, Long> entry : absent.entrySet()) {
+			if (now - entry.getValue() >= 0 && absent.remove(entry.getKey(), entry.getValue())) {
+				Log.info((federation.isLink(entry.getKey()) ? "The peer of link " : "Language ") + entry.getKey()
+						+ " did not come back in time");
+				forget(entry.getKey());
+			}
+		}
+	}
+
+	private void flushJournal() {
+		RegistryJournal journal = this.journal;
+		if (journal != null) {
+			journal.flush();
+		}
+	}
+
+	/**
+	 * Handles a language whose connection closed. Calls it was asked to answer fail
+	 * right away instead of waiting for their deadline. A language with a session, or
+	 * a link to a peer core, keeps its classes and objects for the session timeout, in
+	 * case it comes back; otherwise it is forgotten at once.
+	 */
+	public void disconnected(int id) {
+		LanguageHandler handler = langs.remove(id);
+		if (handler == null) {
+			return;
+		}
+		for (PendingReturn pending : registry.removeForLanguage(id)) {
+			if (pending.getCallerId() != id) {
+				failCall(pending, "Language " + id + " disconnected");
+			} else if (pending.getCalleeId() != id) {
+				cancelStream(pending);
+			}
+		}
+		if (sessionTimeout > 0 && (federation.isLink(id) ? federation.suspend(handler) : handler.getSession() != null)) {
+			absent.put(id, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sessionTimeout));
+			return;
+		}
+		forget(id);
+	}
+
+	/**
+	 * Releases the objects the language created at the languages that hold them, and
+	 * ends its session. It stops being a replica of the classes it registered, so new
+	 * objects go to the replicas that remain.
+	 */
+	private void forget(int id) {
+		sessions.values().removeIf(langNum -> langNum == id);
+		for (RemoteObject object : registry.removeObjectsForLanguage(id)) {
+			release(object);
+		}
+		federation.disconnected(id);
+		registry.removeReplicas(id);
+	}
+
+	/**
+	 * @return a new session token the language can resume with
+	 */
+	public String startSession(int id) {
+		String session = UUID.randomUUID().toString();
+		sessions.put(session, id);
+		RegistryJournal journal = this.journal;
+		if (journal != null) {
+			journal.sessionStarted(id, session);
+		}
+		return session;
+	}
+
+	/**
+	 * Gives a new connection the id, classes and objects of the language whose session
+	 * it presents, if that language disconnected and has not been forgotten yet
+	 *
+	 * @return whether the session was resumed
+	 */
+	public synchronized boolean resume(LanguageHandler handler, String session) {
+		Integer id = sessions.get(session);
+		if (id == null || !takeOver(handler, id)) {
+			return false;
+		}
+		federation.resumed(id);
+		Log.info("Language " + id + " resumed its session");
+		return true;
+	}
+
+	/**
+	 * Gives a new link to a peer the id, classes and objects of its link that
+	 * dropped, if those have not been forgotten yet
+	 *
+	 * @return whether the link took over
+	 */
+	public synchronized boolean resumeLink(LanguageHandler link, int id) {
+		if (!takeOver(link, id)) {
+			return false;
+		}
+		Log.info("Link " + id + " to peer " + link.getPeerNode() + " resumed");
+		return true;
+	}
+
+	private boolean takeOver(LanguageHandler handler, int id) {
+		if (absent.remove(id) == null) {
+			return false;
+		}
+		int previousId = handler.getId();
+		langs.remove(previousId);
+		handler.rebind(id);
+		langs.put(id, handler);
+		metrics.moveConnection(previousId, handler.getMetrics());
+		return true;
+	}
+
+	/**
+	 * Tells the language holding an object, if it is still connected, to drop it, and
+	 * the peer cores to forget it if it was held here
+	 */
+	private void release(RemoteObject object) {
+		LanguageHandler owner = langs.get(object.getLangId());
+		if (owner != null) {
+			owner.releaseObject(object.getVarName());
+		}
+		federation.objectReleased(object);
+	}
+
+	private void failCall(PendingReturn pending, String message) {
+		LanguageHandler caller = langs.get(pending.getCallerId());
+		BatchCall batch = pending.getBatch();
+		if (batch != null) {
+			if (batch.fail(pending.getSlots(), message) && caller != null) {
+				caller.batchReturn(batch.getCallId(), batch.getResults());
+			}
+		} else if (caller != null) {
+			caller.writeCommand(LanguageOperations.Error, pending.getCallId(), message);
 		}
 	}
 
+	/**
+	 * Tells the language producing a stream nobody waits on any more to stop
+	 */
+	private void cancelStream(PendingReturn pending) {
+		LanguageHandler callee = langs.get(pending.getCalleeId());
+		if (pending.isStreaming() && callee != null) {
+			callee.streamCredit(pending.getCalleeStreamId(), 0);
+		}
+	}
+
+	/**
+	 * Fails the call a peer core could not route. Cores send each other errors under
+	 * the id the call was sent with, which is this core's return id.
+	 */
+	public void peerError(int id, int returnId, String message) {
+		calleeFailed(id, returnId, message);
+	}
+
+	/**
+	 * Fails a call the language it was routed to could not serve, whose error comes
+	 * back as {"returnID":n,"error":"..."}
+	 */
+	public void returnError(int id, JSONObject errorObj) {
+		int returnID = Integer.valueOf(errorObj.get("returnID").toString());
+		calleeFailed(id, returnID, String.valueOf(errorObj.get("error")));
+	}
+
+	private void calleeFailed(int id, int returnId, String message) {
+		PendingReturn pending = registry.getPendingReturn(returnId);
+		if (pending == null || pending.getCalleeId() != id || !registry.removePendingReturn(returnId, pending)) {
+			Log.warn("Error on no call: ", message);
+			return;
+		}
+		failCall(pending, message);
+	}
+
+	/**
+	 * @return the deadline for a call, from its own "timeout" in milliseconds or the server's default
+	 */
+	private long getDeadline(JSONObject data) {
+		Object timeout = data.get("timeout");
+		long millis = timeout == null ? callTimeout : Long.parseLong(timeout.toString());
+		return millis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis) : 0;
+	}
+
 	public void registerClass(int id, String classData) throws ParseException {
-		System.out.println("Registering class for lang number " + id + " with data " + classData);
-		JSONObject classObj = (JSONObject) parser.parse(classData);
-		langMap.put((String) classObj.get("name"), id);
-		dataMap.put((String) classObj.get("name"), classObj);
+		Log.debug("Registering class for lang number ", id, " with data ", classData);
+		registerClass(id, (JSONObject) parser.get().parse(classData));
+	}
 
+	/**
+	 * Registers one class, or each of the classes in a {"classes":[...]} body a client
+	 * registering several at once sends
+	 */
+	public void registerClass(int id, JSONObject classObj) {
+		JSONArray classes = (JSONArray) classObj.get("classes");
+		if (classes != null) {
+			for (Object c : classes) {
+				registerClass(id, (JSONObject) c);
+			}
+			return;
+		}
+		registry.registerClass(id, new ClassDescriptor(classObj));
+		federation.classRegistered(id, classObj);
 	}
 
 	public void createObject(int id, String jsonObjdata) throws InvalidObjectException, ParseException {
-		System.out.println("Creating an object from lang " + id + " with data: " + jsonObjdata);
-		JSONObject objData = (JSONObject) parser.parse(jsonObjdata);
+		Log.debug("Creating an object from lang ", id, " with data ", jsonObjdata);
+		createObject(id, (JSONObject) parser.get().parse(jsonObjdata));
+	}
+
+	public void createObject(int id, JSONObject objData) throws InvalidObjectException {
+		int langNum = placeObject(id, objData, 0);
+		String varName = (String) objData.get("varName");
+		getConnected(langNum, varName, 0).createObject((String) objData.get("name"), varName,
+				(JSONArray) objData.get("arguments"));
+	}
+
+	/**
+	 * Checks the constructor and records the new object against the language that owns its class
+	 * 
+	 * @return the language the object lives in
+	 */
+	private int placeObject(int id, JSONObject objData, int callId) throws InvalidObjectException {
 		String className = (String) objData.get("name");
 		JSONArray args = (JSONArray) objData.get("arguments"); //JsonObject (value, type)
 		
-		Object langNumCheck = langMap.get(className);
-		if (langNumCheck == null) {
-			throw new InvalidObjectException("Could not find class" + className);
-		}
-		int langNum = (Integer) langNumCheck;
-		boolean isStrict = langs.get(langNum).isStrictTypes();
-		JSONObject classData = (JSONObject) dataMap.get(className);
-		JSONArray constructors = (JSONArray) classData.get("constructors");
-		int constructorIndex = matchParams(constructors, args, isStrict);
+		RegisteredClass registered = registry.getClass(className);
+		if (registered == null) {
+			throw new InvalidObjectException("Could not find class" + className, callId);
+		}
+		// A create a peer core passed on is placed here, or it could bounce between cores
+		int replica = chooseReplica(registered, federation.isLink(id));
+		if (replica < 0) {
+			throw new InvalidObjectException("No language on this core serves " + className, callId);
+		}
+		int langNum = registered.getLangId(replica);
+		LanguageHandler owner = getConnected(langNum, className, callId);
+		checkSaturated(owner, callId);
+		boolean isStrict = owner.isStrictTypes();
+		ClassDescriptor classData = registered.getDescriptor(replica);
+		Overload constructor = classData.resolveConstructor(args, isStrict);
 		
-		if(constructorIndex == -1) {
-			throw new InvalidObjectException("Could not find matching paramaters for " + args.toJSONString() + ". Types are: " + constructors.toJSONString());
-		} else {
-			JSONArray constructor = (JSONArray) constructors.get(constructorIndex);
-			String varName = (String) objData.get("varName");
-			langMap.put("var_" + varName, langNum);
-			dataMap.put("var_" + varName, className);
-			langs.get(langNum).createObject(className, varName, args);
+		if(constructor == null) {
+			throw new InvalidObjectException("Could not find matching paramaters for " + args.toJSONString() + ". Types are: " + classData.describeConstructors(), callId);
 		}
+		constructor.recordCall();
+		Object lease = objData.get("lease");
+		long leaseMillis = lease == null ? objectLease : Long.parseLong(lease.toString());
+		RemoteObject previous = registry.registerObject((String) objData.get("varName"), langNum, className, id,
+				TimeUnit.MILLISECONDS.toNanos(Math.max(0, leaseMillis)));
+		if (previous != null && previous.getLangId() != langNum) {
+			// The name moved to another language, which would otherwise keep the old object forever
+			release(previous);
+		}
+		federation.objectPlaced((String) objData.get("varName"), langNum, className);
+		return langNum;
 	}
 	
-	public void callMethod(int id, String jsonMethodData) throws ParseException, InvalidObjectException {
-		System.out.println("Calling method for lang number " + id + " with data " + jsonMethodData);
-		JSONObject methodData = (JSONObject) parser.parse(jsonMethodData);
-		String varName = "var_" + ((String) methodData.get("varName"));
-		String className = (String) dataMap.get(varName);
-		JSONObject classData = (JSONObject) dataMap.get(className);
-		String methodName = (String) methodData.get("name");
-		JSONArray possibleParamaters = new JSONArray();
-		JSONArray allMethods = (JSONArray) classData.get("methods");
-		Iterator<JSONObject> i =  allMethods.iterator();
-		while(i.hasNext()) {
-			JSONObject method = i.next();
-			if(method.get("name").equals(methodName)) {
-				possibleParamaters.add((JSONArray)method.get("parameters"));
+	/**
+	 * Picks the replica a new object goes to: the one with the fewest calls outstanding,
+	 * taking turns between equally busy ones, or simply the next in turn if the server
+	 * places round robin. Replicas whose connection just closed are skipped.
+	 *
+	 * @param localOnly skip replicas on peer cores
+	 * @return the replica, or -1 if only peer cores serve the class and localOnly is set
+	 */
+	private int chooseReplica(RegisteredClass registered, boolean localOnly) {
+		int count = registered.getReplicaCount();
+		int start = registered.nextReplica();
+		if (count == 1 && !localOnly) {
+			return 0;
+		}
+		int best = localOnly ? -1 : start;
+		int bestOutstanding = Integer.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			int replica = (start + i) % count;
+			int langNum = registered.getLangId(replica);
+			if (!langs.containsKey(langNum) || localOnly && federation.isLink(langNum)) {
+				continue;
+			}
+			if (roundRobin) {
+				return replica;
+			}
+			int outstanding = registry.getOutstanding(registered.getLangId(replica));
+			if (outstanding < bestOutstanding) {
+				best = replica;
+				bestOutstanding = outstanding;
 			}
 		}
+		return best;
+	}
+
+	public void callMethod(int id, String jsonMethodData) throws ParseException, InvalidObjectException {
+		Log.debug("Calling method for lang number ", id, " with data ", jsonMethodData);
+		callMethod(id, (JSONObject) parser.get().parse(jsonMethodData));
+	}
+
+	public void callMethod(int id, JSONObject methodData) throws InvalidObjectException {
+		String varName = (String) methodData.get("varName");
+		String methodName = (String) methodData.get("name");
 		JSONArray args = (JSONArray) methodData.get("arguments");
+		int callId = getCallId(methodData);
+		checkWindow(id, callId);
+		RemoteObject object = findObject(varName, callId);
+		Overload method = resolveMethod(object, methodName, args, callId);
+		route(id, callId, object, method, args, methodData);
+	}
 
-		
-		System.out.println(possibleParamaters.toJSONString());
-		System.out.println(args.toJSONString());
-		
-		int langNum = langMap.get(varName);
-		int methodIndex =  matchParams(possibleParamaters, args, langs.get(langNum).isStrictTypes());
-		if(methodIndex == -1) {
-			throw new InvalidObjectException("Could not find matching paramaters for " + args.toJSONString() + ". Types are: " + possibleParamaters.toJSONString());
+	/**
+	 * Resolves a method of an object once for arguments of the given types, and answers
+	 * with a handle the language can call it by from then on, as an int Return
+	 */
+	public void prepareCall(int id, JSONObject prepareData) throws InvalidObjectException {
+		JSONArray typeList = (JSONArray) prepareData.get("types");
+		String[] types = new String[typeList.size()];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = String.valueOf(typeList.get(i));
 		}
-		String returnType = (String) ((JSONObject)allMethods.get(methodIndex)).get("return");
-		
-		System.out.println(returnType);
+		PreparedCall call = new PreparedCall((String) prepareData.get("varName"), (String) prepareData.get("name"), types);
+		int callId = getCallId(prepareData);
+		bind(call, callId);
+		LanguageHandler caller = getConnected(id, null, callId);
+		int handle = caller.addPrepared(call);
+		if (handle == 0) {
+			throw new InvalidObjectException("Language " + id + " has prepared too many calls", callId);
+		}
+		caller.returnValue(callId, String.valueOf(handle), "int");
+	}
+
+	/**
+	 * Routes a call to a method the language prepared. The object and overload are the
+	 * ones found when it was prepared, unless the object was since released or a class
+	 * registered, in which case they are found again by name. The arguments are trusted
+	 * to have the types the call was prepared with.
+	 */
+	public void callPrepared(int id, JSONObject callData) throws InvalidObjectException {
+		int callId = getCallId(callData);
+		checkWindow(id, callId);
+		int handle = Integer.parseInt(callData.get("handle").toString());
+		PreparedCall call = getConnected(id, null, callId).getPrepared(handle);
+		if (call == null) {
+			throw new InvalidObjectException("No call was prepared with handle " + handle, callId);
+		}
+		JSONArray args = (JSONArray) callData.get("arguments");
+		if (args.size() != call.getTypes().length) {
+			throw new InvalidObjectException("Call " + handle + " was prepared for " + call.getTypes().length
+					+ " arguments, not " + args.size(), callId);
+		}
+		PreparedCall.Binding binding = call.getBinding(registry.getClassGeneration());
+		if (binding == null) {
+			binding = bind(call, callId);
+		} else if (!langs.containsKey(binding.getObject().getLangId())) {
+			throw new InvalidObjectException("Language " + binding.getObject().getLangId() + " that owns "
+					+ call.getVarName() + " disconnected", callId);
+		}
+		binding.getObject().renew();
+		binding.getMethod().recordCall();
+		route(id, callId, binding.getObject(), binding.getMethod(), args, callData);
+	}
+
+	private PreparedCall.Binding bind(PreparedCall call, int callId) throws InvalidObjectException {
+		int classGeneration = registry.getClassGeneration();
+		RemoteObject object = findObject(call.getVarName(), callId);
+		RegisteredClass registered = registry.getClass(object.getClassName());
+		ClassDescriptor classData = registered == null ? null : registered.getDescriptorFor(object.getLangId());
+		if (classData == null) {
+			throw new InvalidObjectException("Could not find class" + object.getClassName(), callId);
+		}
+		Overload method = classData.resolveMethod(call.getMethodName(), call.getTypes(),
+				getConnected(object.getLangId(), call.getVarName(), callId).isStrictTypes());
+		if (method == null) {
+			throw new InvalidObjectException("Could not find matching paramaters for " + Arrays.toString(call.getTypes())
+					+ ". Types are: " + classData.describeMethod(call.getMethodName()), callId);
+		}
+		return call.bind(object, method, classGeneration);
+	}
+
+	/**
+	 * Sends a resolved call on to the language that owns the object, or answers it from
+	 * the method's cache
+	 */
+	private void route(int id, int callId, RemoteObject object, Overload method, JSONArray args, JSONObject methodData) throws InvalidObjectException {
+		String varName = object.getVarName();
+		String methodName = method.getName();
+		int langNum = object.getLangId();
+		String returnType = method.getReturnType();
+		ResultCache cache = method.getCache();
+		Object cacheKey = null;
+		LanguageHandler caller = getConnected(id, null, callId);
+		if (cache != null && callId != 0) {
+			cacheKey = ResultCache.key(object, args.toJSONString());
+			ResultCache.CachedResult cached = cache.get(cacheKey);
+			if (cached != null) {
+				caller.returnValue(callId, cached.getValue(), cached.getType());
+				return;
+			}
+		}
+		LanguageHandler owner = getConnected(langNum, varName, callId);
+		checkSaturated(owner, callId);
 		
 		if (!returnType.equals("void")) {
-			returnMap.put(returnId, id);
-			langs.get(langNum).callMethod((String) methodData.get("varName"),  methodName, returnId++, args);
+			int returnId = registry.addPendingReturn(id, callId, langNum, getDeadline(methodData));
+			if (returnId == 0) {
+				throw new InvalidObjectException("Too many calls in flight", callId);
+			}
+			if (cacheKey != null) {
+				registry.getPendingReturn(returnId).setCache(cache, cacheKey);
+			}
+			owner.callMethod(varName,  methodName, returnId, args);
 		} else {
-			langs.get(langNum).callMethod((String) methodData.get("varName"),  methodName, 0, args);
+			owner.callMethod(varName,  methodName, 0, args);
+			if (callId != 0) {
+				// Nothing comes back from a void method, so the caller is answered once the call is routed
+				caller.returnValue(callId, "null", "void");
+			}
 		}
 		
 	}
+
+	/**
+	 * Refuses a call from a language that already has its whole window in flight
+	 */
+	private void checkWindow(int id, int callId) throws InvalidObjectException {
+		int window = getConnected(id, null, callId).getWindow();
+		if (callId != 0 && window != 0 && registry.getInFlight(id) >= window) {
+			throw new InvalidObjectException("Language " + id + " already has its window of " + window + " calls in flight", callId);
+		}
+	}
+
+	/**
+	 * A language can disconnect at any point while another thread routes a call to or
+	 * from it, so the call fails instead of finding no handler
+	 *
+	 * @param varName the object the language owns, to name in the error, or null for the caller
+	 */
+	private LanguageHandler getConnected(int langNum, String varName, int callId) throws InvalidObjectException {
+		LanguageHandler handler = langs.get(langNum);
+		if (handler == null) {
+			throw new InvalidObjectException("Language " + langNum + (varName == null ? "" : " that owns " + varName)
+					+ " disconnected", callId);
+		}
+		return handler;
+	}
+
+	/**
+	 * Refuses to queue more work for a language that is not keeping up, so the caller
+	 * finds out now instead of the core buffering without limit
+	 */
+	private void checkSaturated(LanguageHandler destination, int callId) throws InvalidObjectException {
+		if (destination.isSaturated()) {
+			destination.getMetrics().rejected();
+			throw new InvalidObjectException("Language " + destination.getId() + " is saturated, "
+					+ destination.getQueueSize() + " frames are queued for it", callId);
+		}
+	}
+
+	private RemoteObject findObject(String varName, int callId) throws InvalidObjectException {
+		RemoteObject object = registry.getObject(varName);
+		if (object == null) {
+			throw new InvalidObjectException("Could not find object " + varName, callId);
+		}
+		if (!langs.containsKey(object.getLangId())) {
+			throw new InvalidObjectException("Language " + object.getLangId() + " that owns " + varName + " disconnected", callId);
+		}
+		object.renew();
+		return object;
+	}
+
+	private Overload resolveMethod(RemoteObject object, String methodName, JSONArray args, int callId) throws InvalidObjectException {
+		RegisteredClass registered = registry.getClass(object.getClassName());
+		ClassDescriptor classData = registered == null ? null : registered.getDescriptorFor(object.getLangId());
+		if (classData == null) {
+			throw new InvalidObjectException("Could not find class" + object.getClassName(), callId);
+		}
+		Overload method = classData.resolveMethod(methodName, args,
+				getConnected(object.getLangId(), object.getVarName(), callId).isStrictTypes());
+		if(method == null) {
+			throw new InvalidObjectException("Could not find matching paramaters for " + args.toJSONString() + ". Types are: " + classData.describeMethod(methodName), callId);
+		}
+		method.recordCall();
+		return method;
+	}
+
+	private int getCallId(JSONObject data) {
+		Object callId = data.get("callID");
+		return callId == null ? 0 : Integer.parseInt(callId.toString());
+	}
+
+	public void releaseObject(int id, String jsonObjData) throws ParseException {
+		Log.debug("Releasing an object from lang ", id, " with data ", jsonObjData);
+		releaseObject(id, (JSONObject) parser.get().parse(jsonObjData));
+	}
+
+	/**
+	 * Forgets the object and tells the language holding it to drop it. Only the
+	 * language that created the object or the one holding it may release it, and
+	 * anyone else is answered with an error. Releasing an object that is already gone
+	 * does nothing.
+	 */
+	public void releaseObject(int id, JSONObject objData) {
+		String varName = (String) objData.get("varName");
+		RemoteObject object = registry.getObject(varName);
+		if (object == null) {
+			return;
+		}
+		if (id != object.getCreatorId() && id != object.getLangId()) {
+			Log.warn("Refused to release " + varName + " for language ", id);
+			LanguageHandler caller = langs.get(id);
+			if (caller != null) {
+				caller.writeCommand(LanguageOperations.Error, getCallId(objData),
+						"Language " + id + " may not release " + varName + ", which it neither created nor holds");
+			}
+			return;
+		}
+		if (registry.removeObject(object)) {
+			release(object);
+		}
+	}
+
+	public void callBatch(int id, String jsonBatchData) throws ParseException {
+		Log.debug("Calling batch for lang number ", id, " with data ", jsonBatchData);
+		callBatch(id, (JSONObject) parser.get().parse(jsonBatchData));
+	}
+
+	/**
+	 * Checks every entry of a batch and sends each language that owns entries a single
+	 * CallBatch with its share, in the caller's order. Entries that fail here are
+	 * answered with an error and the rest still run.
+	 */
+	@SuppressWarnings("unchecked")
+	public void callBatch(int id, JSONObject batchData) {
+		int callId = getCallId(batchData);
+		LanguageHandler caller = langs.get(id);
+		if (caller == null) {
+			// Disconnected while its batch was being read, so nobody waits on the results
+			return;
+		}
+		try {
+			checkWindow(id, callId);
+		} catch (InvalidObjectException e) {
+			caller.writeCommand(LanguageOperations.Error, callId, e.getMessage());
+			return;
+		}
+		JSONArray entries = (JSONArray) batchData.get("entries");
+		BatchCall batch = new BatchCall(id, callId, entries.size());
+		LinkedHashMap<Integer, JSONArray> langEntries = new LinkedHashMap<>();
+		LinkedHashMap<Integer, ArrayList<Integer>> langSlots = new LinkedHashMap<>();
+		for (int i = 0; i < entries.size(); i++) {
+			JSONObject entry = (JSONObject) entries.get(i);
+			try {
+				int langNum;
+				if ("create".equals(entry.get("op"))) {
+					langNum = placeObject(id, entry, callId);
+				} else {
+					RemoteObject object = findObject((String) entry.get("varName"), callId);
+					resolveMethod(object, (String) entry.get("name"), (JSONArray) entry.get("arguments"), callId);
+					langNum = object.getLangId();
+				}
+				langEntries.computeIfAbsent(langNum, k -> new JSONArray()).add(entry);
+				langSlots.computeIfAbsent(langNum, k -> new ArrayList<>()).add(i);
+			} catch (InvalidObjectException e) {
+				batch.setError(i, e.getMessage());
+			}
+		}
+		batch.expect(langEntries.size());
+		if (langEntries.isEmpty()) {
+			caller.batchReturn(callId, batch.getResults());
+			return;
+		}
+		long deadline = getDeadline(batchData);
+		boolean windowed = callId != 0;
+		for (Map.Entry<Integer, JSONArray> destination : langEntries.entrySet()) {
+			int[] slots = langSlots.get(destination.getKey()).stream().mapToInt(Integer::intValue).toArray();
+			LanguageHandler handler = langs.get(destination.getKey());
+			String refused = null;
+			int returnId = 0;
+			if (handler == null) {
+				refused = "Language " + destination.getKey() + " disconnected";
+			} else if (handler.isSaturated()) {
+				handler.getMetrics().rejected();
+				refused = "Language " + destination.getKey() + " is saturated, " + handler.getQueueSize() + " frames are queued for it";
+			} else if ((returnId = registry.addPendingBatch(batch, slots, destination.getKey(), deadline, windowed)) == 0) {
+				refused = "Too many calls in flight";
+			}
+			if (refused != null) {
+				if (batch.fail(slots, refused)) {
+					caller.batchReturn(callId, batch.getResults());
+				}
+				continue;
+			}
+			windowed = false;
+			handler.callBatch(returnId, destination.getValue());
+		}
+	}
+
+	public void batchReturn(int id, String jsonReturnData) throws ParseException {
+		Log.debug("Returning a batch from lang ", id, " with data ", jsonReturnData);
+		batchReturn(id, (JSONObject) parser.get().parse(jsonReturnData));
+	}
+
+	public void batchReturn(int id, JSONObject returnObj) {
+		int returnID = Integer.valueOf(returnObj.get("returnID").toString());
+		PendingReturn pending = registry.removePendingReturn(returnID);
+		if (pending == null || pending.getBatch() == null) {
+			Log.warn("No batch is waiting on return ", returnID);
+			return;
+		}
+		BatchCall batch = pending.getBatch();
+		if (batch.complete(pending.getSlots(), (JSONArray) returnObj.get("results"))) {
+			metrics.getBatchHistogram().recordSince(batch.getStartNanos());
+			LanguageHandler caller = langs.get(batch.getCallerId());
+			if (caller != null) {
+				caller.batchReturn(batch.getCallId(), batch.getResults());
+			}
+		}
+	}
 	
 	public void returnValue(int id, String jsonReturnData) throws ParseException {
-		System.out.println("Returning a value from lang " + id + " with data " + jsonReturnData );
-		JSONObject returnObj = (JSONObject) parser.parse(jsonReturnData);
+		Log.debug("Returning a value from lang ", id, " with data ", jsonReturnData);
+		returnValue(id, (JSONObject) parser.get().parse(jsonReturnData));
+	}
+
+	public void returnValue(int id, JSONObject returnObj) {
 		int returnID = Integer.valueOf(returnObj.get("returnID").toString());
 		String returnType = (String) returnObj.get("returnType");
-		String returnVal = (String) returnObj.get("returnVal");
+		Object returnVal = returnObj.get("returnVal"); // Text, or a Packed array from a binary frame
 		
-		langs.get(returnMap.get(returnID)).returnValue(returnVal, returnType);
+		PendingReturn pending = registry.removePendingReturn(returnID);
+		if (pending == null) {
+			Log.warn("No call is waiting on return ", returnID);
+			return;
+		}
+		metrics.getCallHistogram().recordSince(pending.getStartNanos());
+		if (pending.getCache() != null) {
+			pending.getCache().put(pending.getCacheKey(), returnVal, returnType);
+		}
+		LanguageHandler caller = langs.get(pending.getCallerId());
+		if (caller != null) {
+			caller.returnValue(pending.getCallId(), returnVal, returnType);
+		}
 		
 	}
 	
-	private int matchParams(JSONArray possibleParamaters, JSONArray arguements, boolean isStrict) {
-		boolean found = false;
-		JSONArray checkParamater = null;
-		System.out.println("Checking paramaters with possibilities " + possibleParamaters.toJSONString() + " with args" + arguements.toJSONString());
-		int i;
-		for (i = 0; i < possibleParamaters.size(); i++) {
-			checkParamater = (JSONArray) possibleParamaters.get(i);
-			if (isStrict) {
-				if (checkParamater.size() == arguements.size()) {
-					boolean matches = true;
-					for (int j = 0; j < checkParamater.size(); j++) {
-						Object type = (((JSONObject)arguements.get(j)).values().toArray()[0]);
-						if (!checkParamater.get(j).equals("any") && !type.equals(checkParamater.get(j))) {
-							System.out.println("type " + type + " does not match " + checkParamater.get(j));
-							matches = false;
-							break;
-						}
-					}
-					if (matches) {
-						found = true;
-						break;
-					}
-				}
-			} else {
-				if (checkParamater.size() == arguements.size()) {
-					found = true;
-					break;
-				}
+	public void streamChunk(int id, String jsonChunkData) throws ParseException {
+		streamChunk(id, (JSONObject) parser.get().parse(jsonChunkData));
+	}
+
+	/**
+	 * Passes one chunk of a streamed result on to the caller as it is. The call stays
+	 * pending until the stream ends, and every chunk renews its deadline.
+	 */
+	public void streamChunk(int id, JSONObject chunk) {
+		int calleeStreamId = getStreamId(chunk);
+		int streamId = getStreamId(id, chunk);
+		PendingReturn pending = registry.getPendingReturn(streamId);
+		if (pending == null || pending.getCalleeId() != id || pending.getBatch() != null) {
+			Log.warn("No call is waiting on stream ", streamId);
+			LanguageHandler callee = langs.get(id);
+			if (callee != null) {
+				callee.streamCredit(calleeStreamId, 0);
 			}
+			return;
 		}
-		if(!found) {
-			return -1;
+		pending.setCalleeStreamId(calleeStreamId);
+		pending.setStreaming(true);
+		registry.releaseWindow(pending);
+		pending.renew();
+		LanguageHandler caller = langs.get(pending.getCallerId());
+		if (caller != null) {
+			caller.streamChunk(pending.getCallId(), streamId, (JSONArray) chunk.get("values"));
+		}
+	}
+
+	public void streamEnd(int id, String jsonEndData) throws ParseException {
+		streamEnd(id, (JSONObject) parser.get().parse(jsonEndData));
+	}
+
+	public void streamEnd(int id, JSONObject end) {
+		int streamId = getStreamId(id, end);
+		PendingReturn pending = registry.getPendingReturn(streamId);
+		if (pending == null || pending.getCalleeId() != id || !registry.removePendingReturn(streamId, pending)) {
+			Log.warn("No call is waiting on stream ", streamId);
+			return;
+		}
+		metrics.getCallHistogram().recordSince(pending.getStartNanos());
+		LanguageHandler caller = langs.get(pending.getCallerId());
+		if (caller != null) {
+			caller.streamEnd(pending.getCallId(), streamId, (String) end.get("error"));
+		}
+	}
+
+	public void streamCredit(int id, String jsonCreditData) throws ParseException {
+		streamCredit(id, (JSONObject) parser.get().parse(jsonCreditData));
+	}
+
+	/**
+	 * Passes the caller's credit for more chunks on to the language producing them. A
+	 * credit of 0 cancels the stream.
+	 */
+	public void streamCredit(int id, JSONObject creditData) {
+		int streamId = getStreamId(creditData);
+		int credit = Integer.parseInt(creditData.get("credit").toString());
+		PendingReturn pending = registry.getPendingReturn(streamId);
+		if (pending == null || pending.getCallerId() != id) {
+			return;
+		}
+		if (credit == 0) {
+			registry.removePendingReturn(streamId, pending);
 		} else {
-			return i;
+			pending.renew();
+		}
+		LanguageHandler callee = langs.get(pending.getCalleeId());
+		if (callee != null) {
+			callee.streamCredit(pending.getCalleeStreamId(), credit);
 		}
 	}
 
+	private int getStreamId(JSONObject data) {
+		return Integer.parseInt(data.get("streamID").toString());
+	}
+
+	/**
+	 * @return this core's return id for the stream a chunk or end belongs to. A peer
+	 *         core streams under its own id, and sends this core's as the return id.
+	 */
+	private int getStreamId(int id, JSONObject data) {
+		return federation.isLink(id) ? Integer.parseInt(data.get("returnID").toString()) : getStreamId(data);
+	}
+
 	public class InvalidObjectException extends Exception {
+
+		private static final long serialVersionUID = 4186950237104931845L;
+
+		private int callId; // The caller's id for the call that failed, or 0
+
 		public InvalidObjectException(String msg) {
 			super(msg);
 		}
+
+		public InvalidObjectException(String msg, int callId) {
+			super(msg);
+			this.callId = callId;
+		}
+
+		public int getCallId() {
+			return callId;
+		}
 	}
 
 	public int getPort() {
@@ -211,6 +1065,196 @@ public class LanguageServer {
 		this.port = port;
 	}
 
+	public boolean isUseSelector() {
+		return useSelector;
+	}
+
+	public void setUseSelector(boolean useSelector) {
+		this.useSelector = useSelector;
+	}
+
+	public int getEventLoopCount() {
+		return eventLoopCount;
+	}
+
+	public void setEventLoopCount(int eventLoopCount) {
+		this.eventLoopCount = Math.max(1, eventLoopCount);
+	}
+
+	public boolean isBinaryProtocol() {
+		return binaryProtocol;
+	}
+
+	public void setBinaryProtocol(boolean binaryProtocol) {
+		this.binaryProtocol = binaryProtocol;
+	}
+
+	public boolean isSharedMemory() {
+		return sharedMemory;
+	}
+
+	public void setSharedMemory(boolean sharedMemory) {
+		this.sharedMemory = sharedMemory;
+	}
+
+	public int getSharedMemorySize() {
+		return sharedMemorySize;
+	}
+
+	/**
+	 * @param sharedMemorySize bytes of ring per direction, rounded up to a power of two.
+	 *                         Larger frames still pass, in pieces.
+	 */
+	public void setSharedMemorySize(int sharedMemorySize) {
+		this.sharedMemorySize = sharedMemorySize;
+	}
+
+	public String getUnixSocket() {
+		return unixSocket;
+	}
+
+	/**
+	 * @param unixSocket path of a Unix domain socket to accept languages on alongside
+	 *                   the TCP port, or null for none. Needs Java 16 or later.
+	 */
+	public void setUnixSocket(String unixSocket) {
+		this.unixSocket = unixSocket;
+	}
+
+	public boolean isRoundRobin() {
+		return roundRobin;
+	}
+
+	/**
+	 * @param roundRobin place new objects on a class's replicas in turn, instead of on
+	 *                   the replica with the fewest calls outstanding
+	 */
+	public void setRoundRobin(boolean roundRobin) {
+		this.roundRobin = roundRobin;
+	}
+
+	public String getPeers() {
+		return peers;
+	}
+
+	/**
+	 * @param peers comma separated host:port addresses of other cores to link to, or
+	 *              null for none. Cores need only be listed on one side of each pair.
+	 */
+	public void setPeers(String peers) {
+		this.peers = peers;
+	}
+
+	public int getMaxQueue() {
+		return maxQueue;
+	}
+
+	/**
+	 * @param maxQueue frames that may wait to be written to one connection before the
+	 *                 core refuses further calls and creates for it, or 0 for no limit.
+	 *                 Returns and stream chunks are always queued, since each answers a
+	 *                 call the receiving language made and is bounded by its window.
+	 */
+	public void setMaxQueue(int maxQueue) {
+		this.maxQueue = Math.max(0, maxQueue);
+	}
+
+	public int getMaxWindow() {
+		return maxWindow;
+	}
+
+	/**
+	 * @param maxWindow calls one language may have in flight at once. Each language
+	 *                  asks for a window in Init and is granted at most this many.
+	 */
+	public void setMaxWindow(int maxWindow) {
+		this.maxWindow = Math.max(1, Math.min(Registry.MAX_RETURN_ID, maxWindow));
+	}
+
+	public Federation getFederation() {
+		return federation;
+	}
+
+	public Registry getRegistry() {
+		return registry;
+	}
+
+	public long getCallTimeout() {
+		return callTimeout;
+	}
+
+	/**
+	 * @param callTimeout milliseconds a call waits on its return before the caller gets
+	 *                    a timeout error, unless the call sets its own, or 0 for no limit
+	 */
+	public void setCallTimeout(long callTimeout) {
+		this.callTimeout = Math.max(0, callTimeout);
+	}
+
+	public long getObjectLease() {
+		return objectLease;
+	}
+
+	/**
+	 * @param objectLease milliseconds an object may go unused before it is released,
+	 *                    unless its create sets its own lease, or 0 to keep objects
+	 *                    until they are released or their creator disconnects
+	 */
+	public void setObjectLease(long objectLease) {
+		this.objectLease = Math.max(0, objectLease);
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public String getMetricsFile() {
+		return metricsFile;
+	}
+
+	/**
+	 * @param metricsFile where to write a JSON metrics snapshot every interval, or null for none
+	 */
+	public void setMetricsFile(String metricsFile) {
+		this.metricsFile = metricsFile;
+	}
+
+	public long getMetricsInterval() {
+		return metricsInterval;
+	}
+
+	public void setMetricsInterval(long metricsInterval) {
+		this.metricsInterval = Math.max(1, metricsInterval);
+	}
+
+	public long getSessionTimeout() {
+		return sessionTimeout;
+	}
+
+	/**
+	 * @param sessionTimeout milliseconds a language that disconnected keeps its id,
+	 *                       classes and objects, so it can resume its session by
+	 *                       presenting the token from its Init reply when it connects
+	 *                       again, or 0 to release everything at once. Also how long
+	 *                       languages have to resume after a restart from the state file.
+	 */
+	public void setSessionTimeout(long sessionTimeout) {
+		this.sessionTimeout = Math.max(0, sessionTimeout);
+	}
+
+	public String getStateFile() {
+		return stateFile;
+	}
+
+	/**
+	 * @param stateFile where to keep the classes, objects and sessions of this core's
+	 *                  languages, or null to keep them only in memory. Read back when
+	 *                  the server runs, so it needs a session timeout to be of use.
+	 */
+	public void setStateFile(String stateFile) {
+		this.stateFile = stateFile;
+	}
+
 	public void stop() {
 		shouldRun = false;
 	}
@@ -1,11 +1,30 @@
 package languageServer;
 
 
+import languageCommon.SharedMemoryTransport;
+
+
 public class Main {
 
 	public static void main(String[] args) {
 		LanguageServer s = LanguageServer.getInstance();
-		s.setPort(8000);
+		s.setPort(Integer.getInteger("multiLanguage.port", 8000));
+		s.setUseSelector(true);
+		s.setMetricsFile(System.getProperty("multiLanguage.metricsFile"));
+		s.setMetricsInterval(Long.getLong("multiLanguage.metricsInterval", 10000));
+		s.setSharedMemory(!"false".equals(System.getProperty("multiLanguage.sharedMemory")));
+		s.setSharedMemorySize(Integer.getInteger("multiLanguage.sharedMemorySize", SharedMemoryTransport.DEFAULT_CAPACITY));
+		s.setUnixSocket(System.getProperty("multiLanguage.unixSocket"));
+		s.setRoundRobin(Boolean.getBoolean("multiLanguage.roundRobin"));
+		s.setPeers(System.getProperty("multiLanguage.peers"));
+		s.setMaxQueue(Integer.getInteger("multiLanguage.maxQueue", s.getMaxQueue()));
+		s.setMaxWindow(Integer.getInteger("multiLanguage.window", s.getMaxWindow()));
+		s.setSessionTimeout(Long.getLong("multiLanguage.sessionTimeout", s.getSessionTimeout()));
+		s.setStateFile(System.getProperty("multiLanguage.stateFile"));
+		s.getRegistry().setQuarantineMillis(Long.getLong("multiLanguage.returnQuarantine", Registry.DEFAULT_QUARANTINE_MILLIS));
+		if (System.getProperty("multiLanguage.nodeId") != null) {
+			s.getFederation().setNodeId(System.getProperty("multiLanguage.nodeId"));
+		}
 		s.run();
 	}
 	
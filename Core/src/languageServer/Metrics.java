@@ -0,0 +1,316 @@
+package languageServer;
+
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.json.simple.JSONObject;
+
+import languageCommon.Histogram;
+import languageCommon.Log;
+import languageServer.Registry.RegisteredClass;
+
+/**
+ * Metrics for the core. Counters and histograms are recorded where the work happens,
+ * with LongAdders so the hot path allocates nothing; the totals, gauges and per class
+ * breakdowns here are only computed when read over JMX or written to the snapshot file.
+ */
+public class Metrics implements MetricsMXBean {
+
+	private static final String DOMAIN = "languageServer";
+
+	private Registry registry;
+	private Map<Integer, LanguageHandler> langs;
+	private IntSupplier port; // Names the core's MBeans, so cores in one JVM keep theirs apart
+
+	private Histogram callLatency; // From routing a call to its return, for calls that return a value
+	private Histogram batchLatency; // From routing a batch to its last destination's return
+
+	private ScheduledExecutorService snapshots;
+
+	public Metrics(Registry registry, Map<Integer, LanguageHandler> langs, IntSupplier port) {
+		this.registry = registry;
+		this.langs = langs;
+		this.port = port;
+		callLatency = new Histogram();
+		batchLatency = new Histogram();
+	}
+
+	public Histogram getCallHistogram() {
+		return callLatency;
+	}
+
+	public Histogram getBatchHistogram() {
+		return batchLatency;
+	}
+
+	/**
+	 * Registers the core's MBean with the platform MBean server, named after the port
+	 */
+	public void registerMBean() {
+		register(this, DOMAIN + ":type=Metrics,core=" + port.getAsInt());
+	}
+
+	public void registerConnection(ConnectionMetrics connection) {
+		register(connection, connectionName(connection.getLangId()));
+	}
+
+	private String connectionName(int id) {
+		return DOMAIN + ":type=Connection,core=" + port.getAsInt() + ",id=" + id;
+	}
+
+	/**
+	 * Moves a connection's MBean from the id it connected with to the id it resumed,
+	 * replacing the MBean of the connection that held that id before
+	 */
+	public void moveConnection(int previousId, ConnectionMetrics connection) {
+		unregister(connectionName(previousId));
+		unregister(connectionName(connection.getLangId()));
+		registerConnection(connection);
+	}
+
+	/**
+	 * Registers the bean unless the name is taken, by another core with the same port
+	 */
+	private void register(Object bean, String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(name));
+		} catch (InstanceAlreadyExistsException e) {
+			Log.warn("Leaving in place the MBean already registered as ", name);
+		} catch (Exception e) {
+			Log.error("Could not register MBean " + name, e);
+		}
+	}
+
+	private void unregister(String name) {
+		try {
+			ObjectName objectName = new ObjectName(name);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+		} catch (Exception e) {
+			Log.error("Could not unregister MBean " + name, e);
+		}
+	}
+
+	/**
+	 * Writes {@link #snapshot()} to the file every period, replacing the previous snapshot
+	 */
+	public synchronized void startSnapshots(String file, long periodMillis) {
+		stopSnapshots();
+		Path path = Paths.get(file);
+		snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "MetricsSnapshot");
+			t.setDaemon(true);
+			return t;
+		});
+		snapshots.scheduleAtFixedRate(() -> writeSnapshot(path), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stopSnapshots() {
+		if (snapshots != null) {
+			snapshots.shutdown();
+			snapshots = null;
+		}
+	}
+
+	private void writeSnapshot(Path path) {
+		try {
+			Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+			Files.write(tmp, JSONObject.toJSONString(snapshot()).getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			Log.error("Could not write metrics snapshot to " + path, e);
+		}
+	}
+
+	public Map<String, Object> snapshot() {
+		Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("time", System.currentTimeMillis());
+		snapshot.put("connectionCount", getConnectionCount());
+		snapshot.put("classCount", getClassCount());
+		snapshot.put("objectCount", getObjectCount());
+		snapshot.put("pendingReturnCount", getPendingReturnCount());
+		snapshot.put("quarantinedReturnCount", getQuarantinedReturnCount());
+		snapshot.put("outgoingQueueSize", getOutgoingQueueSize());
+		Map<String, Object> connections = new TreeMap<>();
+		for (LanguageHandler handler : langs.values()) {
+			ConnectionMetrics metrics = handler.getMetrics();
+			connections.put(Integer.toString(metrics.getLangId()), metrics.snapshot());
+		}
+		snapshot.put("connections", connections);
+		snapshot.put("callCounts", getCallCounts());
+		snapshot.put("resolutionFailures", getResolutionFailures());
+		snapshot.put("replicaCounts", getReplicaCounts());
+		snapshot.put("cacheHits", getCacheHits());
+		snapshot.put("cacheMisses", getCacheMisses());
+		snapshot.put("callLatency", getCallLatency());
+		snapshot.put("batchLatency", getBatchLatency());
+		return snapshot;
+	}
+
+	@Override
+	public int getConnectionCount() {
+		return langs.size();
+	}
+
+	@Override
+	public int getClassCount() {
+		return registry.getClassCount();
+	}
+
+	@Override
+	public int getObjectCount() {
+		return registry.getObjectCount();
+	}
+
+	@Override
+	public int getPendingReturnCount() {
+		return registry.getPendingReturnCount();
+	}
+
+	@Override
+	public int getQuarantinedReturnCount() {
+		return registry.getQuarantinedCount();
+	}
+
+	@Override
+	public int getOutgoingQueueSize() {
+		int size = 0;
+		for (LanguageHandler handler : langs.values()) {
+			size += handler.getMetrics().getOutgoingQueueSize();
+		}
+		return size;
+	}
+
+	@Override
+	public long getFramesIn() {
+		long total = 0;
+		for (LanguageHandler handler : langs.values()) {
+			total += handler.getMetrics().getFramesIn();
+		}
+		return total;
+	}
+
+	@Override
+	public long getFramesOut() {
+		long total = 0;
+		for (LanguageHandler handler : langs.values()) {
+			total += handler.getMetrics().getFramesOut();
+		}
+		return total;
+	}
+
+	@Override
+	public long getBytesIn() {
+		long total = 0;
+		for (LanguageHandler handler : langs.values()) {
+			total += handler.getMetrics().getBytesIn();
+		}
+		return total;
+	}
+
+	@Override
+	public long getBytesOut() {
+		long total = 0;
+		for (LanguageHandler handler : langs.values()) {
+			total += handler.getMetrics().getBytesOut();
+		}
+		return total;
+	}
+
+	/**
+	 * @return calls per overload across every replica, keyed by class, name and parameter types
+	 */
+	@Override
+	public Map<String, Long> getCallCounts() {
+		Map<String, Long> counts = new TreeMap<>();
+		for (RegisteredClass registered : registry.getClasses().values()) {
+			for (int i = 0; i < registered.getReplicaCount(); i++) {
+				ClassDescriptor descriptor = registered.getDescriptor(i);
+				for (Map.Entry<String, Long> entry : descriptor.getCallCounts().entrySet()) {
+					counts.merge(descriptor.getName() + "." + entry.getKey(), entry.getValue(), Long::sum);
+				}
+			}
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Long> getResolutionFailures() {
+		Map<String, Long> failures = new TreeMap<>();
+		for (RegisteredClass registered : registry.getClasses().values()) {
+			for (int i = 0; i < registered.getReplicaCount(); i++) {
+				ClassDescriptor descriptor = registered.getDescriptor(i);
+				failures.merge(descriptor.getName(), descriptor.getResolutionFailures(), Long::sum);
+			}
+		}
+		return failures;
+	}
+
+	/**
+	 * @return the languages serving each class
+	 */
+	@Override
+	public Map<String, Long> getReplicaCounts() {
+		Map<String, Long> replicas = new TreeMap<>();
+		for (Map.Entry<String, RegisteredClass> entry : registry.getClasses().entrySet()) {
+			replicas.put(entry.getKey(), (long) entry.getValue().getReplicaCount());
+		}
+		return replicas;
+	}
+
+	/**
+	 * @return results answered from the core's cache, per cacheable method
+	 */
+	@Override
+	public Map<String, Long> getCacheHits() {
+		return getCacheCounts(true);
+	}
+
+	@Override
+	public Map<String, Long> getCacheMisses() {
+		return getCacheCounts(false);
+	}
+
+	private Map<String, Long> getCacheCounts(boolean hits) {
+		Map<String, Long> counts = new TreeMap<>();
+		for (RegisteredClass registered : registry.getClasses().values()) {
+			for (int i = 0; i < registered.getReplicaCount(); i++) {
+				ClassDescriptor descriptor = registered.getDescriptor(i);
+				for (Map.Entry<String, Long> entry : descriptor.getCacheCounts(hits).entrySet()) {
+					counts.merge(descriptor.getName() + "." + entry.getKey(), entry.getValue(), Long::sum);
+				}
+			}
+		}
+		return counts;
+	}
+
+	@Override
+	public Map<String, Long> getCallLatency() {
+		return callLatency.snapshot();
+	}
+
+	@Override
+	public Map<String, Long> getBatchLatency() {
+		return batchLatency.snapshot();
+	}
+
+}
@@ -0,0 +1,45 @@
+package languageServer;
+
+
+import java.util.Map;
+
+/**
+ * JMX view of the whole core, see {@link Metrics}
+ */
+public interface MetricsMXBean {
+
+	int getConnectionCount();
+
+	int getClassCount();
+
+	int getObjectCount();
+
+	int getPendingReturnCount();
+
+	int getQuarantinedReturnCount();
+
+	int getOutgoingQueueSize();
+
+	long getFramesIn();
+
+	long getFramesOut();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	Map<String, Long> getCallCounts();
+
+	Map<String, Long> getResolutionFailures();
+
+	Map<String, Long> getReplicaCounts();
+
+	Map<String, Long> getCacheHits();
+
+	Map<String, Long> getCacheMisses();
+
+	Map<String, Long> getCallLatency();
+
+	Map<String, Long> getBatchLatency();
+
+}
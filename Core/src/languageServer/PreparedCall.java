@@ -0,0 +1,89 @@
+package languageServer;
+
+
+import java.util.Arrays;
+
+import languageServer.ClassDescriptor.Overload;
+import languageServer.Registry.RemoteObject;
+
+/**
+ * A method of an object resolved once for arguments of fixed types, so the language
+ * that prepared it can call it again by handle without naming the object or method.
+ * The object and overload are looked up again only if the object left the registry or
+ * a class was registered since, which a call sees from a flag and a counter.
+ */
+public class PreparedCall {
+
+	private String varName;
+	private String methodName;
+	private String[] types;
+	private volatile Binding binding;
+
+	public PreparedCall(String varName, String methodName, String[] types) {
+		this.varName = varName;
+		this.methodName = methodName;
+		this.types = types;
+	}
+
+	public String getVarName() {
+		return varName;
+	}
+
+	public String getMethodName() {
+		return methodName;
+	}
+
+	public String[] getTypes() {
+		return types;
+	}
+
+	/**
+	 * @param classGeneration the registry's class generation now
+	 * @return the object and overload, or null if they must be resolved again
+	 */
+	public Binding getBinding(int classGeneration) {
+		Binding current = binding;
+		if (current == null || current.object.isReleased() || current.classGeneration != classGeneration) {
+			return null;
+		}
+		return current;
+	}
+
+	public Binding bind(RemoteObject object, Overload method, int classGeneration) {
+		Binding bound = new Binding(object, method, classGeneration);
+		binding = bound;
+		return bound;
+	}
+
+	/**
+	 * @return the same text for the same method of the same object with the same argument types
+	 */
+	public String getSignature() {
+		return varName + '.' + methodName + Arrays.toString(types);
+	}
+
+	/**
+	 * What a prepared call resolved to, replaced as a whole so a call never sees half of it
+	 */
+	public static class Binding {
+
+		private RemoteObject object;
+		private Overload method;
+		private int classGeneration;
+
+		Binding(RemoteObject object, Overload method, int classGeneration) {
+			this.object = object;
+			this.method = method;
+			this.classGeneration = classGeneration;
+		}
+
+		public RemoteObject getObject() {
+			return object;
+		}
+
+		public Overload getMethod() {
+			return method;
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+package languageServer;
+
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import org.json.simple.JSONArray;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * An argument or value array as it stands in a text frame, with the type of each
+ * element, which is all the core needs to route a call. It is written out to text
+ * destinations unchanged. The elements themselves are only parsed the first time
+ * something reads them as a list, such as a binary or in-process destination. The
+ * core never changes arguments it routes, so only reading is supported.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" }) // JSONArray is a raw ArrayList
+public class RawArguments extends JSONArray {
+
+	private static final long serialVersionUID = 1L;
+
+	private String text;
+	private int start;
+	private int end;
+	private String[] types;
+	private boolean parsed = false;
+
+	public RawArguments(String text, int start, int end, String[] types) {
+		this.text = text;
+		this.start = start;
+		this.end = end;
+		this.types = types;
+	}
+
+	/**
+	 * @return the type of every argument, in order
+	 */
+	public String[] getTypes() {
+		return types;
+	}
+
+	public void appendTo(StringBuilder sb) {
+		sb.append(text, start, end);
+	}
+
+	@Override
+	public String toJSONString() {
+		return text.substring(start, end);
+	}
+
+	@Override
+	public void writeJSONString(Writer out) throws IOException {
+		out.write(text, start, end - start);
+	}
+
+	@Override
+	public String toString() {
+		return toJSONString();
+	}
+
+	private void parse() {
+		if (parsed) {
+			return;
+		}
+		parsed = true;
+		try {
+			super.addAll((JSONArray) new JSONParser().parse(toJSONString()));
+		} catch (ParseException e) {
+			throw new IllegalStateException("Malformed arguments " + toJSONString(), e);
+		}
+	}
+
+	@Override
+	public int size() {
+		return parsed ? super.size() : types.length;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	@Override
+	public Object get(int index) {
+		parse();
+		return super.get(index);
+	}
+
+	@Override
+	public Iterator iterator() {
+		parse();
+		return super.iterator();
+	}
+
+	@Override
+	public ListIterator listIterator() {
+		parse();
+		return super.listIterator();
+	}
+
+	@Override
+	public ListIterator listIterator(int index) {
+		parse();
+		return super.listIterator(index);
+	}
+
+	@Override
+	public Spliterator spliterator() {
+		parse();
+		return super.spliterator();
+	}
+
+	@Override
+	public void forEach(Consumer action) {
+		parse();
+		super.forEach(action);
+	}
+
+	@Override
+	public Object[] toArray() {
+		parse();
+		return super.toArray();
+	}
+
+	@Override
+	public Object[] toArray(Object[] a) {
+		parse();
+		return super.toArray(a);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		parse();
+		return super.contains(o);
+	}
+
+	@Override
+	public int indexOf(Object o) {
+		parse();
+		return super.indexOf(o);
+	}
+
+	@Override
+	public int lastIndexOf(Object o) {
+		parse();
+		return super.lastIndexOf(o);
+	}
+
+	@Override
+	public List subList(int fromIndex, int toIndex) {
+		parse();
+		return super.subList(fromIndex, toIndex);
+	}
+
+}
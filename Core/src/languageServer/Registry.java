@@ -0,0 +1,712 @@
+package languageServer;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Routing tables shared by every {@link LanguageHandler}. Classes are registered
+ * rarely and read on every call, so they live in a copy-on-write map that readers
+ * see without locking. Objects and pending returns change on every create and call,
+ * so they live in concurrent maps.
+ *
+ * Every language that registers a class becomes a replica of it, and new objects are
+ * spread across the replicas. Each object stays with the replica it was created on.
+ *
+ * Return ids are recycled within the five digits the text protocol has for them,
+ * skipping ids still in flight, so the pending return table is bounded. An id whose
+ * call timed out or was abandoned can still be answered late, so it is kept out of
+ * use for a quarantine period, and a late return finds no call instead of a newer
+ * one. A call whose result streams keeps its return id until the stream ends.
+ */
+public class Registry {
+
+	public static final int MAX_RETURN_ID = 99999;
+	public static final long DEFAULT_QUARANTINE_MILLIS = 60000;
+
+	private AtomicReference<Map<String, RegisteredClass>> classes; // Replaced as a whole on every registration
+	private AtomicInteger classGeneration; // Counts the replacements, so prepared calls know to resolve again
+	private ConcurrentHashMap<String, RemoteObject> objects; // Maps each variable to the language and class that own it
+	private ConcurrentHashMap<String, RemoteObject> leased; // The objects that expire unless used, so only they are swept
+	private ConcurrentHashMap<Integer, PendingReturn> pendingReturns; // Maps each return ID to the call expecting it
+	private AtomicInteger nextReturnId;
+	private int maxPendingReturns = MAX_RETURN_ID;
+	private ConcurrentHashMap<Integer, Long> quarantined; // Ids of abandoned calls, until the nanoTime they can be reused
+	private volatile long quarantineNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_QUARANTINE_MILLIS);
+	private ConcurrentHashMap<Integer, AtomicInteger> outstanding; // Pending returns per language asked to answer
+	private ConcurrentHashMap<Integer, AtomicInteger> inFlight; // Calls per caller that count against its window
+	private volatile RegistryJournal journal; // Records classes and objects, if the server keeps them on disk
+
+	public Registry() {
+		classes = new AtomicReference<>(Collections.emptyMap());
+		classGeneration = new AtomicInteger();
+		objects = new ConcurrentHashMap<>();
+		leased = new ConcurrentHashMap<>();
+		pendingReturns = new ConcurrentHashMap<>();
+		nextReturnId = new AtomicInteger(1);
+		quarantined = new ConcurrentHashMap<>();
+		outstanding = new ConcurrentHashMap<>();
+		inFlight = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Adds the language as a replica of the class, replacing its own earlier registration
+	 */
+	public void registerClass(int langId, ClassDescriptor descriptor) {
+		Map<String, RegisteredClass> current;
+		Map<String, RegisteredClass> updated;
+		do {
+			current = classes.get();
+			updated = new HashMap<>(current);
+			RegisteredClass previous = current.get(descriptor.getName());
+			updated.put(descriptor.getName(), previous == null ? new RegisteredClass(langId, descriptor)
+					: previous.withReplica(langId, descriptor));
+		} while (!classes.compareAndSet(current, Collections.unmodifiableMap(updated)));
+		classGeneration.incrementAndGet();
+		RegistryJournal journal = this.journal;
+		if (journal != null) {
+			journal.classRegistered(langId, descriptor.getClassData());
+		}
+	}
+
+	/**
+	 * Removes the language from every class it replicates. Classes left without a
+	 * replica are forgotten.
+	 */
+	public void removeReplicas(int langId) {
+		Map<String, RegisteredClass> current;
+		Map<String, RegisteredClass> updated;
+		do {
+			current = classes.get();
+			updated = new HashMap<>();
+			for (Map.Entry<String, RegisteredClass> entry : current.entrySet()) {
+				RegisteredClass remaining = entry.getValue().withoutReplica(langId);
+				if (remaining != null) {
+					updated.put(entry.getKey(), remaining);
+				}
+			}
+		} while (!classes.compareAndSet(current, Collections.unmodifiableMap(updated)));
+		classGeneration.incrementAndGet();
+		outstanding.remove(langId);
+		RegistryJournal journal = this.journal;
+		if (journal != null) {
+			journal.languageDropped(langId);
+		}
+	}
+
+	/**
+	 * Removes the language from one class, which is forgotten if it has no replica left
+	 */
+	public void removeReplica(String className, int langId) {
+		Map<String, RegisteredClass> current;
+		Map<String, RegisteredClass> updated;
+		do {
+			current = classes.get();
+			RegisteredClass registered = current.get(className);
+			if (registered == null) {
+				return;
+			}
+			updated = new HashMap<>(current);
+			RegisteredClass remaining = registered.withoutReplica(langId);
+			if (remaining == null) {
+				updated.remove(className);
+			} else {
+				updated.put(className, remaining);
+			}
+		} while (!classes.compareAndSet(current, Collections.unmodifiableMap(updated)));
+		classGeneration.incrementAndGet();
+		RegistryJournal journal = this.journal;
+		if (journal != null) {
+			journal.classWithdrawn(langId, className);
+		}
+	}
+
+	public RegisteredClass getClass(String className) {
+		return classes.get().get(className);
+	}
+
+	public Map<String, RegisteredClass> getClasses() {
+		return classes.get();
+	}
+
+	public int getClassCount() {
+		return classes.get().size();
+	}
+
+	/**
+	 * @return a number that changes whenever a class is registered or loses a replica
+	 */
+	public int getClassGeneration() {
+		return classGeneration.get();
+	}
+
+	/**
+	 * @param creatorId the language that created the object, which it is released with
+	 * @param leaseNanos how long the object lives without being used, or 0 until released
+	 * @return the object previously under the name, or null
+	 */
+	public RemoteObject registerObject(String varName, int langId, String className, int creatorId, long leaseNanos) {
+		RemoteObject object = new RemoteObject(varName, langId, className, creatorId, leaseNanos);
+		RemoteObject previous = objects.put(varName, object);
+		RegistryJournal journal = this.journal;
+		if (previous != null) {
+			previous.released = true;
+			if (previous.leaseNanos != 0) {
+				leased.remove(varName, previous);
+			}
+			if (journal != null) {
+				journal.objectReleased(previous);
+			}
+		}
+		if (leaseNanos != 0) {
+			leased.put(varName, object);
+		}
+		if (journal != null) {
+			journal.objectRegistered(object);
+		}
+		return previous;
+	}
+
+	public RemoteObject getObject(String varName) {
+		return objects.get(varName);
+	}
+
+	/**
+	 * @return whether the object was released, which it is not if another object has
+	 *         since taken its name or it was already released
+	 */
+	public boolean removeObject(RemoteObject object) {
+		if (!objects.remove(object.varName, object)) {
+			return false;
+		}
+		object.released = true;
+		if (object.leaseNanos != 0) {
+			leased.remove(object.varName, object);
+		}
+		journalRelease(object);
+		return true;
+	}
+
+	/**
+	 * Removes every leased object that has not been used within its lease
+	 */
+	public List<RemoteObject> removeExpiredObjects(long nowNanos) {
+		List<RemoteObject> expired = new ArrayList<>();
+		for (RemoteObject object : leased.values()) {
+			if (nowNanos - object.leaseDeadline >= 0 && objects.remove(object.varName, object)) {
+				object.released = true;
+				leased.remove(object.varName, object);
+				journalRelease(object);
+				expired.add(object);
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Removes every object the language created or owns
+	 */
+	public List<RemoteObject> removeObjectsForLanguage(int langId) {
+		List<RemoteObject> removed = new ArrayList<>();
+		for (RemoteObject object : objects.values()) {
+			if ((object.creatorId == langId || object.langId == langId) && objects.remove(object.varName, object)) {
+				object.released = true;
+				leased.remove(object.varName, object);
+				journalRelease(object);
+				removed.add(object);
+			}
+		}
+		return removed;
+	}
+
+	private void journalRelease(RemoteObject object) {
+		RegistryJournal journal = this.journal;
+		if (journal != null) {
+			journal.objectReleased(object);
+		}
+	}
+
+	public Collection<RemoteObject> getObjects() {
+		return objects.values();
+	}
+
+	public int getObjectCount() {
+		return objects.size();
+	}
+
+	/**
+	 * @param journal records every change to classes and objects from now on, or null to stop
+	 */
+	public void setJournal(RegistryJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @param callId the caller's own id for the call, sent back with the return
+	 * @param deadlineNanos the System.nanoTime() the call times out at, or 0 for never
+	 * @return the id the callee must answer with, or 0 if too many calls are in flight
+	 */
+	public int addPendingReturn(int callerId, int callId, int calleeId, long deadlineNanos) {
+		PendingReturn pending = new PendingReturn(callerId, callId, calleeId, deadlineNanos);
+		pending.windowed.set(callId != 0);
+		return allocate(pending);
+	}
+
+	/**
+	 * @param slots    the batch entry each of the destination's results belongs to
+	 * @param windowed whether this share counts the batch against the caller's window,
+	 *                 which only one share of each batch does
+	 * @return the id the destination must answer its share of the batch with, or 0 if
+	 *         too many calls are in flight
+	 */
+	public int addPendingBatch(BatchCall batch, int[] slots, int calleeId, long deadlineNanos, boolean windowed) {
+		PendingReturn pending = new PendingReturn(batch, slots, calleeId, deadlineNanos);
+		pending.windowed.set(windowed);
+		return allocate(pending);
+	}
+
+	private int allocate(PendingReturn pending) {
+		if (pendingReturns.size() >= maxPendingReturns) {
+			return 0;
+		}
+		for (int i = 0; i < MAX_RETURN_ID; i++) {
+			int returnId = nextReturnId.getAndUpdate(id -> id >= MAX_RETURN_ID ? 1 : id + 1);
+			if (isQuarantined(returnId)) {
+				continue;
+			}
+			if (pendingReturns.putIfAbsent(returnId, pending) == null) {
+				pending.returnId = returnId;
+				outstanding.computeIfAbsent(pending.calleeId, k -> new AtomicInteger()).incrementAndGet();
+				if (pending.windowed.get()) {
+					inFlight.computeIfAbsent(pending.callerId, k -> new AtomicInteger()).incrementAndGet();
+				}
+				return returnId;
+			}
+		}
+		return 0;
+	}
+
+	private boolean isQuarantined(int returnId) {
+		Long until = quarantined.get(returnId);
+		if (until == null) {
+			return false;
+		}
+		if (System.nanoTime() - until < 0) {
+			return true;
+		}
+		quarantined.remove(returnId, until);
+		return false;
+	}
+
+	/**
+	 * Keeps the id of a call nobody waits on any more from being reused while its
+	 * callee may still answer it
+	 */
+	private void quarantine(int returnId) {
+		long nanos = quarantineNanos;
+		if (nanos > 0) {
+			quarantined.put(returnId, System.nanoTime() + nanos);
+		}
+	}
+
+	/**
+	 * Removes every call whose deadline has passed, and forgets the quarantined ids
+	 * that can be reused again
+	 */
+	public List<PendingReturn> removeExpired(long nowNanos) {
+		List<PendingReturn> expired = new ArrayList<>();
+		for (Map.Entry<Integer, PendingReturn> entry : pendingReturns.entrySet()) {
+			PendingReturn pending = entry.getValue();
+			if (pending.deadlineNanos != 0 && nowNanos - pending.deadlineNanos >= 0
+					&& pendingReturns.remove(entry.getKey(), pending)) {
+				answered(pending);
+				quarantine(entry.getKey());
+				expired.add(pending);
+			}
+		}
+		quarantined.entrySet().removeIf(entry -> nowNanos - entry.getValue() >= 0);
+		return expired;
+	}
+
+	/**
+	 * Removes every call the language made or was asked to answer
+	 */
+	public List<PendingReturn> removeForLanguage(int langId) {
+		List<PendingReturn> removed = new ArrayList<>();
+		for (Map.Entry<Integer, PendingReturn> entry : pendingReturns.entrySet()) {
+			PendingReturn pending = entry.getValue();
+			if ((pending.calleeId == langId || pending.callerId == langId)
+					&& pendingReturns.remove(entry.getKey(), pending)) {
+				answered(pending);
+				// The callee may still answer, after resuming its session or if only the caller left
+				quarantine(entry.getKey());
+				removed.add(pending);
+			}
+		}
+		inFlight.remove(langId);
+		return removed;
+	}
+
+	/**
+	 * @return the call waiting on the return, left in place, or null if nothing is waiting
+	 */
+	public PendingReturn getPendingReturn(int returnId) {
+		return pendingReturns.get(returnId);
+	}
+
+	/**
+	 * @return the call waiting on the return, or null if nothing is waiting
+	 */
+	public PendingReturn removePendingReturn(int returnId) {
+		PendingReturn pending = pendingReturns.remove(returnId);
+		if (pending != null) {
+			answered(pending);
+		}
+		return pending;
+	}
+
+	/**
+	 * @return whether the call was still waiting on the return and is now removed
+	 */
+	public boolean removePendingReturn(int returnId, PendingReturn pending) {
+		if (pendingReturns.remove(returnId, pending)) {
+			answered(pending);
+			return true;
+		}
+		return false;
+	}
+
+	private void answered(PendingReturn pending) {
+		AtomicInteger count = outstanding.get(pending.calleeId);
+		if (count != null) {
+			count.decrementAndGet();
+		}
+		releaseWindow(pending);
+	}
+
+	/**
+	 * Stops counting the call against its caller's window. A streamed call stops once
+	 * its first chunk passes, since the caller's own call completes with the stream.
+	 */
+	public void releaseWindow(PendingReturn pending) {
+		if (pending.windowed.compareAndSet(true, false)) {
+			AtomicInteger count = inFlight.get(pending.callerId);
+			if (count != null) {
+				count.decrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * @return the calls the language made that count against its window
+	 */
+	public int getInFlight(int langId) {
+		AtomicInteger count = inFlight.get(langId);
+		return count == null ? 0 : count.get();
+	}
+
+	/**
+	 * @return the calls and batch shares the language has been sent and not yet answered
+	 */
+	public int getOutstanding(int langId) {
+		AtomicInteger count = outstanding.get(langId);
+		return count == null ? 0 : count.get();
+	}
+
+	public int getPendingReturnCount() {
+		return pendingReturns.size();
+	}
+
+	public int getMaxPendingReturns() {
+		return maxPendingReturns;
+	}
+
+	public void setMaxPendingReturns(int maxPendingReturns) {
+		this.maxPendingReturns = Math.max(1, Math.min(MAX_RETURN_ID, maxPendingReturns));
+	}
+
+	/**
+	 * @return the ids kept out of use because their calls were abandoned
+	 */
+	public int getQuarantinedCount() {
+		return quarantined.size();
+	}
+
+	public long getQuarantineMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(quarantineNanos);
+	}
+
+	/**
+	 * @param quarantineMillis how long the id of a call that timed out or was abandoned
+	 *                         is kept from new calls, or 0 to reuse it at once
+	 */
+	public void setQuarantineMillis(long quarantineMillis) {
+		this.quarantineNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, quarantineMillis));
+	}
+
+	/**
+	 * The languages that replicate a class, each with the descriptor it registered.
+	 * Never changed once built; registering or losing a replica builds a new one.
+	 */
+	public static class RegisteredClass {
+
+		private int[] langIds;
+		private ClassDescriptor[] descriptors;
+		private AtomicInteger nextReplica; // Where the next placement starts looking, kept across rebuilds
+
+		public RegisteredClass(int langId, ClassDescriptor descriptor) {
+			this(new int[] { langId }, new ClassDescriptor[] { descriptor }, new AtomicInteger());
+		}
+
+		private RegisteredClass(int[] langIds, ClassDescriptor[] descriptors, AtomicInteger nextReplica) {
+			this.langIds = langIds;
+			this.descriptors = descriptors;
+			this.nextReplica = nextReplica;
+		}
+
+		RegisteredClass withReplica(int langId, ClassDescriptor descriptor) {
+			for (int i = 0; i < langIds.length; i++) {
+				if (langIds[i] == langId) {
+					ClassDescriptor[] replaced = descriptors.clone();
+					replaced[i] = descriptor;
+					return new RegisteredClass(langIds, replaced, nextReplica);
+				}
+			}
+			int[] ids = Arrays.copyOf(langIds, langIds.length + 1);
+			ClassDescriptor[] added = Arrays.copyOf(descriptors, descriptors.length + 1);
+			ids[langIds.length] = langId;
+			added[langIds.length] = descriptor;
+			return new RegisteredClass(ids, added, nextReplica);
+		}
+
+		/**
+		 * @return the class without the replica, or null if it was the last one
+		 */
+		RegisteredClass withoutReplica(int langId) {
+			int index = indexOf(langId);
+			if (index < 0) {
+				return this;
+			}
+			if (langIds.length == 1) {
+				return null;
+			}
+			int[] ids = new int[langIds.length - 1];
+			ClassDescriptor[] remaining = new ClassDescriptor[ids.length];
+			for (int i = 0, j = 0; i < langIds.length; i++) {
+				if (i != index) {
+					ids[j] = langIds[i];
+					remaining[j++] = descriptors[i];
+				}
+			}
+			return new RegisteredClass(ids, remaining, nextReplica);
+		}
+
+		private int indexOf(int langId) {
+			for (int i = 0; i < langIds.length; i++) {
+				if (langIds[i] == langId) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		public int getReplicaCount() {
+			return langIds.length;
+		}
+
+		public int getLangId(int replica) {
+			return langIds[replica];
+		}
+
+		public ClassDescriptor getDescriptor(int replica) {
+			return descriptors[replica];
+		}
+
+		/**
+		 * @return the descriptor the language registered, or null if it is not a replica
+		 */
+		public ClassDescriptor getDescriptorFor(int langId) {
+			int index = indexOf(langId);
+			return index < 0 ? null : descriptors[index];
+		}
+
+		/**
+		 * @return the replica a placement starts looking at, a different one each time
+		 */
+		public int nextReplica() {
+			return Math.floorMod(nextReplica.getAndIncrement(), langIds.length);
+		}
+	}
+
+	public static class PendingReturn {
+
+		private int returnId;
+		private int callerId;
+		private int callId;
+		private int calleeId; // The language asked to answer
+		private BatchCall batch; // Set when the return answers part of a batch
+		private int[] slots;
+		private long startNanos; // When the call was routed, for the latency metrics
+		private long timeoutNanos;
+		private volatile long deadlineNanos;
+		private volatile boolean streaming; // Set once the first chunk of a streamed result passes
+		private ResultCache cache; // Where the return is kept for later calls, if the method is cacheable
+		private Object cacheKey;
+		private volatile int calleeStreamId; // The callee's own id for a streamed result, if it is a peer core
+		private AtomicBoolean windowed = new AtomicBoolean(); // Set while the call counts against its caller's window
+
+		public PendingReturn(int callerId, int callId, int calleeId, long deadlineNanos) {
+			this.callerId = callerId;
+			this.callId = callId;
+			this.calleeId = calleeId;
+			this.deadlineNanos = deadlineNanos;
+			startNanos = System.nanoTime();
+			timeoutNanos = deadlineNanos == 0 ? 0 : deadlineNanos - startNanos;
+		}
+
+		public PendingReturn(BatchCall batch, int[] slots, int calleeId, long deadlineNanos) {
+			this(batch.getCallerId(), batch.getCallId(), calleeId, deadlineNanos);
+			this.batch = batch;
+			this.slots = slots;
+		}
+
+		/**
+		 * Pushes the deadline back by the call's timeout, for a stream that is still moving
+		 */
+		public void renew() {
+			if (timeoutNanos != 0) {
+				deadlineNanos = System.nanoTime() + timeoutNanos;
+			}
+		}
+
+		public int getReturnId() {
+			return returnId;
+		}
+
+		public int getCallerId() {
+			return callerId;
+		}
+
+		public int getCallId() {
+			return callId;
+		}
+
+		public int getCalleeId() {
+			return calleeId;
+		}
+
+		public BatchCall getBatch() {
+			return batch;
+		}
+
+		public int[] getSlots() {
+			return slots;
+		}
+
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+		public ResultCache getCache() {
+			return cache;
+		}
+
+		public Object getCacheKey() {
+			return cacheKey;
+		}
+
+		/**
+		 * Keeps the return in the cache under the key once it arrives
+		 */
+		public void setCache(ResultCache cache, Object cacheKey) {
+			this.cache = cache;
+			this.cacheKey = cacheKey;
+		}
+
+		/**
+		 * @return the id credit for a streamed result is sent to the callee with
+		 */
+		public int getCalleeStreamId() {
+			return calleeStreamId == 0 ? returnId : calleeStreamId;
+		}
+
+		public void setCalleeStreamId(int calleeStreamId) {
+			this.calleeStreamId = calleeStreamId;
+		}
+
+		public boolean isStreaming() {
+			return streaming;
+		}
+
+		public void setStreaming(boolean streaming) {
+			this.streaming = streaming;
+		}
+	}
+
+	public static class RemoteObject {
+
+		private String varName;
+		private int langId;
+		private String className;
+		private int creatorId;
+		private long leaseNanos;
+		private volatile long leaseDeadline; // Pushed back on every use
+		private volatile boolean released = false; // Set once the object leaves the registry
+
+		public RemoteObject(String varName, int langId, String className, int creatorId, long leaseNanos) {
+			this.varName = varName;
+			this.langId = langId;
+			this.className = className;
+			this.creatorId = creatorId;
+			this.leaseNanos = leaseNanos;
+			renew();
+		}
+
+		public void renew() {
+			if (leaseNanos != 0) {
+				leaseDeadline = System.nanoTime() + leaseNanos;
+			}
+		}
+
+		public String getVarName() {
+			return varName;
+		}
+
+		public int getCreatorId() {
+			return creatorId;
+		}
+
+		public int getLangId() {
+			return langId;
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		/**
+		 * @return how long the object lives without being used, or 0 until released
+		 */
+		public long getLeaseNanos() {
+			return leaseNanos;
+		}
+
+		/**
+		 * @return whether the object was released, expired, replaced or lost with its language
+		 */
+		public boolean isReleased() {
+			return released;
+		}
+	}
+
+}
@@ -0,0 +1,358 @@
+package languageServer;
+
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import languageCommon.Log;
+import languageServer.Registry.RegisteredClass;
+import languageServer.Registry.RemoteObject;
+
+/**
+ * Keeps the classes, objects and sessions of the core's own languages on disk, so a
+ * core that restarts can hand them back to the languages that resume their sessions.
+ * Links to other cores are left out, since they are dialed again from scratch.
+ *
+ * The state is a snapshot file and a journal beside it, both a line of JSON per entry.
+ * Every change is appended to the journal in memory and written out when the core
+ * flushes it, every tenth of a second, so routing never waits on the disk. Once the
+ * journal outgrows the snapshot, the whole state is written as a new snapshot and the
+ * journal starts over. Replaying an entry twice leaves the same state, so entries
+ * appended while a snapshot is taken are at worst repeated.
+ */
+public class RegistryJournal {
+
+	private static final int MIN_COMPACT = 1024; // Journal entries that never trigger a snapshot on their own
+
+	private Path snapshot;
+	private Path journal;
+	private Registry registry;
+	private Map<String, Integer> sessions; // The server's sessions, by token
+	private IntPredicate persisted; // Whether a language's state is kept
+
+	private Writer out; // Appends to the journal, guarded by this. Null once writing failed.
+	private int entries; // Written to the journal since the last snapshot
+	private int snapshotEntries; // Written to the last snapshot
+
+	/**
+	 * @param file      the snapshot's path. The journal is the same path with .journal appended.
+	 * @param persisted whether to keep the state of a language, by id
+	 */
+	public RegistryJournal(String file, Registry registry, Map<String, Integer> sessions, IntPredicate persisted) {
+		this.snapshot = Paths.get(file);
+		this.journal = Paths.get(file + ".journal");
+		this.registry = registry;
+		this.sessions = sessions;
+		this.persisted = persisted;
+	}
+
+	/**
+	 * Reads the snapshot and replays the journal into the registry and the sessions,
+	 * then folds both into a new snapshot and opens an empty journal. Must be called
+	 * before the journal is given to the registry, or the restore would be journaled.
+	 *
+	 * @return the ids of the languages that had state, which may resume
+	 */
+	public synchronized int[] restore() throws IOException {
+		Map<Integer, Map<String, JSONObject>> classes = new LinkedHashMap<>();
+		Map<String, JSONObject> objects = new LinkedHashMap<>();
+		int count = replay(snapshot, classes, objects) + replay(journal, classes, objects);
+
+		for (Map.Entry<Integer, Map<String, JSONObject>> entry : classes.entrySet()) {
+			for (JSONObject classData : entry.getValue().values()) {
+				registry.registerClass(entry.getKey(), new ClassDescriptor(classData));
+			}
+		}
+		for (JSONObject object : objects.values()) {
+			registry.registerObject((String) object.get("varName"), toInt(object.get("lang")),
+					(String) object.get("name"), toInt(object.get("creator")),
+					TimeUnit.MILLISECONDS.toNanos(toLong(object.get("lease"))));
+		}
+
+		Set<Integer> langIds = new TreeSet<>(classes.keySet());
+		langIds.addAll(sessions.values());
+		for (JSONObject object : objects.values()) {
+			langIds.add(toInt(object.get("lang")));
+			langIds.add(toInt(object.get("creator")));
+		}
+		if (count > 0) {
+			Log.info("Restored " + classes.size() + " languages' classes, " + objects.size() + " objects and "
+					+ sessions.size() + " sessions from ", snapshot);
+		}
+		compact();
+		return langIds.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * @return the entries read, none if the file does not exist
+	 */
+	private int replay(Path file, Map<Integer, Map<String, JSONObject>> classes, Map<String, JSONObject> objects)
+			throws IOException {
+		if (!Files.exists(file)) {
+			return 0;
+		}
+		JSONParser parser = new JSONParser();
+		int count = 0;
+		try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				JSONObject entry;
+				try {
+					entry = (JSONObject) parser.parse(line);
+				} catch (ParseException | ClassCastException e) {
+					// Only the last line can be torn, by a core that stopped while writing it
+					Log.warn("Skipped a damaged entry in " + file + ": ", line);
+					continue;
+				}
+				apply(entry, classes, objects);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private void apply(JSONObject entry, Map<Integer, Map<String, JSONObject>> classes, Map<String, JSONObject> objects) {
+		int langId = toInt(entry.get("lang"));
+		switch (String.valueOf(entry.get("op"))) {
+		case "session":
+			sessions.put((String) entry.get("session"), langId);
+			break;
+		case "class": {
+			JSONObject classData = (JSONObject) entry.get("class");
+			classes.computeIfAbsent(langId, k -> new LinkedHashMap<>()).put((String) classData.get("name"), classData);
+			break;
+		}
+		case "withdraw": {
+			Map<String, JSONObject> registered = classes.get(langId);
+			if (registered != null) {
+				registered.remove(entry.get("name"));
+			}
+			break;
+		}
+		case "object":
+			objects.put((String) entry.get("varName"), entry);
+			break;
+		case "release":
+			objects.remove(entry.get("varName"));
+			break;
+		case "drop":
+			classes.remove(langId);
+			sessions.values().removeIf(id -> id == langId);
+			for (Iterator<JSONObject> it = objects.values().iterator(); it.hasNext();) {
+				JSONObject object = it.next();
+				if (toInt(object.get("lang")) == langId || toInt(object.get("creator")) == langId) {
+					it.remove();
+				}
+			}
+			break;
+		default:
+			Log.warn("Unknown journal entry: ", entry);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public void sessionStarted(int langId, String session) {
+		if (!persisted.test(langId)) {
+			return;
+		}
+		JSONObject entry = entry("session", langId);
+		entry.put("session", session);
+		append(entry);
+	}
+
+	@SuppressWarnings("unchecked")
+	public void classRegistered(int langId, JSONObject classData) {
+		if (!persisted.test(langId)) {
+			return;
+		}
+		JSONObject entry = entry("class", langId);
+		entry.put("class", classData);
+		append(entry);
+	}
+
+	@SuppressWarnings("unchecked")
+	public void classWithdrawn(int langId, String className) {
+		if (!persisted.test(langId)) {
+			return;
+		}
+		JSONObject entry = entry("withdraw", langId);
+		entry.put("name", className);
+		append(entry);
+	}
+
+	/**
+	 * Records an object, unless it was already released. Checking under the journal's
+	 * lock keeps a release that raced ahead of its create from being undone on replay.
+	 */
+	public synchronized void objectRegistered(RemoteObject object) {
+		if (!object.isReleased() && persisted.test(object.getLangId())) {
+			append(objectEntry(object));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public void objectReleased(RemoteObject object) {
+		if (!persisted.test(object.getLangId())) {
+			return;
+		}
+		JSONObject entry = entry("release", object.getLangId());
+		entry.put("varName", object.getVarName());
+		append(entry);
+	}
+
+	/**
+	 * Forgets everything the language held, and its session
+	 */
+	public void languageDropped(int langId) {
+		if (persisted.test(langId)) {
+			append(entry("drop", langId));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject entry(String op, int langId) {
+		JSONObject entry = new JSONObject();
+		entry.put("op", op);
+		entry.put("lang", langId);
+		return entry;
+	}
+
+	@SuppressWarnings("unchecked")
+	private JSONObject objectEntry(RemoteObject object) {
+		JSONObject entry = entry("object", object.getLangId());
+		entry.put("varName", object.getVarName());
+		entry.put("name", object.getClassName());
+		entry.put("creator", object.getCreatorId());
+		entry.put("lease", TimeUnit.NANOSECONDS.toMillis(object.getLeaseNanos()));
+		return entry;
+	}
+
+	private synchronized void append(JSONObject entry) {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.write(entry.toJSONString());
+			out.write('\n');
+			entries++;
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Writes out what was appended, and takes a new snapshot once the journal has
+	 * outgrown the last one
+	 */
+	public synchronized void flush() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.flush();
+			if (entries > Math.max(MIN_COMPACT, snapshotEntries)) {
+				compact();
+			}
+		} catch (IOException e) {
+			failed(e);
+		}
+	}
+
+	/**
+	 * Writes the current state to a new snapshot, which replaces the old one at once,
+	 * and starts the journal over
+	 */
+	@SuppressWarnings("unchecked")
+	private synchronized void compact() throws IOException {
+		Path next = Paths.get(snapshot + ".tmp");
+		int written = 0;
+		try (BufferedWriter writer = Files.newBufferedWriter(next, StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, Integer> session : sessions.entrySet()) {
+				if (persisted.test(session.getValue())) {
+					JSONObject entry = entry("session", session.getValue());
+					entry.put("session", session.getKey());
+					written += writeLine(writer, entry);
+				}
+			}
+			for (RegisteredClass registered : registry.getClasses().values()) {
+				for (int i = 0; i < registered.getReplicaCount(); i++) {
+					if (persisted.test(registered.getLangId(i))) {
+						JSONObject entry = entry("class", registered.getLangId(i));
+						entry.put("class", registered.getDescriptor(i).getClassData());
+						written += writeLine(writer, entry);
+					}
+				}
+			}
+			for (RemoteObject object : registry.getObjects()) {
+				if (!object.isReleased() && persisted.test(object.getLangId())) {
+					written += writeLine(writer, objectEntry(object));
+				}
+			}
+		}
+		Files.move(next, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		if (out != null) {
+			out.close();
+		}
+		out = Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		entries = 0;
+		snapshotEntries = written;
+	}
+
+	private static int writeLine(Writer writer, JSONObject entry) throws IOException {
+		writer.write(entry.toJSONString());
+		writer.write('\n');
+		return 1;
+	}
+
+	private void failed(IOException e) {
+		Log.error("Could not write " + journal + ", the registry is no longer kept on disk", e);
+		try {
+			out.close();
+		} catch (IOException ignored) {
+		}
+		out = null;
+	}
+
+	public synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				Log.error("Could not close " + journal, e);
+			}
+			out = null;
+		}
+	}
+
+	private static int toInt(Object value) {
+		return value == null ? 0 : Integer.parseInt(value.toString());
+	}
+
+	private static long toLong(Object value) {
+		return value == null ? 0 : Long.parseLong(value.toString());
+	}
+
+}
@@ -0,0 +1,150 @@
+package languageServer;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+
+import languageServer.Registry.RemoteObject;
+
+/**
+ * Results of one method registered as cacheable, by the object and the arguments it
+ * was called with, so repeated calls are answered without a round trip to the
+ * language that owns it. Entries live for the method's TTL and the least recently
+ * used is evicted once the cache is full. Registering the class again, or the
+ * owning language disconnecting, drops its descriptor and the caches with it.
+ */
+public class ResultCache {
+
+	private long ttlNanos;
+	private int maxSize;
+	private LinkedHashMap<Key, CachedResult> entries; // In access order, so the eldest is the least recently used
+
+	private LongAdder hits;
+	private LongAdder misses;
+
+	public ResultCache(long ttlMillis, int maxSize) {
+		ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.maxSize = maxSize;
+		entries = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+				return size() > ResultCache.this.maxSize;
+			}
+		};
+		hits = new LongAdder();
+		misses = new LongAdder();
+	}
+
+	/**
+	 * @param cacheData the method's "cache" registration entry, {"ttl":millis,"size":entries}
+	 * @return the cache, or null if the method is not cacheable
+	 */
+	public static ResultCache from(JSONObject cacheData) {
+		if (cacheData == null) {
+			return null;
+		}
+		long ttl = Long.parseLong(cacheData.get("ttl").toString());
+		Object size = cacheData.get("size");
+		int maxSize = size == null ? 1024 : Integer.parseInt(size.toString());
+		return ttl > 0 && maxSize > 0 ? new ResultCache(ttl, maxSize) : null;
+	}
+
+	/**
+	 * @param args the call's arguments as JSON text
+	 * @return the key results of this call are cached under
+	 */
+	public static Object key(RemoteObject object, String args) {
+		return new Key(object, args);
+	}
+
+	/**
+	 * @return the cached result, or null on a miss
+	 */
+	public synchronized CachedResult get(Object key) {
+		CachedResult entry = entries.get(key);
+		if (entry != null && System.nanoTime() - entry.expiresNanos >= 0) {
+			entries.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return entry;
+	}
+
+	public synchronized void put(Object key, Object value, String type) {
+		entries.put((Key) key, new CachedResult(value, type, System.nanoTime() + ttlNanos));
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * A call's object and arguments. The object is compared by identity, so a new object
+	 * under a released name never sees the old one's results.
+	 */
+	private static class Key {
+
+		private RemoteObject object;
+		private String args;
+
+		public Key(RemoteObject object, String args) {
+			this.object = object;
+			this.args = args;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return object == other.object && args.equals(other.args);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(object) + args.hashCode();
+		}
+	}
+
+	public static class CachedResult {
+
+		private Object value; // Text, or a Packed array from a binary frame
+		private String type;
+		private long expiresNanos;
+
+		public CachedResult(Object value, String type, long expiresNanos) {
+			this.value = value;
+			this.type = type;
+			this.expiresNanos = expiresNanos;
+		}
+
+		public Object getValue() {
+			return value;
+		}
+
+		public String getType() {
+			return type;
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package languageServer;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import languageCommon.Log;
+
+/**
+ * Serves one language over a plain socket from a thread of its own, for servers
+ * that do not use event loops.
+ */
+public class SocketTransport implements Transport, Runnable {
+
+	private Socket socket;
+	private LanguageHandler handler;
+	private volatile boolean shouldRun = true;
+
+	private LinkedBlockingQueue<byte[]> outgoing; // Synchronizes outgoing messages, already encoded
+	private byte[] line = new byte[256]; // Reused for every text line read
+
+	public SocketTransport(Socket socket, LanguageHandler handler) {
+		this.socket = socket;
+		this.handler = handler;
+		outgoing = new LinkedBlockingQueue<>();
+	}
+
+	@Override
+	public void run() {
+		try (OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+			while (shouldRun) {
+				if (in.available() > 0) {
+					if (handler.isBinary()) {
+						byte[] frame = new byte[in.readInt()];
+						in.readFully(frame);
+						handler.getMetrics().bytesIn(4 + frame.length);
+						handler.handleFrame(frame, 0, frame.length);
+					} else {
+						handler.handleInput(readLine(in));
+					}
+				}
+				if (!outgoing.isEmpty()) {
+					out.write(outgoing.take());
+					out.flush();
+				}
+
+			}
+		} catch (IOException e) {
+			// A peer resetting or dropping the connection is an ordinary disconnect
+			Log.info("Lost connection to language " + handler.getId() + ": ", e.getMessage());
+		} catch (InterruptedException e) {
+			Log.error("Interrupted while writing to language " + handler.getId(), e);
+		} finally {
+			handler.closed();
+		}
+	}
+
+	private String readLine(DataInputStream in) throws IOException {
+		int length = 0;
+		int b;
+		while ((b = in.read()) != -1 && b != '\n') {
+			if (length == line.length) {
+				line = Arrays.copyOf(line, length * 2);
+			}
+			line[length++] = (byte) b;
+		}
+		handler.getMetrics().bytesIn(length + 1);
+		if (length > 0 && line[length - 1] == '\r') {
+			length--;
+		}
+		return new String(line, 0, length, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void send(byte[] frame) {
+		outgoing.add(frame);
+	}
+
+	@Override
+	public int getQueueSize() {
+		return outgoing.size();
+	}
+
+	@Override
+	public void close() {
+		shouldRun = false;
+	}
+
+}
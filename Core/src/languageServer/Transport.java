@@ -0,0 +1,44 @@
+package languageServer;
+
+
+/**
+ * Carries the core's messages to one language. The {@link LanguageHandler} encodes
+ * messages as text lines or binary frames for stream transports, and hands a direct
+ * transport the message objects as they are. Whatever the transport reads from the
+ * language goes back to the handler.
+ */
+public interface Transport {
+
+	/**
+	 * Queues an encoded frame for the language without blocking
+	 */
+	void send(byte[] frame);
+
+	/**
+	 * @return whether the transport takes message objects instead of encoded frames
+	 */
+	default boolean isDirect() {
+		return false;
+	}
+
+	/**
+	 * @param message the operation's ordinal, the call id, and the body the text
+	 *                protocol carries as a JSON object, array or string
+	 */
+	default void send(Object[] message) {
+		throw new UnsupportedOperationException("Transport only carries encoded frames");
+	}
+
+	/**
+	 * @return messages queued but not yet written
+	 */
+	default int getQueueSize() {
+		return 0;
+	}
+
+	/**
+	 * Closes the connection. The handler is told once it is gone.
+	 */
+	void close();
+
+}
@@ -0,0 +1,171 @@
+package languageServer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+import languageServer.ClassDescriptor.Overload;
+import languageServer.Registry.RemoteObject;
+
+public class ClassDescriptorTest {
+
+	@SuppressWarnings("unchecked")
+	private static JSONArray array(Object... values) {
+		JSONArray array = new JSONArray();
+		for (Object value : values) {
+			array.add(value);
+		}
+		return array;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject method(String name, String returnType, String... parameters) {
+		JSONObject method = new JSONObject();
+		method.put("name", name);
+		method.put("parameters", array((Object[]) parameters));
+		method.put("return", returnType);
+		return method;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject classData(String name, JSONArray constructors, JSONObject... methods) {
+		JSONObject classData = new JSONObject();
+		classData.put("name", name);
+		classData.put("methods", array((Object[]) methods));
+		classData.put("constructors", constructors);
+		return classData;
+	}
+
+	/**
+	 * @return arguments as a language sends them, {value:type} for each
+	 */
+	@SuppressWarnings("unchecked")
+	private static JSONArray args(String... types) {
+		JSONArray args = new JSONArray();
+		for (int i = 0; i < types.length; i++) {
+			JSONObject arg = new JSONObject();
+			arg.put(Integer.toString(i), types[i]);
+			args.add(arg);
+		}
+		return args;
+	}
+
+	private static ClassDescriptor calc() {
+		return new ClassDescriptor(classData("Calc", array(array(), array("int")),
+				method("add", "int", "int", "int"),
+				method("add", "string", "string", "string"),
+				method("add", "any", "any"),
+				method("reset", "void")));
+	}
+
+	@Test
+	public void resolvesByNameArityAndType() {
+		ClassDescriptor calc = calc();
+		assertEquals("int", calc.resolveMethod("add", args("int", "int"), true).getReturnType());
+		assertEquals("string", calc.resolveMethod("add", args("string", "string"), true).getReturnType());
+		assertEquals("any", calc.resolveMethod("add", args("double"), true).getReturnType());
+		assertNull(calc.resolveMethod("add", args("int", "string"), true));
+		assertNull(calc.resolveMethod("missing", args(), true));
+		assertEquals(0, calc.resolveConstructor(args(), true).getParameters().length);
+		assertEquals(1, calc.resolveConstructor(args("int"), true).getParameters().length);
+		assertNull(calc.resolveConstructor(args("string"), true));
+		assertEquals(3, calc.getResolutionFailures());
+	}
+
+	@Test
+	public void cachesEachSignature() {
+		ClassDescriptor calc = calc();
+		Overload first = calc.resolveMethod("add", args("int", "int"), true);
+		assertSame(first, calc.resolveMethod("add", args("int", "int"), true));
+		assertSame(first, calc.resolveMethod("add", new String[] { "int", "int" }, true));
+		// A failed resolution is not cached, and counts every time
+		assertNull(calc.resolveMethod("add", args("int", "string"), true));
+		assertNull(calc.resolveMethod("add", args("int", "string"), true));
+		assertEquals(2, calc.getResolutionFailures());
+	}
+
+	@Test
+	public void strictAndLooseResultsAreCachedApart() {
+		ClassDescriptor calc = calc();
+		// Loose matching takes the first overload of the arity, which strict matching must not see
+		assertEquals("int", calc.resolveMethod("add", args("string", "int"), false).getReturnType());
+		assertNull(calc.resolveMethod("add", args("string", "int"), true));
+		assertEquals("string", calc.resolveMethod("add", args("string", "string"), true).getReturnType());
+		assertEquals("int", calc.resolveMethod("add", args("string", "string"), false).getReturnType());
+	}
+
+	@Test
+	public void aFullCacheStartsOverAndStillResolves() {
+		ClassDescriptor calc = calc();
+		Overload any = calc.resolveMethod("add", args("t0"), true);
+		for (int i = 1; i < 10000; i++) {
+			assertSame(any, calc.resolveMethod("add", args("t" + i), true));
+		}
+		assertSame(any, calc.resolveMethod("add", args("t0"), true));
+		assertEquals(0, calc.getResolutionFailures());
+	}
+
+	@Test
+	public void registeringAgainReplacesTheCache() {
+		Registry registry = new Registry();
+		registry.registerClass(1, calc());
+		ClassDescriptor before = registry.getClass("Calc").getDescriptorFor(1);
+		Overload add = before.resolveMethod("add", args("int", "int"), true);
+		int generation = registry.getClassGeneration();
+
+		// The class now returns a long from add(int,int) and lost add(any)
+		registry.registerClass(1, new ClassDescriptor(classData("Calc", array(array()),
+				method("add", "long", "int", "int"))));
+		ClassDescriptor after = registry.getClass("Calc").getDescriptorFor(1);
+		assertNotSame(before, after);
+		assertEquals(1, registry.getClass("Calc").getReplicaCount());
+		assertEquals(generation + 1, registry.getClassGeneration());
+		Overload replaced = after.resolveMethod("add", args("int", "int"), true);
+		assertNotSame(add, replaced);
+		assertEquals("long", replaced.getReturnType());
+		assertNull(after.resolveMethod("add", args("double"), true));
+		assertNull(after.resolveConstructor(args("int"), true));
+	}
+
+	@Test
+	public void eachReplicaResolvesWithItsOwnDescriptor() {
+		Registry registry = new Registry();
+		registry.registerClass(1, calc());
+		registry.registerClass(2, new ClassDescriptor(classData("Calc", array(array()), method("add", "long", "int", "int"))));
+		assertEquals("int", registry.getClass("Calc").getDescriptorFor(1).resolveMethod("add", args("int", "int"), true)
+				.getReturnType());
+		assertEquals("long", registry.getClass("Calc").getDescriptorFor(2).resolveMethod("add", args("int", "int"), true)
+				.getReturnType());
+		registry.removeReplica("Calc", 2);
+		assertNull(registry.getClass("Calc").getDescriptorFor(2));
+		assertNotNull(registry.getClass("Calc").getDescriptorFor(1));
+	}
+
+	@Test
+	public void preparedCallsResolveAgainAfterARegistrationOrRelease() {
+		Registry registry = new Registry();
+		registry.registerClass(1, calc());
+		registry.registerObject("c", 1, "Calc", 2, 0);
+		RemoteObject object = registry.getObject("c");
+		PreparedCall call = new PreparedCall("c", "add", new String[] { "int", "int" });
+		Overload add = registry.getClass("Calc").getDescriptorFor(1).resolveMethod("add", call.getTypes(), true);
+		call.bind(object, add, registry.getClassGeneration());
+		assertSame(add, call.getBinding(registry.getClassGeneration()).getMethod());
+
+		registry.registerClass(3, new ClassDescriptor(classData("Other", array(array()))));
+		assertNull("Any registration may change resolution", call.getBinding(registry.getClassGeneration()));
+
+		call.bind(object, add, registry.getClassGeneration());
+		assertNotNull(call.getBinding(registry.getClassGeneration()));
+		registry.removeObject(object);
+		assertNull("A released object is looked up again", call.getBinding(registry.getClassGeneration()));
+	}
+
+}
@@ -0,0 +1,151 @@
+package languageServer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import languageCommon.FrameEncoder;
+import languageCommon.LanguageOperations;
+
+/**
+ * Languages that send what the core cannot handle, on a loop shared with one that behaves
+ */
+public class EventLoopTest {
+
+	private LanguageServer server;
+
+	@Before
+	public void start() throws IOException {
+		server = new LanguageServer();
+		try (ServerSocket socket = new ServerSocket(0)) {
+			server.setPort(socket.getLocalPort());
+		}
+		server.setUseSelector(true);
+		server.setSharedMemory(false);
+		Thread t = new Thread(server::run, "Core");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@After
+	public void stop() {
+		server.stop();
+	}
+
+	/**
+	 * A language speaking the text protocol over a plain socket
+	 */
+	private class Language implements AutoCloseable {
+
+		private Socket socket;
+		private OutputStream out;
+		private BufferedReader in;
+
+		Language() throws IOException, InterruptedException {
+			long deadline = System.currentTimeMillis() + 10000;
+			while (socket == null) {
+				try {
+					socket = new Socket("localhost", server.getPort());
+				} catch (IOException e) {
+					if (System.currentTimeMillis() > deadline) {
+						throw e;
+					}
+					Thread.sleep(20);
+				}
+			}
+			socket.setSoTimeout(10000);
+			out = socket.getOutputStream();
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		}
+
+		String send(String line) throws IOException {
+			out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			return in.readLine();
+		}
+
+		/**
+		 * Sends a binary frame, once binary was agreed on
+		 *
+		 * @param frame the frame with its length prefix
+		 * @return the operation of the frame the core answers with
+		 */
+		LanguageOperations sendFrame(byte[] frame) throws IOException {
+			out.write(frame);
+			out.flush();
+			// Nothing follows the Init reply until this frame is answered, so the reader holds nothing more
+			DataInputStream frames = new DataInputStream(socket.getInputStream());
+			byte[] reply = new byte[frames.readInt()];
+			frames.readFully(reply);
+			return LanguageOperations.values()[reply[0]];
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	/**
+	 * @return the bytes with a length prefix
+	 */
+	private static byte[] frame(int... body) {
+		ByteBuffer frame = ByteBuffer.allocate(4 + body.length).putInt(body.length);
+		for (int b : body) {
+			frame.put((byte) b);
+		}
+		return frame.array();
+	}
+
+	@Test
+	public void initWithoutStrictTypesIsAnswered() throws Exception {
+		try (Language language = new Language()) {
+			String reply = language.send("00002{\"window\":10}");
+			assertTrue(reply, reply.startsWith("00002"));
+		}
+	}
+
+	@Test
+	public void aFrameThatFailsOnlyAnswersItsSender() throws Exception {
+		try (Language healthy = new Language(); Language broken = new Language()) {
+			assertTrue(healthy.send("00002{\"strictTypes\":true,\"window\":10}").startsWith("00002"));
+			String reply = broken.send("00002{\"window\":\"many\"}");
+			assertTrue(reply, reply.startsWith("00001"));
+
+			// Both are still served by the loop
+			assertTrue(healthy.send("00002{\"strictTypes\":true,\"window\":10}").startsWith("00002"));
+			assertTrue(broken.send("00002{\"strictTypes\":true,\"window\":10}").startsWith("00002"));
+		}
+	}
+
+	@Test
+	public void malformedBinaryFramesAreAnsweredWithAnError() throws Exception {
+		try (Language language = new Language()) {
+			String reply = language.send("00002{\"strictTypes\":true,\"window\":10,\"protocols\":[\"binary\",\"text\"]}");
+			assertTrue(reply, reply.contains("\"binary\""));
+
+			// No call id after the operation
+			assertEquals(LanguageOperations.Error, language.sendFrame(frame(LanguageOperations.CallMethod.ordinal())));
+			// A call id whose varint runs past the end
+			assertEquals(LanguageOperations.Error, language.sendFrame(frame(LanguageOperations.CallMethod.ordinal(), 0x85)));
+			// A string claiming nearly 2 GB, which must not overflow the bounds check
+			assertEquals(LanguageOperations.Error, language.sendFrame(new FrameEncoder(LanguageOperations.RegisterClass, 0)
+					.writeVarint(Integer.MAX_VALUE - 1).writeByte('x').toByteArray()));
+		}
+	}
+
+}
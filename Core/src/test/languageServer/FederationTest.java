@@ -0,0 +1,314 @@
+package languageServer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import languageCommon.LanguageOperations;
+import languageServer.Registry.RemoteObject;
+
+/**
+ * Two cores linked through a proxy the test can cut, with a language in each core's
+ * JVM: the owner on core B serves Counter, and the caller on core A uses it
+ */
+public class FederationTest {
+
+	private static final long SESSION_TIMEOUT = 60000; // Far longer than any outage the tests resume from
+
+	private LanguageServer a;
+	private LanguageServer b;
+	private Proxy proxy;
+	private Consumer<Object[]> caller;
+	private Consumer<Object[]> owner;
+	private BlockingQueue<Object[]> toOwner = new LinkedBlockingQueue<>();
+
+	@Before
+	public void link() throws Exception {
+		a = start("a", null);
+		proxy = new Proxy(a.getPort());
+		b = start("b", "localhost:" + proxy.getPort());
+		caller = a.connectInProcess(message -> {
+		});
+		owner = b.connectInProcess(toOwner::add);
+		owner.accept(message(LanguageOperations.RegisterClass, classData()));
+		await("the class to reach core a", () -> a.getRegistry().getClass("Counter") != null);
+
+		caller.accept(message(LanguageOperations.CreateObject, create("c")));
+		assertEquals("c", ((JSONObject) next(LanguageOperations.CreateObject)[2]).get("varName"));
+	}
+
+	@After
+	public void stop() throws IOException {
+		if (proxy != null) {
+			proxy.close();
+		}
+		for (LanguageServer server : new LanguageServer[] { a, b }) {
+			if (server != null) {
+				server.stop();
+				server.getFederation().stop();
+			}
+		}
+	}
+
+	private static LanguageServer start(String node, String peers) throws IOException {
+		LanguageServer server = new LanguageServer();
+		server.setPort(freePort());
+		server.setUseSelector(true);
+		server.setSharedMemory(false);
+		server.setSessionTimeout(SESSION_TIMEOUT);
+		server.setPeers(peers);
+		server.getFederation().setNodeId(node);
+		Thread t = new Thread(server::run, "Core-" + node);
+		t.setDaemon(true);
+		t.start();
+		return server;
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+	private static Object[] message(LanguageOperations op, JSONObject body) {
+		return new Object[] { op.ordinal(), 0, body };
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject classData() {
+		JSONArray constructors = new JSONArray();
+		constructors.add(new JSONArray());
+		JSONObject classData = new JSONObject();
+		classData.put("name", "Counter");
+		classData.put("methods", RegistryTest.descriptor("Counter").getClassData().get("methods"));
+		classData.put("constructors", constructors);
+		return classData;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject create(String varName) {
+		JSONObject objData = new JSONObject();
+		objData.put("name", "Counter");
+		objData.put("varName", varName);
+		objData.put("arguments", new JSONArray());
+		return objData;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject call(String varName, int callId) {
+		JSONObject arg = new JSONObject();
+		arg.put("1", "int");
+		JSONArray args = new JSONArray();
+		args.add(arg);
+		JSONObject methodData = new JSONObject();
+		methodData.put("varName", varName);
+		methodData.put("name", "add");
+		methodData.put("arguments", args);
+		methodData.put("callID", callId);
+		return methodData;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static JSONObject release(String varName) {
+		JSONObject objData = new JSONObject();
+		objData.put("varName", varName);
+		return objData;
+	}
+
+	/**
+	 * @return the next message for the owner, which must be the given operation
+	 */
+	private Object[] next(LanguageOperations op) throws InterruptedException {
+		Object[] message = toOwner.poll(10, TimeUnit.SECONDS);
+		assertNotNull("The owner got no " + op, message);
+		assertEquals(message[2].toString(), op.ordinal(), message[0]);
+		return message;
+	}
+
+	private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+		while (!condition.getAsBoolean()) {
+			if (System.nanoTime() > deadline) {
+				fail("Timed out waiting for " + what);
+			}
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * Cuts the link until both cores have suspended it
+	 */
+	private void cut() throws InterruptedException {
+		proxy.cut();
+		await("core b to see the link drop", () -> b.getFederation().getLinkCount() == 0);
+		await("core a to see the link drop", () -> a.getFederation().getLinkCount() == 0);
+	}
+
+	/**
+	 * Cuts the link, and lets core b dial again once both cores noticed
+	 */
+	private void outage() throws InterruptedException {
+		int linked = b.getRegistry().getObject("c").getCreatorId();
+		cut();
+		proxy.restore();
+		await("the link to come back", () -> a.getFederation().getLinkCount() == 1 && b.getFederation().getLinkCount() == 1);
+		RemoteObject c = b.getRegistry().getObject("c");
+		if (c != null) {
+			assertEquals("The new link took over the old one's id", linked, c.getCreatorId());
+		}
+	}
+
+	@Test
+	public void objectsOutliveABriefOutage() throws InterruptedException {
+		outage();
+		assertNull("The owner was told to release nothing", toOwner.poll(200, TimeUnit.MILLISECONDS));
+		assertNotNull(a.getRegistry().getObject("c"));
+
+		caller.accept(message(LanguageOperations.CallMethod, call("c", 1)));
+		JSONObject routed = (JSONObject) next(LanguageOperations.CallMethod)[2];
+		assertEquals("c", routed.get("varName"));
+	}
+
+	@Test
+	public void releasesMissedDuringAnOutageArriveAfterIt() throws InterruptedException {
+		cut();
+		caller.accept(message(LanguageOperations.ReleaseObject, release("c")));
+		assertNull(a.getRegistry().getObject("c"));
+		assertNotNull(b.getRegistry().getObject("c"));
+		proxy.restore();
+
+		assertEquals("c", ((JSONObject) next(LanguageOperations.ReleaseObject)[2]).get("varName"));
+		await("core b to forget the object", () -> b.getRegistry().getObject("c") == null);
+	}
+
+	@Test
+	public void aLinkThatStaysDownIsForgotten() throws InterruptedException {
+		// Expired by hand once both cores suspended the link, rather than by the timer
+		a.setSessionTimeout(1);
+		b.setSessionTimeout(1);
+		cut();
+		a.expireObjects();
+		b.expireObjects();
+		assertEquals("c", ((JSONObject) next(LanguageOperations.ReleaseObject)[2]).get("varName"));
+		assertNull(b.getRegistry().getObject("c"));
+		await("core a to forget the class", () -> a.getRegistry().getClass("Counter") == null);
+		assertNull(a.getRegistry().getObject("c"));
+
+		// Linking again later starts afresh
+		proxy.restore();
+		await("the class to reach core a again", () -> a.getRegistry().getClass("Counter") != null);
+	}
+
+	/**
+	 * Forwards connections to a core, and can drop them all and refuse new ones
+	 */
+	private static class Proxy {
+
+		private ServerSocket server;
+		private int target;
+		private volatile boolean open = true;
+		private List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+		Proxy(int target) throws IOException {
+			this.target = target;
+			server = new ServerSocket(0);
+			Thread t = new Thread(this::accept, "Proxy");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		int getPort() {
+			return server.getLocalPort();
+		}
+
+		private void accept() {
+			while (!server.isClosed()) {
+				try {
+					Socket in = server.accept();
+					if (!open) {
+						in.close();
+						continue;
+					}
+					Socket out = new Socket();
+					try {
+						out.connect(new InetSocketAddress("localhost", target));
+					} catch (IOException e) {
+						// The core is not listening yet, so the dialer has to try again
+						in.close();
+						continue;
+					}
+					sockets.add(in);
+					sockets.add(out);
+					pump(in, out);
+					pump(out, in);
+				} catch (IOException e) {
+					// The proxy closed
+				}
+			}
+		}
+
+		private void pump(Socket from, Socket to) {
+			Thread t = new Thread(() -> {
+				byte[] buffer = new byte[8192];
+				try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+					for (int read; (read = in.read(buffer)) != -1;) {
+						out.write(buffer, 0, read);
+					}
+				} catch (IOException e) {
+					// Cut
+				}
+				closeQuietly(from);
+				closeQuietly(to);
+			}, "Proxy-pump");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		void cut() {
+			open = false;
+			for (Socket socket : sockets) {
+				closeQuietly(socket);
+			}
+			sockets.clear();
+		}
+
+		void restore() {
+			open = true;
+		}
+
+		void close() throws IOException {
+			cut();
+			server.close();
+		}
+
+		private static void closeQuietly(Socket socket) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+}
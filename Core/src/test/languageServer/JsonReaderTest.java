@@ -0,0 +1,174 @@
+package languageServer;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+public class JsonReaderTest {
+
+	private JsonReader reader = new JsonReader();
+
+	/**
+	 * Reads the body both ways, since the reader replaces json-simple and must agree with it
+	 */
+	private JSONObject readBoth(String body) throws ParseException {
+		JSONObject read = reader.readObject("0000600012" + body, 10);
+		assertEquals(body, new JSONParser().parse(body), read);
+		return read;
+	}
+
+	private void assertMalformed(String body) {
+		try {
+			JSONObject read = reader.readObject(body, 0);
+			fail("Read " + body + " as " + read);
+		} catch (ParseException expected) {
+		}
+	}
+
+	@Test
+	public void readsPaddedNumbers() {
+		assertEquals(6, JsonReader.readPadded("00006", 0));
+		assertEquals(99999, JsonReader.readPadded("0000699999{}", 5));
+		assertEquals(-1, JsonReader.readPadded("0000", 0));
+		assertEquals(-1, JsonReader.readPadded("00-01", 0));
+	}
+
+	@Test
+	public void agreesWithJsonSimple() throws ParseException {
+		readBoth("{}");
+		readBoth(" { } ");
+		readBoth("{\"varName\":\"f\",\"name\":\"add\",\"callID\":3}");
+		readBoth("{ \"name\" : \"a\" ,\n\t\"timeout\" : 250 , \"other\" : null }");
+		readBoth("{\"flag\":true,\"off\":false,\"nothing\":null}");
+		readBoth("{\"classes\":[{\"name\":\"A\",\"methods\":[]},{\"name\":\"B\"}],\"deep\":{\"a\":[1,[2,[3,{}]]]}}");
+		readBoth("{\"types\":[\"int\",\"string\",\"int[]\"]}");
+	}
+
+	@Test
+	public void readsNumberEdgeCases() throws ParseException {
+		JSONObject read = readBoth("{\"zero\":0,\"negative\":-42,\"max\":9223372036854775807,\"min\":-9223372036854775808,"
+				+ "\"long\":123456789012345678,\"fraction\":-0.5,\"exponent\":1e3,\"signed\":2.5E-3,\"positive\":1E+2}");
+		assertEquals(0L, read.get("zero"));
+		assertEquals(-42L, read.get("negative"));
+		assertEquals(Long.MAX_VALUE, read.get("max"));
+		assertEquals(Long.MIN_VALUE, read.get("min"));
+		assertEquals(123456789012345678L, read.get("long"));
+		assertEquals(-0.5, read.get("fraction"));
+		assertEquals(1000.0, read.get("exponent"));
+		assertEquals(0.0025, read.get("signed"));
+		assertEquals(100.0, read.get("positive"));
+	}
+
+	@Test
+	public void rejectsMalformedNumbers() {
+		assertMalformed("{\"a\":-}");
+		assertMalformed("{\"a\":+1}");
+		assertMalformed("{\"a\":1-2}");
+		assertMalformed("{\"a\":1.2.3}");
+		assertMalformed("{\"a\":9223372036854775808}");
+		assertMalformed("{\"a\":e}");
+	}
+
+	@Test
+	public void readsEscapes() throws ParseException {
+		JSONObject read = readBoth("{\"name\":\"q\\\"b\\\\s\\/n\\nr\\rt\\tb\\bf\\fu\\u0041\\u00e9\"}");
+		assertEquals("q\"b\\s/n\nr\rt\tb\bf\fuA\u00e9", read.get("name"));
+		read = readBoth("{\"na\\u006de\":\"escaped key\"}");
+		assertEquals("escaped key", read.get("name"));
+	}
+
+	@Test
+	public void readsSurrogatePairs() throws ParseException {
+		JSONObject read = readBoth("{\"escaped\":\"\\ud83d\\ude00\",\"raw\":\"\ud83d\ude00\"}");
+		assertEquals("\ud83d\ude00", read.get("escaped"));
+		assertEquals(read.get("escaped"), read.get("raw"));
+		assertEquals(0x1F600, ((String) read.get("raw")).codePointAt(0));
+	}
+
+	@Test
+	public void knownKeysAreShared() throws ParseException {
+		JSONObject read = reader.readObject("{\"varName\":\"x\",\"arguments\":[]}", 0);
+		for (Object key : read.keySet()) {
+			assertTrue(key == "varName" || key == "arguments");
+		}
+	}
+
+	@Test
+	public void keepsArgumentsAsWritten() throws ParseException {
+		String args = "[ {\"1\":\"int\"},{\"a \\\"quoted\\\" ] string\":\"string\"} ,{\"[1,2]\":\"int[]\"}]";
+		JSONObject read = reader.readObject("{\"arguments\":" + args + ",\"callID\":1}", 0);
+		RawArguments raw = (RawArguments) read.get("arguments");
+		assertEquals(args, raw.toJSONString());
+		assertArrayEquals(new String[] { "int", "string", "int[]" }, raw.getTypes());
+		assertEquals(3, raw.size());
+		assertEquals(1L, read.get("callID"));
+		// Reading the elements parses them then
+		JSONObject second = (JSONObject) raw.get(1);
+		assertEquals("string", second.get("a \"quoted\" ] string"));
+		assertEquals(new JSONParser().parse(args), raw);
+	}
+
+	@Test
+	public void typesAreSharedAcrossFrames() throws ParseException {
+		RawArguments first = (RawArguments) reader.readObject("{\"arguments\":[{\"1\":\"int\"}]}", 0).get("arguments");
+		RawArguments second = (RawArguments) reader.readObject("{\"arguments\":[{\"2\":\"int\"}]}", 0).get("arguments");
+		assertSame(first.getTypes()[0], second.getTypes()[0]);
+	}
+
+	@Test
+	public void readsOtherArraysWithJsonSimple() throws ParseException {
+		JSONObject read = readBoth("{\"values\":[[1,2],[3]],\"arguments\":[{\"1\":\"int\"},5]}");
+		assertTrue(read.get("values") instanceof JSONArray);
+		assertTrue(!(read.get("values") instanceof RawArguments));
+		assertEquals(5L, ((JSONArray) read.get("arguments")).get(1));
+		readBoth("{\"arguments\":[{\"1\":\"int\",\"extra\":\"x\"}]}");
+		readBoth("{\"arguments\":[{\"1\":2}]}");
+		readBoth("{\"arguments\":[[{\"1\":\"int\"}]]}");
+	}
+
+	@Test
+	public void rejectsTruncatedFrames() {
+		String frame = "{\"varName\":\"f\\u0041\",\"arguments\":[{\"1\":\"int\"},{\"x\":\"string\"}],\"deep\":[1,[2,\"]\"]],\"callID\":12,\"ok\":true}";
+		for (int length = 0; length < frame.length(); length++) {
+			assertMalformed(frame.substring(0, length));
+		}
+	}
+
+	@Test
+	public void rejectsMalformedFrames() {
+		assertMalformed("");
+		assertMalformed("[]");
+		assertMalformed("{name:\"a\"}");
+		assertMalformed("{\"a\" 1}");
+		assertMalformed("{\"a\":1,}");
+		assertMalformed("{\"a\":1 \"b\":2}");
+		assertMalformed("{\"a\":tru}");
+		assertMalformed("{\"a\":nul}");
+		assertMalformed("{\"a\":\"\\u00g1\"}");
+		assertMalformed("{\"arguments\":[{\"1\":\"int\"} {\"2\":\"int\"}]}");
+	}
+
+	@Test
+	public void ignoresWhatFollowsTheObject() throws ParseException {
+		JSONObject read = reader.readObject("{\"name\":\"a\"}\r\n", 0);
+		assertEquals("a", read.get("name"));
+		assertNull(read.get("varName"));
+	}
+
+	@Test
+	public void recoversAfterAMalformedFrame() throws ParseException {
+		assertMalformed("{\"name\":\"a\\");
+		assertEquals("b\n", reader.readObject("{\"name\":\"b\\n\"}", 0).get("name"));
+	}
+
+}
@@ -0,0 +1,132 @@
+package languageServer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Test;
+
+import languageCommon.LanguageOperations;
+
+public class JsonWriterTest {
+
+	private static final byte[] LINE_END = { '\n' };
+
+	private static String text(byte[] frame) {
+		return new String(frame, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes the value as a field and reads it back with both the core's reader and json-simple
+	 */
+	private Object roundTrip(Object value) throws ParseException {
+		String line = text(JsonWriter.begin(LanguageOperations.Return, 7).field("returnVal", value).toLine(LINE_END));
+		assertTrue(line.endsWith("\n"));
+		String body = line.substring(10, line.length() - 1);
+		Object read = new JsonReader().readObject(line, 10).get("returnVal");
+		assertEquals(body, ((JSONObject) new JSONParser().parse(body)).get("returnVal"), read);
+		return read;
+	}
+
+	@Test
+	public void writesTheHeader() {
+		String line = text(JsonWriter.begin(LanguageOperations.CallMethod, 42).field("callID", 3).toLine(LINE_END));
+		assertEquals(String.format("%05d%05d{\"callID\":3}\n", LanguageOperations.CallMethod.ordinal(), 42), line);
+		// Ids past the text protocol's 5 digits are only used on the binary protocol, but still written whole
+		line = text(JsonWriter.begin(LanguageOperations.Return, 123456).field("returnVal", "x").toLine(LINE_END));
+		assertTrue(line, line.startsWith("00003123456{"));
+	}
+
+	@Test
+	public void separatesFields() throws ParseException {
+		String line = text(JsonWriter.begin(LanguageOperations.CreateObject, 0).field("name", "Foo").field("lease", -1)
+				.field("varName", "f").toLine(new byte[0]));
+		JSONObject read = new JsonReader().readObject(line, 10);
+		assertEquals("Foo", read.get("name"));
+		assertEquals(-1L, read.get("lease"));
+		assertEquals("f", read.get("varName"));
+		assertEquals(3, read.size());
+	}
+
+	@Test
+	public void escapesStrings() throws ParseException {
+		String tricky = "q\"b\\s/n\nr\rt\tb\bf\f\u0000\u0001\u001f\u007fé end";
+		assertEquals(tricky, roundTrip(tricky));
+		String line = text(JsonWriter.begin(LanguageOperations.Error, 0).field("error", "\u0001\"").toLine(LINE_END));
+		assertTrue(line, line.contains("\"\\u0001\\\"\""));
+	}
+
+	@Test
+	public void writesSurrogatePairsAsUtf8() throws ParseException {
+		String emoji = "a\ud83d\ude00b";
+		assertEquals(emoji, roundTrip(emoji));
+		byte[] frame = JsonWriter.begin(LanguageOperations.Return, 1).field("returnVal", emoji).toLine(LINE_END);
+		byte[] utf8 = emoji.getBytes(StandardCharsets.UTF_8);
+		assertEquals(4 + 2, utf8.length);
+		assertTrue(indexOf(frame, utf8) > 0);
+	}
+
+	@Test
+	public void escapesLoneSurrogates() throws ParseException {
+		// UTF-8 cannot carry these, so they are escaped instead of replaced with '?'
+		assertEquals("\ud83d", roundTrip("\ud83d"));
+		assertEquals("x\ude00y", roundTrip("x\ude00y"));
+		assertEquals("\ude00\ud83d", roundTrip("\ude00\ud83d"));
+		assertEquals("\ud83d\ud83d\ude00", roundTrip("\ud83d\ud83d\ude00"));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void writesOtherValuesLikeJsonSimple() throws ParseException {
+		JSONArray nested = new JSONArray();
+		nested.add(1L);
+		JSONArray inner = new JSONArray();
+		inner.add("two");
+		inner.add(null);
+		nested.add(inner);
+		JSONObject object = new JSONObject();
+		object.put("list", nested);
+		object.put("flag", true);
+		assertEquals(nested, roundTrip(nested));
+		assertEquals(object, roundTrip(object));
+		assertEquals(2.5, roundTrip(2.5));
+		assertEquals(Long.MIN_VALUE, roundTrip(Long.MIN_VALUE));
+		assertEquals(null, roundTrip(null));
+	}
+
+	@Test
+	public void passesArgumentsOnAsTheyWere() throws ParseException {
+		String args = "[ {\"1\":\"int\"} , {\"\\u0041\\n\":\"string\"}]";
+		JSONObject read = new JsonReader().readObject("{\"arguments\":" + args + "}", 0);
+		String line = text(JsonWriter.begin(LanguageOperations.CallMethod, 9).field("arguments", read.get("arguments"))
+				.toLine(LINE_END));
+		assertEquals(String.format("%05d00009{\"arguments\":%s}\n", LanguageOperations.CallMethod.ordinal(), args), line);
+	}
+
+	@Test
+	public void handlesFramesLargerThanItsBuffers() throws ParseException {
+		char[] big = new char[200 * 1024];
+		Arrays.fill(big, 'é');
+		String value = new String(big);
+		assertEquals(value, roundTrip(value));
+		// The next frame starts afresh, with nothing left over from the large one
+		assertEquals("small", roundTrip("small"));
+	}
+
+	private static int indexOf(byte[] haystack, byte[] needle) {
+		for (int i = 0; i + needle.length <= haystack.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(haystack, i, i + needle.length), needle)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+}
@@ -0,0 +1,81 @@
+package languageServer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MetricsTest {
+
+	private static final int PORT = 65001; // Not listened on; only names the MBeans
+
+	private MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+	@After
+	public void unregister() throws Exception {
+		for (ObjectName name : server.queryNames(new ObjectName("languageServer:core=" + PORT + ",*"), null)) {
+			server.unregisterMBean(name);
+		}
+		for (ObjectName name : server.queryNames(new ObjectName("languageServer:core=" + (PORT + 1) + ",*"), null)) {
+			server.unregisterMBean(name);
+		}
+	}
+
+	private static Metrics metrics(int port) {
+		return metrics(port, 0);
+	}
+
+	private static Metrics metrics(int port, int connections) {
+		ConcurrentHashMap<Integer, LanguageHandler> langs = new ConcurrentHashMap<>();
+		for (int i = 0; i < connections; i++) {
+			langs.put(i, new LanguageHandler(i, null));
+		}
+		return new Metrics(new Registry(), langs, () -> port);
+	}
+
+	private boolean registered(String name) throws Exception {
+		return server.isRegistered(new ObjectName(name));
+	}
+
+	@Test
+	public void coresInOneJvmKeepTheirOwnBeans() throws Exception {
+		metrics(PORT).registerMBean();
+		metrics(PORT + 1).registerMBean();
+		metrics(PORT).registerConnection(new ConnectionMetrics(1, () -> 0));
+		metrics(PORT + 1).registerConnection(new ConnectionMetrics(1, () -> 0));
+		assertTrue(registered("languageServer:type=Metrics,core=" + PORT));
+		assertTrue(registered("languageServer:type=Metrics,core=" + (PORT + 1)));
+		assertTrue(registered("languageServer:type=Connection,core=" + PORT + ",id=1"));
+		assertTrue(registered("languageServer:type=Connection,core=" + (PORT + 1) + ",id=1"));
+	}
+
+	@Test
+	public void aTakenNameIsLeftToItsOwner() throws Exception {
+		metrics(PORT, 2).registerMBean();
+		metrics(PORT, 5).registerMBean();
+		ObjectName name = new ObjectName("languageServer:type=Metrics,core=" + PORT);
+		assertEquals(2, server.getAttribute(name, "ConnectionCount"));
+	}
+
+	@Test
+	public void aResumedConnectionReplacesTheOneItResumed() throws Exception {
+		Metrics metrics = metrics(PORT);
+		metrics.registerConnection(new ConnectionMetrics(3, () -> 0));
+		ConnectionMetrics resumed = new ConnectionMetrics(7, () -> 0);
+		metrics.registerConnection(resumed);
+		resumed.setLangId(3);
+		metrics.moveConnection(7, resumed);
+		assertTrue(registered("languageServer:type=Connection,core=" + PORT + ",id=3"));
+		assertFalse(registered("languageServer:type=Connection,core=" + PORT + ",id=7"));
+	}
+
+}
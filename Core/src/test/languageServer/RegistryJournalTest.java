@@ -0,0 +1,247 @@
+package languageServer;
+
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import languageServer.Registry.RemoteObject;
+
+public class RegistryJournalTest {
+
+	private static final int LINK = 9; // A link to another core, whose state is not kept
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private RegistryJournal journal;
+
+	@After
+	public void close() {
+		if (journal != null) {
+			journal.close();
+		}
+	}
+
+	/**
+	 * A core starting from the state file, as LanguageServer does
+	 */
+	private class Core {
+
+		Registry registry = new Registry();
+		Map<String, Integer> sessions = new ConcurrentHashMap<>();
+		RegistryJournal journal;
+		int[] restored;
+
+		Core() throws IOException {
+			journal = new RegistryJournal(file().getPath(), registry, sessions, id -> id != LINK);
+			restored = journal.restore();
+			registry.setJournal(journal);
+			RegistryJournalTest.this.journal = journal;
+		}
+
+		/**
+		 * Stops as a core that is killed would, with what was flushed on disk
+		 */
+		void kill() {
+			journal.flush();
+			registry.setJournal(null);
+			journal.close();
+		}
+	}
+
+	private File file() {
+		return new File(folder.getRoot(), "state");
+	}
+
+	private File journalFile() {
+		return new File(folder.getRoot(), "state.journal");
+	}
+
+	private static int lineCount(File file) throws IOException {
+		return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size();
+	}
+
+	@Test
+	public void startsEmptyWithoutAFile() throws IOException {
+		Core core = new Core();
+		assertEquals(0, core.restored.length);
+		assertEquals(0, core.registry.getClassCount());
+		assertTrue(file().exists());
+		assertTrue(journalFile().exists());
+	}
+
+	@Test
+	public void replaysTheJournal() throws IOException {
+		Core core = new Core();
+		core.sessions.put("token-1", 1);
+		core.journal.sessionStarted(1, "token-1");
+		core.registry.registerClass(1, RegistryTest.descriptor("Counter"));
+		core.registry.registerClass(1, RegistryTest.descriptor("Gone"));
+		core.registry.removeReplica("Gone", 1);
+		core.registry.registerObject("kept", 1, "Counter", 2, 0);
+		core.registry.registerObject("leased", 1, "Counter", 2, TimeUnit.SECONDS.toNanos(30));
+		core.registry.registerObject("released", 1, "Counter", 2, 0);
+		core.registry.removeObject(core.registry.getObject("released"));
+		core.registry.registerObject("moved", 1, "Counter", 2, 0);
+		core.registry.registerObject("moved", 1, "Counter", 3, 0);
+		core.kill();
+
+		Core restarted = new Core();
+		assertArrayEquals(new int[] { 1, 2, 3 }, restarted.restored);
+		assertEquals(Integer.valueOf(1), restarted.sessions.get("token-1"));
+		assertNotNull(restarted.registry.getClass("Counter").getDescriptorFor(1));
+		assertNull(restarted.registry.getClass("Gone"));
+		assertEquals(3, restarted.registry.getObjectCount());
+		assertNull(restarted.registry.getObject("released"));
+		assertEquals(2, restarted.registry.getObject("kept").getCreatorId());
+		assertEquals(3, restarted.registry.getObject("moved").getCreatorId());
+		assertEquals(TimeUnit.SECONDS.toNanos(30), restarted.registry.getObject("leased").getLeaseNanos());
+	}
+
+	@Test
+	public void droppedLanguagesAreForgotten() throws IOException {
+		Core core = new Core();
+		core.sessions.put("token-1", 1);
+		core.journal.sessionStarted(1, "token-1");
+		core.registry.registerClass(1, RegistryTest.descriptor("Counter"));
+		core.registry.registerClass(2, RegistryTest.descriptor("Counter"));
+		core.registry.registerObject("ownedBy1", 1, "Counter", 2, 0);
+		core.registry.registerObject("madeBy1", 2, "Counter", 1, 0);
+		core.registry.registerObject("other", 2, "Counter", 2, 0);
+		core.registry.removeReplicas(1);
+		core.kill();
+
+		Core restarted = new Core();
+		assertTrue(restarted.sessions.isEmpty());
+		assertEquals(1, restarted.registry.getClass("Counter").getReplicaCount());
+		assertNull(restarted.registry.getClass("Counter").getDescriptorFor(1));
+		assertNull(restarted.registry.getObject("ownedBy1"));
+		assertNull(restarted.registry.getObject("madeBy1"));
+		assertNotNull(restarted.registry.getObject("other"));
+	}
+
+	@Test
+	public void leavesLinksOut() throws IOException {
+		Core core = new Core();
+		core.registry.registerClass(LINK, RegistryTest.descriptor("Remote"));
+		core.registry.registerObject("remote", LINK, "Remote", LINK, 0);
+		core.registry.registerClass(1, RegistryTest.descriptor("Local"));
+		core.kill();
+
+		Core restarted = new Core();
+		assertNull(restarted.registry.getClass("Remote"));
+		assertNull(restarted.registry.getObject("remote"));
+		assertNotNull(restarted.registry.getClass("Local"));
+	}
+
+	@Test
+	public void skipsADamagedLastLine() throws IOException {
+		Core core = new Core();
+		core.registry.registerClass(1, RegistryTest.descriptor("Counter"));
+		core.registry.registerObject("c", 1, "Counter", 1, 0);
+		core.kill();
+		// A core that stopped while writing leaves half an entry
+		Files.write(journalFile().toPath(), "{\"op\":\"object\",\"varName\":\"d\",\"la".getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+
+		Core restarted = new Core();
+		assertNotNull(restarted.registry.getObject("c"));
+		assertNull(restarted.registry.getObject("d"));
+		assertEquals(1, restarted.registry.getObjectCount());
+	}
+
+	@Test
+	public void restoringTakesASnapshotAndEmptiesTheJournal() throws IOException {
+		Core core = new Core();
+		core.registry.registerClass(1, RegistryTest.descriptor("Counter"));
+		for (int i = 0; i < 10; i++) {
+			core.registry.registerObject("o" + i, 1, "Counter", 1, 0);
+			core.registry.removeObject(core.registry.getObject("o" + i));
+		}
+		core.registry.registerObject("last", 1, "Counter", 1, 0);
+		core.kill();
+		assertEquals(22, lineCount(journalFile()));
+
+		Core restarted = new Core();
+		assertEquals(0, lineCount(journalFile()));
+		assertEquals(2, lineCount(file()));
+		restarted.kill();
+
+		Core again = new Core();
+		assertNotNull(again.registry.getObject("last"));
+		assertEquals(1, again.registry.getObjectCount());
+	}
+
+	@Test
+	public void compactsOnceTheJournalOutgrowsTheSnapshot() throws IOException {
+		Core core = new Core();
+		core.registry.registerClass(1, RegistryTest.descriptor("Counter"));
+		for (int i = 0; i < 3000; i++) {
+			core.registry.registerObject("o" + i % 500, 1, "Counter", 1, 0);
+			if (i % 100 == 0) {
+				core.journal.flush();
+			}
+		}
+		core.journal.flush();
+		// Every flush past 1024 entries folds the journal into the snapshot
+		assertTrue(lineCount(journalFile()) <= 1024);
+		assertEquals(501, lineCount(file()));
+		core.kill();
+
+		Core restarted = new Core();
+		assertEquals(500, restarted.registry.getObjectCount());
+		for (int i = 0; i < 500; i++) {
+			assertNotNull(restarted.registry.getObject("o" + i));
+		}
+	}
+
+	@Test
+	public void aReleaseAheadOfItsCreateIsNotUndone() throws IOException {
+		Core core = new Core();
+		core.registry.setJournal(null);
+		core.registry.registerObject("raced", 1, "Counter", 1, 0);
+		RemoteObject object = core.registry.getObject("raced");
+		core.registry.removeObject(object);
+		// Another thread released the object before its create reached the journal
+		core.journal.objectReleased(object);
+		core.journal.objectRegistered(object);
+		core.kill();
+
+		Core restarted = new Core();
+		assertNull(restarted.registry.getObject("raced"));
+		assertEquals(0, restarted.registry.getObjectCount());
+	}
+
+	@Test
+	public void lastEntriesWin() throws IOException {
+		Core core = new Core();
+		core.registry.registerClass(1, RegistryTest.descriptor("Counter"));
+		core.registry.registerClass(2, RegistryTest.descriptor("Counter"));
+		core.registry.registerClass(2, RegistryTest.descriptor("Counter"));
+		core.registry.registerObject("x", 1, "Counter", 1, 0);
+		core.registry.registerObject("x", 2, "Counter", 2, 0);
+		core.kill();
+
+		Core restarted = new Core();
+		assertEquals(2, restarted.registry.getObject("x").getLangId());
+		assertEquals(2, restarted.registry.getClass("Counter").getReplicaCount());
+	}
+
+}
@@ -0,0 +1,274 @@
+package languageServer;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import languageServer.Registry.PendingReturn;
+import languageServer.Registry.RegisteredClass;
+import languageServer.Registry.RemoteObject;
+
+public class RegistryTest {
+
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 2000;
+
+	private ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+	@After
+	public void shutDown() {
+		executor.shutdownNow();
+	}
+
+	@SuppressWarnings("unchecked")
+	static ClassDescriptor descriptor(String name) {
+		JSONObject method = new JSONObject();
+		method.put("name", "add");
+		JSONArray parameters = new JSONArray();
+		parameters.add("int");
+		method.put("parameters", parameters);
+		method.put("return", "int");
+		JSONArray methods = new JSONArray();
+		methods.add(method);
+		JSONObject classData = new JSONObject();
+		classData.put("name", name);
+		classData.put("methods", methods);
+		classData.put("constructors", new JSONArray());
+		return new ClassDescriptor(classData);
+	}
+
+	/**
+	 * Runs the task on every thread at once and waits for all of them
+	 */
+	private <T> List<T> race(Callable<T> task) throws Exception {
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<T>> futures = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			futures.add(executor.submit(() -> {
+				start.await();
+				return task.call();
+			}));
+		}
+		start.countDown();
+		List<T> results = new ArrayList<>();
+		for (Future<T> future : futures) {
+			results.add(future.get(60, TimeUnit.SECONDS));
+		}
+		return results;
+	}
+
+	@Test
+	public void concurrentRegistrationsKeepEveryReplica() throws Exception {
+		Registry registry = new Registry();
+		int generation = registry.getClassGeneration();
+		int[] next = { 0 };
+		race(() -> {
+			int langId;
+			synchronized (next) {
+				langId = ++next[0];
+			}
+			for (int i = 0; i < ROUNDS / 10; i++) {
+				registry.registerClass(langId, descriptor("Shared"));
+				registry.registerClass(langId, descriptor("Own" + langId + "_" + i));
+			}
+			return null;
+		});
+		RegisteredClass shared = registry.getClass("Shared");
+		assertEquals(THREADS, shared.getReplicaCount());
+		assertEquals(1 + THREADS * ROUNDS / 10, registry.getClassCount());
+		assertEquals(generation + 2 * THREADS * ROUNDS / 10, registry.getClassGeneration());
+
+		race(() -> {
+			int langId;
+			synchronized (next) {
+				langId = next[0]--;
+			}
+			registry.removeReplicas(langId);
+			return null;
+		});
+		assertEquals(0, registry.getClassCount());
+	}
+
+	@Test
+	public void concurrentCreateRouteReleaseLosesNothing() throws Exception {
+		Registry registry = new Registry();
+		registry.registerClass(100, descriptor("Counter"));
+		int[] next = { 0 };
+		List<Set<Integer>> seen = race(() -> {
+			int caller;
+			synchronized (next) {
+				caller = ++next[0];
+			}
+			Set<Integer> ids = new HashSet<>();
+			for (int i = 0; i < ROUNDS; i++) {
+				String varName = "o" + caller + "_" + i;
+				assertNull(registry.registerObject(varName, 100, "Counter", caller, 0));
+				int returnId = registry.addPendingReturn(caller, i + 1, 100, 0);
+				assertNotEquals(0, returnId);
+				PendingReturn pending = registry.getPendingReturn(returnId);
+				assertEquals(caller, pending.getCallerId());
+				assertEquals(i + 1, pending.getCallId());
+				if (i % 2 == 0) {
+					assertTrue(registry.removePendingReturn(returnId, pending));
+					RemoteObject object = registry.getObject(varName);
+					assertTrue(registry.removeObject(object));
+					assertTrue(object.isReleased());
+				} else {
+					ids.add(returnId);
+				}
+			}
+			return ids;
+		});
+
+		Set<Integer> all = new HashSet<>();
+		int expected = 0;
+		for (Set<Integer> ids : seen) {
+			all.addAll(ids);
+			expected += ids.size();
+		}
+		assertEquals("No return id is handed to two calls in flight", expected, all.size());
+		assertEquals(expected, registry.getPendingReturnCount());
+		assertEquals(expected, registry.getOutstanding(100));
+		assertEquals(THREADS * ROUNDS / 2, registry.getObjectCount());
+		for (int caller = 1; caller <= THREADS; caller++) {
+			assertEquals(ROUNDS / 2, registry.getInFlight(caller));
+		}
+
+		// Every caller leaving releases its objects and calls, whatever the others do
+		race(() -> {
+			int caller;
+			synchronized (next) {
+				caller = next[0]--;
+			}
+			assertEquals(ROUNDS / 2, registry.removeForLanguage(caller).size());
+			assertEquals(ROUNDS / 2, registry.removeObjectsForLanguage(caller).size());
+			return null;
+		});
+		assertEquals(0, registry.getPendingReturnCount());
+		assertEquals(0, registry.getOutstanding(100));
+		assertEquals(0, registry.getObjectCount());
+	}
+
+	@Test
+	public void releaseOnlyRemovesTheObjectFound() {
+		Registry registry = new Registry();
+		RemoteObject first = new RemoteObject("x", 1, "Counter", 1, 0);
+		registry.registerObject("x", 1, "Counter", 1, 0);
+		RemoteObject registered = registry.getObject("x");
+		RemoteObject replaced = registry.registerObject("x", 2, "Counter", 2, 0);
+		assertTrue(replaced.isReleased());
+		assertFalse(registry.removeObject(registered));
+		assertFalse(registry.removeObject(first));
+		assertNotNull(registry.getObject("x"));
+		assertEquals(2, registry.getObject("x").getLangId());
+	}
+
+	@Test
+	public void returnIdsWrapAroundAndSkipCallsInFlight() {
+		Registry registry = new Registry();
+		int held = registry.addPendingReturn(1, 1, 2, 0);
+		assertEquals(1, held);
+		int last = 0;
+		for (int i = 2; i <= Registry.MAX_RETURN_ID; i++) {
+			last = registry.addPendingReturn(1, i, 2, 0);
+			assertEquals(i, last);
+			registry.removePendingReturn(last);
+		}
+		assertEquals(Registry.MAX_RETURN_ID, last);
+		// 1 is still in flight, so the ids go round to 2
+		int wrapped = registry.addPendingReturn(1, 1, 2, 0);
+		assertEquals(2, wrapped);
+		assertEquals(2, registry.getPendingReturnCount());
+		assertEquals(1, registry.getPendingReturn(held).getCallId());
+	}
+
+	@Test
+	public void returnIdsRunOutAtTheLimit() {
+		Registry registry = new Registry();
+		registry.setMaxPendingReturns(3);
+		assertNotEquals(0, registry.addPendingReturn(1, 1, 2, 0));
+		assertNotEquals(0, registry.addPendingReturn(1, 2, 2, 0));
+		assertNotEquals(0, registry.addPendingReturn(1, 3, 2, 0));
+		assertEquals(0, registry.addPendingReturn(1, 4, 2, 0));
+		assertEquals(3, registry.getInFlight(1));
+	}
+
+	@Test
+	public void timedOutIdsAreQuarantined() {
+		Registry registry = new Registry();
+		int expiring = registry.addPendingReturn(1, 1, 2, System.nanoTime() - 1);
+		assertEquals(1, registry.removeExpired(System.nanoTime()).size());
+		assertEquals(1, registry.getQuarantinedCount());
+		for (int i = 2; i <= Registry.MAX_RETURN_ID; i++) {
+			registry.removePendingReturn(registry.addPendingReturn(1, i, 2, 0));
+		}
+		// Back round at the start, the timed out id is passed over for the next one
+		int next = registry.addPendingReturn(1, 1, 2, 0);
+		assertNotEquals(expiring, next);
+		assertEquals(expiring + 1, next);
+		assertNull("A late return finds no call", registry.getPendingReturn(expiring));
+	}
+
+	@Test
+	public void abandonedIdsAreQuarantinedUntilThePeriodPasses() throws InterruptedException {
+		Registry registry = new Registry();
+		registry.setQuarantineMillis(50);
+		int abandoned = registry.addPendingReturn(1, 1, 2, 0);
+		assertEquals(1, registry.removeForLanguage(1).size());
+		assertEquals(1, registry.getQuarantinedCount());
+		Thread.sleep(100);
+		registry.removeExpired(System.nanoTime());
+		assertEquals(0, registry.getQuarantinedCount());
+		for (int i = 2; i <= Registry.MAX_RETURN_ID; i++) {
+			registry.removePendingReturn(registry.addPendingReturn(1, i, 2, 0));
+		}
+		assertEquals(abandoned, registry.addPendingReturn(1, 1, 2, 0));
+	}
+
+	@Test
+	public void withoutQuarantineTimedOutIdsAreReusedAtOnce() {
+		Registry registry = new Registry();
+		registry.setQuarantineMillis(0);
+		int expiring = registry.addPendingReturn(1, 1, 2, System.nanoTime() - 1);
+		registry.removeExpired(System.nanoTime());
+		assertEquals(0, registry.getQuarantinedCount());
+		for (int i = 2; i <= Registry.MAX_RETURN_ID; i++) {
+			registry.removePendingReturn(registry.addPendingReturn(1, i, 2, 0));
+		}
+		assertEquals(expiring, registry.addPendingReturn(1, 1, 2, 0));
+	}
+
+	@Test
+	public void expiredLeasesAreReleased() {
+		Registry registry = new Registry();
+		registry.registerObject("leased", 1, "Counter", 1, TimeUnit.MILLISECONDS.toNanos(10));
+		registry.registerObject("kept", 1, "Counter", 1, 0);
+		assertTrue(registry.removeExpiredObjects(System.nanoTime()).isEmpty());
+		List<RemoteObject> expired = registry.removeExpiredObjects(System.nanoTime() + TimeUnit.SECONDS.toNanos(1));
+		assertEquals(1, expired.size());
+		assertEquals("leased", expired.get(0).getVarName());
+		assertNull(registry.getObject("leased"));
+		assertNotNull(registry.getObject("kept"));
+	}
+
+}
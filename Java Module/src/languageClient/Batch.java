@@ -0,0 +1,101 @@
+package languageClient;
+
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import languageClient.LanguageClient.InvalidObjectException;
+
+/**
+ * Collects object creations and method calls and sends them as one CallBatch frame.
+ * The core hands each language its entries in one frame, and every entry gets its
+ * own {@link Result}, so one failing entry does not fail the rest.
+ * 
+ * <pre>
+ * List&lt;Batch.Result&gt; results = client.batch()
+ * 		.createObject("Foo", "foo", "arg")
+ * 		.callMethod("foo", "bar", "param")
+ * 		.execute();
+ * </pre>
+ */
+@SuppressWarnings("unchecked")
+public class Batch {
+
+	private LanguageClient client;
+	private JSONArray entries;
+
+	Batch(LanguageClient client) {
+		this.client = client;
+		entries = new JSONArray();
+	}
+
+	public Batch createObject(String className, String varName, Object... params) throws InvalidObjectException {
+		JSONObject entry = new JSONObject();
+		entry.put("op", "create");
+		entry.put("name", className);
+		entry.put("varName", varName);
+		entry.put("arguments", client.toArguments(params));
+		entries.add(entry);
+		return this;
+	}
+
+	public Batch callMethod(String varName, String methodName, Object... args) throws InvalidObjectException {
+		JSONObject entry = new JSONObject();
+		entry.put("op", "call");
+		entry.put("name", methodName);
+		entry.put("varName", varName);
+		entry.put("arguments", client.toArguments(args));
+		entries.add(entry);
+		return this;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return a future completing with one result per entry, in the order they were added
+	 */
+	public CompletableFuture<List<Result>> send() {
+		return client.sendBatch(entries).thenApply(results -> (List<Result>) results);
+	}
+
+	public List<Result> execute() throws InterruptedException {
+		try {
+			return send().get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	public static class Result {
+
+		private Object value;
+		private String error;
+
+		public Result(Object value, String error) {
+			this.value = value;
+			this.error = error;
+		}
+
+		public boolean isError() {
+			return error != null;
+		}
+
+		/**
+		 * @return the returned value, or null for creations and void methods
+		 */
+		public Object getValue() {
+			return value;
+		}
+
+		public String getError() {
+			return error;
+		}
+	}
+
+}
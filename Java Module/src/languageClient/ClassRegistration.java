@@ -0,0 +1,66 @@
+package languageClient;
+
+
+import languageCommon.Log;
+
+
+/**
+ * What {@link GlobalProcessor} generates at compile time for each class with @Global
+ * members: the class's registration, ready to send, and code that calls its members
+ * directly. A client registering the class uses it instead of reflection when it is
+ * found next to the class.
+ *
+ * Members are named by their name and standardized parameter types, the way calls
+ * arrive, such as {@code add(int,string,)}, with constructors named {@code <init>}.
+ */
+public interface ClassRegistration {
+
+	/**
+	 * Returned by {@link #construct} and {@link #invoke} for a member the class does not
+	 * have, so the caller can look it up by reflection instead
+	 */
+	Object NO_MATCH = new Object();
+
+	Class<?> getRegisteredClass();
+
+	/**
+	 * @return the RegisterClass body for the class, as JSON text
+	 */
+	String getDescriptor();
+
+	Object construct(String key, Object[] args) throws Throwable;
+
+	/**
+	 * @return what the method returned, null for a void method, or {@link #NO_MATCH}
+	 */
+	Object invoke(Object target, String key, Object[] args) throws Throwable;
+
+	/**
+	 * @param binaryName  the class's name as {@link Class#getName()} gives it
+	 * @param packageName the class's package, or "" for the default package
+	 * @return the name of the class generated for it, in the same package
+	 */
+	static String nameFor(String binaryName, String packageName) {
+		String simpleName = packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1);
+		return (packageName.isEmpty() ? "" : packageName + ".") + simpleName.replace('$', '_') + "_Registration";
+	}
+
+	/**
+	 * @return the registration generated for the class, or null if it was compiled
+	 *         without the processor
+	 */
+	static ClassRegistration find(Class<?> c) {
+		String packageName = c.getPackage() == null ? "" : c.getPackage().getName();
+		try {
+			Class<?> generated = Class.forName(nameFor(c.getName(), packageName), true, c.getClassLoader());
+			ClassRegistration registration = (ClassRegistration) generated.getDeclaredConstructor().newInstance();
+			return registration.getRegisteredClass() == c ? registration : null;
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			Log.warn("Could not load the registration generated for ", c.getName());
+			return null;
+		}
+	}
+
+}
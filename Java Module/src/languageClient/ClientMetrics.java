@@ -0,0 +1,147 @@
+package languageClient;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import languageCommon.Histogram;
+import languageCommon.Log;
+
+/**
+ * Traffic counters and round trip latencies for one {@link LanguageClient}, recorded
+ * with LongAdders so the hot path allocates nothing. Each client registers itself
+ * with the platform MBean server as languageClient:type=Client,id=n.
+ */
+public class ClientMetrics implements ClientMetricsMXBean {
+
+	private static final AtomicInteger nextId = new AtomicInteger();
+
+	private int id;
+	private Map<Integer, ?> pendingCalls;
+	private IntSupplier outgoingQueueSize;
+
+	private LongAdder framesIn = new LongAdder();
+	private LongAdder bytesIn = new LongAdder();
+	private LongAdder framesOut = new LongAdder();
+	private LongAdder bytesOut = new LongAdder();
+	private LongAdder callsServed = new LongAdder(); // Calls and creates other languages made on this one
+	private LongAdder errors = new LongAdder();
+
+	private Histogram callLatency = new Histogram(); // From sending a call to its return
+	private Histogram batchLatency = new Histogram();
+
+	public ClientMetrics(Map<Integer, ?> pendingCalls, IntSupplier outgoingQueueSize) {
+		this.id = nextId.getAndIncrement();
+		this.pendingCalls = pendingCalls;
+		this.outgoingQueueSize = outgoingQueueSize;
+	}
+
+	public void registerMBean() {
+		String name = "languageClient:type=Client,id=" + id;
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			server.registerMBean(this, new ObjectName(name));
+		} catch (Exception e) {
+			Log.error("Could not register MBean " + name, e);
+		}
+	}
+
+	public void frameIn(int bytes) {
+		framesIn.increment();
+		bytesIn.add(bytes);
+	}
+
+	public void frameOut(int bytes) {
+		framesOut.increment();
+		bytesOut.add(bytes);
+	}
+
+	public void callServed() {
+		callsServed.increment();
+	}
+
+	public void error() {
+		errors.increment();
+	}
+
+	public Histogram getCallHistogram() {
+		return callLatency;
+	}
+
+	public Histogram getBatchHistogram() {
+		return batchLatency;
+	}
+
+	@Override
+	public long getFramesIn() {
+		return framesIn.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getFramesOut() {
+		return framesOut.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getCallsServed() {
+		return callsServed.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public int getPendingCallCount() {
+		return pendingCalls.size();
+	}
+
+	@Override
+	public int getOutgoingQueueSize() {
+		return outgoingQueueSize.getAsInt();
+	}
+
+	@Override
+	public Map<String, Long> getCallLatency() {
+		return callLatency.snapshot();
+	}
+
+	@Override
+	public Map<String, Long> getBatchLatency() {
+		return batchLatency.snapshot();
+	}
+
+	public Map<String, Object> snapshot() {
+		Map<String, Object> snapshot = new LinkedHashMap<>();
+		snapshot.put("framesIn", getFramesIn());
+		snapshot.put("bytesIn", getBytesIn());
+		snapshot.put("framesOut", getFramesOut());
+		snapshot.put("bytesOut", getBytesOut());
+		snapshot.put("callsServed", getCallsServed());
+		snapshot.put("errors", getErrors());
+		snapshot.put("pendingCallCount", getPendingCallCount());
+		snapshot.put("outgoingQueueSize", getOutgoingQueueSize());
+		snapshot.put("callLatency", getCallLatency());
+		snapshot.put("batchLatency", getBatchLatency());
+		return snapshot;
+	}
+
+}
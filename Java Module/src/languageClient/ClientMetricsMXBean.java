@@ -0,0 +1,31 @@
+package languageClient;
+
+
+import java.util.Map;
+
+/**
+ * JMX view of one client's connection to the core, see {@link ClientMetrics}
+ */
+public interface ClientMetricsMXBean {
+
+	long getFramesIn();
+
+	long getBytesIn();
+
+	long getFramesOut();
+
+	long getBytesOut();
+
+	long getCallsServed();
+
+	long getErrors();
+
+	int getPendingCallCount();
+
+	int getOutgoingQueueSize();
+
+	Map<String, Long> getCallLatency();
+
+	Map<String, Long> getBatchLatency();
+
+}
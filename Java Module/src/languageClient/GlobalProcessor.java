@@ -0,0 +1,380 @@
+package languageClient;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates a {@link ClassRegistration} for every class with @Global members as it is
+ * compiled, and fails the build for what registering the class would otherwise only
+ * find at run time: a class other languages cannot create, or a parameter they cannot
+ * pass. Every class generated is listed as a ClassRegistration service as well, so
+ * {@link LanguageClient#registerAll()} finds them.
+ *
+ * javac runs it whenever the client jar is on the compile classpath. A build that sets
+ * its own annotation processor path has to list the client jar in it.
+ */
+@SupportedAnnotationTypes("languageClient.Global")
+public class GlobalProcessor extends AbstractProcessor {
+
+	private static final String SERVICE_FILE = "META-INF/services/" + ClassRegistration.class.getName();
+	private static final String CONSTRUCTOR = "<init>";
+	private static final int MAX_LITERAL = 16384; // Characters per string literal, well inside the class file's limit
+
+	private Set<String> generated = new TreeSet<>(); // Every registration written, for the service file
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if (roundEnv.processingOver()) {
+			writeServiceFile();
+			return false;
+		}
+		Set<TypeElement> classes = new LinkedHashSet<>();
+		for (Element element : roundEnv.getElementsAnnotatedWith(Global.class)) {
+			if (element.getKind() != ElementKind.METHOD && element.getKind() != ElementKind.CONSTRUCTOR) {
+				continue;
+			}
+			if (!element.getModifiers().contains(Modifier.PUBLIC)) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+						"@Global has no effect on a member that is not public", element);
+				continue;
+			}
+			classes.add((TypeElement) element.getEnclosingElement());
+		}
+		for (TypeElement type : classes) {
+			generate(type);
+		}
+		return false;
+	}
+
+	private void generate(TypeElement type) {
+		Elements elements = processingEnv.getElementUtils();
+		if (!canCreate(type)) {
+			return;
+		}
+		String className = type.getQualifiedName().toString();
+		String binaryName = elements.getBinaryName(type).toString();
+		String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+		String registrationName = ClassRegistration.nameFor(binaryName, packageName);
+
+		boolean valid = true;
+		Set<String> keys = new HashSet<>(); // Overloads whose types standardize the same are served by the first
+		StringBuilder constructors = new StringBuilder();
+		List<String> constructorCases = new ArrayList<>();
+		for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+			if (!isGlobal(constructor)) {
+				continue;
+			}
+			List<String> parameters = parameters(constructor);
+			valid &= parameters != null;
+			if (parameters == null || !keys.add(key(CONSTRUCTOR, parameters))) {
+				continue;
+			}
+			constructors.append(constructors.length() == 0 ? "" : ",").append(jsonArray(parameters));
+			constructorCases.add("\t\tcase " + literal(key(CONSTRUCTOR, parameters)) + ":\n\t\t\treturn new " + className
+					+ "(" + arguments(constructor) + ");\n");
+		}
+		if (constructorCases.isEmpty() && valid) {
+			error(type, type.getSimpleName() + " has @Global methods but no public @Global constructor, so other languages cannot create it");
+			return;
+		}
+
+		StringBuilder methods = new StringBuilder();
+		List<String> methodCases = new ArrayList<>();
+		for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+			if (!isGlobal(method)) {
+				continue;
+			}
+			List<String> parameters = parameters(method);
+			valid &= parameters != null;
+			String name = method.getSimpleName().toString();
+			if (parameters == null || !keys.add(key(name, parameters))) {
+				continue;
+			}
+			Global global = method.getAnnotation(Global.class);
+			methods.append(methods.length() == 0 ? "" : ",").append("{\"name\":").append(json(name))
+					.append(",\"parameters\":").append(jsonArray(parameters)).append(",\"return\":")
+					.append(json(className(method.getReturnType())));
+			if (global.cacheTtl() > 0) {
+				methods.append(",\"cache\":{\"ttl\":").append(global.cacheTtl()).append(",\"size\":")
+						.append(global.cacheSize()).append('}');
+			}
+			methods.append('}');
+			String target = method.getModifiers().contains(Modifier.STATIC) ? className : "((" + className + ") target)";
+			String call = target + "." + name + "(" + arguments(method) + ")";
+			methodCases.add("\t\tcase " + literal(key(name, parameters)) + ":\n"
+					+ (method.getReturnType().getKind() == TypeKind.VOID ? "\t\t\t" + call + ";\n\t\t\treturn null;\n"
+							: "\t\t\treturn " + call + ";\n"));
+		}
+		if (!valid) {
+			return;
+		}
+		String descriptor = "{\"name\":" + json(binaryName) + ",\"methods\":[" + methods + "],\"constructors\":["
+				+ constructors + "]}";
+		write(type, registrationName, packageName, className, descriptor, constructorCases, methodCases);
+	}
+
+	/**
+	 * Other languages create objects of the class from its generated registration, which
+	 * sits beside it in its package
+	 */
+	private boolean canCreate(TypeElement type) {
+		if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)) {
+			error(type, type.getSimpleName() + " has @Global members but other languages cannot create an abstract class or interface");
+			return false;
+		}
+		for (Element e = type; e.getKind().isClass() || e.getKind().isInterface(); e = e.getEnclosingElement()) {
+			TypeElement enclosing = (TypeElement) e;
+			if (enclosing.getModifiers().contains(Modifier.PRIVATE)) {
+				error(type, type.getSimpleName() + " has @Global members but is private, so other languages cannot reach it");
+				return false;
+			}
+			if (enclosing.getNestingKind() == NestingKind.MEMBER && !enclosing.getModifiers().contains(Modifier.STATIC)) {
+				error(type, type.getSimpleName() + " has @Global members but is an inner class, so other languages cannot create it");
+				return false;
+			}
+			if (enclosing.getNestingKind() == NestingKind.LOCAL || enclosing.getNestingKind() == NestingKind.ANONYMOUS) {
+				error(type, type.getSimpleName() + " has @Global members but is a local class, so other languages cannot create it");
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isGlobal(ExecutableElement member) {
+		return member.getAnnotation(Global.class) != null && member.getModifiers().contains(Modifier.PUBLIC);
+	}
+
+	/**
+	 * @return the standardized type of each parameter, or null if other languages
+	 *         cannot pass one of them, which is reported
+	 */
+	private List<String> parameters(ExecutableElement member) {
+		Types types = processingEnv.getTypeUtils();
+		TypeMirror string = processingEnv.getElementUtils().getTypeElement("java.lang.String").asType();
+		List<String> parameters = new ArrayList<>();
+		for (VariableElement parameter : member.getParameters()) {
+			TypeMirror type = parameter.asType();
+			String name = className(type);
+			if (!TypeNames.isSupported(name, types.isAssignable(string, types.erasure(type)))) {
+				error(parameter, "Other languages cannot pass a " + types.erasure(type) + ", only primitives, their wrappers, "
+						+ "int[], long[], double[], byte[], and types a String can be passed as");
+				return null;
+			}
+			parameters.add(TypeNames.standardize(name));
+		}
+		return parameters;
+	}
+
+	/**
+	 * @return the arguments array cast to each parameter's type, as source
+	 */
+	private String arguments(ExecutableElement member) {
+		Types types = processingEnv.getTypeUtils();
+		StringBuilder sb = new StringBuilder();
+		List<? extends VariableElement> parameters = member.getParameters();
+		for (int i = 0; i < parameters.size(); i++) {
+			TypeMirror type = types.erasure(parameters.get(i).asType());
+			String sourceType = type.getKind().isPrimitive()
+					? types.boxedClass((PrimitiveType) type).getQualifiedName().toString()
+					: type.toString();
+			sb.append(i == 0 ? "" : ", ").append('(').append(sourceType).append(") args[").append(i).append(']');
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the type's name as {@link Class#getName()} gives it
+	 */
+	private String className(TypeMirror type) {
+		TypeMirror erased = processingEnv.getTypeUtils().erasure(type);
+		switch (erased.getKind()) {
+		case ARRAY:
+			return "[" + descriptor(((ArrayType) erased).getComponentType());
+		case DECLARED:
+			return processingEnv.getElementUtils().getBinaryName((TypeElement) ((DeclaredType) erased).asElement()).toString();
+		default:
+			return erased.toString();
+		}
+	}
+
+	private String descriptor(TypeMirror type) {
+		switch (type.getKind()) {
+		case BOOLEAN:
+			return "Z";
+		case BYTE:
+			return "B";
+		case CHAR:
+			return "C";
+		case SHORT:
+			return "S";
+		case INT:
+			return "I";
+		case LONG:
+			return "J";
+		case FLOAT:
+			return "F";
+		case DOUBLE:
+			return "D";
+		case ARRAY:
+			return "[" + descriptor(((ArrayType) type).getComponentType());
+		default:
+			return "L" + className(type) + ";";
+		}
+	}
+
+	private static String key(String name, List<String> parameters) {
+		return InvokerCache.key(name, parameters.toArray(new String[0]));
+	}
+
+	private void write(TypeElement type, String registrationName, String packageName, String className, String descriptor,
+			List<String> constructorCases, List<String> methodCases) {
+		String simpleName = registrationName.substring(registrationName.lastIndexOf('.') + 1);
+		StringBuilder source = new StringBuilder();
+		if (!packageName.isEmpty()) {
+			source.append("package ").append(packageName).append(";\n\n");
+		}
+		source.append("/**\n * Generated by ").append(GlobalProcessor.class.getName()).append(" from the @Global members of ")
+				.append(className).append(". Do not edit.\n */\n")
+				.append("@SuppressWarnings({ \"rawtypes\", \"unchecked\" })\n")
+				.append("public final class ").append(simpleName).append(" implements ")
+				.append(ClassRegistration.class.getName()).append(" {\n\n")
+				.append("\tprivate static final String DESCRIPTOR = ").append(longLiteral(descriptor)).append(";\n\n")
+				.append("\t@Override\n\tpublic Class<?> getRegisteredClass() {\n\t\treturn ").append(className)
+				.append(".class;\n\t}\n\n")
+				.append("\t@Override\n\tpublic String getDescriptor() {\n\t\treturn DESCRIPTOR;\n\t}\n\n")
+				.append("\t@Override\n\tpublic Object construct(String key, Object[] args) throws Throwable {\n\t\tswitch (key) {\n");
+		for (String c : constructorCases) {
+			source.append(c);
+		}
+		source.append("\t\tdefault:\n\t\t\treturn NO_MATCH;\n\t\t}\n\t}\n\n")
+				.append("\t@Override\n\tpublic Object invoke(Object target, String key, Object[] args) throws Throwable {\n\t\tswitch (key) {\n");
+		for (String m : methodCases) {
+			source.append(m);
+		}
+		source.append("\t\tdefault:\n\t\t\treturn NO_MATCH;\n\t\t}\n\t}\n\n}\n");
+		try (Writer out = processingEnv.getFiler().createSourceFile(registrationName, type).openWriter()) {
+			out.write(source.toString());
+		} catch (IOException e) {
+			error(type, "Could not write " + registrationName + ": " + e);
+			return;
+		}
+		generated.add(registrationName);
+	}
+
+	/**
+	 * Lists every registration generated, along with those an earlier build listed whose
+	 * classes still exist, so building only some of the sources keeps the rest
+	 */
+	private void writeServiceFile() {
+		if (generated.isEmpty()) {
+			return;
+		}
+		Set<String> entries = new TreeSet<>(generated);
+		try {
+			FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(existing.openInputStream(), StandardCharsets.UTF_8))) {
+				for (String line = in.readLine(); line != null; line = in.readLine()) {
+					line = line.trim();
+					if (!line.isEmpty() && processingEnv.getElementUtils().getTypeElement(line) != null) {
+						entries.add(line);
+					}
+				}
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			// No earlier list
+		}
+		try (Writer out = new OutputStreamWriter(processingEnv.getFiler()
+				.createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE).openOutputStream(), StandardCharsets.UTF_8)) {
+			for (String entry : entries) {
+				out.write(entry + "\n");
+			}
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + SERVICE_FILE + ": " + e);
+		}
+	}
+
+	private void error(Element element, String message) {
+		processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+
+	private String literal(String s) {
+		return processingEnv.getElementUtils().getConstantExpression(s);
+	}
+
+	/**
+	 * A string constant is limited to 65535 bytes in a class file, so long descriptors
+	 * are joined from pieces when the class loads
+	 */
+	private String longLiteral(String s) {
+		if (s.length() <= MAX_LITERAL) {
+			return literal(s);
+		}
+		StringBuilder sb = new StringBuilder("new StringBuilder(").append(s.length()).append(')');
+		for (int i = 0; i < s.length(); i += MAX_LITERAL) {
+			sb.append("\n\t\t\t.append(").append(literal(s.substring(i, Math.min(s.length(), i + MAX_LITERAL)))).append(')');
+		}
+		return sb.append(".toString()").toString();
+	}
+
+	private static String json(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+
+	private static String jsonArray(List<String> values) {
+		StringBuilder sb = new StringBuilder("[");
+		for (String value : values) {
+			sb.append(sb.length() == 1 ? "" : ",").append(json(value));
+		}
+		return sb.append(']').toString();
+	}
+
+}
@@ -0,0 +1,86 @@
+package languageClient;
+
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import languageCommon.Log;
+
+/**
+ * Connects the client to a core running in the same JVM, with no socket and no
+ * encoding: messages cross as objects. The core is passed in as its connect
+ * function, so this module does not depend on it:
+ * {@code new LanguageClient(new InProcessTransport(server::connectInProcess))}.
+ * What the core sends is queued and handled on the client's own thread, so a method
+ * the core calls here never runs on the thread of the language that called it.
+ */
+public class InProcessTransport implements Transport {
+
+	private static final Object[] CLOSED = new Object[0]; // Queued once the core closes the connection
+
+	private Function<Consumer<Object[]>, Consumer<Object[]>> core;
+	private volatile Consumer<Object[]> toCore;
+	private LinkedBlockingQueue<Object[]> incoming;
+
+	/**
+	 * @param core given the client's side, connects it and returns the core's side.
+	 *             Each side takes null when the other disconnects.
+	 */
+	public InProcessTransport(Function<Consumer<Object[]>, Consumer<Object[]>> core) {
+		this.core = core;
+		incoming = new LinkedBlockingQueue<>();
+	}
+
+	@Override
+	public void connect() {
+		toCore = core.apply(message -> incoming.add(message == null ? CLOSED : message));
+	}
+
+	@Override
+	public void run(Receiver receiver) {
+		try {
+			while (true) {
+				Object[] message = incoming.take();
+				if (message == CLOSED) {
+					return;
+				}
+				receiver.receiveMessage(message);
+			}
+		} catch (InterruptedException e) {
+			Log.error("Interrupted while waiting on the core", e);
+		}
+	}
+
+	@Override
+	public boolean isDirect() {
+		return true;
+	}
+
+	@Override
+	public void send(Object[] message) {
+		toCore.accept(message);
+	}
+
+	@Override
+	public void send(byte[] frame) {
+		throw new UnsupportedOperationException("In process transports carry messages, not frames");
+	}
+
+	@Override
+	public void close() {
+		Consumer<Object[]> c = toCore;
+		if (c != null) {
+			toCore = message -> {
+			};
+			c.accept(null);
+		}
+		incoming.add(CLOSED);
+	}
+
+	@Override
+	public String toString() {
+		return "the core in this process";
+	}
+
+}
@@ -0,0 +1,180 @@
+package languageClient;
+
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * MethodHandles for the methods and constructors this module serves, keyed by class,
+ * name and the standardized argument types the core sends. Handles for @Global members
+ * are created when the class is registered, so remote calls do no reflection lookups.
+ * Signatures first seen at call time are resolved once and kept, up to a fixed number
+ * per class. Classes with a {@link ClassRegistration} generated at compile time are
+ * called through it first, with no handles at all.
+ */
+class InvokerCache {
+
+	private static final int MAX_SIGNATURES_PER_CLASS = 256;
+	private static final String CONSTRUCTOR = "<init>";
+	private static final MethodType METHOD_TYPE = MethodType.methodType(Object.class, Object.class, Object[].class);
+	private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class, Object[].class);
+
+	private ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, MethodHandle>> handles;
+	private ConcurrentHashMap<String, Class<?>> classes; // Registered and argument classes by name
+	private ConcurrentHashMap<Class<?>, ClassRegistration> registrations; // Generated callers, by the class they call
+
+	public InvokerCache() {
+		handles = new ConcurrentHashMap<>();
+		classes = new ConcurrentHashMap<>();
+		registrations = new ConcurrentHashMap<>();
+	}
+
+	public static String key(String name, String[] types) {
+		StringBuilder sb = new StringBuilder(name).append('(');
+		for (String type : types) {
+			sb.append(type).append(',');
+		}
+		return sb.append(')').toString();
+	}
+
+	public void addClass(Class<?> c) {
+		classes.put(c.getName(), c);
+	}
+
+	public void addRegistration(ClassRegistration registration) {
+		addClass(registration.getRegisteredClass());
+		registrations.put(registration.getRegisteredClass(), registration);
+	}
+
+	public void addMethod(Class<?> c, Method m, String[] types) {
+		MethodHandle handle = unreflect(m);
+		if (handle != null) {
+			handlesFor(c).putIfAbsent(key(m.getName(), types), handle);
+		}
+	}
+
+	public void addConstructor(Class<?> c, Constructor<?> constructor, String[] types) {
+		MethodHandle handle = unreflect(constructor);
+		if (handle != null) {
+			handlesFor(c).putIfAbsent(key(CONSTRUCTOR, types), handle);
+		}
+	}
+
+	/**
+	 * @param type a class name, already unstandardized
+	 */
+	public Class<?> getClass(String type) throws ClassNotFoundException {
+		Class<?> c = classes.get(type);
+		if (c == null) {
+			c = Class.forName(type);
+			classes.put(type, c);
+		}
+		return c;
+	}
+
+	public Object invoke(Object target, String methodName, String[] typeNames, Class<?>[] types, Object[] args) throws Exception {
+		Class<?> c = target.getClass();
+		String key = key(methodName, typeNames);
+		ClassRegistration registration = registrations.get(c);
+		if (registration != null) {
+			Object result = call(() -> registration.invoke(target, key, args));
+			if (result != ClassRegistration.NO_MATCH) {
+				return result;
+			}
+		}
+		MethodHandle handle = handlesFor(c).get(key);
+		if (handle == null) {
+			Method m = c.getMethod(methodName, types);
+			handle = unreflect(m);
+			if (handle == null) {
+				return m.invoke(target, args);
+			}
+			cache(c, key, handle);
+		}
+		try {
+			return (Object) handle.invokeExact(target, args);
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
+		}
+	}
+
+	public Object construct(Class<?> c, String[] typeNames, Class<?>[] types, Object[] args) throws Exception {
+		String key = key(CONSTRUCTOR, typeNames);
+		ClassRegistration registration = registrations.get(c);
+		if (registration != null) {
+			Object result = call(() -> registration.construct(key, args));
+			if (result != ClassRegistration.NO_MATCH) {
+				return result;
+			}
+		}
+		MethodHandle handle = handlesFor(c).get(key);
+		if (handle == null) {
+			Constructor<?> constructor = c.getConstructor(types);
+			handle = unreflect(constructor);
+			if (handle == null) {
+				return constructor.newInstance(args);
+			}
+			cache(c, key, handle);
+		}
+		try {
+			return (Object) handle.invokeExact(args);
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
+		}
+	}
+
+	private interface Call {
+		Object call() throws Throwable;
+	}
+
+	/**
+	 * Throws what the member threw wrapped, as calls through handles do
+	 */
+	private static Object call(Call call) throws InvocationTargetException {
+		try {
+			return call.call();
+		} catch (Throwable t) {
+			throw new InvocationTargetException(t);
+		}
+	}
+
+	private ConcurrentHashMap<String, MethodHandle> handlesFor(Class<?> c) {
+		return handles.computeIfAbsent(c, k -> new ConcurrentHashMap<>());
+	}
+
+	private void cache(Class<?> c, String key, MethodHandle handle) {
+		ConcurrentHashMap<String, MethodHandle> classHandles = handlesFor(c);
+		if (classHandles.size() < MAX_SIGNATURES_PER_CLASS) {
+			classHandles.putIfAbsent(key, handle);
+		}
+	}
+
+	/**
+	 * @return a handle taking (target, Object[] args), or null if the method cannot be unreflected
+	 */
+	private static MethodHandle unreflect(Method m) {
+		try {
+			m.setAccessible(true);
+			return MethodHandles.lookup().unreflect(m).asSpreader(Object[].class, m.getParameterCount())
+					.asType(METHOD_TYPE);
+		} catch (IllegalAccessException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private static MethodHandle unreflect(Constructor<?> constructor) {
+		try {
+			constructor.setAccessible(true);
+			return MethodHandles.lookup().unreflectConstructor(constructor)
+					.asSpreader(Object[].class, constructor.getParameterCount()).asType(CONSTRUCTOR_TYPE);
+		} catch (IllegalAccessException | RuntimeException e) {
+			return null;
+		}
+	}
+
+}
@@ -1,106 +1,617 @@
 package languageClient;
 
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
-import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.BaseStream;
 
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 import org.json.simple.parser.ParseException;
 
+import languageCommon.FrameDecoder;
+import languageCommon.FrameEncoder;
+import languageCommon.LanguageOperations;
+import languageCommon.Log;
+import languageCommon.Packed;
+import languageCommon.SharedMemoryTransport;
+
 @SuppressWarnings("unchecked")
 public class LanguageClient implements Runnable {
 
-	private String host;
-	private int port;
+	private static final int MAX_CALL_ID = 99999; // Call ids come back as 5 digits in the text protocol
+	private static final long RECONNECT_MILLIS = 500; // Between attempts to reach a core that was lost
+
+	private static final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "CallTimeouts");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private static final LanguageOperations[] OPERATIONS = LanguageOperations.values();
+
+	private static final Executor DEFAULT_EXECUTOR = newDefaultExecutor();
+
+	/**
+	 * Chunks a streamed result can be ahead of its caller before waiting on credit
+	 */
+	public static final int STREAM_WINDOW = 4;
+
+	/**
+	 * Calls a client asks to have in flight at once, unless multiLanguage.window says otherwise
+	 */
+	public static final int DEFAULT_WINDOW = 1024;
+
+	private Transport transport;
 
-	private JSONParser parser;
+	private JSONParser parser; // Only the thread reading from the core parses with it
 
-	private HashMap<String, Object> globalLocalObjects; // Objects that other languages have created that are stored
-														// locally
+	private ConcurrentHashMap<String, Object> globalLocalObjects; // Objects that other languages have created that are stored
+																	// locally
+	private InvokerCache invokers; // Resolved handles for the methods other languages call
 
-	private LinkedBlockingQueue<String> outgoing;
-	private SynchronousQueue<JSONObject> returnQue; //Blocks for return values;
+	private ConcurrentHashMap<Integer, PendingCall> pendingCalls; // Calls waiting on a return, by call id
+	private AtomicInteger nextCallId; // Recycled within MAX_CALL_ID, skipping ids still in flight
+	private volatile long callTimeout = 60000; // Milliseconds a call waits on its return, 0 for no limit
+	private ScheduledFuture<?> expiry;
+	private volatile String closed; // Why the connection is gone, once it is
+	private volatile long reconnectTimeout = Long.getLong("multiLanguage.reconnect", 0); // Milliseconds to try to reach a lost core for
+	private volatile String session; // Given by the core in Init, to resume with after reconnecting
+	private volatile int connection; // Counts reconnects, so prepared calls know to prepare again
+	private Set<String> registrations; // Every RegisterClass body sent, to send again to a core that lost them
+	private int requestedWindow = Integer.getInteger("multiLanguage.window", DEFAULT_WINDOW);
+	private volatile int windowSize; // Calls the core lets this client have in flight, as granted in Init
+	private volatile Semaphore window; // One permit per call that may still be sent
+
+	private boolean requestBinary; // Ask the core for the binary protocol during Init
+	private boolean requestSharedMemory; // Ask the core for shared memory rings during Init
+	private volatile boolean binary = false;
+	private volatile SharedMemoryTransport sharedMemory; // Carries frames instead of the transport once attached
+	private volatile CountDownLatch handshake; // Released once the protocol is settled, replaced on every reconnect
+	private ClientMetrics metrics;
+
+	private ConcurrentHashMap<Integer, OutgoingStream> streams; // Results this client is streaming, by stream id
+	private volatile int streamChunkSize = 256; // Values sent per chunk
+
+	private volatile Executor executor = DEFAULT_EXECUTOR; // Runs the calls and creates other languages send
+	private volatile boolean orderedPerObject = Boolean.getBoolean("multiLanguage.orderedCalls");
+	private ConcurrentHashMap<String, CompletableFuture<Void>> objectTails; // What the next task on each object waits for
 
 	public LanguageClient(String host, int port) {
-		this.host = host;
-		this.port = port;
-		outgoing = new LinkedBlockingQueue<>();
-		globalLocalObjects = new HashMap<>();
-		returnQue = new SynchronousQueue<>();
+		this(host, port, false);
+	}
+
+	public LanguageClient(String host, int port, boolean requestBinary) {
+		this(host, port, requestBinary, false);
+	}
+
+	/**
+	 * @param requestSharedMemory exchange frames with the core through shared memory
+	 *                            instead of the socket, when both run on the same host.
+	 *                            Implies the binary protocol. Falls back to the socket
+	 *                            if the core declines or its file cannot be mapped.
+	 */
+	public LanguageClient(String host, int port, boolean requestBinary, boolean requestSharedMemory) {
+		this(SocketTransport.tcp(host, port), requestBinary, requestSharedMemory);
+	}
+
+	/**
+	 * @param transport how to reach the core: {@link SocketTransport#tcp(String, int)},
+	 *                  {@link SocketTransport#unix(String)}, or an
+	 *                  {@link InProcessTransport} for a core in this JVM
+	 */
+	public LanguageClient(Transport transport) {
+		this(transport, false, false);
+	}
+
+	/**
+	 * @param requestBinary       ignored by direct transports, which encode nothing
+	 * @param requestSharedMemory ignored by direct transports
+	 */
+	public LanguageClient(Transport transport, boolean requestBinary, boolean requestSharedMemory) {
+		this.transport = transport;
+		this.requestBinary = !transport.isDirect() && (requestBinary || requestSharedMemory);
+		this.requestSharedMemory = this.requestBinary && requestSharedMemory && SharedMemoryTransport.isSupported();
+		globalLocalObjects = new ConcurrentHashMap<>();
+		invokers = new InvokerCache();
+		pendingCalls = new ConcurrentHashMap<>();
+		streams = new ConcurrentHashMap<>();
+		objectTails = new ConcurrentHashMap<>();
+		nextCallId = new AtomicInteger(1);
+		windowSize = requestedWindow;
+		window = new Semaphore(windowSize);
 		parser = new JSONParser();
+		handshake = new CountDownLatch(1);
+		registrations = Collections.synchronizedSet(new LinkedHashSet<>());
+		metrics = new ClientMetrics(pendingCalls, transport::getQueueSize);
+		metrics.registerMBean();
+		expiry = timeouts.scheduleWithFixedDelay(this::expireCalls, 100, 100, TimeUnit.MILLISECONDS);
 		Thread t = new Thread(this);
 		t.start();
 	}
 
 	@Override
 	public void run() {
-		Socket s = null;
 		try {
-			s = new Socket(host, port);
+			transport.connect();
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("Could not connect to " + transport, e);
+			disconnected("Could not connect to the core");
+			return;
 		}
-		try (PrintWriter out = new PrintWriter(s.getOutputStream(), true);
-				BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()))) {
+		do {
+			init();
+			try {
+				// Once frames go through shared memory the transport only tells when the core is gone
+				transport.run(new Receiver());
+			} catch (IOException e) {
+				Log.error("Connection to the core failed", e);
+			}
+		} while (reconnect());
+		disconnected("Disconnected from the core");
+	}
 
-			// Init stuff
-			JSONObject langData = new JSONObject();
-			langData.put("strictTypes", true);
-			writeCommand(LanguageOperations.Init, langData.toJSONString());
+	private void init() {
+		JSONObject langData = new JSONObject();
+		langData.put("strictTypes", true);
+		langData.put("window", requestedWindow);
+		if (requestBinary) {
+			JSONArray protocols = new JSONArray();
+			protocols.add("binary");
+			protocols.add("text");
+			langData.put("protocols", protocols);
+			if (requestSharedMemory) {
+				langData.put("sharedMemory", true);
+			}
+		}
+		if (session != null) {
+			langData.put("session", session);
+		}
+		// The core always answers, with the protocol and the window it grants
+		writeCommand(LanguageOperations.Init, langData);
+	}
 
-			while (true) {
-				try {
-					if (in.ready()) {
-						String input = in.readLine();
-						String action = input.substring(0, 5);
-						int returnID = Integer.parseInt(input.substring(5, 10));
-						String data = input.substring(10);
-						if (action.equals(String.format("%05d", LanguageOperations.CreateObject.ordinal()))) {
-							createObjectRemote(data);
-						} else if (action.equals(String.format("%05d", LanguageOperations.Error.ordinal()))) {
-							System.err.println("Error: " + data);
-						} else if (action.equals(String.format("%05d", LanguageOperations.CallMethod.ordinal()))) {
-							callMethodRemote(data, returnID);
-						} else if (action.equals(String.format("%05d", LanguageOperations.Return.ordinal()))) {
-							returnValue(data);
-						} else{
-							System.out.println("Unknown action: " + action);
-						}
-					}
+	/**
+	 * Tries to reach the core again for up to the reconnect timeout, once the calls
+	 * the lost connection carried have failed. The core gets the session to resume,
+	 * so this client keeps its id, classes and objects if the core still has them.
+	 *
+	 * @return whether the core was reached
+	 */
+	private boolean reconnect() {
+		long timeout = reconnectTimeout;
+		if (timeout <= 0 || session == null || transport.isDirect()) {
+			return false;
+		}
+		Log.info("Lost the core, reconnecting to ", transport);
+		handshake = new CountDownLatch(1);
+		binary = false;
+		dropConnection("Reconnecting to the core");
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		while (System.nanoTime() - deadline < 0) {
+			try {
+				Thread.sleep(RECONNECT_MILLIS);
+				transport.connect();
+			} catch (IOException e) {
+				Log.debug("Could not reach the core: ", e.getMessage());
+				continue;
+			} catch (InterruptedException e) {
+				return false;
+			}
+			connection++;
+			closed = null;
+			return true;
+		}
+		return false;
+	}
 
-					if (!outgoing.isEmpty()) {
-						out.println(outgoing.take());
-					}
-				} catch (ParseException | ClassNotFoundException e) {
-					e.printStackTrace();
+	private void disconnected(String message) {
+		dropConnection(message);
+		expiry.cancel(false);
+		handshake.countDown();
+	}
+
+	/**
+	 * Fails every call still waiting, since no return can arrive over the connection any more
+	 */
+	private void dropConnection(String message) {
+		closed = message;
+		SharedMemoryTransport shared = sharedMemory;
+		if (shared != null) {
+			sharedMemory = null;
+			shared.close();
+		}
+		transport.close();
+		// Nobody reads the results this client was streaming any more
+		for (Map.Entry<Integer, OutgoingStream> entry : streams.entrySet()) {
+			OutgoingStream stream = entry.getValue();
+			synchronized (stream) {
+				if (streams.remove(entry.getKey(), stream)) {
+					stream.close();
 				}
 			}
+		}
+		for (Integer callId : pendingCalls.keySet()) {
+			PendingCall call = pendingCalls.remove(callId);
+			if (call != null) {
+				call.fail(new InvalidObjectException(message));
+			}
+		}
+	}
 
-		} catch (IOException | InterruptedException e) {
-			e.printStackTrace();
+	private void expireCalls() {
+		long now = System.nanoTime();
+		for (Map.Entry<Integer, PendingCall> entry : pendingCalls.entrySet()) {
+			PendingCall call = entry.getValue();
+			if (call.deadlineNanos != 0 && now - call.deadlineNanos >= 0 && pendingCalls.remove(entry.getKey(), call)) {
+				metrics.error();
+				call.fail(new InvalidObjectException("Call timed out after " + call.timeout + " ms"));
+			}
+		}
+	}
+
+	/**
+	 * Virtual threads where the JVM has them, from Java 21 on, and a cached pool of
+	 * daemon threads otherwise
+	 */
+	private static Executor newDefaultExecutor() {
+		try {
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			AtomicInteger count = new AtomicInteger();
+			return Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "RemoteCall-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
 		}
 	}
 
+	/**
+	 * Runs something another language asked of an object here on the executor, so a
+	 * slow method holds up neither other calls nor the returns this client waits on.
+	 * It waits for a create of the object that is still running, and, if calls are
+	 * ordered per object, for everything sent to the object before it.
+	 *
+	 * @param serial whether later tasks on the object wait for this one
+	 */
+	private void dispatch(String varName, boolean serial, Runnable task) {
+		CompletableFuture<Void> before = objectTails.get(varName);
+		CompletableFuture<Void> done = before == null ? CompletableFuture.runAsync(task, executor)
+				: before.handle((r, e) -> null).thenRunAsync(task, executor);
+		if (serial) {
+			objectTails.put(varName, done);
+			done.whenComplete((r, e) -> objectTails.remove(varName, done));
+		}
+	}
 
+	/**
+	 * @return the call's id, or 0 if too many calls are in flight
+	 */
+	private int addPendingCall(PendingCall call) throws InvalidObjectException {
+		if (closed != null) {
+			throw new InvalidObjectException(closed);
+		}
+		if (pendingCalls.size() >= MAX_CALL_ID) {
+			return 0;
+		}
+		for (int i = 0; i < MAX_CALL_ID; i++) {
+			int callId = nextCallId.getAndUpdate(id -> id >= MAX_CALL_ID ? 1 : id + 1);
+			if (pendingCalls.putIfAbsent(callId, call) == null) {
+				return callId;
+			}
+		}
+		return 0;
+	}
 
+	private void handleInput(String input) throws ParseException, ClassNotFoundException, InterruptedException {
+		String action = input.substring(0, 5);
+		int returnID = Integer.parseInt(input.substring(5, 10));
+		String data = input.substring(10);
+		if (action.equals(String.format("%05d", LanguageOperations.CreateObject.ordinal()))) {
+			createObjectRemote(data);
+		} else if (action.equals(String.format("%05d", LanguageOperations.Error.ordinal()))) {
+			error(returnID, data);
+		} else if (action.equals(String.format("%05d", LanguageOperations.CallMethod.ordinal()))) {
+			callMethodRemote(data, returnID);
+		} else if (action.equals(String.format("%05d", LanguageOperations.Return.ordinal()))) {
+			returnValue(data, returnID);
+		} else if (action.equals(String.format("%05d", LanguageOperations.CallBatch.ordinal()))) {
+			callBatchRemote((JSONArray) ((JSONObject) parser.parse(data)).get("entries"), returnID);
+		} else if (action.equals(String.format("%05d", LanguageOperations.BatchReturn.ordinal()))) {
+			batchReturn((JSONObject) parser.parse(data), returnID);
+		} else if (action.equals(String.format("%05d", LanguageOperations.ReleaseObject.ordinal()))) {
+			releaseObjectRemote((String) ((JSONObject) parser.parse(data)).get("varName"));
+		} else if (action.equals(String.format("%05d", LanguageOperations.StreamChunk.ordinal()))) {
+			streamChunk((JSONObject) parser.parse(data), returnID);
+		} else if (action.equals(String.format("%05d", LanguageOperations.StreamEnd.ordinal()))) {
+			streamEnd((JSONObject) parser.parse(data), returnID);
+		} else if (action.equals(String.format("%05d", LanguageOperations.StreamCredit.ordinal()))) {
+			streamCreditRemote((JSONObject) parser.parse(data));
+		} else if (action.equals(String.format("%05d", LanguageOperations.Init.ordinal()))) {
+			initReply(data);
+		} else{
+			Log.warn("Unknown action: ", action);
+		}
+	}
+
+	private void handleFrame(FrameDecoder frame) throws ClassNotFoundException, InterruptedException {
+		switch (frame.getOperation()) {
+		case CreateObject: {
+			JSONObject objData = new JSONObject();
+			objData.put("name", frame.readString());
+			objData.put("varName", frame.readString());
+			objData.put("arguments", frame.readArguments());
+			createObjectRemote(objData);
+			break;
+		}
+		case CallMethod: {
+			JSONObject objData = new JSONObject();
+			objData.put("varName", frame.readString());
+			objData.put("name", frame.readString());
+			objData.put("arguments", frame.readArguments());
+			callMethodRemote(objData, frame.getCallId());
+			break;
+		}
+		case Return: {
+			JSONObject arg = frame.readArgument();
+			Object value = arg.keySet().iterator().next();
+			JSONObject returnObj = new JSONObject();
+			returnObj.put("returnVal", value);
+			returnObj.put("returnType", arg.get(value));
+			returnValue(returnObj, frame.getCallId());
+			break;
+		}
+		case CallBatch:
+			callBatchRemote(frame.readBatchEntries(), frame.getCallId());
+			break;
+		case BatchReturn: {
+			JSONObject returnObj = new JSONObject();
+			returnObj.put("results", frame.readBatchResults());
+			batchReturn(returnObj, frame.getCallId());
+			break;
+		}
+		case Error:
+			error(frame.getCallId(), frame.readString());
+			break;
+		case ReleaseObject:
+			releaseObjectRemote(frame.readString());
+			break;
+		case StreamChunk: {
+			JSONObject chunk = new JSONObject();
+			chunk.put("streamID", frame.readVarint());
+			chunk.put("values", frame.readArguments());
+			streamChunk(chunk, frame.getCallId());
+			break;
+		}
+		case StreamEnd: {
+			JSONObject end = new JSONObject();
+			end.put("streamID", frame.readVarint());
+			if (frame.hasRemaining()) {
+				end.put("error", frame.readString());
+			}
+			streamEnd(end, frame.getCallId());
+			break;
+		}
+		case StreamCredit: {
+			JSONObject creditData = new JSONObject();
+			creditData.put("streamID", frame.readVarint());
+			creditData.put("credit", frame.readVarint());
+			streamCreditRemote(creditData);
+			break;
+		}
+		case None: {
+			// The core wrote to a ring the reader was asleep on
+			SharedMemoryTransport shared = sharedMemory;
+			if (shared != null) {
+				shared.wake();
+			}
+			break;
+		}
+		default:
+			Log.warn("Unknown action: ", frame.getOperation());
+		}
+	}
+
+	/**
+	 * Handles one message from a direct transport, whose bodies are the objects the
+	 * text protocol carries
+	 */
+	private void handleMessage(Object[] message) throws ClassNotFoundException, InterruptedException {
+		int returnID = (Integer) message[1];
+		Object body = message[2];
+		switch (OPERATIONS[(Integer) message[0]]) {
+		case CreateObject:
+			createObjectRemote((JSONObject) body);
+			break;
+		case CallMethod:
+			callMethodRemote((JSONObject) body, returnID);
+			break;
+		case Return:
+			returnValue((JSONObject) body, returnID);
+			break;
+		case CallBatch:
+			callBatchRemote((JSONArray) ((JSONObject) body).get("entries"), returnID);
+			break;
+		case BatchReturn:
+			batchReturn((JSONObject) body, returnID);
+			break;
+		case Error:
+			error(returnID, (String) body);
+			break;
+		case ReleaseObject:
+			releaseObjectRemote((String) ((JSONObject) body).get("varName"));
+			break;
+		case StreamChunk:
+			streamChunk((JSONObject) body, returnID);
+			break;
+		case StreamEnd:
+			streamEnd((JSONObject) body, returnID);
+			break;
+		case StreamCredit:
+			streamCreditRemote((JSONObject) body);
+			break;
+		case Init:
+			initReply((JSONObject) body);
+			break;
+		default:
+			Log.warn("Unknown action: ", OPERATIONS[(Integer) message[0]]);
+		}
+	}
+
+	private void initReply(String jsonData) throws ParseException {
+		initReply((JSONObject) parser.parse(jsonData));
+	}
+
+	private void initReply(JSONObject reply) {
+		Object token = reply.get("session");
+		boolean lost = false;
+		if (token != null) {
+			lost = session != null && !Boolean.TRUE.equals(reply.get("resumed"));
+			session = token.toString();
+		}
+		Object granted = reply.get("window");
+		if (granted != null) {
+			windowSize = Integer.parseInt(granted.toString());
+			window = new Semaphore(windowSize);
+		}
+		binary = "binary".equals(reply.get("protocol"));
+		String path = (String) reply.get("sharedMemory");
+		if (path != null) {
+			attachSharedMemory(path);
+		}
+		handshake.countDown();
+		if (lost) {
+			Log.info("The core did not resume the session, registering the classes again");
+			List<String> descriptors;
+			synchronized (registrations) {
+				descriptors = new ArrayList<>(registrations);
+			}
+			sendRegistrations(descriptors);
+		}
+	}
+
+	/**
+	 * Maps the core's shared memory file and tells the core whether that worked. The
+	 * answer is the last frame on the transport; everything after it goes through the rings.
+	 */
+	private void attachSharedMemory(String path) {
+		SharedMemoryTransport shared = null;
+		try {
+			shared = SharedMemoryTransport.open(path, () -> transport.send(SharedMemoryTransport.DOORBELL));
+			shared.setMaxBacklog(Math.max(1, Integer.getInteger("multiLanguage.maxQueue", SocketTransport.DEFAULT_MAX_QUEUE)));
+			shared.setBlocking(true);
+		} catch (IOException e) {
+			Log.warn("Could not map shared memory, staying on the transport: ", e);
+		}
+		JSONObject answer = new JSONObject();
+		answer.put("attached", shared != null);
+		writeCommand(LanguageOperations.Init, answer.toJSONString());
+		if (shared != null) {
+			sharedMemory = shared;
+			shared.start("LanguageClient", frame -> {
+				metrics.frameIn(4 + frame.length);
+				try {
+					handleFrame(new FrameDecoder(frame, 0, frame.length));
+				} catch (ClassNotFoundException | InterruptedException e) {
+					Log.error("Could not handle message", e);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Waits for the Init reply, since frames can only be encoded once the protocol is known
+	 */
+	private boolean useBinary() {
+		try {
+			handshake.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return binary;
+	}
+
+	/**
+	 * Registers the class's @Global constructors and methods with the core. If the class
+	 * was compiled with {@link GlobalProcessor}, the registration it generated is sent as
+	 * it is and calls go straight to the members, with no reflection.
+	 *
+	 * @throws IllegalArgumentException if the class has no @Global constructor, or a
+	 *                                  parameter other languages cannot pass
+	 */
 	public void registerClass(Class c) {
+		sendRegistrations(Collections.singletonList(describe(c)));
+	}
+
+	/**
+	 * Registers the classes in one frame, which the core takes in one go
+	 */
+	public void registerAll(Class<?>... classes) {
+		List<String> descriptors = new ArrayList<>();
+		for (Class<?> c : classes) {
+			descriptors.add(describe(c));
+		}
+		sendRegistrations(descriptors);
+	}
+
+	/**
+	 * Registers every class {@link GlobalProcessor} generated a registration for that
+	 * this client's class loader can see, in one frame, without any reflection
+	 *
+	 * @return the classes registered
+	 */
+	public List<Class<?>> registerAll() {
+		List<Class<?>> registered = new ArrayList<>();
+		List<String> descriptors = new ArrayList<>();
+		for (ClassRegistration registration : ServiceLoader.load(ClassRegistration.class, getClass().getClassLoader())) {
+			invokers.addRegistration(registration);
+			registered.add(registration.getRegisteredClass());
+			descriptors.add(registration.getDescriptor());
+		}
+		sendRegistrations(descriptors);
+		return registered;
+	}
+
+	/**
+	 * @return the RegisterClass body for the class, from its generated registration if it has one
+	 */
+	private String describe(Class<?> c) {
+		ClassRegistration registration = ClassRegistration.find(c);
+		if (registration != null) {
+			invokers.addRegistration(registration);
+			return registration.getDescriptor();
+		}
 
 		JSONObject classObj = new JSONObject();
 		classObj.put("name", c.getName());
+		invokers.addClass(c);
 		JSONArray methods = new JSONArray();
 		for (Method m : c.getMethods()) {
 			if (m.isAnnotationPresent(Global.class)) {
@@ -110,13 +621,21 @@ public class LanguageClient implements Runnable {
 				for (Parameter p : m.getParameters()) {
 					Class<?> paramType = p.getType();
 					if (!validClass(paramType)) {
-						throw new RuntimeException("Cannot use type " + paramType.getName());
+						throw new IllegalArgumentException("Cannot use type " + paramType.getName());
 					}
 					paramArr.add(standardize(paramType.getName()));
 
 				}
+				invokers.addMethod(c, m, (String[]) paramArr.toArray(new String[0]));
 				methodObj.put("parameters", paramArr);
 				methodObj.put("return", m.getReturnType().getName());
+				Global global = m.getAnnotation(Global.class);
+				if (global.cacheTtl() > 0) {
+					JSONObject cacheObj = new JSONObject();
+					cacheObj.put("ttl", global.cacheTtl());
+					cacheObj.put("size", global.cacheSize());
+					methodObj.put("cache", cacheObj);
+				}
 				methods.add(methodObj);
 			}
 		}
@@ -129,154 +648,917 @@ public class LanguageClient implements Runnable {
 				for (Parameter p : constructor.getParameters()) {
 					Class<?> paramType = p.getType();
 					if (!validClass(paramType)) {
-						throw new RuntimeException("Cannot use type " + paramType.getName());
+						throw new IllegalArgumentException("Cannot use type " + paramType.getName());
 					}
 					paramArr.add(standardize(paramType.getName()));
 
 				}
+				invokers.addConstructor(c, constructor, (String[]) paramArr.toArray(new String[0]));
 				constructors.add(paramArr);
 			}
 		}
 
 		if (constructors.isEmpty()) {
-			System.err.println("Object must have atleast one global constructor");
-			System.exit(1);
+			throw new IllegalArgumentException(c.getName() + " must have at least one global constructor");
 		}
 		classObj.put("constructors", constructors);
+		return classObj.toJSONString();
+	}
 
-		writeCommand(LanguageOperations.RegisterClass, classObj.toJSONString());
+	/**
+	 * Sends one class as its own RegisterClass body, and several as {"classes":[...]}
+	 */
+	private void sendRegistrations(List<String> descriptors) {
+		if (descriptors.isEmpty()) {
+			return;
+		}
+		registrations.addAll(descriptors);
+		String body = descriptors.size() == 1 ? descriptors.get(0) : "{\"classes\":[" + String.join(",", descriptors) + "]}";
+		if (useBinary()) {
+			send(new FrameEncoder(LanguageOperations.RegisterClass, 0).writeString(body).toByteArray());
+			return;
+		}
+		if (transport.isDirect()) {
+			try {
+				// Registering runs on the caller's thread, and JSONParser is not thread safe
+				writeCommand(LanguageOperations.RegisterClass, (JSONObject) new JSONParser().parse(body));
+			} catch (ParseException e) {
+				throw new IllegalStateException("Malformed registration " + body, e);
+			}
+			return;
+		}
+		writeCommand(LanguageOperations.RegisterClass, body);
 	}
 
+	/**
+	 * Creates an object that lives until it is released, this client disconnects, or
+	 * the core's default lease runs out
+	 */
 	public void createObject(String className, String varName, Object... params) throws InvalidObjectException {
-		JSONArray paramsArr = new JSONArray();
-		for (Object o : params) {
-			if (!isValidObject(o)) {
-				throw new InvalidObjectException("Object " + o.getClass().getName() + " is not valid");
+		createObject(-1, className, varName, params);
+	}
+
+	/**
+	 * @param lease milliseconds the object may go unused before the core releases it,
+	 *              0 to keep it until it is released, or -1 for the core's default
+	 */
+	public void createObject(long lease, String className, String varName, Object... params) throws InvalidObjectException {
+		JSONArray paramsArr = toArguments(params);
+		if (useBinary()) {
+			FrameEncoder frame = new FrameEncoder(LanguageOperations.CreateObject, 0).writeString(className)
+					.writeString(varName).writeArguments(paramsArr);
+			if (lease >= 0) {
+				frame.writeVarint(lease);
 			}
-			JSONObject param = new JSONObject();
-			param.put(o.toString(), standardize(o.getClass().getName()));
-			paramsArr.add(param);
+			send(frame.toByteArray());
+			return;
 		}
 		JSONObject objData = new JSONObject();
 		objData.put("name", className);
 		objData.put("arguments", paramsArr);
 		objData.put("varName", varName);
-		writeCommand(LanguageOperations.CreateObject, objData.toJSONString());
+		if (lease >= 0) {
+			objData.put("lease", lease);
+		}
+		writeCommand(LanguageOperations.CreateObject, objData);
+	}
+
+	/**
+	 * Releases an object so the language holding it can drop it. Calls already sent
+	 * to it still run.
+	 */
+	public void releaseObject(String varName) {
+		if (useBinary()) {
+			send(new FrameEncoder(LanguageOperations.ReleaseObject, 0).writeString(varName).toByteArray());
+			return;
+		}
+		JSONObject objData = new JSONObject();
+		objData.put("varName", varName);
+		writeCommand(LanguageOperations.ReleaseObject, objData);
 	}
 	
 
-	private void callMethodRemote(String jsonData, int returnID) throws ParseException, ClassNotFoundException {
-		System.out.println("Calling method with " + jsonData);
-		JSONObject objData = (JSONObject) parser.parse(jsonData);
-		String methodName = (String) objData.get("name");
-		String varName = (String) objData.get("varName");
-		JSONArray jsonArgs = (JSONArray) objData.get("arguments");
-		Object[] args = new Object[jsonArgs.size()];
-		Class[] types = new Class[jsonArgs.size()];
-		for (int i = 0; i < args.length; i++) {
-			JSONObject arg = (JSONObject) jsonArgs.get(i);
-			types[i] = Class.forName(unstandardize(arg.values().toArray()[0].toString()));
-			args[i] = box(arg.keySet().toArray()[0].toString(), types[i].getName());
+	private void callMethodRemote(String jsonData, int returnID) throws ParseException {
+		Log.debug("Calling method with ", jsonData);
+		callMethodRemote((JSONObject) parser.parse(jsonData), returnID);
+	}
+
+	private void callMethodRemote(JSONObject objData, int returnID) {
+		dispatch((String) objData.get("varName"), orderedPerObject, () -> serveCall(objData, returnID));
+	}
+
+	/**
+	 * Runs a call the core routed here and answers it with its return value, or with an
+	 * Error under the same return id if it failed, so the caller does not wait it out
+	 */
+	private void serveCall(JSONObject objData, int returnID) {
+		metrics.callServed();
+		Object returnVal;
+		try {
+			returnVal = invokeRemote(objData);
+		} catch (Exception e) {
+			Log.error("Remote call failed", e);
+			if (returnID != 0) {
+				Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+				returnError(returnID, cause.toString());
+			}
+			return;
+		}
+		if (returnVal instanceof Iterator || returnVal instanceof BaseStream) {
+			startStream(returnID, returnVal);
+			return;
 		}
+		if (returnID == 0) {
+			return;
+		}
+		String returnType = returnVal == null ? "void" : standardize(returnVal.getClass().getName());
+		if (binary) {
+			send(new FrameEncoder(LanguageOperations.Return, returnID).writeArgument(toValue(returnVal), returnType)
+					.toByteArray());
+			return;
+		}
+		JSONObject returnObj = new JSONObject();
+		returnObj.put("returnID", returnID);
+		returnObj.put("returnVal", toWireValue(returnVal));
+		returnObj.put("returnType", returnType);
+		writeCommand(LanguageOperations.Return, returnObj);
+	}
+
+	private void returnError(int returnID, String message) {
+		if (binary) {
+			send(new FrameEncoder(LanguageOperations.Error, returnID).writeString(message).toByteArray());
+			return;
+		}
+		JSONObject errorObj = new JSONObject();
+		errorObj.put("returnID", returnID);
+		errorObj.put("error", message);
+		writeCommand(LanguageOperations.Error, errorObj);
+	}
+
+	/**
+	 * Sends a returned Iterator or Stream as chunks instead of one Return, as far as the
+	 * caller's credit allows. The call's return id doubles as the stream's id.
+	 */
+	private void startStream(int streamId, Object returnVal) {
+		OutgoingStream stream = new OutgoingStream(returnVal);
+		if (streamId == 0) {
+			stream.close();
+			return;
+		}
+		streams.put(streamId, stream);
+		pumpStream(streamId, stream);
+	}
+
+	/**
+	 * Sends as many chunks as the stream has credit for. Credit is handled on the
+	 * executor as well, so the stream is locked while its values are read.
+	 */
+	private void pumpStream(int streamId, OutgoingStream stream) {
+		synchronized (stream) {
+			if (streams.get(streamId) == stream) {
+				sendStreamChunks(streamId, stream);
+			}
+		}
+	}
+
+	private void sendStreamChunks(int streamId, OutgoingStream stream) {
 		try {
-			Object obj = globalLocalObjects.get(varName);
-			Object returnVal = obj.getClass().getMethod(methodName, types).invoke(obj, args);
-			if(returnID != 0) {
-				JSONObject returnObj = new JSONObject();
-				returnObj.put("returnID", returnID);
-				returnObj.put("returnVal", returnVal.toString());
-				returnObj.put("returnType", standardize(returnVal.getClass().getName()));
-				writeCommand(LanguageOperations.Return, returnObj.toJSONString());
+			while (stream.credit > 0 && stream.values.hasNext()) {
+				JSONArray values = new JSONArray();
+				while (values.size() < streamChunkSize && stream.values.hasNext()) {
+					values.add(toArgument(stream.values.next()));
+				}
+				stream.credit--;
+				sendStreamChunk(streamId, values);
+			}
+			if (!stream.values.hasNext()) {
+				endStream(streamId, stream, null);
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
+			Log.error("Streamed call failed", e);
+			endStream(streamId, stream, e.toString());
 		}
 	}
+
+	private void sendStreamChunk(int streamId, JSONArray values) {
+		if (binary) {
+			send(new FrameEncoder(LanguageOperations.StreamChunk, streamId).writeVarint(streamId).writeArguments(values)
+					.toByteArray());
+			return;
+		}
+		JSONObject chunk = new JSONObject();
+		chunk.put("streamID", streamId);
+		chunk.put("values", values);
+		writeCommand(LanguageOperations.StreamChunk, chunk);
+	}
+
+	private void endStream(int streamId, OutgoingStream stream, String error) {
+		streams.remove(streamId);
+		stream.close();
+		if (binary) {
+			FrameEncoder frame = new FrameEncoder(LanguageOperations.StreamEnd, streamId).writeVarint(streamId);
+			if (error != null) {
+				frame.writeString(error);
+			}
+			send(frame.toByteArray());
+			return;
+		}
+		JSONObject end = new JSONObject();
+		end.put("streamID", streamId);
+		if (error != null) {
+			end.put("error", error);
+		}
+		writeCommand(LanguageOperations.StreamEnd, end);
+	}
+
+	/**
+	 * Lets a stream this client produces send more chunks, or drops it on a credit of 0
+	 */
+	private void streamCreditRemote(JSONObject creditData) {
+		int streamId = Integer.parseInt(creditData.get("streamID").toString());
+		int credit = Integer.parseInt(creditData.get("credit").toString());
+		OutgoingStream stream = streams.get(streamId);
+		if (stream == null) {
+			return;
+		}
+		executor.execute(() -> {
+			synchronized (stream) {
+				if (credit == 0) {
+					if (streams.remove(streamId, stream)) {
+						stream.close();
+					}
+					return;
+				}
+				stream.credit += credit;
+			}
+			pumpStream(streamId, stream);
+		});
+	}
+
+	/**
+	 * One chunk of a result this client is waiting on. The first completes the call with
+	 * the {@link RemoteStream} the rest arrive on.
+	 */
+	private void streamChunk(JSONObject chunk, int callId) {
+		Object id = chunk.get("returnID");
+		if (id != null) {
+			callId = Integer.parseInt(id.toString());
+		}
+		PendingCall call = pendingCalls.get(callId);
+		if (call == null) {
+			Log.warn("No call is waiting on stream ", callId);
+			return;
+		}
+		call.renew();
+		List<Object> values = new ArrayList<>();
+		for (Object v : (JSONArray) chunk.get("values")) {
+			Map.Entry<?, ?> value = (Map.Entry<?, ?>) ((JSONObject) v).entrySet().iterator().next();
+			String type = value.getValue().toString();
+			try {
+				values.add(type.equals("void") || type.equals("null") ? null : box(value.getKey(), invokers.getClass(unstandardize(type))));
+			} catch (ClassNotFoundException e) {
+				values.add(String.valueOf(value.getKey()));
+			}
+		}
+		openStream(call, callId, chunk).offer(values);
+	}
+
+	private void streamEnd(JSONObject end, int callId) {
+		Object id = end.get("returnID");
+		if (id != null) {
+			callId = Integer.parseInt(id.toString());
+		}
+		PendingCall call = pendingCalls.remove(callId);
+		if (call == null) {
+			Log.warn("No call is waiting on stream ", callId);
+			return;
+		}
+		metrics.getCallHistogram().recordSince(call.startNanos);
+		String error = (String) end.get("error");
+		if (call.stream == null && error != null) {
+			metrics.error();
+			call.completeExceptionally(new InvalidObjectException(error));
+			return;
+		}
+		openStream(call, callId, end).end(error);
+	}
+
+	private RemoteStream openStream(PendingCall call, int callId, JSONObject data) {
+		if (call.stream == null) {
+			call.stream = new RemoteStream(this, callId, Integer.parseInt(data.get("streamID").toString()));
+			call.complete(call.stream);
+		}
+		return call.stream;
+	}
+
+	/**
+	 * Grants the callee credit for more chunks of a stream this client reads
+	 */
+	void streamCredit(RemoteStream stream, int credit) {
+		PendingCall call = pendingCalls.get(stream.getCallId());
+		if (call == null || call.stream != stream) {
+			return;
+		}
+		call.renew();
+		sendStreamCredit(stream.getStreamId(), credit);
+	}
+
+	/**
+	 * Stops a stream before its end, so the callee stops producing it
+	 */
+	void cancelStream(RemoteStream stream) {
+		PendingCall call = pendingCalls.get(stream.getCallId());
+		if (call != null && call.stream == stream && pendingCalls.remove(stream.getCallId(), call)) {
+			sendStreamCredit(stream.getStreamId(), 0);
+		}
+	}
+
+	private void sendStreamCredit(int streamId, int credit) {
+		if (useBinary()) {
+			send(new FrameEncoder(LanguageOperations.StreamCredit, 0).writeVarint(streamId).writeVarint(credit)
+					.toByteArray());
+			return;
+		}
+		JSONObject creditData = new JSONObject();
+		creditData.put("streamID", streamId);
+		creditData.put("credit", credit);
+		writeCommand(LanguageOperations.StreamCredit, creditData);
+	}
 	
 	public Object callMethod(String varName, String methodName, boolean hasReturnVal, Object... args) throws InvalidObjectException, InterruptedException, ClassNotFoundException {
-		JSONArray paramsArr = new JSONArray();
-		for (Object o : args) {
-			if (!isValidObject(o)) {
-				throw new InvalidObjectException("Object " + o.getClass().getName() + " is not valid");
+		if(!hasReturnVal) {
+			sendCall(varName, methodName, 0, 0, args);
+			return null;
+		}
+		try {
+			return callMethodAsync(varName, methodName, args).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof InvalidObjectException) {
+				throw (InvalidObjectException) e.getCause();
+			} else if (e.getCause() instanceof ClassNotFoundException) {
+				throw (ClassNotFoundException) e.getCause();
 			}
-			JSONObject param = new JSONObject();
-			param.put(o.toString(), standardize(o.getClass().getName()));
-			paramsArr.add(param);
+			throw new RuntimeException(e.getCause());
 		}
-		JSONObject objData = new JSONObject();
-		objData.put("name", methodName);
-		objData.put("arguments", paramsArr);
-		objData.put("varName", varName);
-		writeCommand(LanguageOperations.CallMethod, objData.toJSONString());
-		if(hasReturnVal) {
-			System.out.println("Waiting on return q");
-			JSONObject returnVal = returnQue.take();
-			String returnType = (String) returnVal.get("returnType");
-			Class returnClass = Class.forName(unstandardize(returnType));
-			return box(returnVal.get("returnVal").toString(), returnClass.getName());
-		} else {
+	}
+
+	/**
+	 * Calls a method without waiting for its return. As many calls as the window the
+	 * core granted can be outstanding at once, and once all of it is in flight this
+	 * waits for one to finish, for up to the call timeout. Each call is matched to its
+	 * Return by call id. Void methods complete with null once the core has routed the
+	 * call. The call fails once the client's call timeout passes without a return.
+	 */
+	public CompletableFuture<Object> callMethodAsync(String varName, String methodName, Object... args) throws InvalidObjectException {
+		return callMethodAsync(callTimeout, varName, methodName, args);
+	}
+
+	/**
+	 * @param timeout milliseconds to wait on the return, or 0 for no limit. The core
+	 *                is told as well, so it can free the call and answer with an error.
+	 */
+	public CompletableFuture<Object> callMethodAsync(long timeout, String varName, String methodName, Object... args) throws InvalidObjectException {
+		Semaphore permit = acquireWindow();
+		if (permit == null) {
+			return windowFull();
+		}
+		return startCall(permit, timeout, callId -> sendCall(varName, methodName, callId, timeout, args));
+	}
+
+	/**
+	 * Has the core resolve a method of an object once, for arguments of the given types,
+	 * and returns a handle that calls it without the core looking it up again. Preparing
+	 * the same call twice returns the same handle.
+	 *
+	 * @param argTypes the classes the arguments will be instances of, primitive or boxed
+	 */
+	public PreparedCall prepareCall(String varName, String methodName, Class<?>... argTypes) throws InvalidObjectException, InterruptedException {
+		Class<?>[] boxed = new Class<?>[argTypes.length];
+		for (int i = 0; i < argTypes.length; i++) {
+			boxed[i] = MethodType.methodType(argTypes[i]).wrap().returnType();
+		}
+		int current = connection;
+		return new PreparedCall(this, prepare(varName, methodName, boxed), current, varName, methodName, boxed);
+	}
+
+	/**
+	 * @param argTypes boxed
+	 * @return the handle the core gave the call on this connection
+	 */
+	private int prepare(String varName, String methodName, Class<?>[] argTypes) throws InvalidObjectException, InterruptedException {
+		String[] types = new String[argTypes.length];
+		for (int i = 0; i < argTypes.length; i++) {
+			types[i] = standardize(argTypes[i].getName());
+		}
+		Semaphore permit = acquireWindow();
+		CompletableFuture<Object> handle = permit == null ? windowFull()
+				: startCall(permit, callTimeout, callId -> sendPrepare(varName, methodName, types, callId));
+		try {
+			return (Integer) handle.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof InvalidObjectException) {
+				throw (InvalidObjectException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private void sendPrepare(String varName, String methodName, String[] types, int callId) {
+		if (useBinary()) {
+			FrameEncoder frame = new FrameEncoder(LanguageOperations.PrepareCall, callId).writeString(varName)
+					.writeString(methodName).writeVarint(types.length);
+			for (String type : types) {
+				frame.writeString(type);
+			}
+			send(frame.toByteArray());
+			return;
+		}
+		JSONObject prepareData = new JSONObject();
+		prepareData.put("varName", varName);
+		prepareData.put("name", methodName);
+		JSONArray typeList = new JSONArray();
+		typeList.addAll(Arrays.asList(types));
+		prepareData.put("types", typeList);
+		prepareData.put("callID", callId);
+		writeCommand(LanguageOperations.PrepareCall, prepareData);
+	}
+
+	/**
+	 * Calls a prepared method. The arguments are checked against its types here, since
+	 * the core does not check them again. It takes a place in the window like any other call.
+	 */
+	CompletableFuture<Object> callPreparedAsync(PreparedCall call, Object... args) throws InvalidObjectException {
+		Class<?>[] argTypes = call.getArgTypes();
+		if (args.length != argTypes.length) {
+			throw new InvalidObjectException(call.getMethodName() + " was prepared for " + argTypes.length + " arguments, not " + args.length);
+		}
+		for (int i = 0; i < args.length; i++) {
+			if (args[i] != null && !argTypes[i].isInstance(args[i])) {
+				throw new InvalidObjectException("Argument " + i + " of " + call.getMethodName() + " was prepared as "
+						+ argTypes[i].getName() + ", not " + args[i].getClass().getName());
+			}
+		}
+		int handle = preparedHandle(call);
+		Semaphore permit = acquireWindow();
+		if (permit == null) {
+			return windowFull();
+		}
+		long timeout = callTimeout;
+		return startCall(permit, timeout, callId -> {
+			JSONArray paramsArr = toArguments(args);
+			if (useBinary()) {
+				send(new FrameEncoder(LanguageOperations.CallPrepared, callId).writeVarint(handle)
+						.writeArguments(paramsArr).writeVarint(timeout).toByteArray());
+				return;
+			}
+			JSONObject callData = new JSONObject();
+			callData.put("handle", handle);
+			callData.put("arguments", paramsArr);
+			callData.put("callID", callId);
+			callData.put("timeout", timeout);
+			writeCommand(LanguageOperations.CallPrepared, callData);
+		});
+	}
+
+	/**
+	 * @return the call's handle, prepared again first if it was prepared before the
+	 *         client last reconnected, since handles belong to a connection
+	 */
+	private int preparedHandle(PreparedCall call) throws InvalidObjectException {
+		int current = connection;
+		if (call.getConnection() == current) {
+			return call.getHandle();
+		}
+		synchronized (call) {
+			if (call.getConnection() != current) {
+				try {
+					call.rebind(prepare(call.getVarName(), call.getMethodName(), call.getArgTypes()), current);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InvalidObjectException("Interrupted while preparing " + call.getMethodName() + " again");
+				}
+			}
+			return call.getHandle();
+		}
+	}
+
+	/**
+	 * Sends one call that waits on a return
+	 */
+	private interface CallSender {
+		void send(int callId) throws InvalidObjectException;
+	}
+
+	/**
+	 * @param permit the window's place for the call, given back once the call completes
+	 */
+	private PendingCall startCall(Semaphore permit, long timeout, CallSender sender) throws InvalidObjectException {
+		PendingCall future = new PendingCall(timeout);
+		future.whenComplete((r, e) -> permit.release());
+		try {
+			int callId = addPendingCall(future);
+			if (callId == 0) {
+				throw new InvalidObjectException("Too many calls in flight");
+			}
+			try {
+				sender.send(callId);
+			} catch (InvalidObjectException e) {
+				pendingCalls.remove(callId);
+				throw e;
+			}
+		} catch (InvalidObjectException e) {
+			future.completeExceptionally(e);
+			throw e;
+		}
+		return future;
+	}
+
+	/**
+	 * Takes a place in the window for a call, waiting up to the call timeout for a call
+	 * in flight to finish if there is none. The window is only known once the core has
+	 * answered Init, so this waits for that first.
+	 *
+	 * @return the semaphore the place was taken from, or null if none came free. Also
+	 *         null if the thread is interrupted while waiting, with its interrupt kept.
+	 */
+	private Semaphore acquireWindow() {
+		useBinary();
+		Semaphore permits = window;
+		try {
+			if (callTimeout > 0) {
+				return permits.tryAcquire(callTimeout, TimeUnit.MILLISECONDS) ? permits : null;
+			}
+			permits.acquire();
+			return permits;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			return null;
 		}
 	}
+
+	private <T> CompletableFuture<T> windowFull() {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(new InvalidObjectException("Timed out waiting for one of the " + windowSize + " calls in flight to finish"));
+		return future;
+	}
+
+	private void sendCall(String varName, String methodName, int callId, long timeout, Object... args) throws InvalidObjectException {
+		JSONArray paramsArr = toArguments(args);
+		if (useBinary()) {
+			FrameEncoder frame = new FrameEncoder(LanguageOperations.CallMethod, callId).writeString(varName)
+					.writeString(methodName).writeArguments(paramsArr);
+			if (callId != 0) {
+				frame.writeVarint(timeout);
+			}
+			send(frame.toByteArray());
+		} else {
+			JSONObject objData = new JSONObject();
+			objData.put("name", methodName);
+			objData.put("arguments", paramsArr);
+			objData.put("varName", varName);
+			objData.put("callID", callId);
+			if (callId != 0) {
+				objData.put("timeout", timeout);
+			}
+			writeCommand(LanguageOperations.CallMethod, objData);
+		}
+	}
 	
-	public void returnValue(String jsonReturnData) throws InterruptedException, ParseException {
-		System.out.println("Inserting into ret q");
-		returnQue.put((JSONObject) parser.parse(jsonReturnData));
+	public void returnValue(String jsonReturnData, int returnID) throws ParseException {
+		returnValue((JSONObject) parser.parse(jsonReturnData), returnID);
 	}
 
-	private void createObjectRemote(String jsonData) throws ParseException, ClassNotFoundException {
-		System.out.println("Creating global local object with data " + jsonData);
-		JSONObject objData = (JSONObject) parser.parse(jsonData);
+	private void returnValue(JSONObject returnObj, int returnID) {
+		Object id = returnObj.get("returnID");
+		if (id != null) {
+			returnID = Integer.parseInt(id.toString());
+		}
+		PendingCall future = pendingCalls.remove(returnID);
+		if (future == null) {
+			Log.warn("No call is waiting on return ", returnID);
+			return;
+		}
+		metrics.getCallHistogram().recordSince(future.startNanos);
+		String returnType = (String) returnObj.get("returnType");
+		if (returnType.equals("void")) {
+			future.complete(null);
+			return;
+		}
+		try {
+			Class returnClass = Class.forName(unstandardize(returnType));
+			future.complete(box(returnObj.get("returnVal"), returnClass));
+		} catch (ClassNotFoundException e) {
+			future.completeExceptionally(e);
+		}
+	}
+
+	private void error(int callId, String message) {
+		metrics.error();
+		PendingCall future = callId != 0 ? pendingCalls.remove(callId) : null;
+		if (future != null) {
+			future.fail(new InvalidObjectException(message));
+		} else {
+			Log.error("Error: " + message);
+		}
+	}
+
+	private void createObjectRemote(String jsonData) throws ParseException {
+		Log.debug("Creating global local object with data ", jsonData);
+		createObjectRemote((JSONObject) parser.parse(jsonData));
+	}
+
+	/**
+	 * Calls on the new object wait for its constructor to finish
+	 */
+	private void createObjectRemote(JSONObject objData) {
+		dispatch((String) objData.get("varName"), true, () -> {
+			metrics.callServed();
+			try {
+				constructRemote(objData);
+			} catch (Exception e) {
+				Log.error("Remote object creation failed", e);
+			}
+		});
+	}
+
+	private void releaseObjectRemote(String varName) {
+		Log.debug("Releasing global local object ", varName);
+		dispatch(varName, true, () -> globalLocalObjects.remove(varName));
+	}
+
+	private Object invokeRemote(JSONObject objData) throws Exception {
+		String methodName = (String) objData.get("name");
+		String varName = (String) objData.get("varName");
+		JSONArray jsonArgs = (JSONArray) objData.get("arguments");
+		String[] typeNames = new String[jsonArgs.size()];
+		Class[] types = new Class[jsonArgs.size()];
+		Object[] args = unboxArguments(jsonArgs, typeNames, types);
+		Object obj = globalLocalObjects.get(varName);
+		return invokers.invoke(obj, methodName, typeNames, types, args);
+	}
+
+	private void constructRemote(JSONObject objData) throws Exception {
 		String name = (String) objData.get("name");
 		String varName = (String) objData.get("varName");
 		JSONArray jsonArgs = (JSONArray) objData.get("arguments");
-		Object[] args = new Object[jsonArgs.size()];
+		String[] typeNames = new String[jsonArgs.size()];
 		Class[] types = new Class[jsonArgs.size()];
+		Object[] args = unboxArguments(jsonArgs, typeNames, types);
+		Object obj = invokers.construct(invokers.getClass(name), typeNames, types, args);
+		globalLocalObjects.put(varName, obj);
+	}
+
+	/**
+	 * Turns {"value":"type"} arguments into objects, filling in each argument's type name and class
+	 */
+	private Object[] unboxArguments(JSONArray jsonArgs, String[] typeNames, Class[] types) throws ClassNotFoundException {
+		Object[] args = new Object[jsonArgs.size()];
 		for (int i = 0; i < args.length; i++) {
-			JSONObject arg = (JSONObject) jsonArgs.get(i);
-			types[i] = Class.forName(unstandardize(arg.values().toArray()[0].toString()));
-			args[i] = box(arg.keySet().toArray()[0].toString(), types[i].getName());
+			Map.Entry<?, ?> arg = (Map.Entry<?, ?>) ((JSONObject) jsonArgs.get(i)).entrySet().iterator().next();
+			typeNames[i] = arg.getValue().toString();
+			types[i] = invokers.getClass(unstandardize(typeNames[i]));
+			args[i] = box(arg.getKey(), types[i]);
+		}
+		return args;
+	}
+
+	public Batch batch() {
+		return new Batch(this);
+	}
+
+	/**
+	 * Sends a batch built by {@link Batch}. The future completes with one result per
+	 * entry once every language involved has run its share. A batch takes one place
+	 * in the window.
+	 */
+	CompletableFuture<Object> sendBatch(JSONArray entries) {
+		Semaphore permit = acquireWindow();
+		if (permit == null) {
+			return windowFull();
 		}
+		long timeout = callTimeout;
+		PendingCall future = new PendingCall(timeout);
+		future.whenComplete((r, e) -> permit.release());
+		int callId;
 		try {
-			Object obj = Class.forName(name).getConstructor(types).newInstance(args);
-			globalLocalObjects.put(varName, obj);
-		} catch (Exception e) {
-			e.printStackTrace();
+			callId = addPendingCall(future);
+		} catch (InvalidObjectException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		if (callId == 0) {
+			future.completeExceptionally(new InvalidObjectException("Too many calls in flight"));
+			return future;
+		}
+		if (useBinary()) {
+			send(new FrameEncoder(LanguageOperations.CallBatch, callId).writeBatchEntries(entries).writeVarint(timeout)
+					.toByteArray());
+		} else {
+			JSONObject batchData = new JSONObject();
+			batchData.put("callID", callId);
+			batchData.put("entries", entries);
+			batchData.put("timeout", timeout);
+			writeCommand(LanguageOperations.CallBatch, batchData);
+		}
+		return future;
+	}
+
+	private void callBatchRemote(JSONArray entries, int returnID) {
+		executor.execute(() -> serveBatch(entries, returnID));
+	}
+
+	/**
+	 * Runs the entries the core routed here in order and answers them in one BatchReturn
+	 */
+	private void serveBatch(JSONArray entries, int returnID) {
+		JSONArray results = new JSONArray();
+		for (Object e : entries) {
+			JSONObject entry = (JSONObject) e;
+			JSONObject result = new JSONObject();
+			metrics.callServed();
+			try {
+				Object returnVal = null;
+				if ("create".equals(entry.get("op"))) {
+					constructRemote(entry);
+				} else {
+					returnVal = invokeRemote(entry);
+				}
+				result.put("returnVal", toWireValue(returnVal));
+				result.put("returnType", returnVal == null ? "void" : standardize(returnVal.getClass().getName()));
+			} catch (Exception ex) {
+				Throwable cause = ex instanceof InvocationTargetException ? ex.getCause() : ex;
+				result.put("error", cause.toString());
+			}
+			results.add(result);
+		}
+		if (binary) {
+			send(new FrameEncoder(LanguageOperations.BatchReturn, returnID).writeBatchResults(results).toByteArray());
+			return;
+		}
+		JSONObject returnObj = new JSONObject();
+		returnObj.put("returnID", returnID);
+		returnObj.put("results", results);
+		writeCommand(LanguageOperations.BatchReturn, returnObj);
+	}
+
+	private void batchReturn(JSONObject returnObj, int returnID) {
+		Object id = returnObj.get("returnID");
+		if (id != null) {
+			returnID = Integer.parseInt(id.toString());
 		}
+		PendingCall future = pendingCalls.remove(returnID);
+		if (future == null) {
+			Log.warn("No batch is waiting on return ", returnID);
+			return;
+		}
+		metrics.getBatchHistogram().recordSince(future.startNanos);
+		List<Batch.Result> results = new ArrayList<>();
+		for (Object r : (JSONArray) returnObj.get("results")) {
+			JSONObject result = (JSONObject) r;
+			if (result.containsKey("error")) {
+				results.add(new Batch.Result(null, (String) result.get("error")));
+				continue;
+			}
+			String returnType = (String) result.get("returnType");
+			try {
+				Object value = returnType.equals("void") ? null
+						: box(result.get("returnVal"), Class.forName(unstandardize(returnType)));
+				results.add(new Batch.Result(value, null));
+			} catch (ClassNotFoundException e) {
+				results.add(new Batch.Result(null, e.toString()));
+			}
+		}
+		future.complete(results);
+	}
+
+	JSONArray toArguments(Object... params) throws InvalidObjectException {
+		JSONArray paramsArr = new JSONArray();
+		for (Object o : params) {
+			if (!isValidObject(o)) {
+				throw new InvalidObjectException("Object " + o.getClass().getName() + " is not valid");
+			}
+			paramsArr.add(toArgument(o));
+		}
+		return paramsArr;
+	}
+
+	/**
+	 * @return the object as a {"value":"type"} argument, with null as void
+	 */
+	private JSONObject toArgument(Object o) {
+		JSONObject param = new JSONObject();
+		if (o == null) {
+			param.put("null", "void");
+		} else {
+			param.put(toWireValue(o), standardize(o.getClass().getName()));
+		}
+		return param;
 	}
 
 	public void writeCommand(LanguageOperations op, String str) {
-		outgoing.add(String.format(String.format("%05d", op.ordinal()) + str));
+		if (transport.isDirect()) {
+			send(new Object[] { op.ordinal(), 0, str });
+			return;
+		}
+		if (binary) {
+			send(new FrameEncoder(op, 0).writeString(str).toByteArray());
+			return;
+		}
+		send((String.format("%05d", op.ordinal()) + str + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Sends the body as it is on a direct transport, and as JSON text otherwise
+	 */
+	private void writeCommand(LanguageOperations op, JSONObject body) {
+		if (transport.isDirect()) {
+			send(new Object[] { op.ordinal(), 0, body });
+			return;
+		}
+		writeCommand(op, body.toJSONString());
+	}
+
+	private void send(byte[] message) {
+		metrics.frameOut(message.length);
+		SharedMemoryTransport shared = sharedMemory;
+		if (shared != null) {
+			shared.send(message);
+			return;
+		}
+		transport.send(message);
+	}
+
+	private void send(Object[] message) {
+		metrics.frameOut(0);
+		transport.send(message);
+	}
+
+	/**
+	 * @return the object as the transport carries it: as it is on a direct transport,
+	 *         where only arrays are packed so the callee never shares the caller's,
+	 *         and as {@link #toValue(Object)} gives it otherwise
+	 */
+	private Object toWireValue(Object o) {
+		if (transport.isDirect()) {
+			Packed packed = Packed.pack(o);
+			return packed != null ? packed : o;
+		}
+		return toValue(o);
 	}
 	
-	private String standardize(String s) {
-		switch (s) {
-		case "java.lang.Integer":
-			return "int";
-		case "java.lang.String":
-			return "string";
+	/**
+	 * @return the object as the wire carries it: int, long, double and byte arrays
+	 *         packed, anything else as text
+	 */
+	static Object toValue(Object o) {
+		Packed packed = Packed.pack(o);
+		return packed != null ? packed : String.valueOf(o);
+	}
 
+	static String standardize(String s) {
+		String standard = TypeNames.standardize(s);
+		if (standard == s) {
+			Log.debug("No type override for ", s);
 		}
-		System.out.println("No type override for " + s);
-		return s;
+		return standard;
 	}
 
-	private String unstandardize(String s) {
-		switch (s) {
-		case "string":
-			return "java.lang.String";
-		case "int":
-			return "java.lang.Integer";
+	static String unstandardize(String s) {
+		String className = TypeNames.unstandardize(s);
+		if (className == s) {
+			Log.debug("No type override for ", s);
+		}
+		return className;
+	}
 
+	static Object box(String value, String type) {
+		try {
+			return box(value, Class.forName(type));
+		} catch (ClassNotFoundException e) {
+			Log.error("Unknown type " + type, e);
+		}
+		return value;
+	}
+
+	/**
+	 * @param value text, a packed array as a {@link Packed} or its base64 text, or
+	 *              from a direct transport, the object itself
+	 */
+	static Object box(Object value, Class<?> c) {
+		if (c.isInstance(value)) {
+			return value;
+		}
+		String packedType = standardize(c.getName());
+		if (Packed.isPackedType(packedType)) {
+			return Packed.of(value).unpack(packedType);
 		}
-		System.out.println("No type override for " + s);
-		return s;
+		return box(String.valueOf(value), c);
 	}
 
-	private Object box(String value, String type) {
+	static Object box(String value, Class<?> c) {
 		try {
-			if (isWrapperType(Class.forName(type))) {
-				switch (type) {
+			if (isWrapperType(c)) {
+				switch (c.getName()) {
 				case "java.lang.Boolean":
 					return Boolean.valueOf(value);
 				case "java.lang.Character":
@@ -298,9 +1580,8 @@ public class LanguageClient implements Runnable {
 					return value;
 				}
 			}
-		} catch (NumberFormatException | ClassNotFoundException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		} catch (NumberFormatException e) {
+			Log.error("Could not box " + value, e);
 		}
 		return value;
 	}
@@ -310,7 +1591,194 @@ public class LanguageClient implements Runnable {
 	}
 
 	private boolean validClass(Class<?> paramType) {
-		return true;
+		return TypeNames.isSupported(paramType.getName(), paramType.isAssignableFrom(String.class));
+	}
+
+	/**
+	 * Handles what the transport reads, on the client's own thread
+	 */
+	private class Receiver implements Transport.Receiver {
+
+		@Override
+		public boolean isBinary() {
+			return binary;
+		}
+
+		@Override
+		public void receiveLine(byte[] line) {
+			metrics.frameIn(line.length + 1);
+			try {
+				handleInput(new String(line, StandardCharsets.UTF_8));
+			} catch (ParseException | ClassNotFoundException | InterruptedException e) {
+				Log.error("Could not handle message", e);
+			}
+		}
+
+		@Override
+		public void receiveFrame(byte[] frame) {
+			metrics.frameIn(4 + frame.length);
+			try {
+				handleFrame(new FrameDecoder(frame, 0, frame.length));
+			} catch (ClassNotFoundException | InterruptedException e) {
+				Log.error("Could not handle message", e);
+			}
+		}
+
+		@Override
+		public void receiveMessage(Object[] message) {
+			metrics.frameIn(0);
+			try {
+				handleMessage(message);
+			} catch (ClassNotFoundException | InterruptedException e) {
+				Log.error("Could not handle message", e);
+			}
+		}
+	}
+
+	/**
+	 * A call waiting on its return, with the time it was sent for the latency metrics
+	 */
+	private static class PendingCall extends CompletableFuture<Object> {
+
+		private long startNanos = System.nanoTime();
+		private long timeout;
+		private volatile long deadlineNanos; // 0 for no limit
+		private volatile RemoteStream stream; // Set once the first chunk of a streamed result arrives
+
+		public PendingCall(long timeout) {
+			this.timeout = timeout;
+			deadlineNanos = timeout > 0 ? startNanos + TimeUnit.MILLISECONDS.toNanos(timeout) : 0;
+		}
+
+		/**
+		 * Restarts the timeout, since a stream is only idle once chunks stop coming
+		 */
+		void renew() {
+			if (timeout > 0) {
+				deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+			}
+		}
+
+		/**
+		 * Fails the call, or ends its stream with the error if it is already being read
+		 */
+		void fail(Exception e) {
+			RemoteStream s = stream;
+			if (s != null) {
+				s.end(e.getMessage());
+			} else {
+				completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * A result this client is streaming, with the chunks the caller still has credit for
+	 */
+	private static class OutgoingStream {
+
+		private Iterator<?> values;
+		private BaseStream<?, ?> source; // Closed once the stream ends or is cancelled
+		private int credit = STREAM_WINDOW;
+
+		public OutgoingStream(Object returnVal) {
+			if (returnVal instanceof BaseStream) {
+				source = (BaseStream<?, ?>) returnVal;
+				values = source.iterator();
+			} else {
+				values = (Iterator<?>) returnVal;
+			}
+		}
+
+		void close() {
+			if (source != null) {
+				source.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the calls this client may have in flight at once, as the core granted
+	 */
+	public int getWindow() {
+		return windowSize;
+	}
+
+	public long getCallTimeout() {
+		return callTimeout;
+	}
+
+	/**
+	 * @param callTimeout milliseconds calls and batches wait on their return before
+	 *                    failing, or 0 for no limit
+	 */
+	public void setCallTimeout(long callTimeout) {
+		this.callTimeout = Math.max(0, callTimeout);
+	}
+
+	public long getReconnectTimeout() {
+		return reconnectTimeout;
+	}
+
+	/**
+	 * @param reconnectTimeout milliseconds to keep trying to reach the core if the
+	 *                         connection drops, or 0 to give up at once. Calls in flight
+	 *                         still fail. Once reconnected the client resumes its session,
+	 *                         keeping its classes and objects if the core still has them,
+	 *                         and registers its classes again if it does not.
+	 */
+	public void setReconnectTimeout(long reconnectTimeout) {
+		this.reconnectTimeout = Math.max(0, reconnectTimeout);
+	}
+
+	/**
+	 * @return the token the core gave this client to resume with, or null before Init
+	 *         or on a direct transport
+	 */
+	public String getSession() {
+		return session;
+	}
+
+	public ClientMetrics getMetrics() {
+		return metrics;
+	}
+
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @param executor runs the calls and creates other languages send this client.
+	 *                 {@code Runnable::run} runs them one at a time on the thread that
+	 *                 reads from the core, which cannot serve a call that calls back
+	 *                 into this client.
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	public boolean isOrderedPerObject() {
+		return orderedPerObject;
+	}
+
+	/**
+	 * @param orderedPerObject run the calls on each object one at a time, in the order
+	 *                         they arrived, instead of all at once. Also set with
+	 *                         -DmultiLanguage.orderedCalls=true.
+	 */
+	public void setOrderedPerObject(boolean orderedPerObject) {
+		this.orderedPerObject = orderedPerObject;
+	}
+
+	public int getStreamChunkSize() {
+		return streamChunkSize;
+	}
+
+	/**
+	 * @param streamChunkSize values sent per chunk when a method here streams its result
+	 */
+	public void setStreamChunkSize(int streamChunkSize) {
+		this.streamChunkSize = Math.max(1, streamChunkSize);
 	}
 
 	public class InvalidObjectException extends Exception {
@@ -322,24 +1790,8 @@ public class LanguageClient implements Runnable {
 		}
 	}
 
-	private static final Set<Class<?>> WRAPPER_TYPES = getWrapperTypes();
-
 	public static boolean isWrapperType(Class<?> c) {
-		return WRAPPER_TYPES.contains(c);
-	}
-
-	private static Set<Class<?>> getWrapperTypes() {
-		Set<Class<?>> ret = new HashSet<Class<?>>();
-		ret.add(Boolean.class);
-		ret.add(Character.class);
-		ret.add(Byte.class);
-		ret.add(Short.class);
-		ret.add(Integer.class);
-		ret.add(Long.class);
-		ret.add(Float.class);
-		ret.add(Double.class);
-		ret.add(Void.class);
-		return ret;
+		return TypeNames.isWrapper(c.getName());
 	}
 
 }
@@ -1,13 +0,0 @@
-package languageClient;
-
-
-public enum LanguageOperations {
-	None,
-	Error,
-	Init,
-	Return,
-	RegisterClass,
-	CreateObject,
-	CallMethod;
-	
-}
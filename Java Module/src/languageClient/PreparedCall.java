@@ -0,0 +1,90 @@
+package languageClient;
+
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import languageClient.LanguageClient.InvalidObjectException;
+
+/**
+ * A method of a remote object the core resolved once, for arguments of fixed types.
+ * Calls through it send the core only a handle and the arguments, so it is the way
+ * to call the same method over and over.
+ *
+ * <pre>
+ * PreparedCall add = client.prepareCall("counter", "add", Integer.class);
+ * for (int i = 0; i &lt; 1000; i++) {
+ * 	add.call(i);
+ * }
+ * </pre>
+ *
+ * The handle stays valid for as long as the client is connected. If the object is
+ * released and created again under the same name, or its class registered again,
+ * the core finds it again on the next call. If the client reconnects, the call is
+ * prepared again the first time it is made.
+ */
+public class PreparedCall {
+
+	private LanguageClient client;
+	private volatile int handle;
+	private volatile int connection; // The client's connection the handle belongs to
+	private String varName;
+	private String methodName;
+	private Class<?>[] argTypes;
+
+	PreparedCall(LanguageClient client, int handle, int connection, String varName, String methodName, Class<?>[] argTypes) {
+		this.client = client;
+		this.handle = handle;
+		this.connection = connection;
+		this.varName = varName;
+		this.methodName = methodName;
+		this.argTypes = argTypes;
+	}
+
+	/**
+	 * @return a future for the return value, completed with null for a void method once
+	 *         the core has routed the call
+	 * @throws InvalidObjectException if the arguments are not of the prepared types,
+	 *                                which the core does not check again
+	 */
+	public CompletableFuture<Object> callAsync(Object... args) throws InvalidObjectException {
+		return client.callPreparedAsync(this, args);
+	}
+
+	public Object call(Object... args) throws InvalidObjectException, InterruptedException {
+		try {
+			return callAsync(args).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof InvalidObjectException) {
+				throw (InvalidObjectException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	public int getHandle() {
+		return handle;
+	}
+
+	public String getVarName() {
+		return varName;
+	}
+
+	public String getMethodName() {
+		return methodName;
+	}
+
+	Class<?>[] getArgTypes() {
+		return argTypes;
+	}
+
+	int getConnection() {
+		return connection;
+	}
+
+	void rebind(int handle, int connection) {
+		this.handle = handle;
+		this.connection = connection;
+	}
+
+}
@@ -0,0 +1,109 @@
+package languageClient;
+
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The values of a streamed result, read as they arrive. A method streams its result
+ * when it returns an Iterator or a Stream, and the call completes with one of these
+ * once the first chunk arrives. The callee only sends chunks it has credit for: it
+ * starts with {@link LanguageClient#STREAM_WINDOW} and gets one more for every chunk
+ * taken from here, so neither side ever holds more than a window of the result.
+ * Closing the stream before its end cancels it.
+ */
+public class RemoteStream implements Iterator<Object>, AutoCloseable {
+
+	private static final Object END = new Object();
+
+	private LanguageClient client;
+	private int callId;
+	private int streamId;
+
+	private LinkedBlockingQueue<Object> chunks; // Lists of values, then END or the error that stopped the stream
+	private Iterator<?> current = Collections.emptyIterator();
+	private String error;
+	private volatile boolean finished; // Read to the end, failed or closed
+
+	RemoteStream(LanguageClient client, int callId, int streamId) {
+		this.client = client;
+		this.callId = callId;
+		this.streamId = streamId;
+		chunks = new LinkedBlockingQueue<>();
+	}
+
+	int getCallId() {
+		return callId;
+	}
+
+	int getStreamId() {
+		return streamId;
+	}
+
+	void offer(List<Object> values) {
+		chunks.add(values);
+	}
+
+	/**
+	 * @param error why the stream stopped early, or null if it ran to its end
+	 */
+	void end(String error) {
+		chunks.add(error == null ? END : error);
+	}
+
+	/**
+	 * Waits for the next chunk if the current one is used up
+	 *
+	 * @throws IllegalStateException if the stream failed before its end
+	 */
+	@Override
+	public boolean hasNext() {
+		while (!current.hasNext()) {
+			if (finished) {
+				if (error != null) {
+					throw new IllegalStateException(error);
+				}
+				return false;
+			}
+			Object next;
+			try {
+				next = chunks.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting on the stream", e);
+			}
+			if (next instanceof List) {
+				current = ((List<?>) next).iterator();
+				client.streamCredit(this, 1);
+			} else {
+				finished = true;
+				error = next == END ? null : (String) next;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public Object next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return current.next();
+	}
+
+	/**
+	 * Stops the stream, telling the callee to stop producing it if it has not ended
+	 */
+	@Override
+	public void close() {
+		if (!finished) {
+			finished = true;
+			current = Collections.emptyIterator();
+			client.cancelStream(this);
+		}
+	}
+
+}
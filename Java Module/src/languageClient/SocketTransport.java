@@ -0,0 +1,199 @@
+package languageClient;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import languageCommon.Log;
+import languageCommon.UnixSockets;
+
+/**
+ * Carries the client's frames over a TCP or a Unix domain socket. The client's thread
+ * blocks reading while a writer thread of the transport's own drains the outgoing
+ * queue, so neither polls and neither waits on the other. The queue holds at most
+ * multiLanguage.maxQueue frames; senders wait for room once it is full, so a core
+ * that reads slowly slows the client down instead of filling its heap. Once closed it
+ * can connect again, with a queue and writer of its own for the new connection.
+ */
+public class SocketTransport implements Transport {
+
+	private static final byte[] CLOSE = new byte[0]; // Stops the writer thread
+	private static final int MAX_WRITE = 64; // Queued frames written with one gathering write
+	public static final int DEFAULT_MAX_QUEUE = 4096;
+
+	private String host;
+	private int port;
+	private String path; // Set for a Unix domain socket
+
+	private volatile SocketChannel channel;
+	private volatile LinkedBlockingQueue<byte[]> outgoing; // Already encoded frames for the current connection
+	private volatile boolean closed; // Set once nothing more will be written
+
+	private SocketTransport(String host, int port, String path) {
+		this.host = host;
+		this.port = port;
+		this.path = path;
+		outgoing = newQueue();
+	}
+
+	private static LinkedBlockingQueue<byte[]> newQueue() {
+		return new LinkedBlockingQueue<>(Math.max(1, Integer.getInteger("multiLanguage.maxQueue", DEFAULT_MAX_QUEUE)));
+	}
+
+	public static SocketTransport tcp(String host, int port) {
+		return new SocketTransport(host, port, null);
+	}
+
+	/**
+	 * @param path the Unix domain socket the core listens on. Needs Java 16 or later.
+	 */
+	public static SocketTransport unix(String path) {
+		return new SocketTransport(null, 0, path);
+	}
+
+	@Override
+	public void connect() throws IOException {
+		SocketChannel opened = path != null ? UnixSockets.connect(path) : SocketChannel.open(new InetSocketAddress(host, port));
+		// A writer still draining an earlier connection keeps its own queue and channel
+		LinkedBlockingQueue<byte[]> queue = closed ? newQueue() : outgoing;
+		channel = opened;
+		outgoing = queue;
+		closed = false;
+		Thread t = new Thread(() -> write(opened, queue), "LanguageClient-Writer");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public void run(Receiver receiver) throws IOException {
+		SocketChannel channel = this.channel;
+		// Only reads go through the stream, so they never hold the channel's lock against the writer
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+		while (true) {
+			if (receiver.isBinary()) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					return;
+				}
+				byte[] frame = new byte[length];
+				in.readFully(frame);
+				receiver.receiveFrame(frame);
+			} else {
+				byte[] line = readLine(in);
+				if (line == null) {
+					return;
+				}
+				receiver.receiveLine(line);
+			}
+		}
+	}
+
+	/**
+	 * @return the line without its line end, or null at the end of the stream
+	 */
+	private byte[] readLine(DataInputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b == -1) {
+				return null;
+			}
+			line.write(b);
+		}
+		byte[] bytes = line.toByteArray();
+		int length = bytes.length;
+		if (length > 0 && bytes[length - 1] == '\r') {
+			bytes = Arrays.copyOf(bytes, length - 1);
+		}
+		return bytes;
+	}
+
+	private void write(SocketChannel channel, LinkedBlockingQueue<byte[]> outgoing) {
+		List<byte[]> batch = new ArrayList<>();
+		try {
+			while (true) {
+				batch.clear();
+				batch.add(outgoing.take());
+				outgoing.drainTo(batch, MAX_WRITE - 1);
+				ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+				long remaining = 0;
+				for (int i = 0; i < buffers.length; i++) {
+					if (batch.get(i) == CLOSE) {
+						return;
+					}
+					buffers[i] = ByteBuffer.wrap(batch.get(i));
+					remaining += buffers[i].remaining();
+				}
+				while (remaining > 0) {
+					remaining -= channel.write(buffers);
+				}
+			}
+		} catch (IOException e) {
+			Log.error("Could not write to the core", e);
+		} catch (InterruptedException e) {
+			Log.error("Interrupted while writing to the core", e);
+		} finally {
+			if (this.outgoing == outgoing) {
+				closed = true;
+			}
+			outgoing.clear();
+		}
+	}
+
+	/**
+	 * Waits for room while the queue is full. Frames sent once the connection is
+	 * closed are dropped.
+	 */
+	@Override
+	public void send(byte[] frame) {
+		try {
+			while (!closed) {
+				if (outgoing.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Log.warn("Interrupted while waiting to send, dropped a frame of ", frame.length);
+		}
+	}
+
+	@Override
+	public int getQueueSize() {
+		return outgoing.size();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		outgoing.offer(CLOSE); // If the queue is full, the writer stops once the channel closes
+		SocketChannel channel = this.channel;
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			Log.error("Could not close the connection", e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return path != null ? path : host + ":" + port;
+	}
+
+}
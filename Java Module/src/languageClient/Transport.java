@@ -0,0 +1,79 @@
+package languageClient;
+
+
+import java.io.IOException;
+
+/**
+ * Carries a {@link LanguageClient}'s messages to the core and back. Stream transports
+ * carry the text lines or binary frames the client encodes; a direct transport hands
+ * the message objects across as they are, so nothing is encoded at all. The client's
+ * code is the same whichever transport it is given.
+ */
+public interface Transport {
+
+	/**
+	 * Opens the connection. Called on the client's own thread before anything is sent,
+	 * and again after {@link #close()} by a client that reconnects to a core it lost,
+	 * which only stream transports are asked to do.
+	 */
+	void connect() throws IOException;
+
+	/**
+	 * Passes everything the core sends to the receiver, on the client's own thread,
+	 * and returns once the connection is gone
+	 */
+	void run(Receiver receiver) throws IOException;
+
+	/**
+	 * Queues an encoded frame for the core, waiting for room if the queue is bounded and full
+	 */
+	void send(byte[] frame);
+
+	/**
+	 * @return whether the transport takes message objects instead of encoded frames
+	 */
+	default boolean isDirect() {
+		return false;
+	}
+
+	/**
+	 * @param message the operation's ordinal, the call id, and the body the text
+	 *                protocol carries as a JSON object, array or string
+	 */
+	default void send(Object[] message) {
+		throw new UnsupportedOperationException("Transport only carries encoded frames");
+	}
+
+	/**
+	 * @return messages queued but not yet written
+	 */
+	default int getQueueSize() {
+		return 0;
+	}
+
+	void close();
+
+	/**
+	 * What the client does with what arrives
+	 */
+	interface Receiver {
+
+		/**
+		 * @return whether the next frame from the core is a binary frame rather than a line
+		 */
+		boolean isBinary();
+
+		/**
+		 * @param line a text protocol line, without its line end
+		 */
+		void receiveLine(byte[] line);
+
+		/**
+		 * @param frame a binary frame, without its length prefix
+		 */
+		void receiveFrame(byte[] frame);
+
+		void receiveMessage(Object[] message);
+	}
+
+}
@@ -0,0 +1,87 @@
+package languageClient;
+
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import languageCommon.Packed;
+
+/**
+ * The names the protocol gives Java classes, and which classes a remote argument can
+ * be passed as. Both the client and {@link GlobalProcessor} describe classes to the
+ * core, so they share these. Classes are named as {@link Class#getName()} does.
+ */
+final class TypeNames {
+
+	private static final Set<String> WRAPPERS = new HashSet<>(Arrays.asList("java.lang.Boolean", "java.lang.Character",
+			"java.lang.Byte", "java.lang.Short", "java.lang.Integer", "java.lang.Long", "java.lang.Float",
+			"java.lang.Double", "java.lang.Void"));
+
+	private static final Set<String> PRIMITIVES = new HashSet<>(Arrays.asList("boolean", "char", "byte", "short",
+			"int", "long", "float", "double"));
+
+	private TypeNames() {
+	}
+
+	/**
+	 * @return the protocol's name for the class, or the class name itself if it has none
+	 */
+	static String standardize(String className) {
+		switch (className) {
+		case "java.lang.Integer":
+			return "int";
+		case "java.lang.String":
+			return "string";
+		case "[I":
+			return Packed.INT_ARRAY;
+		case "[J":
+			return Packed.LONG_ARRAY;
+		case "[D":
+			return Packed.DOUBLE_ARRAY;
+		case "[B":
+			return Packed.BYTES;
+		default:
+			return className;
+		}
+	}
+
+	/**
+	 * @return the class the protocol's name stands for, or the name itself if it is a class name
+	 */
+	static String unstandardize(String typeName) {
+		switch (typeName) {
+		case "string":
+			return "java.lang.String";
+		case "int":
+			return "java.lang.Integer";
+		case Packed.INT_ARRAY:
+			return "[I";
+		case Packed.LONG_ARRAY:
+			return "[J";
+		case Packed.DOUBLE_ARRAY:
+			return "[D";
+		case Packed.BYTES:
+			return "[B";
+		default:
+			return typeName;
+		}
+	}
+
+	static boolean isWrapper(String className) {
+		return WRAPPERS.contains(className);
+	}
+
+	/**
+	 * Arguments arrive as text, packed arrays, or in process as the objects themselves,
+	 * and are boxed into primitives, their wrappers and packed arrays. Anything else is
+	 * passed the text, so it only works for classes a String can be passed as.
+	 *
+	 * @param takesString whether a String can be passed as the class
+	 */
+	static boolean isSupported(String className, boolean takesString) {
+		return takesString || PRIMITIVES.contains(className) || WRAPPERS.contains(className)
+				|| !standardize(className).equals(className);
+	}
+
+}
@@ -1,167 +1,883 @@
-import queue, threading, json, socket, inspect, traceback, time
+import queue, threading, json, socket, inspect, traceback, time, struct, logging, logging.handlers, os, sys, base64, array, mmap, platform
+import collections.abc
+from concurrent.futures import Future, ThreadPoolExecutor
 from enum  import Enum
 
+# Records are put on a bounded queue and written by a listener thread, so logging never
+# blocks the socket threads. Set MULTILANGUAGE_LOG_LEVEL=DEBUG to log every message.
+log = logging.getLogger("multilanguage")
+
+# Call ids come back as 5 digits in the text protocol, so they are recycled below this
+MAX_CALL_ID = 99999
+
+# Array types carried as packed little endian bytes: raw in binary frames, base64 in text
+PACKED_TYPES = {"int[]" : "i", "long[]" : "q", "double[]" : "d", "bytes" : None}
+
+# Chunks a streamed result can be ahead of its caller before waiting on credit
+STREAM_WINDOW = 4
+
+# Calls a client asks to have in flight at once, and frames queued for the core before
+# senders wait for room
+DEFAULT_WINDOW = int(os.environ.get("MULTILANGUAGE_WINDOW", "1024"))
+MAX_QUEUE = int(os.environ.get("MULTILANGUAGE_MAX_QUEUE", "4096"))
+
+# Threads that run the calls and creates other languages send
+WORKERS = int(os.environ.get("MULTILANGUAGE_WORKERS", "16"))
+
+# Python has no memory fences, so shared memory is only used where the CPU keeps stores in order
+SHARED_MEMORY_SAFE = platform.machine().lower() in ("x86_64", "amd64", "i386", "i686", "x86")
+
+class DroppingQueueHandler(logging.handlers.QueueHandler):
+    def enqueue(self, record):
+        try:
+            self.queue.put_nowait(record)
+        except queue.Full:
+            pass
+
+if not log.handlers:
+    log.setLevel(os.environ.get("MULTILANGUAGE_LOG_LEVEL", "INFO").upper())
+    log.propagate = False
+    log_queue = queue.Queue(8192)
+    log.addHandler(DroppingQueueHandler(log_queue))
+    log_handler = logging.StreamHandler()
+    log_handler.setFormatter(logging.Formatter("%(asctime)s %(levelname)-5s %(threadName)s: %(message)s"))
+    log_listener = logging.handlers.QueueListener(log_queue, log_handler)
+    log_listener.start()
+
 class LanguageClient:
 
-    def __init__(self, host, port):
+    def __init__(self, host, port, binary=False, shared_memory=False, workers=WORKERS, ordered=False, reconnect=0):
+        """shared_memory exchanges frames with a core on the same host through a memory
+        mapped file instead of the socket. It implies binary, and falls back to the socket
+        if the core declines or the file cannot be mapped.
+
+        workers is how many calls from other languages run at once, and ordered runs the
+        calls on each object one at a time, in the order they arrived.
+
+        reconnect is how many seconds to keep trying to reach the core if the connection
+        drops. Calls in flight still fail. Once reconnected the client resumes its session,
+        keeping its classes and objects if the core still has them, and registers its
+        classes again if it does not."""
 
         self.host = host
         self.port = port
 
         self.global_local_objects = {}
-        self.outgoing = queue.Queue(0)
-        self.returnQueue = queue.Queue(1)
-        
+        # Classes this client registered, which the core may ask it to create objects of
+        self.classes = {}
+        # Calls waiting on a return, by call id. Ids are recycled, skipping ids still in flight
+        self.pending_calls = {}
+        self.next_call_id = 1
+        self.call_lock = threading.Lock()
+        # Seconds a call waits on its return, or None for no limit
+        self.call_timeout = 60.0
+        # Why the connection is gone, once it is, and whether it is gone for good
+        self.closed = None
+        self.running = True
+        # Places for calls in flight, as many as the core granted in Init
+        self.window_size = DEFAULT_WINDOW
+        self.window = threading.Semaphore(self.window_size)
+        # Results this client is streaming, by stream id, and values sent per chunk
+        self.streams = {}
+        self.stream_chunk_size = 256
+        # Runs calls and creates from other languages, so a slow method holds up neither
+        # other calls nor the returns this client waits on
+        self.executor = ThreadPoolExecutor(max_workers=max(1, workers), thread_name_prefix="RemoteCall")
+        self.ordered = ordered
+        # What the next task on each object waits for
+        self.object_tails = {}
+        self.dispatch_lock = threading.Lock()
+
+        # Frames can only be encoded once the core has answered Init
+        self.binary = False
+        self.handshake = threading.Event()
+        # Carries frames instead of the socket once attached
+        self.shared_memory = None
+        self.request_binary = binary or shared_memory
+        self.request_shared_memory = shared_memory and SHARED_MEMORY_SAFE
+        self.reconnect = reconnect
+        # Given by the core in Init, to resume with after reconnecting
+        self.session = None
+        # Counts reconnects, so prepared calls know to prepare again
+        self.connection = 0
+        # Every RegisterClass body sent, to send again to a core that lost them
+        self.registrations = []
+
+        self.connect()
+        thread3 = threading.Thread(target=self.expire_calls, daemon=True)
+        thread3.start()
+
+    def connect(self):
+        """Opens a connection with a queue and threads of its own, and sends Init on it"""
         s = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
         s.connect( (self.host, self.port) )
-        print("Connected")
+        self.socket = s
+        self.outgoing = queue.Queue(max(1, MAX_QUEUE))
+        self.closed = None
+        log.info("Connected to %s:%s", self.host, self.port)
+
+        # The core always answers, with the protocol and the window it grants
+        lang_data = {"strictTypes" : True, "window" : DEFAULT_WINDOW}
+        if self.request_binary:
+            lang_data["protocols"] = ["binary", "text"]
+            if self.request_shared_memory:
+                lang_data["sharedMemory"] = True
+        if self.session is not None:
+            lang_data["session"] = self.session
+        self.write_text_command(LanguageOperations.init, json.dumps(lang_data, separators=(',',':')))
 
         thread = threading.Thread(target=self.runInput, args=(s,))
         thread.start()
-        thread2 = threading.Thread(target=self.runOutput, args=(s,))
+        thread2 = threading.Thread(target=self.runOutput, args=(s, self.outgoing))
         thread2.start()
 
     def runInput(self, socket):
         def socket_readln(initdata = b''):
-            try:
-                line = initdata.decode("utf-8")
-                while True:
-                    data = socket.recv(1).decode("utf-8")
-                    line += data
-                    if '\r\n' in line:
-                        break
-                return line.splitlines()[0]
-            except Exception as e:
-                print(str(e), flush=True)
+            line = initdata
+            while not line.endswith(b'\n'):
+                chunk = socket.recv(1)
+                if not chunk:
+                    raise ConnectionError("Connection closed")
+                line += chunk
+            return line.decode("utf-8").splitlines()[0]
+
+        def socket_read_exact(size):
+            data = b''
+            while len(data) < size:
+                chunk = socket.recv(size - len(data))
+                if not chunk:
+                    raise ConnectionError("Connection closed")
+                data += chunk
+            return data
 
         while(True):
 
             try:
-                time.sleep(1)
-                print("before read", flush=True)
-                hasData = socket.recv(1)
-                if hasData:
+                if self.binary:
+                    # Once shared memory is attached this only returns when the core is gone
+                    length = struct.unpack('>I', socket_read_exact(4))[0]
+                    self.handle_frame(socket_read_exact(length))
+                    continue
+                else:
+                    hasData = socket.recv(1)
+                    if not hasData:
+                        raise ConnectionError("Connection closed")
                     line = socket_readln(hasData)
-                    print("read line: " + str(line))
-                    action = line[0:5]
+                    log.debug("Read %s", line)
+                    operation = LanguageOperations(int(line[0:5]))
                     returnID = int(line[5:10])
-                    data = line[10:]
+                    data = line[10:] if operation == LanguageOperations.error else json.loads(line[10:])
 
-                    getattr(self, LanguageOperations(int(action)).name + "_remote")(data, returnID)
+                getattr(self, operation.name + "_remote")(data, returnID)
+            except OSError as e:
+                log.info("Disconnected from %s:%s", self.host, self.port)
+                if not self.resume():
+                    self.disconnected("Disconnected from the core")
+                return
             except Exception as e:
-                print(str(e), flush=True)
+                log.exception("Could not handle message")
 
-    def runOutput(self, socket):
+    def handle_frame(self, data):
+        frame = FrameDecoder(data)
+        operation = LanguageOperations(frame.operation)
+        if operation == LanguageOperations.nothing:
+            # The core wrote to a ring the reader was asleep on
+            if self.shared_memory is not None:
+                self.shared_memory.wake()
+            return
+        getattr(self, operation.name + "_remote")(frame.read_body(operation), frame.call_id)
+
+    def runOutput(self, socket, outgoing):
         while(True):
             try:
-                message = self.outgoing.get()
-                socket.sendall((message + '\n').encode('utf-8') )
-                print("sent: " + message, flush=True)
+                message = outgoing.get()
+                if message is None:
+                    return
+                if self.shared_memory is not None:
+                    self.shared_memory.send(message)
+                else:
+                    socket.sendall(message)
+                log.debug("Sent %s", message)
             except Exception as e:
-                print(str(e), flush=True)
+                log.exception("Could not send message")
 
             
     
+    def resume(self):
+        """Tries to reach the core again for up to reconnect seconds, once the calls the lost
+        connection carried have failed. The core gets the session to resume, so this client
+        keeps its id, classes and objects if the core still has them. Returns whether the
+        core was reached."""
+        if not self.reconnect or self.session is None:
+            return False
+        log.info("Lost the core, reconnecting to %s:%s", self.host, self.port)
+        self.handshake.clear()
+        self.binary = False
+        self.drop_connection("Reconnecting to the core")
+        self.connection += 1
+        deadline = time.monotonic() + self.reconnect
+        while time.monotonic() < deadline:
+            time.sleep(0.5)
+            try:
+                self.connect()
+                return True
+            except OSError as e:
+                log.debug("Could not reach the core: %s", e)
+        return False
+
+    def disconnected(self, message):
+        self.running = False
+        self.drop_connection(message)
+        self.handshake.set()
+
+    def drop_connection(self, message):
+        """Fails every call still waiting, since no return can arrive over the connection any more"""
+        self.closed = message
+        if self.shared_memory is not None:
+            self.shared_memory.close()
+            self.shared_memory = None
+        try:
+            self.socket.close()
+        except OSError:
+            pass
+        # Stops the connection's writer, dropping what it had not sent
+        try:
+            while True:
+                self.outgoing.get_nowait()
+        except queue.Empty:
+            pass
+        self.outgoing.put(None)
+        self.streams.clear()
+        with self.call_lock:
+            calls = list(self.pending_calls.values())
+            self.pending_calls.clear()
+        for future in calls:
+            self.fail_call(future, ConnectionError(message))
+
+    def expire_calls(self):
+        while self.running:
+            time.sleep(0.1)
+            now = time.monotonic()
+            with self.call_lock:
+                expired = [(call_id, future) for call_id, future in self.pending_calls.items()
+                           if future.deadline is not None and now >= future.deadline]
+                for call_id, future in expired:
+                    del self.pending_calls[call_id]
+            for call_id, future in expired:
+                self.fail_call(future, TimeoutError("Call timed out after %s s" % future.timeout))
+
+    def fail_call(self, future, error):
+        """Fails the call, or ends its stream with the error if it is already being read"""
+        if future.stream is not None:
+            future.stream.end(str(error))
+        else:
+            future.set_exception(error)
+
+    def pop_pending_call(self, call_id, default=None):
+        with self.call_lock:
+            return self.pending_calls.pop(call_id, default)
+
+    def add_pending_call(self, future, timeout):
+        """Returns the id the call's return will carry"""
+        future.timeout = timeout
+        future.deadline = time.monotonic() + timeout if timeout else None
+        future.stream = None
+        with self.call_lock:
+            if self.closed is not None:
+                raise ConnectionError(self.closed)
+            if len(self.pending_calls) >= MAX_CALL_ID:
+                raise RuntimeError("Too many calls in flight")
+            while True:
+                call_id = self.next_call_id
+                self.next_call_id = 1 if call_id >= MAX_CALL_ID else call_id + 1
+                if call_id not in self.pending_calls:
+                    self.pending_calls[call_id] = future
+                    return call_id
+
+    def enqueue(self, message):
+        """Queues a frame for the core, waiting for room while the queue is full. Frames
+        sent once the connection is gone are dropped."""
+        while self.closed is None:
+            try:
+                self.outgoing.put(message, timeout=0.1)
+                return
+            except queue.Full:
+                pass
+
+    def acquire_window(self):
+        """Takes a place in the window for a call, waiting up to call_timeout for a call
+        in flight to finish if there is none. Returns the semaphore the place came from,
+        or None if none came free."""
+        self.handshake.wait()
+        permits = self.window
+        return permits if permits.acquire(timeout=self.call_timeout or None) else None
+
+    def window_full(self):
+        future = Future()
+        future.set_exception(TimeoutError("Timed out waiting for one of the %d calls in flight to finish" % self.window_size))
+        return future
+
     def write_command(self, operation, data):
+        self.handshake.wait()
+        if self.binary:
+            self.enqueue(FrameEncoder(operation).write_string(data).to_bytes())
+        else:
+            self.write_text_command(operation, data)
+
+    def write_text_command(self, operation, data):
+        self.enqueue((str(operation.value).zfill(5) + data + '\n').encode('utf-8'))
+
+    def init_remote(self, reply, returnID):
+        lost = False
+        if "session" in reply:
+            lost = self.session is not None and not reply.get("resumed")
+            self.session = reply["session"]
+        if "window" in reply:
+            self.window_size = int(reply["window"])
+            self.window = threading.Semaphore(self.window_size)
+        self.binary = reply.get("protocol") == "binary"
+        if reply.get("sharedMemory"):
+            self.attach_shared_memory(reply["sharedMemory"])
+        self.handshake.set()
+        if lost:
+            log.info("The core did not resume the session, registering the classes again")
+            for body in list(self.registrations):
+                self.write_command(LanguageOperations.register_class, body)
+
+    def attach_shared_memory(self, path):
+        """Maps the core's file and tells the core whether that worked. The answer is
+        the last frame on the socket; everything after it goes through the rings."""
+        transport = None
         try:
-            self.outgoing.put(str(operation.value).zfill(5) + data, block=False)
-        except Exception as e:
-            print(str(e), flush=True)
+            transport = SharedMemoryTransport(path, self.ring_doorbell)
+        except (OSError, ValueError) as e:
+            log.warning("Could not map shared memory, staying on the socket: %s", e)
+        answer = json.dumps({"attached" : transport is not None}, separators=(',',':'))
+        self.socket.sendall(FrameEncoder(LanguageOperations.init).write_string(answer).to_bytes())
+        if transport is not None:
+            # Set before the reader starts, so a doorbell always finds it
+            self.shared_memory = transport
+            transport.start(self.handle_frame)
+
+    def ring_doorbell(self):
+        self.socket.sendall(SharedMemoryTransport.DOORBELL)
+
+    def error_remote(self, message, returnID):
+        future = self.pop_pending_call(returnID, None)
+        if future is not None:
+            self.fail_call(future, RuntimeError(message))
+        else:
+            log.error("Error: %s", message)
 
     def register_class(self, c):
         class_obj = {"name" : c.__name__}
         methods = [getattr(c, field) for field in dir(c) if hasattr(getattr(c, field), "_is_global")]
-        paramaterArr = ["any" for x in inspect.getfullargspec(method).args]
-        method_data = [{"name" : method.__name__, "parameters" :  paramaterArr[1:], "return" : "any"} for method in methods if method.__name__ != "__init__"]
+        method_data = [{"name" : method.__name__, "parameters" :  ["any" for x in inspect.getfullargspec(method).args][1:], "return" : "any"} for method in methods if method.__name__ != "__init__"]
         
         constructor_data = [["any" for x in inspect.getfullargspec(method).args][1:] for method in methods if method.__name__ == "__init__"]
         class_obj['methods'] = method_data
         class_obj['constructors'] = constructor_data
+        self.classes[c.__name__] = c
 
         jsonStr = json.dumps(class_obj, separators=(',',':'))
+        if jsonStr not in self.registrations:
+            self.registrations.append(jsonStr)
         self.write_command(LanguageOperations.register_class, jsonStr)
 
-    def create_object(self, class_name, var_name, *args):
+    def create_object(self, class_name, var_name, *args, lease=None):
+        """lease is the seconds the object may go unused before the core releases it,
+        0 to keep it until it is released, or None for the core's default"""
 
         paramsArr = []
         #paramsArr.append({str(None) : str(self.standardize(type(None)))})
+        self.handshake.wait()
         for arg in args:
-            paramsArr.append({str(arg) : str(self.standardize(type(arg)))})
+            paramsArr.append(self.to_argument(arg))
+        if self.binary:
+            frame = FrameEncoder(LanguageOperations.create_object).write_string(class_name).write_string(var_name)
+            frame.write_arguments(paramsArr)
+            if lease is not None:
+                frame.write_varint(int(lease * 1000))
+            self.enqueue(frame.to_bytes())
+            return
         objData = {"name" : class_name, "arguments" : paramsArr, "varName" : var_name}
+        if lease is not None:
+            objData["lease"] = int(lease * 1000)
         
         jsonStr = json.dumps(objData, separators=(',',':'))
-        print(jsonStr)
+        log.debug("Creating object %s", jsonStr)
 
         self.write_command(LanguageOperations.create_object, jsonStr)
 
-    def create_object_remote(self, json_data, returnID):
-        objData = json.loads(json_data)
+    def release_object(self, var_name):
+        """Releases an object so the language holding it can drop it"""
+        self.handshake.wait()
+        if self.binary:
+            self.enqueue(FrameEncoder(LanguageOperations.release_object).write_string(var_name).to_bytes())
+        else:
+            self.write_command(LanguageOperations.release_object, json.dumps({"varName" : var_name}, separators=(',',':')))
+
+    def release_object_remote(self, objData, returnID):
+        log.debug("Releasing %s", objData['varName'])
+        self.dispatch(objData['varName'], True, self.global_local_objects.pop, objData['varName'], None)
+
+    def create_object_remote(self, objData, returnID):
+        """Calls on the new object wait for its constructor to finish"""
+        self.dispatch(objData['varName'], True, self.construct_remote, objData)
+
+    def dispatch(self, var_name, serial, task, *args):
+        """Runs something another language asked of an object here on the executor. It
+        waits for a create of the object that is still running, and if calls are ordered,
+        for everything sent to the object before it. serial makes later tasks on the
+        object wait for this one."""
+        done = Future()
+        def run():
+            try:
+                self.run_logged(task, *args)
+            finally:
+                with self.dispatch_lock:
+                    if self.object_tails.get(var_name) is done:
+                        del self.object_tails[var_name]
+                done.set_result(None)
+        with self.dispatch_lock:
+            before = self.object_tails.get(var_name)
+            if serial:
+                self.object_tails[var_name] = done
+        if before is None:
+            self.executor.submit(run)
+        else:
+            before.add_done_callback(lambda f: self.executor.submit(run))
+
+    def run_logged(self, task, *args):
+        try:
+            task(*args)
+        except Exception:
+            log.exception("Could not handle message")
+
+    def construct_remote(self, objData):
         class_name = objData['name']
         varName = objData['varName']
         args = objData['arguments']
 
         typedArgs = [self.cast(list(a.keys())[0], list(a.values())[0]) for a in args]
         my_class = self.get_class(class_name)
-        instance = my_class(*typedArgs[1:])
+        instance = my_class(*typedArgs)
         self.global_local_objects[varName] = instance
-        print(str(instance))
+        return instance
 
     def call_method(self, var_name, method_name, has_return_val, *params):
-        print("calling method ", flush = True)
-        params_arr = []
-        try:
-            for param in params:
-                params_arr.append( {str(param) : self.standardize(type(param))})
-            objData = {"name" : method_name, "arguments" : params_arr, "varName" : var_name}
+        if(has_return_val):
+            return self.call_method_async(var_name, method_name, *params).result()
+        else:
+            self.send_call(var_name, method_name, 0, None, params)
+            return None
 
-            jsonStr = json.dumps(objData, separators=(',',':'))
-            print(jsonStr)
+    def call_method_async(self, var_name, method_name, *params, timeout=None):
+        """Returns a Future for the call's return value. As many calls as the window the
+        core granted can be outstanding, and once all of it is in flight this waits up to
+        call_timeout for one to finish. Each return is matched to its call by id. The
+        call fails once timeout seconds, or the client's call_timeout, pass without a
+        return."""
+        if timeout is None:
+            timeout = self.call_timeout
+        permit = self.acquire_window()
+        if permit is None:
+            return self.window_full()
+        return self.start_call(permit, timeout, lambda call_id: self.send_call(var_name, method_name, call_id, timeout, params))
+
+    def start_call(self, permit, timeout, send):
+        """permit is the window's place for the call, given back once the call completes.
+        send sends the call under the call id it is given."""
+        future = Future()
+        future.add_done_callback(lambda f: permit.release())
+        try:
+            call_id = self.add_pending_call(future, timeout)
         except Exception as e:
-            print(str(e), flush=True)
+            future.set_exception(e)
+            raise
+        send(call_id)
+        return future
+
+    def prepare_call(self, var_name, method_name, *arg_types):
+        """Has the core resolve a method of an object once, for arguments of the given
+        types, and returns a PreparedCall that calls it by handle without the core looking
+        it up again. Types are Python types or protocol type names such as "int[]"."""
+        types = [t if isinstance(t, str) else self.standardize(t) for t in arg_types]
+        types = [t if isinstance(t, str) else t.__name__ for t in types]
+        connection = self.connection
+        permit = self.acquire_window()
+        if permit is None:
+            return self.window_full().result()
+        handle = self.start_call(permit, self.call_timeout, lambda call_id: self.send_prepare(var_name, method_name, types, call_id)).result()
+        return PreparedCall(self, handle, connection, var_name, method_name, types)
+
+    def send_prepare(self, var_name, method_name, types, call_id):
+        if self.binary:
+            frame = FrameEncoder(LanguageOperations.prepare_call, call_id).write_string(var_name).write_string(method_name)
+            frame.write_varint(len(types))
+            for val_type in types:
+                frame.write_string(val_type)
+            self.enqueue(frame.to_bytes())
+            return
+        prepare_data = {"varName" : var_name, "name" : method_name, "types" : types, "callID" : call_id}
+        self.write_command(LanguageOperations.prepare_call, json.dumps(prepare_data, separators=(',',':')))
+
+    def call_prepared_async(self, prepared, params, timeout=None):
+        """The arguments are checked against the prepared types here, since the core does
+        not check them again"""
+        if timeout is None:
+            timeout = self.call_timeout
+        self.handshake.wait()
+        if prepared.connection != self.connection:
+            # Handles belong to a connection, so a call prepared before reconnecting is prepared again
+            with prepared.lock:
+                if prepared.connection != self.connection:
+                    again = self.prepare_call(prepared.var_name, prepared.method_name, *prepared.types)
+                    prepared.handle, prepared.connection = again.handle, again.connection
+        params_arr = [self.to_argument(param) for param in params]
+        if len(params_arr) != len(prepared.types):
+            raise ValueError("%s was prepared for %d arguments, not %d" % (prepared.method_name, len(prepared.types), len(params_arr)))
+        for i, (arg, val_type) in enumerate(zip(params_arr, prepared.types)):
+            if list(arg.values())[0] != val_type:
+                raise ValueError("Argument %d of %s was prepared as %s, not %s" % (i, prepared.method_name, val_type, list(arg.values())[0]))
+        permit = self.acquire_window()
+        if permit is None:
+            return self.window_full()
+        return self.start_call(permit, timeout, lambda call_id: self.send_prepared(prepared.handle, call_id, timeout, params_arr))
+
+    def send_prepared(self, handle, call_id, timeout, params_arr):
+        timeout_ms = int(timeout * 1000) if timeout else 0
+        if self.binary:
+            frame = FrameEncoder(LanguageOperations.call_prepared, call_id).write_varint(handle)
+            frame.write_arguments(params_arr).write_varint(timeout_ms)
+            self.enqueue(frame.to_bytes())
+            return
+        call_data = {"handle" : handle, "arguments" : params_arr, "callID" : call_id, "timeout" : timeout_ms}
+        self.write_command(LanguageOperations.call_prepared, json.dumps(call_data, separators=(',',':')))
+
+    def send_call(self, var_name, method_name, call_id, timeout, params):
+        params_arr = []
+        timeout_ms = int(timeout * 1000) if timeout else 0
+        self.handshake.wait()
+        for param in params:
+            params_arr.append(self.to_argument(param))
+        if self.binary:
+            log.debug("Calling method %s on %s", method_name, var_name)
+            frame = FrameEncoder(LanguageOperations.call_method, call_id).write_string(var_name).write_string(method_name)
+            frame.write_arguments(params_arr)
+            if call_id:
+                frame.write_varint(timeout_ms)
+            self.enqueue(frame.to_bytes())
+            return
+        objData = {"name" : method_name, "arguments" : params_arr, "varName" : var_name, "callID" : call_id}
+        if call_id:
+            objData["timeout"] = timeout_ms
+        jsonStr = json.dumps(objData, separators=(',',':'))
+        log.debug("Calling method %s", jsonStr)
         self.write_command(LanguageOperations.call_method, jsonStr)
 
-        if(has_return_val):
-            print("Waiting on return q", flush = True)
-            returnValObj = self.returnQueue.get(True)
-            returnType = returnValObj['returnType']
-            returnVal = returnValObj['returnVal']
-            return self.cast(returnVal, returnType)
+    def call_method_remote(self, objData, return_id):
+        self.dispatch(objData['varName'], self.ordered, self.serve_call, objData, return_id)
+
+    def serve_call(self, objData, return_id):
+        """Runs a call the core routed here and answers it with its return value, or with
+        an error under the same return id if it failed, so the caller does not wait it out"""
+        log.debug("Calling method with data %s", objData)
+        try:
+            retVal = self.invoke_remote(objData)
+        except Exception as e:
+            log.exception("Remote call failed")
+            if return_id:
+                self.return_error(return_id, repr(e))
+            return
+        if isinstance(retVal, collections.abc.Iterator):
+            self.start_stream(return_id, retVal)
+            return
+        if not return_id:
+            return
+        if retVal is None:
+            value, val_type = "None", "void"
         else:
-            return None
+            value, val_type = list(self.to_argument(retVal).items())[0]
+        if self.binary:
+            frame = FrameEncoder(LanguageOperations.return_val, return_id)
+            self.enqueue(frame.write_argument(value, val_type).to_bytes())
+            return
+        retObj = {"returnID" : return_id, "returnVal" : value, "returnType" : val_type}
+        jsonStr = json.dumps(retObj)
+        self.write_command(LanguageOperations.return_val, jsonStr)
+
+    def return_error(self, return_id, message):
+        if self.binary:
+            self.enqueue(FrameEncoder(LanguageOperations.error, return_id).write_string(message).to_bytes())
+            return
+        self.write_command(LanguageOperations.error, json.dumps({"returnID" : return_id, "error" : message}))
+    
+    def start_stream(self, stream_id, values):
+        """Sends a returned iterator or generator as chunks instead of one return, as far
+        as the caller's credit allows. The call's return id doubles as the stream's id."""
+        if stream_id == 0:
+            close = getattr(values, "close", None)
+            if close is not None:
+                close()
+            return
+        self.streams[stream_id] = [values, STREAM_WINDOW, threading.Lock()]
+        self.pump_stream(stream_id)
+
+    def pump_stream(self, stream_id):
+        """Credit is handled on the executor as well, so the stream is locked while its
+        values are read"""
+        stream = self.streams.get(stream_id)
+        if stream is None:
+            return
+        with stream[2]:
+            if self.streams.get(stream_id) is stream:
+                self.send_stream_chunks(stream_id, stream)
+
+    def send_stream_chunks(self, stream_id, stream):
+        values = stream[0]
+        try:
+            while stream[1] > 0:
+                chunk = []
+                for value in values:
+                    chunk.append(self.to_argument(value))
+                    if len(chunk) >= self.stream_chunk_size:
+                        break
+                if not chunk:
+                    break
+                stream[1] -= 1
+                self.send_stream_chunk(stream_id, chunk)
+                if len(chunk) < self.stream_chunk_size:
+                    break
+            else:
+                return
+            self.end_stream(stream_id, None)
+        except Exception as e:
+            log.exception("Streamed call failed")
+            self.end_stream(stream_id, repr(e))
+
+    def send_stream_chunk(self, stream_id, chunk):
+        if self.binary:
+            frame = FrameEncoder(LanguageOperations.stream_chunk, stream_id).write_varint(stream_id).write_arguments(chunk)
+            self.enqueue(frame.to_bytes())
+            return
+        self.write_command(LanguageOperations.stream_chunk, json.dumps({"streamID" : stream_id, "values" : chunk}))
+
+    def end_stream(self, stream_id, error):
+        values = self.streams.pop(stream_id)[0]
+        close = getattr(values, "close", None)
+        if close is not None:
+            close()
+        if self.binary:
+            frame = FrameEncoder(LanguageOperations.stream_end, stream_id).write_varint(stream_id)
+            if error is not None:
+                frame.write_string(error)
+            self.enqueue(frame.to_bytes())
+            return
+        end = {"streamID" : stream_id}
+        if error is not None:
+            end["error"] = error
+        self.write_command(LanguageOperations.stream_end, json.dumps(end))
+
+    def stream_credit_remote(self, credit_data, returnID):
+        """Lets a stream this client produces send more chunks, or drops it on a credit of 0"""
+        self.executor.submit(self.run_logged, self.credit_stream, int(credit_data['streamID']), int(credit_data['credit']))
+
+    def credit_stream(self, stream_id, credit):
+        stream = self.streams.get(stream_id)
+        if stream is None:
+            return
+        with stream[2]:
+            if self.streams.get(stream_id) is not stream:
+                return
+            if credit == 0:
+                del self.streams[stream_id]
+                close = getattr(stream[0], "close", None)
+                if close is not None:
+                    close()
+                return
+            stream[1] += credit
+        self.pump_stream(stream_id)
+
+    def stream_chunk_remote(self, chunk, returnID):
+        """One chunk of a result this client is waiting on. The first completes the call
+        with the RemoteStream the rest arrive on."""
+        call_id = int(chunk.get('returnID', returnID))
+        with self.call_lock:
+            future = self.pending_calls.get(call_id)
+        if future is None:
+            log.warning("No call is waiting on stream %s", call_id)
+            return
+        self.renew_call(future)
+        values = []
+        for value in chunk['values']:
+            value, val_type = list(value.items())[0]
+            values.append(None if val_type == 'void' else self.cast(value, val_type))
+        self.open_stream(future, call_id, chunk).offer(values)
+
+    def stream_end_remote(self, end, returnID):
+        call_id = int(end.get('returnID', returnID))
+        future = self.pop_pending_call(call_id, None)
+        if future is None:
+            log.warning("No call is waiting on stream %s", call_id)
+            return
+        if future.stream is None and 'error' in end:
+            future.set_exception(RuntimeError(end['error']))
+            return
+        self.open_stream(future, call_id, end).end(end.get('error'))
+
+    def open_stream(self, future, call_id, data):
+        if future.stream is None:
+            future.stream = RemoteStream(self, call_id, int(data['streamID']))
+            future.set_result(future.stream)
+        return future.stream
 
-    def call_method_remote(self, json_data, return_id):
-        print("Calling method with data " + str(json_data), flush = True)
-        objData = json.loads(json_data)
+    def renew_call(self, future):
+        """Restarts the timeout, since a stream is only idle once chunks stop coming"""
+        if future.timeout:
+            future.deadline = time.monotonic() + future.timeout
+
+    def stream_credit(self, stream, credit):
+        """Grants the callee credit for more chunks of a stream this client reads, or
+        stops it early with a credit of 0"""
+        with self.call_lock:
+            future = self.pending_calls.get(stream.call_id)
+            if future is None or future.stream is not stream:
+                return
+            if credit == 0:
+                del self.pending_calls[stream.call_id]
+        self.renew_call(future)
+        self.handshake.wait()
+        if self.binary:
+            frame = FrameEncoder(LanguageOperations.stream_credit).write_varint(stream.stream_id).write_varint(credit)
+            self.enqueue(frame.to_bytes())
+            return
+        self.write_command(LanguageOperations.stream_credit, json.dumps({"streamID" : stream.stream_id, "credit" : credit}))
+
+    def invoke_remote(self, objData):
         method_name = objData['name']
         varName = objData['varName']
         args = objData['arguments']
 
         typedArgs = [self.cast(list(a.keys())[0], list(a.values())[0]) for a in args]
 
-        retVal = getattr(self.global_local_objects[varName], method_name)(*typedArgs[1:])
-        retObj = {"returnID" : return_id, "returnVal" : str(retVal), "returnType" : self.standardize(type(retVal))}
-        jsonStr = json.dumps(retObj)
-        self.write_command(LanguageOperations.return_val, jsonStr)
-    
-    def return_val_remote(self, json_data, returnID):
-        print("returning with data " + json_data)
+        return getattr(self.global_local_objects[varName], method_name)(*typedArgs)
+
+    def batch(self):
+        return Batch(self)
+
+    def send_batch(self, entries):
+        """A batch takes one place in the window"""
+        permit = self.acquire_window()
+        if permit is None:
+            return self.window_full()
+        future = Future()
+        future.add_done_callback(lambda f: permit.release())
+        timeout = self.call_timeout
+        timeout_ms = int(timeout * 1000) if timeout else 0
         try:
-            retData = json.loads(json_data)
-            print("before put q", flush = True)
-            self.returnQueue.put(retData)
-            print("after put q", flush = True)
+            call_id = self.add_pending_call(future, timeout)
         except Exception as e:
-            print(str(e))
+            future.set_exception(e)
+            raise
+        self.handshake.wait()
+        if self.binary:
+            frame = FrameEncoder(LanguageOperations.call_batch, call_id).write_batch_entries(entries).write_varint(timeout_ms)
+            self.enqueue(frame.to_bytes())
+        else:
+            batch_data = {"callID" : call_id, "entries" : entries, "timeout" : timeout_ms}
+            self.write_command(LanguageOperations.call_batch, json.dumps(batch_data, separators=(',',':')))
+        return future
+
+    def call_batch_remote(self, batch_data, return_id):
+        self.executor.submit(self.run_logged, self.serve_batch, batch_data, return_id)
+
+    def serve_batch(self, batch_data, return_id):
+        """Runs the entries the core routed here in order and answers them in one batch return"""
+        results = []
+        for entry in batch_data['entries']:
+            try:
+                retVal = None
+                if entry['op'] == 'create':
+                    self.construct_remote(entry)
+                else:
+                    retVal = self.invoke_remote(entry)
+                if retVal is None:
+                    results.append({"returnVal" : "None", "returnType" : "void"})
+                else:
+                    value, val_type = list(self.to_argument(retVal).items())[0]
+                    results.append({"returnVal" : value, "returnType" : val_type})
+            except Exception as e:
+                results.append({"error" : repr(e)})
+        if self.binary:
+            self.enqueue(FrameEncoder(LanguageOperations.batch_return, return_id).write_batch_results(results).to_bytes())
+        else:
+            self.write_command(LanguageOperations.batch_return, json.dumps({"returnID" : return_id, "results" : results}))
+
+    def batch_return_remote(self, retData, returnID):
+        future = self.pop_pending_call(int(retData.get('returnID', returnID)), None)
+        if future is None:
+            log.warning("No batch is waiting on return %s", returnID)
+            return
+        results = []
+        for result in retData['results']:
+            if 'error' in result:
+                results.append(BatchResult(None, result['error']))
+            elif result['returnType'] == 'void':
+                results.append(BatchResult(None, None))
+            else:
+                results.append(BatchResult(self.cast(result['returnVal'], result['returnType']), None))
+        future.set_result(results)
+
+    def return_val_remote(self, retData, returnID):
+        log.debug("Returning with data %s", retData)
+        try:
+            future = self.pop_pending_call(int(retData.get('returnID', returnID)), None)
+            if future is None:
+                log.warning("No call is waiting on return %s", returnID)
+            elif retData['returnType'] == 'void':
+                future.set_result(None)
+            else:
+                future.set_result(self.cast(retData['returnVal'], retData['returnType']))
+        except Exception as e:
+            log.exception("Could not complete return")
 
 
     def get_class(self, kls):
+        if kls in self.classes:
+            return self.classes[kls]
         try:
             m = globals()[kls]
             return m
         except Exception as e:
-            print(str(e), flush=True)
+            log.exception("Unknown class %s", kls)
 
 
+    def to_argument(self, value):
+        """Returns the {value : type} form the protocol carries an argument in. Integer and
+        double arrays and bytes are packed, as raw bytes in binary frames and base64 in text."""
+        val_type = self.packed_type(value)
+        if val_type is None:
+            return {str(value) : self.standardize(type(value))}
+        if isinstance(value, array.array):
+            if sys.byteorder == 'big':
+                value = array.array(value.typecode, value)
+                value.byteswap()
+            data = value.tobytes()
+        else:
+            data = bytes(value)
+        return {data if self.binary else base64.b64encode(data).decode('ascii') : val_type}
+
+    def packed_type(self, value):
+        if isinstance(value, (bytes, bytearray, memoryview)):
+            return "bytes"
+        if isinstance(value, array.array):
+            if value.typecode == 'd':
+                return "double[]"
+            if value.typecode in 'bBhHiIlLqQ' and value.itemsize in (4, 8):
+                return "int[]" if value.itemsize == 4 else "long[]"
+        return None
+
     def standardize(self, string):
         if string == type(""):
             return "string"
@@ -183,6 +899,15 @@ class LanguageClient:
             return str(value)
         elif val_type == 'null':
             return None
+        elif val_type in PACKED_TYPES:
+            data = value if isinstance(value, (bytes, bytearray)) else base64.b64decode(value)
+            if val_type == 'bytes':
+                return bytes(data)
+            values = array.array(PACKED_TYPES[val_type])
+            values.frombytes(data)
+            if sys.byteorder == 'big':
+                values.byteswap()
+            return values
 
 
 def is_global(func):
@@ -205,6 +930,454 @@ class Foo:
         return "this is a string"
 
 
+class Batch:
+    """Collects object creations and method calls and sends them in one frame.
+    send() returns a Future of one BatchResult per entry, in order."""
+
+    def __init__(self, client):
+        self.client = client
+        self.entries = []
+
+    def create_object(self, class_name, var_name, *args):
+        self.client.handshake.wait()
+        arguments = [self.client.to_argument(arg) for arg in args]
+        self.entries.append({"op" : "create", "name" : class_name, "varName" : var_name, "arguments" : arguments})
+        return self
+
+    def call_method(self, var_name, method_name, *params):
+        self.client.handshake.wait()
+        arguments = [self.client.to_argument(param) for param in params]
+        self.entries.append({"op" : "call", "name" : method_name, "varName" : var_name, "arguments" : arguments})
+        return self
+
+    def send(self):
+        return self.client.send_batch(self.entries)
+
+    def execute(self):
+        return self.send().result()
+
+
+class PreparedCall:
+    """A method of a remote object the core resolved once, for arguments of fixed types.
+    Calls send only its handle and the arguments. If the object is created again under the
+    same name, or its class registered again, the core finds it again on the next call. If
+    the client reconnects, the call is prepared again the first time it is made."""
+
+    def __init__(self, client, handle, connection, var_name, method_name, types):
+        self.client = client
+        self.handle = handle
+        # The client's connection the handle belongs to
+        self.connection = connection
+        self.lock = threading.Lock()
+        self.var_name = var_name
+        self.method_name = method_name
+        self.types = types
+
+    def call_async(self, *params, timeout=None):
+        return self.client.call_prepared_async(self, params, timeout)
+
+    def call(self, *params):
+        return self.call_async(*params).result()
+
+
+class RemoteStream:
+    """The values of a streamed result, read as they arrive. The callee only sends chunks
+    it has credit for: it starts with STREAM_WINDOW and gets one more for every chunk
+    taken from here. Closing the stream before its end cancels it."""
+
+    END = object()
+
+    def __init__(self, client, call_id, stream_id):
+        self.client = client
+        self.call_id = call_id
+        self.stream_id = stream_id
+        # Lists of values, then END or the error that stopped the stream
+        self.chunks = queue.Queue()
+        self.current = iter(())
+        self.error = None
+        self.finished = False
+
+    def offer(self, values):
+        self.chunks.put(values)
+
+    def end(self, error):
+        self.chunks.put(RemoteStream.END if error is None else error)
+
+    def __iter__(self):
+        return self
+
+    def __next__(self):
+        while True:
+            for value in self.current:
+                return value
+            if self.finished:
+                if self.error is not None:
+                    raise RuntimeError(self.error)
+                raise StopIteration
+            chunk = self.chunks.get()
+            if isinstance(chunk, list):
+                self.current = iter(chunk)
+                self.client.stream_credit(self, 1)
+            else:
+                self.finished = True
+                self.error = None if chunk is RemoteStream.END else chunk
+
+    def close(self):
+        if not self.finished:
+            self.finished = True
+            self.current = iter(())
+            self.client.stream_credit(self, 0)
+
+class BatchResult:
+
+    def __init__(self, value, error):
+        self.value = value
+        self.error = error
+
+    def is_error(self):
+        return self.error is not None
+
+
+class FrameEncoder:
+    """Builds a binary protocol frame: 4 byte big endian length, operation byte,
+    varint call id, then the body. Matches FrameEncoder in the Java core."""
+
+    TYPE_OTHER = 0
+    TYPE_STRING = 1
+    TYPE_INT = 2
+    TYPE_INT_ARRAY = 3
+    TYPE_LONG_ARRAY = 4
+    TYPE_DOUBLE_ARRAY = 5
+    TYPE_BYTES = 6
+    PACKED = {"int[]" : TYPE_INT_ARRAY, "long[]" : TYPE_LONG_ARRAY, "double[]" : TYPE_DOUBLE_ARRAY, "bytes" : TYPE_BYTES}
+
+    def __init__(self, operation, call_id=0):
+        self.buf = bytearray(4)
+        self.buf.append(operation.value)
+        self.write_varint(call_id)
+
+    def write_varint(self, value):
+        while value & ~0x7F:
+            self.buf.append((value & 0x7F) | 0x80)
+            value >>= 7
+        self.buf.append(value)
+        return self
+
+    def write_string(self, string):
+        return self.write_bytes(string.encode('utf-8'))
+
+    def write_bytes(self, data):
+        self.write_varint(len(data))
+        self.buf += data
+        return self
+
+    def write_argument(self, value, val_type):
+        if val_type in FrameEncoder.PACKED:
+            self.buf.append(FrameEncoder.PACKED[val_type])
+            return self.write_bytes(value if isinstance(value, (bytes, bytearray)) else base64.b64decode(value))
+        if val_type == 'int':
+            try:
+                number = int(value)
+                if not -2**63 <= number < 2**63:
+                    raise ValueError("Too large for a varint")
+                self.buf.append(FrameEncoder.TYPE_INT)
+                return self.write_varint(((number << 1) ^ (number >> 63)) & 0xFFFFFFFFFFFFFFFF)
+            except ValueError:
+                pass
+        elif val_type == 'string':
+            self.buf.append(FrameEncoder.TYPE_STRING)
+            return self.write_string(value)
+        self.buf.append(FrameEncoder.TYPE_OTHER)
+        self.write_string(str(val_type))
+        return self.write_string(value)
+
+    def write_arguments(self, args):
+        self.write_varint(len(args))
+        for arg in args:
+            value, val_type = list(arg.items())[0]
+            self.write_argument(value, val_type)
+        return self
+
+    def write_batch_entries(self, entries):
+        self.write_varint(len(entries))
+        for entry in entries:
+            if entry['op'] == 'create':
+                self.buf.append(LanguageOperations.create_object.value)
+                self.write_string(entry['name']).write_string(entry['varName'])
+            else:
+                self.buf.append(LanguageOperations.call_method.value)
+                self.write_string(entry['varName']).write_string(entry['name'])
+            self.write_arguments(entry['arguments'])
+        return self
+
+    def write_batch_results(self, results):
+        self.write_varint(len(results))
+        for result in results:
+            if 'error' in result:
+                self.buf.append(1)
+                self.write_string(str(result['error']))
+            else:
+                self.buf.append(0)
+                self.write_argument(result['returnVal'], str(result['returnType']))
+        return self
+
+    def to_bytes(self):
+        struct.pack_into('>I', self.buf, 0, len(self.buf) - 4)
+        return bytes(self.buf)
+
+
+class FrameDecoder:
+    """Reads a frame written by FrameEncoder, after its length prefix"""
+
+    def __init__(self, data):
+        self.data = data
+        self.pos = 0
+        self.operation = self.read_byte()
+        self.call_id = self.read_varint()
+
+    def read_byte(self):
+        b = self.data[self.pos]
+        self.pos += 1
+        return b
+
+    def read_varint(self):
+        value = 0
+        shift = 0
+        while True:
+            b = self.read_byte()
+            value |= (b & 0x7F) << shift
+            shift += 7
+            if not b & 0x80:
+                return value
+
+    def read_string(self):
+        length = self.read_varint()
+        string = self.data[self.pos:self.pos + length].decode('utf-8')
+        self.pos += length
+        return string
+
+    def read_bytes(self):
+        length = self.read_varint()
+        data = bytes(self.data[self.pos:self.pos + length])
+        self.pos += length
+        return data
+
+    def read_argument(self):
+        val_type = self.read_byte()
+        if val_type == FrameEncoder.TYPE_INT:
+            number = self.read_varint()
+            return {str((number >> 1) ^ -(number & 1)) : "int"}
+        elif val_type == FrameEncoder.TYPE_STRING:
+            return {self.read_string() : "string"}
+        for name, tag in FrameEncoder.PACKED.items():
+            if val_type == tag:
+                return {self.read_bytes() : name}
+        type_name = self.read_string()
+        return {self.read_string() : type_name}
+
+    def read_arguments(self):
+        return [self.read_argument() for i in range(self.read_varint())]
+
+    def read_batch_entries(self):
+        entries = []
+        for i in range(self.read_varint()):
+            if self.read_byte() == LanguageOperations.create_object.value:
+                entry = {"op" : "create", "name" : self.read_string(), "varName" : self.read_string()}
+            else:
+                entry = {"op" : "call", "varName" : self.read_string(), "name" : self.read_string()}
+            entry["arguments"] = self.read_arguments()
+            entries.append(entry)
+        return entries
+
+    def read_batch_results(self):
+        results = []
+        for i in range(self.read_varint()):
+            if self.read_byte() == 1:
+                results.append({"error" : self.read_string()})
+            else:
+                value, val_type = list(self.read_argument().items())[0]
+                results.append({"returnVal" : value, "returnType" : val_type})
+        return results
+
+    def read_body(self, operation):
+        """Reads the body into the same shape the text protocol's JSON has"""
+        if operation == LanguageOperations.create_object:
+            return {"name" : self.read_string(), "varName" : self.read_string(), "arguments" : self.read_arguments()}
+        elif operation == LanguageOperations.call_method:
+            return {"varName" : self.read_string(), "name" : self.read_string(), "arguments" : self.read_arguments()}
+        elif operation == LanguageOperations.return_val:
+            value, val_type = list(self.read_argument().items())[0]
+            return {"returnVal" : value, "returnType" : val_type}
+        elif operation == LanguageOperations.call_batch:
+            return {"entries" : self.read_batch_entries()}
+        elif operation == LanguageOperations.batch_return:
+            return {"results" : self.read_batch_results()}
+        elif operation == LanguageOperations.release_object:
+            return {"varName" : self.read_string()}
+        elif operation == LanguageOperations.stream_chunk:
+            return {"streamID" : self.read_varint(), "values" : self.read_arguments()}
+        elif operation == LanguageOperations.stream_end:
+            end = {"streamID" : self.read_varint()}
+            if self.pos < len(self.data):
+                end["error"] = self.read_string()
+            return end
+        elif operation == LanguageOperations.stream_credit:
+            return {"streamID" : self.read_varint(), "credit" : self.read_varint()}
+        elif operation == LanguageOperations.error:
+            return self.read_string()
+        return json.loads(self.read_string())
+
+
+class SharedMemoryTransport:
+    """The language's side of the core's SharedMemoryTransport: a file the core created
+    holding two single producer, single consumer rings, language to core first. Each
+    ring has its write position, its read position 64 bytes later, and 128 bytes in,
+    its data. Positions are little endian and only grow; frames keep their length
+    prefix and start on 4 byte boundaries. Only the output thread writes and only the
+    reader thread reads. An idle reader marks itself asleep after the read position
+    and waits until the writer rings the doorbell, an empty frame on the socket."""
+
+    MAGIC = 0x4D4C5232
+    FILE_HEADER = 64
+    RING_HEADER = 128
+    READ_POSITION = 64
+    ASLEEP = READ_POSITION + 8
+    YIELDS = 100
+    DOORBELL = struct.pack('>IBB', 2, 0, 0)
+
+    def __init__(self, path, doorbell):
+        with open(path, 'r+b') as f:
+            self.mm = mmap.mmap(f.fileno(), 0)
+        # Both sides have it mapped now, so nothing is left behind if either process dies
+        os.remove(path)
+        magic, capacity = struct.unpack_from('<ii', self.mm, 0)
+        if magic != SharedMemoryTransport.MAGIC or len(self.mm) != self.FILE_HEADER + 2 * (self.RING_HEADER + capacity):
+            self.mm.close()
+            raise ValueError(path + " is not a shared memory transport file")
+        self.capacity = capacity
+        self.mask = capacity - 1
+        self.out_ring = self.FILE_HEADER
+        self.in_ring = self.FILE_HEADER + self.RING_HEADER + capacity
+        self.write_position = 0
+        self.read_position = 0
+        self.frame = None
+        self.running = True
+        self.doorbell = doorbell
+        self.bell = threading.Event()
+        self.fence_lock = threading.Lock()
+
+    def start(self, handler):
+        threading.Thread(target=self.read, args=(handler,), name="RingReader", daemon=True).start()
+
+    def close(self):
+        self.running = False
+        self.bell.set()
+
+    def wake(self):
+        self.bell.set()
+
+    def fence(self):
+        # Python cannot ask for a memory fence, but taking a lock is one
+        with self.fence_lock:
+            pass
+
+    def published(self):
+        """Rings the doorbell if the core's reader went to sleep. Either it sees the new
+        write position before sleeping or this sees it asleep, since both sides fence
+        between their store and their load."""
+        self.fence()
+        if struct.unpack_from('<i', self.mm, self.out_ring + self.ASLEEP)[0]:
+            struct.pack_into('<i', self.mm, self.out_ring + self.ASLEEP, 0)
+            self.doorbell()
+
+    def send(self, frame):
+        """Copies the frame in as room frees up, waiting while the ring is full"""
+        frame = memoryview(frame)
+        record = (len(frame) + 3) & ~3
+        offset = 0
+        idle = 0
+        while offset < record and self.running:
+            read_limit = struct.unpack_from('<q', self.mm, self.out_ring + self.READ_POSITION)[0]
+            count = min(self.capacity - (self.write_position - read_limit), record - offset)
+            if count <= 0 or (offset == 0 and count < 4):
+                idle = self.back_off(idle)
+                continue
+            idle = 0
+            self.copy_in(frame[offset:offset + min(count, len(frame) - offset)])
+            self.write_position += count
+            struct.pack_into('<q', self.mm, self.out_ring, self.write_position)
+            offset += count
+            self.published()
+
+    def copy_in(self, data):
+        start = self.out_ring + self.RING_HEADER
+        index = self.write_position & self.mask
+        first = min(len(data), self.capacity - index)
+        self.mm[start + index:start + index + first] = data[:first]
+        if first < len(data):
+            self.mm[start:start + len(data) - first] = data[first:]
+
+    def poll(self):
+        """Returns the next whole frame without its length prefix, or None"""
+        available = struct.unpack_from('<q', self.mm, self.in_ring)[0] - self.read_position
+        start = self.in_ring + self.RING_HEADER
+        if self.frame is None:
+            if available < 4:
+                return None
+            length = struct.unpack_from('>I', self.mm, start + (self.read_position & self.mask))[0]
+            self.frame = bytearray(length)
+            self.filled = 0
+            self.remaining = (length + 3) & ~3
+            self.read_position += 4
+            available -= 4
+        count = min(available, self.remaining)
+        payload = min(count, len(self.frame) - self.filled)
+        if payload > 0:
+            index = self.read_position & self.mask
+            first = min(payload, self.capacity - index)
+            self.frame[self.filled:self.filled + first] = self.mm[start + index:start + index + first]
+            if first < payload:
+                self.frame[self.filled + first:self.filled + payload] = self.mm[start:start + payload - first]
+            self.filled += payload
+        self.read_position += count
+        self.remaining -= count
+        struct.pack_into('<q', self.mm, self.in_ring + self.READ_POSITION, self.read_position)
+        if self.remaining > 0:
+            return None
+        frame, self.frame = self.frame, None
+        return bytes(frame)
+
+    def read(self, handler):
+        idle = 0
+        while self.running:
+            frame = self.poll()
+            if frame is None:
+                if idle < self.YIELDS:
+                    idle = self.back_off(idle)
+                else:
+                    self.sleep()
+                continue
+            idle = 0
+            try:
+                handler(frame)
+            except Exception:
+                log.exception("Could not handle frame from shared memory")
+
+    def sleep(self):
+        """Waits for the doorbell, unless something arrived while marking itself asleep"""
+        struct.pack_into('<i', self.mm, self.in_ring + self.ASLEEP, 1)
+        self.fence()
+        if struct.unpack_from('<q', self.mm, self.in_ring)[0] == self.read_position:
+            self.bell.wait()
+        self.bell.clear()
+        struct.pack_into('<i', self.mm, self.in_ring + self.ASLEEP, 0)
+
+    def back_off(self, idle):
+        """Yields the GIL at first, then sleeps for longer and longer up to a millisecond"""
+        time.sleep(0 if idle < 100 else min(0.001, 0.00001 * 2 ** min(idle - 100, 7)))
+        return idle + 1
+
+
 class LanguageOperations(Enum):
     nothing = 0
     error = 1
@@ -213,6 +1386,16 @@ class LanguageOperations(Enum):
     register_class = 4
     create_object = 5
     call_method = 6
+    call_batch = 7
+    batch_return = 8
+    release_object = 9
+    stream_chunk = 10
+    stream_end = 11
+    stream_credit = 12
+    announce_object = 13
+    withdraw_class = 14
+    prepare_call = 15
+    call_prepared = 16
 
 '''
 try:
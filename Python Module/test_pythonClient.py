@@ -0,0 +1,136 @@
+"""Runs python clients against a core started from the jars Maven builds. Build them
+with mvn package first, or set MULTILANGUAGE_CLASSPATH to the core's classpath:
+
+    python3 -m unittest test_pythonClient
+"""
+import glob, os, socket, subprocess, threading, time, unittest
+from concurrent.futures import ThreadPoolExecutor
+
+import pythonClient
+from pythonClient import LanguageClient, Global
+
+ROOT = os.path.dirname(os.path.dirname(os.path.abspath(__file__)))
+THREADS = 8
+ROUNDS = 50
+
+def core_classpath():
+    classpath = os.environ.get("MULTILANGUAGE_CLASSPATH")
+    if classpath:
+        return classpath
+    jars = [os.path.join(ROOT, "Common", "target", "common-1.0-SNAPSHOT.jar"),
+            os.path.join(ROOT, "Core", "target", "core-1.0-SNAPSHOT.jar")]
+    jars += glob.glob(os.path.expanduser("~/.m2/repository/com/googlecode/json-simple/json-simple/1.1.1/json-simple-1.1.1.jar"))
+    if len(jars) < 3 or not all(os.path.exists(jar) for jar in jars):
+        return None
+    return os.pathsep.join(jars)
+
+def free_port():
+    with socket.socket() as s:
+        s.bind(("localhost", 0))
+        return s.getsockname()[1]
+
+class Counter:
+
+    @Global
+    def __init__(self, start):
+        self.start = start
+
+    @Global
+    def add(self, n):
+        return self.start + n
+
+    @Global
+    def fail(self):
+        raise ValueError("failed on purpose")
+
+    @Global
+    def nothing(self):
+        return None
+
+class BinaryCounter(Counter):
+    """Served by the client speaking binary frames"""
+
+class ConcurrencyTest(unittest.TestCase):
+
+    @classmethod
+    def setUpClass(cls):
+        classpath = core_classpath()
+        if classpath is None:
+            raise unittest.SkipTest("The core is not built, run mvn package first")
+        cls.port = free_port()
+        cls.core = subprocess.Popen(["java", "-cp", classpath, "-DmultiLanguage.port=%d" % cls.port,
+                                     "-DmultiLanguage.sharedMemory=false", "languageServer.Main"],
+                                    stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL)
+        deadline = time.monotonic() + 30
+        while True:
+            try:
+                socket.create_connection(("localhost", cls.port), timeout=1).close()
+                break
+            except OSError:
+                if time.monotonic() > deadline or cls.core.poll() is not None:
+                    cls.core.kill()
+                    raise
+                time.sleep(0.1)
+        cls.owner = LanguageClient("localhost", cls.port)
+        cls.owner.register_class(Counter)
+        cls.caller = LanguageClient("localhost", cls.port, binary=True)
+        cls.caller.register_class(BinaryCounter)
+
+    @classmethod
+    def tearDownClass(cls):
+        # The clients' threads end once the core closes their connections
+        cls.core.kill()
+        cls.core.wait()
+
+    def await_released(self, prefix, client=None):
+        client = client or self.owner
+        deadline = time.monotonic() + 10
+        while any(name.startswith(prefix) for name in list(client.global_local_objects)):
+            self.assertLess(time.monotonic(), deadline, "Objects were not released")
+            time.sleep(0.01)
+
+    def test_concurrent_creates_calls_and_releases_reach_their_objects(self):
+        def run(thread):
+            results = []
+            for i in range(ROUNDS):
+                name = "c-%d-%d" % (thread, i)
+                self.caller.create_object("Counter", name, thread * 1000 + i)
+                results.append(self.caller.call_method(name, "add", True, 1))
+                self.caller.release_object(name)
+            return results
+        with ThreadPoolExecutor(THREADS) as pool:
+            results = list(pool.map(run, range(THREADS)))
+        for thread in range(THREADS):
+            self.assertEqual([thread * 1000 + i + 1 for i in range(ROUNDS)], results[thread])
+        self.await_released("c-")
+
+    def test_call_ids_recycle_around_the_maximum(self):
+        self.caller.create_object("Counter", "wrap", 0)
+        with self.caller.call_lock:
+            self.caller.next_call_id = pythonClient.MAX_CALL_ID - THREADS * ROUNDS // 2
+        def run(thread):
+            futures = [self.caller.call_method_async("wrap", "add", thread * ROUNDS + i) for i in range(ROUNDS)]
+            return [future.result(timeout=30) for future in futures]
+        with ThreadPoolExecutor(THREADS) as pool:
+            results = list(pool.map(run, range(THREADS)))
+        for thread in range(THREADS):
+            self.assertEqual([thread * ROUNDS + i for i in range(ROUNDS)], results[thread])
+        with self.caller.call_lock:
+            self.assertFalse(self.caller.pending_calls)
+            self.assertLess(self.caller.next_call_id, THREADS * ROUNDS)
+        self.caller.release_object("wrap")
+        self.await_released("wrap")
+
+    def test_a_failed_call_is_answered_with_its_error(self):
+        for client, served_by, class_name in ((self.caller, self.owner, "Counter"), (self.owner, self.caller, "BinaryCounter")):
+            name = "failing-" + class_name
+            client.create_object(class_name, name, 0)
+            with self.assertRaises(RuntimeError) as raised:
+                client.call_method_async(name, "fail").result(timeout=10)
+            self.assertIn("failed on purpose", str(raised.exception))
+            self.assertIsNone(client.call_method_async(name, "nothing").result(timeout=10))
+            client.release_object(name)
+            self.await_released(name, served_by)
+
+if __name__ == "__main__":
+    unittest.main()
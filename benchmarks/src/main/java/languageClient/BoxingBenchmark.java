@@ -0,0 +1,54 @@
+package languageClient;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converting argument types and values between their wire and Java forms
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class BoxingBenchmark {
+
+	private String value = "12345";
+	private String typeName = "java.lang.Integer";
+	private String wireType = "int";
+
+	@Benchmark
+	public String standardize() {
+		return LanguageClient.standardize(typeName);
+	}
+
+	@Benchmark
+	public String unstandardize() {
+		return LanguageClient.unstandardize(wireType);
+	}
+
+	@Benchmark
+	public Object boxByClass() {
+		return LanguageClient.box(value, Integer.class);
+	}
+
+	/**
+	 * Boxing from a type name, which looks the class up first
+	 */
+	@Benchmark
+	public Object boxByName() {
+		return LanguageClient.box(value, typeName);
+	}
+
+}
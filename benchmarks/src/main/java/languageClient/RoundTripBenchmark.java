@@ -0,0 +1,135 @@
+package languageClient;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import languageServer.LanguageServer;
+
+/**
+ * Create and call round trips over loopback, a Unix domain socket, shared memory, or
+ * the in process transport, between two clients and a core, all in this JVM. Each fork starts its own core, since the core cannot be stopped while
+ * it waits on accept.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Benchmark)
+public class RoundTripBenchmark {
+
+	private static final int VARIABLES = 1024; // Created objects reuse these names so the tables stay small
+
+	@Param({ "text", "binary", "sharedMemory", "unix", "inProcess" })
+	private String protocol;
+
+	private LanguageClient owner;
+	private LanguageClient caller;
+	private PreparedCall add;
+	private int next;
+
+	public static class Counter {
+
+		@Global
+		public Counter(Integer start) {
+		}
+
+		@Global
+		public Integer add(Integer a, Integer b) {
+			return a + b;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		String path = File.createTempFile("roundTrip", ".sock").getPath();
+		LanguageServer server = new LanguageServer();
+		server.setPort(port);
+		server.setUseSelector(true);
+		server.setUnixSocket(path);
+		Thread t = new Thread(server::run, "LanguageServer");
+		t.setDaemon(true);
+		t.start();
+
+		owner = connect(server, port, path, protocol);
+		owner.registerClass(Counter.class);
+		caller = connect(server, port, path, protocol);
+		// Nothing acknowledges a registration, so retry until the class is known
+		long deadline = System.currentTimeMillis() + 10000;
+		while (true) {
+			try {
+				caller.createObject(Counter.class.getName(), "counter", 0);
+				caller.callMethod("counter", "add", true, 1, 2);
+				break;
+			} catch (LanguageClient.InvalidObjectException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+		add = caller.prepareCall("counter", "add", Integer.class, Integer.class);
+	}
+
+	private static LanguageClient connect(LanguageServer server, int port, String path, String protocol)
+			throws IOException, InterruptedException {
+		if (protocol.equals("inProcess")) {
+			return new LanguageClient(new InProcessTransport(server::connectInProcess));
+		}
+		long deadline = System.currentTimeMillis() + 10000;
+		while (true) {
+			// The core may not be accepting yet
+			try (Socket probe = new Socket("localhost", port)) {
+				break;
+			} catch (IOException e) {
+				if (System.currentTimeMillis() > deadline) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+		if (protocol.equals("unix")) {
+			return new LanguageClient(SocketTransport.unix(path), true, false);
+		}
+		return new LanguageClient("localhost", port, !protocol.equals("text"), protocol.equals("sharedMemory"));
+	}
+
+	@Benchmark
+	public Object call() throws Exception {
+		return caller.callMethod("counter", "add", true, 1, 2);
+	}
+
+	@Benchmark
+	public Object callPrepared() throws Exception {
+		return add.call(1, 2);
+	}
+
+	@Benchmark
+	public Object createAndCall() throws Exception {
+		String varName = "counter" + (next++ % VARIABLES);
+		caller.createObject(Counter.class.getName(), varName, 0);
+		return caller.callMethod(varName, "add", true, 1, 2);
+	}
+
+}
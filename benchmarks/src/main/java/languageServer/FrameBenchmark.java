@@ -0,0 +1,121 @@
+package languageServer;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import languageCommon.FrameDecoder;
+import languageCommon.FrameEncoder;
+import languageCommon.LanguageOperations;
+
+/**
+ * Encoding and decoding one CallMethod in the text and binary protocols. Run with
+ * -prof gc to see the bytes allocated per frame as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class FrameBenchmark {
+
+	private LanguageHandler handler;
+	private JSONParser parser;
+	private JsonReader reader;
+	private JSONArray args;
+	private String line;
+	private byte[] frame;
+	private byte[] sent; // The handler's last message, caught instead of written
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() {
+		handler = new LanguageHandler(0, null);
+		handler.setTransport(new Transport() {
+			@Override
+			public void send(byte[] frame) {
+				sent = frame;
+			}
+
+			@Override
+			public void close() {
+			}
+		});
+		parser = new JSONParser();
+		reader = new JsonReader();
+		args = new JSONArray();
+		JSONObject a = new JSONObject();
+		a.put("12345", "int");
+		JSONObject b = new JSONObject();
+		b.put("some string argument", "string");
+		args.add(a);
+		args.add(b);
+
+		handler.callMethod("variableName", "methodName", 42, args);
+		byte[] message = sent;
+		line = new String(message, 0, message.length - System.lineSeparator().length());
+		frame = new FrameEncoder(LanguageOperations.CallMethod, 42).writeString("variableName")
+				.writeString("methodName").writeArguments(args).toByteArray();
+	}
+
+	@Benchmark
+	public byte[] encodeText() {
+		handler.callMethod("variableName", "methodName", 42, args);
+		return sent;
+	}
+
+	@Benchmark
+	public byte[] encodeBinary() {
+		return new FrameEncoder(LanguageOperations.CallMethod, 42).writeString("variableName")
+				.writeString("methodName").writeArguments(args).toByteArray();
+	}
+
+	@Benchmark
+	public Object decodeText() throws ParseException {
+		String action = line.substring(0, 5);
+		int returnId = Integer.parseInt(line.substring(5, 10));
+		JSONObject data = (JSONObject) parser.parse(line.substring(10));
+		return action.equals(String.format("%05d", LanguageOperations.CallMethod.ordinal())) ? data.get("arguments")
+				: returnId;
+	}
+
+	@Benchmark
+	public Object decodeTextStreaming() throws ParseException {
+		return reader.readObject(line, 10).get("arguments");
+	}
+
+	/**
+	 * Reads a text CallMethod and writes it on to a text language, as the core routes one
+	 */
+	@Benchmark
+	public byte[] routeText() throws ParseException {
+		JSONObject data = reader.readObject(line, 10);
+		handler.callMethod((String) data.get("varName"), (String) data.get("name"), 42,
+				(JSONArray) data.get("arguments"));
+		return sent;
+	}
+
+	@Benchmark
+	public Object decodeBinary() {
+		FrameDecoder decoder = new FrameDecoder(frame, 4, frame.length - 4);
+		decoder.readString();
+		decoder.readString();
+		return decoder.readArguments();
+	}
+
+}
@@ -0,0 +1,85 @@
+package languageServer;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Overload resolution for a method with a growing number of overloads of the same
+ * arity, where the arguments match the last one registered
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ResolveBenchmark {
+
+	@Param({ "1", "8", "64" })
+	private int overloads;
+
+	private JSONObject classData;
+	private ClassDescriptor descriptor;
+	private JSONArray args;
+
+	@SuppressWarnings("unchecked")
+	@Setup
+	public void setup() {
+		JSONArray methods = new JSONArray();
+		for (int i = 0; i < overloads; i++) {
+			JSONArray parameters = new JSONArray();
+			boolean last = i == overloads - 1;
+			parameters.add(last ? "int" : "type" + i);
+			parameters.add(last ? "string" : "type" + i);
+			JSONObject method = new JSONObject();
+			method.put("name", "method");
+			method.put("parameters", parameters);
+			method.put("return", "int");
+			methods.add(method);
+		}
+		classData = new JSONObject();
+		classData.put("name", "Benchmarked");
+		classData.put("methods", methods);
+		classData.put("constructors", new JSONArray());
+		descriptor = new ClassDescriptor(classData);
+
+		args = new JSONArray();
+		JSONObject a = new JSONObject();
+		a.put("1", "int");
+		JSONObject b = new JSONObject();
+		b.put("b", "string");
+		args.add(a);
+		args.add(b);
+	}
+
+	/**
+	 * A repeated signature, answered from the descriptor's cache
+	 */
+	@Benchmark
+	public Object resolve() {
+		return descriptor.resolveMethod("method", args, true);
+	}
+
+	/**
+	 * The first call after registration, which compiles the class and scans the overloads
+	 */
+	@Benchmark
+	public Object compileAndResolve() {
+		return new ClassDescriptor(classData).resolveMethod("method", args, true);
+	}
+
+}